@@ -0,0 +1,207 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A container that encodes videos as animated PNGs (APNG). Each frame is
+ * the rectangle that changed since the previous frame, deflated, with its
+ * own delay; the palette is the codec's, which has to be a
+ * PaletteVideoCodec. The animation loops forever. Programs that don't
+ * understand APNG show the first frame.
+ * @author ais523
+ */
+public class APNGVideoContainer extends AnimatedImageContainer {
+
+    private static final byte[] SIGNATURE =
+        {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /* The chunks before the animation control chunk, and the chunks after;
+       the animation control chunk needs the number of frames, so it's
+       only written once they've all been encoded. */
+    private ByteArrayOutputStream header = null;
+    private ByteArrayOutputStream frameChunks = null;
+    private byte[] encode = null;
+    private int sequenceNumber;
+    private int frameCount;
+
+    /* Reused while encoding frames. */
+    private final Deflater deflater =
+            new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final CRC32 crc = new CRC32();
+    private final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+    private final byte[] deflateBuffer = new byte[65536];
+    private byte[] scanlines = new byte[0];
+
+    /**
+     * Encodes a ttyrec into an animated PNG. The timer isn't used: each
+     * frame is shown for as long as it was in the ttyrec.
+     * @throws IllegalArgumentException if the codec isn't a
+     * PaletteVideoCodec.
+     */
+    @Override
+    public void encodeVideo(VideoCodec codec,
+            Iterator<? extends DecodedFrame> frames,
+            FrameTimeConvertor timer) throws CancellationException {
+        encode = null;
+        header = new ByteArrayOutputStream();
+        frameChunks = new ByteArrayOutputStream();
+        sequenceNumber = 0;
+        frameCount = 0;
+        try {
+            encodeAnimation(codec, frames);
+            if (frameCount == 0) {
+                /* No frames; a PNG still needs an image, so make it a
+                   transparent pixel. */
+                startFrames(1, 1, new IndexColorModel(1, 1,
+                        new byte[1], new byte[1], new byte[1]), 1);
+                writeFrame(new byte[] {1}, 0, 0, 1, 1, LAST_FRAME_DELAY);
+            }
+            ByteArrayOutputStream png = new ByteArrayOutputStream(
+                    header.size() + frameChunks.size() + 32);
+            png.write(SIGNATURE, 0, SIGNATURE.length);
+            header.writeTo(png);
+            /* acTL: the number of frames, and to loop forever */
+            writeInt(chunk, frameCount);
+            writeInt(chunk, 0);
+            writeChunk(png, "acTL");
+            frameChunks.writeTo(png);
+            writeChunk(png, "IEND");
+            encode = png.toByteArray();
+        } catch (IOException ex) {
+            throw new AssertionError(ex); // can't happen in memory
+        } finally {
+            header = null;
+            frameChunks = null;
+            scanlines = new byte[0];
+        }
+    }
+
+    @Override
+    protected void startFrames(int width, int height,
+            IndexColorModel palette, int transparentIndex) {
+        /* IHDR: 8-bit palette indexes, no interlacing */
+        writeInt(chunk, width);
+        writeInt(chunk, height);
+        chunk.write(8);
+        chunk.write(3);
+        chunk.write(0);
+        chunk.write(0);
+        chunk.write(0);
+        writeChunk(header, "IHDR");
+        for (int i = 0; i <= transparentIndex; i++) {
+            if (i < palette.getMapSize()) {
+                chunk.write(palette.getRed(i));
+                chunk.write(palette.getGreen(i));
+                chunk.write(palette.getBlue(i));
+            } else {
+                chunk.write(0);
+                chunk.write(0);
+                chunk.write(0);
+            }
+        }
+        writeChunk(header, "PLTE");
+        /* tRNS: the palette's colors are opaque; the extra one isn't */
+        for (int i = 0; i < transparentIndex; i++)
+            chunk.write(255);
+        chunk.write(0);
+        writeChunk(header, "tRNS");
+    }
+
+    @Override
+    protected void writeFrame(byte[] pixels, int x, int y,
+            int width, int height, int delay) {
+        /* fcTL: where the frame goes and how long it's shown for. The
+           first frame replaces the (empty) image; the others are drawn
+           on top of it, and left there for the next frame. */
+        writeInt(chunk, sequenceNumber++);
+        writeInt(chunk, width);
+        writeInt(chunk, height);
+        writeInt(chunk, x);
+        writeInt(chunk, y);
+        if (delay <= 65535) {
+            writeShort(chunk, delay);
+            writeShort(chunk, 1000);
+        } else {
+            writeShort(chunk, Math.min(delay / 10, 65535));
+            writeShort(chunk, 100);
+        }
+        chunk.write(0); // APNG_DISPOSE_OP_NONE
+        chunk.write(frameCount == 0 ? 0 : 1); // APNG_BLEND_OP_SOURCE/OVER
+        writeChunk(frameChunks, "fcTL");
+
+        /* The image data: each scanline, with no filtering, deflated. The
+           first frame's is the default image, and goes in IDAT chunks. */
+        int length = (width + 1) * height;
+        if (scanlines.length < length) scanlines = new byte[length];
+        for (int row = 0; row < height; row++) {
+            scanlines[row * (width + 1)] = 0;
+            System.arraycopy(pixels, row * width,
+                    scanlines, row * (width + 1) + 1, width);
+        }
+        if (frameCount > 0) writeInt(chunk, sequenceNumber++);
+        deflater.reset();
+        deflater.setInput(scanlines, 0, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(deflateBuffer);
+            chunk.write(deflateBuffer, 0, n);
+        }
+        writeChunk(frameChunks, frameCount == 0 ? "IDAT" : "fdAT");
+        frameCount++;
+    }
+
+    /**
+     * Writes the data collected in chunk as a chunk of a PNG file, and
+     * empties chunk.
+     * @param os Where to write the chunk.
+     * @param type The chunk's type.
+     */
+    private void writeChunk(ByteArrayOutputStream os, String type) {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        writeInt(os, chunk.size());
+        os.write(typeBytes, 0, 4);
+        byte[] data = chunk.toByteArray();
+        os.write(data, 0, data.length);
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data);
+        writeInt(os, (int) crc.getValue());
+        chunk.reset();
+    }
+
+    private static void writeInt(ByteArrayOutputStream os, int i) {
+        os.write(i >>> 24);
+        os.write(i >>> 16);
+        os.write(i >>> 8);
+        os.write(i);
+    }
+
+    private static void writeShort(ByteArrayOutputStream os, int s) {
+        os.write(s >>> 8);
+        os.write(s);
+    }
+
+    @Override
+    public void outputEncode(OutputStream os) throws IOException {
+        if (encode == null)
+            throw new IllegalStateException("No encode to write.");
+        os.write(encode);
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "png";
+    }
+}
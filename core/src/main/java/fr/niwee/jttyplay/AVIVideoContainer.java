@@ -0,0 +1,793 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A class describing the AVI video container format, and performing encodes
+ * into that container.
+ * <p>
+ * By default, the whole encode is built up in memory, and written out by
+ * outputEncode, as a classic AVI file (which can't be larger than 4 GiB).
+ * <p>
+ * A container created with a FileChannel instead writes each frame to the
+ * channel as soon as it's encoded, then goes back to fill in the headers
+ * at the end; this is the way to encode long videos with codecs that
+ * don't compress much. These files use the OpenDML extensions (AVI 2.0):
+ * the video is split into RIFF lists of at most 1 GiB each, the first an
+ * ordinary AVI (so that players that don't know OpenDML can play the start
+ * of the video) and the rest "AVIX" extensions, and each has a standard
+ * index ("ix00"), found via a super index ("indx") in the headers. Only
+ * the index of the RIFF list being written is kept in memory.
+ * @author ais523
+ */
+public class AVIVideoContainer extends FixedFramerateVideoContainer {
+
+    /* The number of RIFF lists the super index has room for. */
+    private static final int SUPER_INDEX_ENTRIES = 256;
+    /* The length of the "hdrl" list written to files, which is the same
+       for every video, as it contains fixed-size headers for a single
+       stream: the classic headers are 200 bytes, then there's the super
+       index and the "odml" list. */
+    private static final int HEADER_LIST_LENGTH =
+            200 + 32 + 16 * SUPER_INDEX_ENTRIES + 12 + 8 + 248;
+    /* The largest RIFF list to write. OpenDML allows up to 4 GiB, but
+       many players can't cope with more than 1 GiB. */
+    private static final long RIFF_LIMIT = 1L << 30;
+    /* The flag that marks a standard index entry as not a keyframe. */
+    private static final int NOT_KEYFRAME = 0x80000000;
+
+    /* Where to write the encode as it's produced, or null to build it in
+       memory. */
+    private final FileChannel output;
+    private final long riffLimit;
+    /* The position in output of the current RIFF list, and of its "movi"
+       list, and the length of the "movi" list so far. */
+    private long riffStart;
+    private long moviStart;
+    private long moviLength;
+    /* The index of the current RIFF list, held in parallel arrays. */
+    private int[] indexFlags;
+    private int[] indexOffsets;
+    private int[] indexLengths;
+    private int indexCount;
+    /* The number of frames in the first RIFF list, once it's finished. */
+    private int firstRiffFrames;
+    /* The super index: where each RIFF list's standard index is. */
+    private long[] superIndexOffsets;
+    private int[] superIndexLengths;
+    private int[] superIndexFrames;
+    private int superIndexCount;
+    /* Frames written to output are encoded into frameBuffer, which is
+       then swapped with lastFrameBuffer, so lastFrameBuffer holds the
+       encoding of the frame most recently written (null if there's no
+       such frame) and the buffers are reused from frame to frame. */
+    private ByteBuffer frameBuffer;
+    private ByteBuffer lastFrameBuffer;
+    private final ByteBuffer chunkHeader = littleEndianBuffer(8);
+    private final ByteBuffer padding = ByteBuffer.allocate(1);
+    /* Whether output contains a complete encode. */
+    private boolean outputComplete = false;
+
+    /* The "movi" list under construction, filled in by callbacks from the
+       parent class. */
+    private AVIList moviList;
+    /* The "idx1" chunk under construction, filled in at the same time as
+     * moviList. */
+    private AVIChunk idx1;
+    /* The most recently encoded video. */
+    private AVIList encode;
+    /* The previously encoded chunk. */
+    private AVIChunk prevChunk;
+    private VideoCodec codec;
+
+    /**
+     * Creates a container that builds its encode in memory.
+     */
+    public AVIVideoContainer() {
+        this.output = null;
+        this.riffLimit = 0;
+    }
+
+    /**
+     * Creates a container that writes its encode to a file as it's
+     * produced. Anything already in the file is overwritten. The channel
+     * isn't closed by the container; outputEncode can still be used, and
+     * copies the file.
+     * @param output The file to write the encode to; it must be open for
+     * reading and writing.
+     */
+    public AVIVideoContainer(FileChannel output) {
+        this(output, RIFF_LIMIT);
+    }
+
+    /**
+     * Creates a container that writes its encode to a file as it's
+     * produced, starting new RIFF lists at a given size.
+     * @param output The file to write the encode to.
+     * @param riffLimit The largest size for a RIFF list.
+     */
+    AVIVideoContainer(FileChannel output, long riffLimit) {
+        this.output = output;
+        this.riffLimit = riffLimit;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws UncheckedIOException if the container writes to a file, and
+     * the file can't be written, or would be too large for AVI.
+     */
+    @Override
+    public void encodeVideo(VideoCodec codec,
+        Iterator<? extends DecodedFrame> frames,
+        FrameTimeConvertor timer) throws CancellationException {
+        if (output != null) {
+            try {
+                encodeVideoToOutput(codec, frames, timer);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return;
+        }
+
+        /* We can't construct the headers until we've encoded the actual
+           frames. So we encode those first. We place all the frames in
+           one "movi" list. */
+        moviList = new AVIList(false, "movi");
+        idx1 = new AVIChunk("idx1");
+        this.codec = codec;
+        prevChunk = null;
+        int encodeFrames = encodeFrames(codec, frames, timer);
+        prevChunk = null; /* deallocate it */
+        
+        /* Now we've encoded the frames, we can work out the headers. */
+        AVIList avi = new AVIList(true, "AVI ");
+        
+        checkForCancellation();
+        
+        avi.appendAtom(buildHeaderList(encodeFrames, encodeFrames, timer,
+                false));
+
+        checkForCancellation();        
+        
+        avi.appendAtom(moviList);
+        moviList = null; /* free it */
+        avi.appendAtom(idx1);
+        idx1 = null; /* free it too */
+
+        checkForCancellation();
+        
+        encode = avi;
+        
+        checkForCancellation();
+    }
+
+    /**
+     * Encodes a video straight into the output file. The headers are
+     * written last, into space left for them at the start.
+     */
+    private void encodeVideoToOutput(VideoCodec codec,
+            Iterator<? extends DecodedFrame> frames,
+            FrameTimeConvertor timer) throws IOException {
+        this.codec = codec;
+        outputComplete = false;
+        indexFlags = new int[1024];
+        indexOffsets = new int[1024];
+        indexLengths = new int[1024];
+        indexCount = 0;
+        superIndexOffsets = new long[SUPER_INDEX_ENTRIES];
+        superIndexLengths = new int[SUPER_INDEX_ENTRIES];
+        superIndexFrames = new int[SUPER_INDEX_ENTRIES];
+        superIndexCount = 0;
+        frameBuffer = ByteBuffer.allocate(65536);
+        lastFrameBuffer = null;
+        output.truncate(0);
+        riffStart = 0;
+        moviStart = 12 + HEADER_LIST_LENGTH;
+        moviLength = 12;
+        int encodeFrames = encodeFrames(codec, frames, timer);
+        frameBuffer = lastFrameBuffer = null;
+
+        checkForCancellation();
+
+        long end = finishRiff();
+        indexFlags = indexOffsets = indexLengths = null;
+
+        /* The headers go in the space at the start, after the "RIFF"
+           header that finishRiff wrote. */
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        buildHeaderList(encodeFrames, firstRiffFrames, timer, true).
+                serialize(headers);
+        superIndexOffsets = null;
+        superIndexLengths = superIndexFrames = null;
+        if (headers.size() != HEADER_LIST_LENGTH)
+            throw new IllegalStateException("AVI headers are " +
+                    headers.size() + " bytes long");
+        writeBuffer(ByteBuffer.allocate(headers.size()).
+                put(headers.toByteArray()), 12);
+        output.truncate(end);
+        outputComplete = true;
+
+        checkForCancellation();
+    }
+
+    /**
+     * Finishes the current RIFF list: adds its standard index to its
+     * "movi" list (and, for the first RIFF list, follows that with an
+     * "idx1" index), and fills in the lists' sizes.
+     * @return The position in the file after the RIFF list.
+     */
+    private long finishRiff() throws IOException {
+        if (superIndexCount == SUPER_INDEX_ENTRIES)
+            throw new IOException("Video is too large for an AVI file");
+        boolean first = riffStart == 0;
+        ByteBuffer buffer = littleEndianBuffer(65536);
+
+        /* ix00, relative to the start of the "movi" list */
+        long position = moviStart + moviLength;
+        superIndexOffsets[superIndexCount] = position;
+        superIndexLengths[superIndexCount] = 32 + 8 * indexCount;
+        superIndexFrames[superIndexCount] = indexCount;
+        superIndexCount++;
+        buffer.put(fourccBytes("ix00")).putInt(24 + 8 * indexCount).
+                putShort((short)2).put((byte)0).put((byte)1).
+                putInt(indexCount).put(fourccBytes("00dc")).
+                putLong(moviStart).putInt(0);
+        for (int i = 0; i < indexCount; i++) {
+            if (buffer.remaining() < 8)
+                position += writeBuffer(buffer, position);
+            /* the offset is of the frame's data, not its header */
+            buffer.putInt(indexOffsets[i] + 16).putInt((indexLengths[i] - 8) |
+                    ((indexFlags[i] & 0x10) != 0 ? 0 : NOT_KEYFRAME));
+        }
+        position += writeBuffer(buffer, position);
+        moviLength = position - moviStart;
+        writeBuffer(buffer.put(fourccBytes("LIST")).
+                putInt((int)(moviLength - 8)).put(fourccBytes("movi")),
+                moviStart);
+
+        /* idx1, for players that don't understand OpenDML */
+        if (first) {
+            firstRiffFrames = indexCount;
+            buffer.put(fourccBytes("idx1")).putInt(indexCount * 16);
+            for (int i = 0; i < indexCount; i++) {
+                if (buffer.remaining() < 16)
+                    position += writeBuffer(buffer, position);
+                buffer.put(fourccBytes("00dc")).putInt(indexFlags[i]).
+                        putInt(indexOffsets[i]).putInt(indexLengths[i]);
+            }
+            position += writeBuffer(buffer, position);
+        }
+        writeBuffer(buffer.put(fourccBytes("RIFF")).
+                putInt((int)(position - riffStart - 8)).
+                put(fourccBytes(first ? "AVI " : "AVIX")), riffStart);
+        indexCount = 0;
+        return position;
+    }
+
+    /**
+     * Writes the frame encoded into frameBuffer to the output file, as a
+     * "00dc" chunk, and adds it to the index. If the frame would make the
+     * RIFF list too large, a new RIFF list is started first.
+     * @param flags The flags for the index entry (0x10 for a keyframe).
+     */
+    private void writeFrame(int flags) {
+        ByteBuffer encoding = frameBuffer;
+        int length = encoding.position();
+        int padding = length % 2;
+        try {
+            long riffLength = moviStart - riffStart + moviLength +
+                    8 + length + padding + 32 + 8 * (indexCount + 1);
+            if (riffStart == 0) riffLength += 8 + 16 * (indexCount + 1);
+            if (riffLength > riffLimit && indexCount > 0) {
+                riffStart = finishRiff();
+                moviStart = riffStart + 12;
+                moviLength = 12;
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        if (indexCount == indexOffsets.length) {
+            int newLength = indexCount * 2;
+            indexFlags = Arrays.copyOf(indexFlags, newLength);
+            indexOffsets = Arrays.copyOf(indexOffsets, newLength);
+            indexLengths = Arrays.copyOf(indexLengths, newLength);
+        }
+        /* As in the in-memory index, the offset is from the "movi" fourcc,
+           and the length includes the chunk's header. */
+        indexFlags[indexCount] = flags;
+        indexOffsets[indexCount] = (int)(moviLength - 8);
+        indexLengths[indexCount] = length + 8;
+        indexCount++;
+        try {
+            long position = moviStart + moviLength;
+            chunkHeader.put(fourccBytes("00dc")).putInt(length);
+            position += writeBuffer(chunkHeader, position);
+            position += writeBuffer(encoding, position);
+            if (padding != 0)
+                writeBuffer(this.padding.put((byte)0), position);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        moviLength += 8 + length + padding;
+        /* writeBuffer emptied the buffer, but left its contents there. */
+        encoding.limit(length);
+        frameBuffer = lastFrameBuffer == null ?
+                ByteBuffer.allocate(encoding.capacity()) : lastFrameBuffer;
+        frameBuffer.clear();
+        lastFrameBuffer = encoding;
+    }
+
+    /**
+     * Writes what's been put into a buffer to the output file, and empties
+     * the buffer ready for reuse.
+     * @param buffer The buffer.
+     * @param position The position in the file to write at.
+     * @return The number of bytes written.
+     */
+    private int writeBuffer(ByteBuffer buffer, long position)
+            throws IOException {
+        buffer.flip();
+        int written = 0;
+        while (buffer.hasRemaining())
+            written += output.write(buffer, position + written);
+        buffer.clear();
+        return written;
+    }
+
+    private static ByteBuffer littleEndianBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] fourccBytes(String fourcc) {
+        return fourcc.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Builds the "hdrl" list, which describes the video as a whole. This
+     * can only be done once all the frames have been encoded.
+     * @param encodeFrames The number of frames in the video.
+     * @param riffFrames The number of frames in the first RIFF list.
+     * @param timer The frame time convertor the video was encoded with.
+     * @param openDML Whether to include a super index and an "odml" list.
+     * @return The list of headers.
+     */
+    private AVIList buildHeaderList(int encodeFrames, int riffFrames,
+            FrameTimeConvertor timer, boolean openDML) {
+        AVIList hdrl = new AVIList(false, "hdrl");
+        AVIChunk header;
+        
+        /* avih header */
+        header = new AVIChunk("avih");
+        header.appendDword((int)(1000000 / timer.getFrameRate())); /* dwMicroSecPerFrame */
+        header.appendDword((int)((codec.getActualMaxFrameSize() + 8) *
+                timer.getFrameRate())); /* dwMaxBytesPerSec */
+        header.appendDword(0); /* dwPaddingGranularity */
+        header.appendDword(0); /* dwFlags */
+        header.appendDword(riffFrames); /* dwTotalFrames */
+        header.appendDword(0); /* dwInitialFrames */
+        header.appendDword(1); /* dwStreams */
+        header.appendDword(codec.getActualMaxFrameSize() + 8); /* dwSuggestedBufferSize */
+        header.appendDword(codec.getActualWidth()); /* dwWidth */
+        header.appendDword(codec.getActualHeight()); /* dwHeight */
+        header.appendDword(0); header.appendDword(0);
+        header.appendDword(0); header.appendDword(0); /* 4 reserved dwords */
+        hdrl.appendAtom(header);
+        
+        checkForCancellation();
+        
+        /* strl header */
+        AVIList strl = new AVIList(false, "strl");
+        /* strh header */
+        header = new AVIChunk("strh");
+        header.appendFourcc("vids"); /* fccType */
+        header.appendFourcc(codec.getFourCC()); /* fccHandler */
+        header.appendDword(0x10); /* dwFlags == AVIF_HASINDEX*/
+        header.appendWord((short)0); /* dwPriority */
+        header.appendWord((short)0); /* dwLanguage */
+        header.appendDword(0); /* dwInitialFrames */
+        FramerateRatio fr = convertFramerateToFraction(timer.getFrameRate());
+        header.appendDword(fr.denominator); /* dwScale */
+        header.appendDword(fr.numerator); /* dwRate */
+        header.appendDword(0); /* dwStart */
+        header.appendDword(encodeFrames); /* dwLength */
+        header.appendDword(codec.getBlockSize()); /* dwSuggestedBufferSize */
+        header.appendDword(-1); /* dwQuality (-1 = lossless) */
+        header.appendDword(0); /* dwSampleSize */
+        header.appendWord((short)0); /* left */
+        header.appendWord((short)0); /* top */
+        header.appendWord((short)codec.getActualWidth()); /* right */
+        header.appendWord((short)codec.getActualHeight()); /* bottom */
+        strl.appendAtom(header);
+        /* strf header */
+        header = new AVIChunk("strf");
+        header.appendDword(40); /* biSize */
+        header.appendDword(codec.getActualWidth()); /* biWidth */
+        header.appendDword(codec.getActualHeight() *
+                (codec.getVerticalFlip() ? -1 : 1)); /* biHeight */
+        header.appendWord((short)1); /* biPlanes; "always 1" according to docs */
+        header.appendWord((short)codec.getColorDepth()); /* biBitCount */
+        header.appendFourcc(codec.getFourCC()); /* biCompression, seems to use a fourcc */
+        header.appendDword(codec.getActualWidth() * codec.getActualHeight() *
+                codec.getColorDepth() / 8); /* biSizeImage: uncompressed size */
+        header.appendDword(0); /* biXPelsPerMeter */
+        header.appendDword(0); /* biYPelsPerMeter */
+        header.appendDword(0); /* biClrUsed */
+        header.appendDword(0); /* biClrImportant */
+        strl.appendAtom(header);
+        if (openDML) {
+            /* indx header: the super index */
+            header = new AVIChunk("indx");
+            header.appendWord((short)4); /* wLongsPerEntry */
+            header.appendByteArray(new byte[] {0, 0}); /* bIndexSubType,
+                           bIndexType == AVI_INDEX_OF_INDEXES */
+            header.appendDword(superIndexCount); /* nEntriesInUse */
+            header.appendFourcc("00dc"); /* dwChunkId */
+            header.appendDword(0); header.appendDword(0);
+            header.appendDword(0); /* 3 reserved dwords */
+            for (int i = 0; i < SUPER_INDEX_ENTRIES; i++) {
+                long offset = i < superIndexCount ? superIndexOffsets[i] : 0;
+                header.appendDword((int)offset);
+                header.appendDword((int)(offset >>> 32)); /* qwOffset */
+                header.appendDword(i < superIndexCount ?
+                        superIndexLengths[i] : 0); /* dwSize */
+                header.appendDword(i < superIndexCount ?
+                        superIndexFrames[i] : 0); /* dwDuration */
+            }
+            strl.appendAtom(header);
+        }
+        hdrl.appendAtom(strl);
+        if (openDML) {
+            AVIList odml = new AVIList(false, "odml");
+            /* dmlh header */
+            header = new AVIChunk("dmlh");
+            header.appendDword(encodeFrames); /* dwTotalFrames */
+            for (int i = 0; i < 61; i++)
+                header.appendDword(0); /* reserved */
+            odml.appendAtom(header);
+            hdrl.appendAtom(odml);
+        }
+        return hdrl;
+    }
+
+    /**
+     * Requests the appropriate file extension for this container.
+     * @return Always returns "avi".
+     */
+    @Override
+    public String getFileExtension() {
+        return "avi";
+    }
+
+    private static void copyIntegerAs4ByteLE(int i, byte[] a, int offset) {
+        a[offset] = (byte)i;
+        a[offset+1] = (byte)Integer.rotateRight(i, 8);
+        a[offset+2] = (byte)Integer.rotateRight(i, 16);
+        a[offset+3] = (byte)Integer.rotateRight(i, 24);
+    }
+
+    @Override
+    protected void encodeKeyframe(DecodedFrame frame) {
+        if (output != null) {
+            frameBuffer = codec.encodeKeyframe(frame, frameBuffer);
+            writeFrame(0x10);
+            return;
+        }
+        AVIChunk chunk = new AVIChunk("00dc"); /* fourcc for video stream 0 */
+        chunk.appendKeyframe(codec, frame);
+        addIndexEntry("00dc", 0x10, moviList.getLength(), chunk.getLength());
+        moviList.appendAtom(chunk);
+        prevChunk = chunk;
+    }
+
+    @Override
+    protected void encodeNonKeyframe(DecodedFrame frame, DecodedFrame prevFrame) {
+        if (output != null) {
+            frameBuffer = codec.encodeNonKeyframe(frame, prevFrame,
+                    frameBuffer);
+            writeFrame(codec.newFramesAreKeyframes() ? 0x10 : 0x0);
+            return;
+        }
+        AVIChunk chunk = new AVIChunk("00dc"); /* fourcc for video stream 0 */
+        chunk.appendNonKeyframe(codec, frame, prevFrame);
+        addIndexEntry("00dc",
+                codec.newFramesAreKeyframes() ? 0x10 : 0x0,
+                moviList.getLength(), chunk.getLength());
+        moviList.appendAtom(chunk);
+        prevChunk = chunk;
+    }
+
+    @Override
+    protected void encodeRepeatedFrame(DecodedFrame frame) {
+        if (output != null) {
+            if (lastFrameBuffer == null)
+                throw new IllegalStateException("no frame to repeat");
+            lastFrameBuffer.position(0);
+            frameBuffer = codec.encodeRepeatFrame(frame, lastFrameBuffer,
+                    frameBuffer);
+            writeFrame(codec.repeatedFramesAreKeyframes() ? 0x10 : 0x0);
+            return;
+        }
+        AVIChunk chunk = new AVIChunk("00dc"); /* fourcc for video stream 0 */
+        chunk.appendRepeatedFrame(codec, frame, prevChunk);
+        addIndexEntry("00dc",
+                codec.repeatedFramesAreKeyframes() ? 0x10 : 0x0,
+                moviList.getLength(), chunk.getLength());
+        moviList.appendAtom(chunk);
+        prevChunk = chunk;
+    }
+
+    @Override
+    public void outputEncode(OutputStream os) throws IOException {
+        if (output != null) {
+            if (!outputComplete)
+                throw new IllegalStateException("No encode to write.");
+            long size = output.size();
+            long position = 0;
+            while (position < size)
+                position += output.transferTo(position, size - position,
+                        Channels.newChannel(os));
+            return;
+        }
+        if (encode == null)
+            throw new IllegalStateException("No encode to write.");
+        encode.serialize(os);
+    }
+
+    private void addIndexEntry(String fourcc,
+            int flags, int offset, int length) {
+        idx1.appendFourcc(fourcc);
+        idx1.appendDword(flags);
+        idx1.appendDword(offset - 8);
+        idx1.appendDword(length);
+    }
+    
+    /**
+     * An AVIAtom is the abstract data structure used to represent a video
+     * in an AVI file. It uses a 4-byte FourCC, a 4-byte size (which is the
+     * total size of the entire structure minus 8), perhaps another 4-byte
+     * FourCC (for "lists" which recursively contain other AVI atoms),
+     * followed by data (for a "chunk", arbitrary data, for a "list", other
+     * AVI atoms).
+     */
+    public abstract class AVIAtom {
+        /**
+         * The internal storage used to contain a partially constructed AVI
+         * atom. Can have more memory allocated than is actually being used.
+         */
+        protected ByteChunkList bytes;
+        private byte[] lengthPlaceholder;
+        /**
+         * The length of {@code bytes[]} that is actually being used to store
+         * data.
+         * @see #bytes
+         */
+        protected int length;
+
+        /**
+         * Creates a new AVI atom with the given fourcc.
+         * This constructor does the initialization common to lists and chunks;
+         * further initialization (e.g. for the inner fourcc) may be needed by
+         * deriving classes.
+         * @param fourcc The fourcc of this atom type, as a string containing
+         * only Latin-1 characters.
+         */
+        protected AVIAtom(String fourcc) {
+            this.bytes = new ByteChunkList();
+            this.length = 0;
+            appendFourcc(fourcc);
+            lengthPlaceholder = new byte[4];
+            appendByteArray(lengthPlaceholder);
+        }
+
+        /**
+         * Returns the length of this atom.
+         * @return The total number of bytes in this atom, including its
+         * fourcc and its length field.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Inserts this AVIAtom into an AVIList. After performing this
+         * operation, this AVIAtom should not be changed.
+         * @param a The AVIList to be mutated.
+         */
+        public void insertInto(AVIList a) {
+            byte[] paddingByte = {0};
+            copyIntegerAs4ByteLE(length-8, lengthPlaceholder, 0);
+            a.bytes.appendByteChunkList(bytes);
+            a.length += length;
+            if (a.length % 2 == 1)
+                a.appendByteArray(paddingByte);
+        }
+        
+        /**
+         * Writes this AVIAtom to an output stream.
+         * @param os The OutputStream to write the atom to.
+         * @throws IOException if an error occurs writing to the stream 
+         */
+        public void serialize(OutputStream os) throws IOException {
+            copyIntegerAs4ByteLE(length-8, lengthPlaceholder, 0);
+            int i = 0;
+            while (i < length) {
+                byte[] buffer = new byte[65536];
+                int len = bytes.getRestOfChunk(i, buffer, 0, 65536);
+                os.write(buffer, 0, len);
+                i += len;
+            }
+        }
+        
+        /**
+         * Appends the given fourcc to the data in the atom.
+         * @param fourcc The fourcc to append to the atom, as a string
+         * containing only Latin-1 characters.
+         */
+        public final void appendFourcc(String fourcc) {
+            appendByteArray(fourcc.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        /**
+         * Appends the given dword (4-byte integer) to the data in the atom.
+         * @param i The integer to append to that atom.
+         */
+        public final void appendDword(int i) {
+            byte[] tempBytes = new byte[4];
+            copyIntegerAs4ByteLE(i, tempBytes, 0);
+            appendByteArray(tempBytes);
+        }
+
+        /**
+         * Appends the given word (2-byte integer) to the data in the atom.
+         * @param i The short integer to append to that atom.
+         */
+        public final void appendWord(short i) {
+            byte[] tempBytes = new byte[2];
+            tempBytes[0] = (byte)i;
+            tempBytes[1] = (byte)Short.reverseBytes(i);
+            appendByteArray(tempBytes);
+        }        
+
+        /**
+         * Appends a byte array to the end of the atom.
+         * The array is wrapped not copied, and as such, the bytes in question
+         * can be changed retrospectively by changing the array.
+         * @param array The array to append.
+         */
+        public final void appendByteArray(byte[] array) {
+            bytes.appendArray(array);
+            length += array.length;
+        }
+    }
+
+    /**
+     * An AVIList is an AVIAtom that consists entirely of other AVIAtoms.
+     */
+    public class AVIList extends AVIAtom {
+        /**
+         * Creates a new AVI list, either a Riff-List or a regular List.
+         * @param riff true for a Riff-List; false for a regular list.
+         * @param fourcc The inner fourcc of the AVIList (e.g. "AVI " for
+         * a Riff-AVI-List).
+         */
+        public AVIList(boolean riff, String fourcc) {
+            super(riff ? "RIFF" : "LIST");
+            appendFourcc(fourcc);
+        }
+        
+        /**
+         * Appends the given AVI atom to this list. The given atom should
+         * not be changed after the insertion.
+         * @param a The atom to append to the list.
+         */
+        public final void appendAtom(AVIAtom a) {
+            a.insertInto(this);
+        }
+    }
+    
+    /**
+     * An AVIChunk is an AVIAtom that contains no nested atoms (but contains
+     * arbitrary data, typically either headers or an encoded video frame).
+     * 
+     * It contains methods for appending frames to the atoms; the methods for
+     * appending other sorts of data are in the parent class AVIAtom.
+     */
+    public class AVIChunk extends AVIAtom {
+        private byte[] lastFrameEncoding = null;
+        
+        /**
+         * Creates a new AVI chunk.
+         * @param fourcc The fourcc of the chunk to create.
+         */
+        public AVIChunk(String fourcc) {
+            super(fourcc);
+        }
+        
+        /**
+         * Appends a keyframe to the data in the chunk. (A keyframe is one
+         * whose encoding does not depend on the encoding of previous frames.)
+         * @param codec The codec to use to encode the keyframe.
+         * @param frame The ttyrec frame to encode.
+         */
+        public void appendKeyframe(VideoCodec codec,
+                DecodedFrame frame) {
+            lastFrameEncoding = codec.encodeKeyframe(frame);
+            appendByteArray(lastFrameEncoding);
+        }
+        
+        /**
+         * Appends a frame to the data in the chunk that is neither a keyframe,
+         * nor a repeat of the previous frame.
+         * @param codec The codec to use to encode the frame.
+         * @param frame The ttyrec frame to encode.
+         * @param prevFrame The previous ttyrec frame that was encoded.
+         */
+        public void appendNonKeyframe(VideoCodec codec,
+                DecodedFrame frame, DecodedFrame prevFrame) {
+            lastFrameEncoding = codec.encodeNonKeyframe(frame, prevFrame);
+            appendByteArray(lastFrameEncoding);
+        }
+
+        /**
+         * Appends a frame to the data in the chunk that's a repeat of the
+         * previous frame.
+         * @param codec The codec to use to encode the frame.
+         * @param frame The ttyrec frame to encode.
+         * @param prevChunk The chunk the previous frame was encoded into.
+         * (This can be, but does not have to be, {@code this}.)
+         */
+        public void appendRepeatedFrame(VideoCodec codec,
+                DecodedFrame frame, AVIChunk prevChunk) {
+            if (prevChunk.lastFrameEncoding == null)
+                throw new IllegalStateException("prevChunk has not encoded a frame");
+            lastFrameEncoding = codec.encodeRepeatFrame(frame,
+                    prevChunk.lastFrameEncoding);
+            appendByteArray(lastFrameEncoding);
+        }
+    }
+    
+    private class FramerateRatio {
+        public int numerator;
+        public int denominator;
+    }
+    
+    private FramerateRatio convertFramerateToFraction(double frameRate) {
+        FramerateRatio ratio = new FramerateRatio();
+        /* We rely on the fact that frameRate was entered via a text field,
+         * and so must be a terminating decimal. We also stop after 8
+         * decimal places. */
+        ratio.denominator = 1;
+        while (ratio.denominator < 10000000 &&
+               frameRate != (double)(int)frameRate) {
+            frameRate *= 10;
+            ratio.denominator *= 10;
+        }
+        /* Apparently AVI players break if the fraction isn't in its lowest
+         * terms. */
+        ratio.numerator = (int)frameRate;
+        int gcd_x = ratio.numerator;
+        int gcd_y = ratio.denominator;
+        while (gcd_x > 0 && gcd_y > 0) {
+            gcd_x %= gcd_y;
+            if (gcd_x > 0) gcd_y %= gcd_x;
+        }
+        ratio.numerator /= (gcd_x + gcd_y);
+        ratio.denominator /= (gcd_x + gcd_y);
+        return ratio;
+    }
+}
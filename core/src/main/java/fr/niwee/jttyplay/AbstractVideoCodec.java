@@ -0,0 +1,709 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Hashtable;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A skeleton implementation for codecs. It handles rendering the frames to
+ * a suitable buffer (the exact type can be chosen by an overriding codec).
+ * <p>
+ * Rendering is done as part of preparing a frame, and can be spread over
+ * several threads (see setThreads). The frame's size and font are worked
+ * out on the thread doing the encoding, in order. A frame that only
+ * changed a few lines of the terminal is then rendered there too, by
+ * redrawing just those lines on an image that holds the previous frame;
+ * so is a frame where the terminal scrolled, by moving the image with
+ * the screen and redrawing the lines that don't match once it's moved.
+ * Other frames are rendered from scratch: with more than one thread, a
+ * copy of the terminal state is rendered on a worker thread, into one of
+ * a pool of images. A codec that needs to compare a frame with the
+ * previous one
+ * (which is the expensive part of non-keyframes) can do that on the
+ * worker threads too, by overriding prepareNonKeyframe. Everything after
+ * that, e.g. compression, happens in order when the frame is encoded.
+ * <p>
+ * Renderings are made into buffers that are reused once the frames that
+ * need them have been encoded, so a long encode doesn't allocate a new
+ * frame-sized buffer for every frame. Renderings of screens that keep
+ * coming back are also kept in a FrameCache, so those screens aren't
+ * rendered again (see setFrameCacheSize).
+ * 
+ * @author ais523
+ */
+public abstract class AbstractVideoCodec extends VideoCodec {
+    private int imageWidth = -1;
+    private int imageHeight = -1;
+    private final int height;
+    private final Font font;
+    private VDURenderer renderer = null;
+    private final Object antialiasing;
+    private Graphics2D graphics;
+    private DataBufferByte dataBuffer = null;
+    private BufferedImage image = null;
+    private final boolean allowBold;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    /* Renderings of screens that have been seen more than once. */
+    private FrameCache frameCache = new FrameCache(64L << 20);
+    private ExecutorService workers = null;
+    /* Renderers and images for the worker threads; they're taken out
+       while being used, so no two threads use one at once. */
+    private final Queue<RenderContext> renderContexts =
+            new ConcurrentLinkedQueue<>();
+    /* Frames that have been prepared but not yet encoded, in order. */
+    private final Queue<PreparedFrame> preparedFrames = new ArrayDeque<>();
+    /* The frame most recently encoded; its buffers are reused once the
+       next frame has been encoded. */
+    private PreparedFrame lastTaken = null;
+    /* Buffers for renderings that are no longer needed, all the size of a
+       frame; they're taken out by whichever thread renders a frame. */
+    private final Queue<byte[]> spareFrames = new ConcurrentLinkedQueue<>();
+    private CompletableFuture<byte[]> lastRendered = null;
+    /* The damage done by the frame most recently laid out, relative to the
+       frame laid out before it; null if not known. */
+    private TerminalDamage frameDamage = null;
+    /* The size of the terminal that the renderer's font was chosen for. */
+    private int layoutRows = -1;
+    private int layoutColumns = -1;
+    /* If the last frame was rendered on a worker thread, its rendering,
+       which has to be copied to image before redrawing lines on it. */
+    private CompletableFuture<byte[]> imageToCopy = null;
+    /* The screen of the frame most recently prepared, which the image
+       shows once imageToCopy has been copied to it. */
+    private FrameCache.Key shown = new FrameCache.Key();
+    
+    /**
+     * Creates a new abstract video codec to encode videos with the specified
+     * parameters.
+     * @param height The maximum height of the resulting encode.
+     * @param font The font to encode with.
+     * @param antialiasing The antialiasing scheme to use on the encode.
+     * @param allowBold Whether to use bold fonts in addition to color.
+     * (a RenderingHints.VALUE_TEXT_ANTIALIAS_* value).
+     * @see RenderingHints#VALUE_TEXT_ANTIALIAS_OFF
+     * @see RenderingHints#VALUE_TEXT_ANTIALIAS_ON
+     */
+    public AbstractVideoCodec(int height, Font font, Object antialiasing,
+            boolean allowBold) {
+        this.height = height;
+        this.font = font;
+        this.antialiasing = antialiasing;
+        this.allowBold = allowBold;
+    }
+    
+    /**
+     * Sets the number of threads to render frames on. With one thread,
+     * frames are rendered on the thread encoding them, when they're
+     * encoded. The default is one thread per processor.
+     * @param threads The number of rendering threads.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive");
+        if (workers != null)
+            throw new IllegalStateException("an encode is in progress");
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the amount of memory to use for keeping the renderings of
+     * screens that are seen more than once, so that they don't have to be
+     * rendered again. The default is 64 MiB.
+     * @param bytes The size of the cache, in bytes; 0 to not cache
+     * renderings.
+     */
+    public void setFrameCacheSize(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("bytes must not be negative");
+        if (workers != null || lastRendered != null)
+            throw new IllegalStateException("an encode is in progress");
+        frameCache = new FrameCache(bytes);
+    }
+
+    /**
+     * Returns the cache of renderings, e.g. to show how well it's working.
+     * Its statistics cover every encode made with this codec.
+     * @return The cache.
+     */
+    public FrameCache getFrameCache() {
+        return frameCache;
+    }
+
+    /**
+     * Returns how far ahead of encoding frames should be prepared. This is
+     * enough to keep every rendering thread busy.
+     */
+    @Override
+    public int getLookahead() {
+        return threads > 1 ? threads * 2 : 0;
+    }
+
+    /**
+     * Prepares a frame for encoding: works out its size, then starts
+     * rendering it (and, for a non-keyframe, comparing it with the
+     * previous frame prepared). If the frame's screen has been rendered
+     * before and is in the cache, the cached rendering is used instead.
+     */
+    @Override
+    public void prepareFrame(DecodedFrame frame, boolean keyframe) {
+        /* Make sure the renderer is looking at the appropriate frame, and
+         * make sure that the renderer and image exist. */
+        int size = getUncompressedFrameSize(frame);
+        Executor executor = getWorkerExecutor();
+        boolean[] changedLines = renderer.getChangedLines();
+        int changedCount = 0;
+        if (changedLines != null)
+            for (boolean changed : changedLines)
+                if (changed) changedCount++;
+        VDUBuffer screen = frame.getTerminalState();
+        byte[] cached = frameCache.get(screen);
+        FrameCache.Key cacheKey = cached == null ?
+                frameCache.admit(screen) : null;
+        CompletableFuture<byte[]> pixels;
+        TerminalDamage damage;
+        boolean fromScratch = true;
+        boolean[] moved = cached == null ?
+                scrollImage(screen, changedLines) : null;
+        if (cached != null) {
+            /* The cached rendering replaces what's on the image. */
+            pixels = CompletableFuture.completedFuture(cached);
+            renderer.forgetChangedLines();
+            damage = fullFrameDamage();
+        } else if (moved == null && threads > 1 && (changedLines == null ||
+                changedCount * 2 > changedLines.length)) {
+            /* Render from scratch on a worker thread. The frame's terminal
+             * might be written to before it's rendered, so render a
+             * copy. */
+            vt320 state;
+            try {
+                state = (vt320) frame.getTerminalState().clone();
+            } catch (CloneNotSupportedException ex) {
+                throw new AssertionError(ex);
+            }
+            final Font renderFont = renderer.getFont();
+            pixels = CompletableFuture.supplyAsync(
+                    () -> render(state, renderFont, size), executor);
+            renderer.forgetChangedLines();
+            damage = fullFrameDamage();
+        } else {
+            /* Redraw what changed on top of the previous frame (which has
+             * already been moved, if the screen scrolled). */
+            copyPendingImage();
+            renderer.redrawChangedLines(graphics, imageWidth, imageHeight);
+            byte[] copy = spareFrame(size);
+            System.arraycopy(dataBuffer.getData(), 0, copy, 0, size);
+            pixels = CompletableFuture.completedFuture(copy);
+            damage = changedLinesDamage(moved != null ? moved : changedLines);
+            fromScratch = false;
+        }
+        if (cacheKey != null) {
+            /* This screen has been seen before, so it's likely to be seen
+             * again. The copy is made before anything else uses the
+             * rendering, so that it's done before the buffer's reused. */
+            pixels = pixels.thenApply(p -> {
+                frameCache.put(cacheKey, p.clone());
+                return p;
+            });
+        }
+        if (fromScratch) imageToCopy = pixels;
+        CompletableFuture<byte[]> data = keyframe || lastRendered == null ?
+                pixels : prepareNonKeyframe(pixels, lastRendered, damage,
+                executor);
+        lastRendered = pixels;
+        preparedFrames.add(new PreparedFrame(pixels, data, cached != null));
+        shown.set(screen);
+    }
+
+    /**
+     * If the last frame was rendered elsewhere, copies its rendering to the
+     * image, so that lines can be drawn on top of it.
+     */
+    private void copyPendingImage() {
+        if (imageToCopy == null) return;
+        byte[] rendering = imageToCopy.join();
+        System.arraycopy(rendering, 0, dataBuffer.getData(), 0,
+                rendering.length);
+        imageToCopy = null;
+    }
+
+    /**
+     * If the terminal scrolled, moves the image of the previous frame with
+     * its screen, so that instead of every line that scrolled, only the
+     * lines that don't match once they're moved (such as those scrolled
+     * onto the screen) have to be redrawn; the renderer is told which
+     * lines those are. The lines moved are those from the first damaged
+     * line to the last, as the damage doesn't say which scrolling region
+     * scrolled.
+     * @param screen The frame's screen.
+     * @param changedLines The lines the renderer would redraw otherwise.
+     * @return For each line, whether its pixels were changed, by moving or
+     * by redrawing it; or null if the image wasn't moved, as the screen
+     * didn't scroll (or the move wouldn't help).
+     */
+    private boolean[] scrollImage(VDUBuffer screen, boolean[] changedLines) {
+        TerminalDamage d = frameDamage;
+        int rows = screen.getRows();
+        int scroll = d == null || d.isFull() ? 0 : d.getScrollLines();
+        if (scroll == 0 || changedLines == null ||
+                changedLines.length != rows ||
+                screen.windowBase != screen.screenBase)
+            return null;
+        int top = 0;
+        while (top < rows && !d.isRowDamaged(top)) top++;
+        int bottom = rows - 1;
+        while (bottom > top && !d.isRowDamaged(bottom)) bottom--;
+        int kept = bottom - top + 1 - Math.abs(scroll);
+        if (kept <= 0) return null;
+        copyPendingImage();
+        int lineBytes = renderer.getCharHeight() * imageWidth *
+                getRenderingDepth() / 8;
+        int offset = (imageHeight - renderer.getCurrentTerminalHeight()) / 2 *
+                imageWidth * getRenderingDepth() / 8;
+        byte[] data = dataBuffer.getData();
+        System.arraycopy(data, offset + (top + Math.max(scroll, 0)) * lineBytes,
+                data, offset + (top + Math.max(-scroll, 0)) * lineBytes,
+                kept * lineBytes);
+        boolean[] redraw = changedLines.clone();
+        boolean[] changed = changedLines.clone();
+        for (int l = top; l <= bottom; l++) {
+            int from = l + scroll;
+            redraw[l] = from < top || from > bottom ||
+                    !shown.lineMatches(from, screen, l);
+            changed[l] = true;
+        }
+        /* The cursor is drawn as part of its line, wherever it's moved. */
+        int oldCursor = d.getOldCursorRow() - scroll;
+        if (d.getOldCursorRow() >= top && d.getOldCursorRow() <= bottom &&
+                oldCursor >= top && oldCursor <= bottom)
+            redraw[oldCursor] = true;
+        if (d.getCursorRow() >= 0 && d.getCursorRow() < rows)
+            redraw[d.getCursorRow()] = true;
+        renderer.setChangedLines(redraw);
+        return changed;
+    }
+
+    /**
+     * Returns the damage for a frame that was drawn from scratch: any line
+     * could have been drawn differently, so don't claim that only some
+     * lines changed. The cursor and scrolling are as in the frame's own
+     * damage.
+     * @return The damage, or null if nothing is known about it.
+     */
+    private TerminalDamage fullFrameDamage() {
+        return frameDamage == null ? null :
+                new TerminalDamage(frameDamage.getColumns(),
+                frameDamage.getRows(), true, null, null,
+                frameDamage.getOldCursorColumn(),
+                frameDamage.getOldCursorRow(),
+                frameDamage.getCursorColumn(),
+                frameDamage.getCursorRow(),
+                frameDamage.getScrollLines());
+    }
+
+    /**
+     * Returns a buffer to render a frame into, reusing a buffer from a
+     * frame that's finished with if there is one.
+     */
+    private byte[] spareFrame(int size) {
+        byte[] spare = spareFrames.poll();
+        return spare != null && spare.length == size ? spare : new byte[size];
+    }
+
+    /**
+     * Describes the lines that were redrawn for a frame as damage, so that
+     * the lines that weren't redrawn are known to be the same as in the
+     * previous frame. The cursor and scrolling are as in the frame's own
+     * damage.
+     * @param changedLines The lines that were redrawn, or null if they all
+     * were.
+     * @return The damage, or null if nothing is known about it.
+     */
+    private TerminalDamage changedLinesDamage(boolean[] changedLines) {
+        if (frameDamage == null) return null;
+        int columns = frameDamage.getColumns();
+        int rows = frameDamage.getRows();
+        boolean full = changedLines == null || changedLines.length != rows;
+        int[] first = new int[rows];
+        int[] last = new int[rows];
+        for (int l = 0; l < rows; l++) {
+            first[l] = full || changedLines[l] ? 0 : -1;
+            last[l] = columns - 1;
+        }
+        return new TerminalDamage(columns, rows, full, first, last,
+                frameDamage.getOldCursorColumn(),
+                frameDamage.getOldCursorRow(),
+                frameDamage.getCursorColumn(), frameDamage.getCursorRow(),
+                frameDamage.getScrollLines());
+    }
+
+    /**
+     * Starts the codec-specific preparation of a non-keyframe, given the
+     * frame's rendering and the previous frame's, and what changed on the
+     * terminal between the two. Pixels outside the damaged lines are the
+     * same in both renderings; beyond that (e.g. the scrolling), the
+     * damage is a hint as to how the frames differ. Anything done here
+     * should be done via the given executor, and mustn't change the
+     * codec's state, as it may run on another thread, at the same time as
+     * other frames are encoded. By default, nothing is done, so the data
+     * returned by encodeKeyframe is the rendering of the frame.
+     * @param pixels The rendering of the frame, once it's finished.
+     * @param prevPixels The rendering of the previous frame prepared.
+     * @param damage The damage done to the terminal since the previous
+     * frame prepared, or null if not known.
+     * @param executor The executor to run the preparation on.
+     * @return The data to return from encodeKeyframe for the frame. It
+     * will be passed to recyclePreparedData once it's finished with, if
+     * it isn't the frame's rendering.
+     */
+    protected CompletableFuture<byte[]> prepareNonKeyframe(
+            CompletableFuture<byte[]> pixels,
+            CompletableFuture<byte[]> prevPixels, TerminalDamage damage,
+            Executor executor) {
+        return pixels;
+    }
+
+    /**
+     * Tells the codec that data it produced in prepareNonKeyframe has been
+     * encoded, and won't be looked at again, so that its buffer can be
+     * reused. By default, this does nothing.
+     * @param data The data that's finished with.
+     */
+    protected void recyclePreparedData(byte[] data) {
+    }
+
+    /**
+     * Encodes the current frame without reference to other frames. This
+     * method returns the raw uncompressed data; compressed codecs will need
+     * to compress it themselves.
+     * <p>
+     * If the frame was prepared via prepareFrame, the data from the
+     * preparation is returned (so a prepared non-keyframe gets whatever
+     * prepareNonKeyframe produced); otherwise the frame is prepared as a
+     * keyframe first.
+     * 
+     * @param frame The frame to encode.
+     * @return The uncompressed data for the frame.
+     */
+    @Override
+    public byte[] encodeKeyframe(DecodedFrame frame) {
+        byte[] data = takePreparedFrame(frame, true);
+        /* A cached rendering never changes, so it can be shared by every
+           frame that uses it. */
+        return lastTaken.cached ? data : data.clone();
+    }
+
+    /**
+     * Encodes the current frame without reference to other frames, as the
+     * raw uncompressed data, straight from the buffer it was prepared in.
+     */
+    @Override
+    public ByteBuffer encodeKeyframe(DecodedFrame frame, ByteBuffer output) {
+        byte[] data = takePreparedFrame(frame, true);
+        return ensureRemaining(output, data.length).put(data);
+    }
+
+    /**
+     * Encodes a frame the same way as a keyframe, as the array version of
+     * this method does by default. Codecs that override that should
+     * override this too.
+     */
+    @Override
+    public ByteBuffer encodeNonKeyframe(DecodedFrame frame,
+            DecodedFrame prevFrame, ByteBuffer output) {
+        return encodeKeyframe(frame, output);
+    }
+
+    /**
+     * Encodes a repeated frame by copying the encoding of the previous
+     * frame, as the array version of this method does by default. Codecs
+     * that override that should override this too.
+     */
+    @Override
+    public ByteBuffer encodeRepeatFrame(DecodedFrame frame,
+            ByteBuffer prevEncoding, ByteBuffer output) {
+        return ensureRemaining(output, prevEncoding.remaining()).
+                put(prevEncoding.duplicate());
+    }
+
+    /**
+     * Returns the data from preparing the next frame to be encoded,
+     * waiting for the preparation to finish. The data is only valid until
+     * the next call to this method, after which its buffer may be reused.
+     * @param frame The frame to encode, which is prepared now if it hasn't
+     * been already.
+     * @param keyframe Whether to prepare the frame as a keyframe, if it
+     * needs preparing.
+     * @return The data produced by preparing the frame.
+     */
+    protected final byte[] takePreparedFrame(DecodedFrame frame,
+            boolean keyframe) {
+        if (preparedFrames.isEmpty()) prepareFrame(frame, keyframe);
+        try {
+            PreparedFrame taken = preparedFrames.remove();
+            byte[] data = taken.data.join();
+            /* The previous frame's rendering was only needed to prepare
+               this frame, and its data to encode it. */
+            if (lastTaken != null) recycle(lastTaken);
+            lastTaken = taken;
+            return data;
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            if (ex.getCause() instanceof Error)
+                throw (Error) ex.getCause();
+            throw ex;
+        }
+    }
+
+    /**
+     * Makes the buffers of a frame that's been encoded available for reuse.
+     */
+    private void recycle(PreparedFrame frame) {
+        byte[] pixels = frame.pixels.join();
+        byte[] data = frame.data.join();
+        if (!frame.cached) spareFrames.add(pixels);
+        if (data != pixels) recyclePreparedData(data);
+    }
+
+    /**
+     * Discards any frames that have been prepared but not encoded, and
+     * stops the rendering threads.
+     */
+    @Override
+    public void finishEncode() {
+        for (PreparedFrame f : preparedFrames)
+            f.data.cancel(false);
+        preparedFrames.clear();
+        lastTaken = null;
+        spareFrames.clear();
+        frameCache.clear();
+        lastRendered = null;
+        imageToCopy = null;
+        shown = new FrameCache.Key();
+        if (workers != null) {
+            workers.shutdown();
+            workers = null;
+        }
+        renderContexts.clear();
+    }
+
+    private Executor getWorkerExecutor() {
+        if (threads == 1) return Runnable::run;
+        if (workers == null)
+            workers = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "Video rendering");
+                t.setDaemon(true);
+                return t;
+            });
+        return workers;
+    }
+
+    /**
+     * Renders a terminal state, using the renderer and image of whichever
+     * thread this is called on.
+     * @return A copy of the rendered pixels.
+     */
+    private byte[] render(vt320 state, Font renderFont, int size) {
+        RenderContext context = renderContexts.poll();
+        if (context == null) context = new RenderContext(state, renderFont);
+        try {
+            context.renderer.setFont(renderFont, context.graphics);
+            context.renderer.setVDUBuffer(state);
+            context.renderer.redraw(context.graphics, imageWidth, imageHeight);
+            byte[] copy = spareFrame(size);
+            System.arraycopy(context.dataBuffer.getData(), 0, copy, 0, size);
+            return copy;
+        } finally {
+            renderContexts.add(context);
+        }
+    }
+
+    @Override
+    public int getActualHeight() {
+        if (imageHeight == -1) {
+            throw new IllegalStateException("No frames have been encoded yet");
+        }
+        return imageHeight;
+    }
+
+    @Override
+    public int getActualWidth() {
+        if (imageWidth == -1) {
+            throw new IllegalStateException("No frames have been encoded yet");
+        }
+        return imageWidth;
+    }
+
+    /**
+     * Calculates the maximum number of bytes that might be used to render
+     * the frame.
+     * 
+     * This abstract implementation calculates the number of bytes that would
+     * be used for an uncompressed frame, and may need to be overriden for
+     * compression algorithms that might make a file larger.
+     */
+    @Override
+    public int getMaxFrameSize(DecodedFrame frame) {
+        return getUncompressedFrameSize(frame);
+    }
+    
+    private int getUncompressedFrameSize(DecodedFrame frame) {
+        /* Chicken and egg problem here. The size of the renderer depends
+         * on the sort of image it's drawing on, but the size of the image
+         * depends on the size of the renderer. So we temporarily create
+         * a BufferedImage just to calculate sizes. */
+        if (renderer == null) {
+            BufferedImage temp = new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR);
+            renderer = new VDURenderer(frame.getTerminalState(), font, temp.createGraphics());
+            renderer.setResizeStrategy(VDURenderer.RESIZE_WIDTH);
+            renderer.setTextAntialiasingType(antialiasing);
+            renderer.setAllowBold(allowBold);
+            renderer.setBounds(0, 0, 1, height, temp.createGraphics());
+            constructImage();
+            renderer.setBounds(0, 0, imageWidth, imageHeight, graphics);
+            frameDamage = null;
+        } else {
+            frameDamage = frame.getDamageSince(renderer.getVDUBuffer());
+            renderer.setVDUBuffer(frame.getTerminalState(), frameDamage);
+            /* If the terminal changes size during the ttyrec, our only
+             * recourse is to change the font size. This makes the renderer
+             * redraw everything, so is only done when needed. */
+            vt320 state = frame.getTerminalState();
+            if (state.getRows() != layoutRows ||
+                    state.getColumns() != layoutColumns) {
+                renderer.setResizeStrategy(VDURenderer.RESIZE_FONT);
+                renderer.setBounds(0, 0, imageWidth, imageHeight, graphics);
+                layoutRows = state.getRows();
+                layoutColumns = state.getColumns();
+            }
+        }
+        return imageWidth * imageHeight * getRenderingDepth() / 8;
+    }
+
+    private void constructImage() {
+        if (image == null) {
+            int w = renderer.getCurrentTerminalWidth();
+            int h = renderer.getCurrentTerminalHeight();
+            /* We lay the image out in memory by hand, because Java's standard
+             * formats aren't enough for some codecs. */
+            dataBuffer = new DataBufferByte(w * h * getRenderingDepth() / 8);
+            WritableRaster wr = Raster.createInterleavedRaster(
+                    dataBuffer, w, h, w * getRenderingDepth() / 8,
+                    getRenderingDepth() / 8, getPixelOrder(), null);
+            
+            image = new BufferedImage(getColorModel(), wr, false, new Hashtable<>());
+            
+            imageWidth = w;
+            imageHeight = h;
+            graphics = image.createGraphics();
+        }
+    }
+
+    /**
+     * A frame that's been prepared: its rendering, and the data that
+     * preparing it produced (which is the rendering, for a keyframe).
+     */
+    private static final class PreparedFrame {
+        final CompletableFuture<byte[]> pixels;
+        final CompletableFuture<byte[]> data;
+        /* Whether the rendering belongs to the frame cache. */
+        final boolean cached;
+
+        PreparedFrame(CompletableFuture<byte[]> pixels,
+                CompletableFuture<byte[]> data, boolean cached) {
+            this.pixels = pixels;
+            this.data = data;
+            this.cached = cached;
+        }
+    }
+
+    /**
+     * An image with a renderer to draw on it, for one rendering thread.
+     */
+    private final class RenderContext {
+        final DataBufferByte dataBuffer;
+        final Graphics2D graphics;
+        final VDURenderer renderer;
+
+        RenderContext(VDUBuffer buffer, Font renderFont) {
+            dataBuffer = new DataBufferByte(
+                    imageWidth * imageHeight * getRenderingDepth() / 8);
+            WritableRaster wr = Raster.createInterleavedRaster(
+                    dataBuffer, imageWidth, imageHeight,
+                    imageWidth * getRenderingDepth() / 8,
+                    getRenderingDepth() / 8, getPixelOrder(), null);
+            graphics = new BufferedImage(getColorModel(), wr, false,
+                    new Hashtable<>()).createGraphics();
+            renderer = new VDURenderer(buffer, renderFont, graphics);
+            renderer.setResizeStrategy(VDURenderer.RESIZE_NONE);
+            renderer.setTextAntialiasingType(antialiasing);
+            renderer.setAllowBold(allowBold);
+        }
+    }
+
+    /**
+     * Returns the renderer used by this codec for rendering.
+     * 
+     * This is intended for use by derived classes that want to query
+     * additional information from the renderer in order to compress more
+     * accurately (for instance, to determine the size of characters to
+     * more accurately perform motion estimation).
+     * 
+     * The returned renderer should not be mutated except by derived classes
+     * which really know what they're doing and why.
+     * 
+     * @return This codec's renderer.
+     */
+    protected VDURenderer getRenderer() {
+        return renderer;
+    }
+
+    /**
+     * Returns the number of bits per pixel in the renderings that frames are
+     * drawn into. By default, this is the codec's color depth; a codec that
+     * converts renderings into some other form before encoding them can
+     * render at a different depth.
+     * @return The depth of the renderings, in bits per pixel.
+     */
+    protected int getRenderingDepth() {
+        return getColorDepth();
+    }
+
+    /**
+     * Returns the pixel order this codec requires for use in memory.
+     * 
+     * @return An array containing the offset from the start of the pixel
+     * to place the channels. The number and order of the channels is the
+     * same as in the color model (e.g. for an RGB color space, there
+     * should be three elements in the array, the offsets for red, green,
+     * blue respectively).
+     */
+    protected abstract int[] getPixelOrder();
+
+    /**
+     * Returns the color model this codec requires to store elements in
+     * memory.
+     * 
+     * @return A ColorModel that will be used when calculating the
+     * uncompressed version of a bitmap.
+     */
+    protected abstract ColorModel getColorModel();
+}
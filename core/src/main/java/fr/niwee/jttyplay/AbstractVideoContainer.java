@@ -0,0 +1,195 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+/**
+ * The parts of encoding a video that don't depend on how the container
+ * times its frames: the progressListeners, the counts of frames encoded
+ * and left unchanged, cancellation, and the queue of frames that have been
+ * decided on but not encoded yet (while the codec prepares the frames
+ * after them). FixedFramerateVideoContainer and
+ * VariableFramerateVideoContainer decide which frames to encode, and
+ * derived classes of those incorporate the encoded frames into the
+ * container.
+ * @author ais523
+ */
+public abstract class AbstractVideoContainer implements VideoContainer {
+
+    /** How many frames are encoded for each one that's a keyframe. */
+    protected static final int KEYFRAME_INTERVAL = 150;
+
+    private final Set<ProgressListener> progressListeners;
+    private int frameCount;
+    private int unchangedFrames;
+    private boolean cancelEncoding = false;
+
+    private final Queue<EncodeStep> pending = new ArrayDeque<>();
+    private int lookahead = 0;
+
+    /**
+     * The constructor. Does nothing in this skeleton implementation
+     * but initializing listeners.
+     */
+    public AbstractVideoContainer() {
+        this.progressListeners = new HashSet<>();
+        this.frameCount = 0;
+        this.unchangedFrames = 0;
+    }
+
+    @Override
+    public void addProgressListener(ProgressListener listener) {
+        progressListeners.add(listener);
+    }
+
+    /**
+     * Gets ready for a new encode, resetting the frame counts.
+     * @param codec The codec that frames will be prepared with, or null if
+     * they aren't prepared ahead of encoding them.
+     */
+    void startEncode(VideoCodec codec) {
+        lookahead = codec == null ? 0 : codec.getLookahead();
+        pending.clear();
+        synchronized(this) {
+            frameCount = 0;
+            unchangedFrames = 0;
+        }
+    }
+
+    /**
+     * Records that a frame of the ttyrec has been dealt with, and tells the
+     * progressListeners.
+     */
+    void frameDone() {
+        /* frameCount must be incremented in a thread-safe way */
+        synchronized(this) {
+            frameCount++;
+        }
+        for (ProgressListener pl : progressListeners) {
+            pl.progressMade();
+        }
+    }
+
+    /**
+     * Records that a frame looked the same as the frame before it.
+     */
+    synchronized void frameUnchanged() {
+        unchangedFrames++;
+    }
+
+    /**
+     * Adds a frame that has been decided on to the queue, and encodes the
+     * frames that are further ahead of it than the codec prepares frames.
+     * @param step The frame to encode.
+     */
+    void queueStep(EncodeStep step) {
+        pending.add(step);
+        while (pending.size() > lookahead)
+            encodeStep(pending.remove());
+    }
+
+    /**
+     * Encodes every frame in the queue.
+     * @throws CancellationException if the encode is cancelled.
+     */
+    void flushSteps() throws CancellationException {
+        while (!pending.isEmpty()) {
+            checkForCancellation();
+            encodeStep(pending.remove());
+        }
+    }
+
+    /**
+     * Discards the frames in the queue, e.g. because the encode failed.
+     */
+    void discardSteps() {
+        pending.clear();
+    }
+
+    /**
+     * Makes the callback that encodes one frame, recording it as a JFR
+     * event.
+     */
+    private void encodeStep(EncodeStep step) {
+        PlaybackEvents.VideoFrameEncoded event =
+                new PlaybackEvents.VideoFrameEncoded();
+        event.begin();
+        encode(step);
+        if (event.shouldCommit()) {
+            event.kind = step.kind;
+            event.videoFrame = step.videoFrame;
+            event.commit();
+        }
+    }
+
+    /**
+     * Encodes one frame that was taken from the queue, by calling back into
+     * the derived class.
+     * @param step The frame to encode.
+     */
+    abstract void encode(EncodeStep step);
+
+    /**
+     * A frame that has been decided on, but possibly not encoded yet.
+     */
+    static final class EncodeStep {
+        /** "keyframe", "delta" or "repeat". */
+        final String kind;
+        final DecodedFrame frame;
+        final DecodedFrame prevFrame;
+        /** When the frame is shown, in milliseconds, if the container
+         * needs to know. */
+        final long time;
+        /** The number of the frame in the encode. */
+        final int videoFrame;
+
+        EncodeStep(String kind, DecodedFrame frame, DecodedFrame prevFrame,
+                long time, int videoFrame) {
+            this.kind = kind;
+            this.frame = frame;
+            this.prevFrame = prevFrame;
+            this.time = time;
+            this.videoFrame = videoFrame;
+        }
+    }
+
+    @Override
+    public synchronized void cancelEncode() {
+        cancelEncoding = true;
+    }
+
+    @Override
+    public synchronized int getFramesEncoded() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the number of frames so far that looked the same as the
+     * previous frame encoded, and so weren't rendered again.
+     * @return The number of unchanged frames.
+     */
+    public synchronized int getFramesUnchanged() {
+        return unchangedFrames;
+    }
+
+    /**
+     * Immediately throws a CancellationException if cancelEncode() has
+     * been called more recently than checkForCancellation() has been called.
+     * @throws CancellationException if another thread is trying to cancel
+     * the encode
+     */
+    protected synchronized void checkForCancellation()
+            throws CancellationException {
+        if (cancelEncoding) {
+            cancelEncoding = false;
+            throw new CancellationException();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.awt.image.IndexColorModel;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A class that defines a skeleton implementation for encoding videos as
+ * animated images, in which each frame has a delay, and is drawn on top of
+ * the frames before it. Each frame of the ttyrec is shown for as long as
+ * it was in the recording, rounded to MIN_DELAY milliseconds (frames that
+ * would be shown for less than that are left out); the frame time
+ * convertor isn't used.
+ * <p>
+ * Frames are given to the derived class as the rectangle that changed
+ * since the previous frame; pixels in the rectangle that didn't change are
+ * given as a transparent color, so that they compress well. The codec has
+ * to be a PaletteVideoCodec.
+ * @author ais523
+ */
+public abstract class AnimatedImageContainer
+        extends VariableFramerateVideoContainer {
+
+    /**
+     * The shortest time a frame is shown for, in milliseconds. Web browsers
+     * show GIF frames with shorter delays than this more slowly.
+     */
+    protected static final int MIN_DELAY = 20;
+    /**
+     * The time that the last frame is shown for, in milliseconds.
+     */
+    protected static final int LAST_FRAME_DELAY = 1000;
+
+    /* Gives frames their times in the ttyrec, in units of MIN_DELAY
+       milliseconds. */
+    private static final FrameTimeConvertor REAL_TIME =
+            new FrameTimeConvertor() {
+        @Override
+        public double getFrameRate() {
+            return 1000.0 / MIN_DELAY;
+        }
+
+        @Override
+        public void resetConvertor() {
+        }
+
+        @Override
+        public int convertFrameTime(double frameTime) {
+            return (int) Math.floor(frameTime * 1000 / MIN_DELAY);
+        }
+    };
+
+    /* The state of the encode in progress. */
+    private PaletteVideoCodec codec = null;
+    private int width;
+    private int height;
+    private int transparentIndex;
+    private byte[] canvas = null; // the image as of the last frame written
+    private byte[] rectangle = null; // the frame waiting for its delay
+    private int rectangleX, rectangleY, rectangleWidth, rectangleHeight;
+    private long rectangleTime = -1;
+    private ByteBuffer frameBuffer = null;
+    private int framesWritten;
+
+    /**
+     * Called before the first frame is written.
+     * @param width The width of the video, in pixels.
+     * @param height The height of the video, in pixels.
+     * @param palette The colors that the pixels of the frames index into.
+     * @param transparentIndex The index that's used for pixels that are
+     * the same as in the previous frame; it isn't in the palette.
+     */
+    protected abstract void startFrames(int width, int height,
+            IndexColorModel palette, int transparentIndex);
+
+    /**
+     * Writes one frame into the container. The first frame covers the whole
+     * video; later frames cover the part that changed, drawn on top of the
+     * previous frame.
+     * @param pixels The pixels of the frame's rectangle, one palette index
+     * each, a row at a time. Only the first width * height bytes are used;
+     * the array is reused once this returns.
+     * @param x The left edge of the rectangle.
+     * @param y The top edge of the rectangle.
+     * @param width The width of the rectangle.
+     * @param height The height of the rectangle.
+     * @param delay The time the frame is shown for, in milliseconds; at
+     * least MIN_DELAY.
+     */
+    protected abstract void writeFrame(byte[] pixels, int x, int y,
+            int width, int height, int delay);
+
+    /**
+     * Encodes the frames of the video into the container, via calling back
+     * through startFrames and writeFrame. This method is intended to be
+     * called by derived classes as part of their implementations of
+     * encodeVideo.
+     * @param codec The codec to render frames with.
+     * @param frames The frames to encode.
+     * @return The number of frames written.
+     * @throws IllegalArgumentException if the codec isn't a
+     * PaletteVideoCodec.
+     * @throws CancellationException if the encode is cancelled.
+     * @see #startFrames(int, int, java.awt.image.IndexColorModel, int)
+     * @see #writeFrame(byte[], int, int, int, int, int)
+     */
+    protected final int encodeAnimation(VideoCodec codec,
+            Iterator<? extends DecodedFrame> frames)
+            throws CancellationException {
+        if (!(codec instanceof PaletteVideoCodec))
+            throw new IllegalArgumentException(
+                    "This container needs a palette codec");
+        this.codec = (PaletteVideoCodec) codec;
+        framesWritten = 0;
+        rectangleTime = -1;
+        try {
+            encodeFrames(codec, frames, REAL_TIME);
+            if (rectangleTime != -1) {
+                writeFrame(rectangle, rectangleX, rectangleY,
+                        rectangleWidth, rectangleHeight, LAST_FRAME_DELAY);
+                framesWritten++;
+            }
+            return framesWritten;
+        } finally {
+            this.codec = null;
+            canvas = null;
+            rectangle = null;
+            frameBuffer = null;
+        }
+    }
+
+    /**
+     * Renders a frame, and works out what changed since the previous frame
+     * written. The previous frame can then be written, as it's now known
+     * how long it's shown for; this frame waits for the next one.
+     */
+    @Override
+    protected void encodeFrame(DecodedFrame frame, DecodedFrame prevFrame,
+            boolean keyframe, long time) {
+        frameBuffer = codec.encodeKeyframe(frame,
+                frameBuffer == null ? ByteBuffer.allocate(0) :
+                frameBuffer.clear());
+        byte[] pixels = frameBuffer.array();
+        if (canvas == null) {
+            width = codec.getActualWidth();
+            height = codec.getActualHeight();
+            IndexColorModel palette = codec.getPalette();
+            transparentIndex = palette.getMapSize();
+            canvas = new byte[width * height];
+            rectangle = new byte[width * height];
+            System.arraycopy(pixels, 0, canvas, 0, width * height);
+            System.arraycopy(pixels, 0, rectangle, 0, width * height);
+            rectangleX = 0;
+            rectangleY = 0;
+            rectangleWidth = width;
+            rectangleHeight = height;
+            rectangleTime = time;
+            startFrames(width, height, palette, transparentIndex);
+            return;
+        }
+
+        /* Find the bounding box of the pixels that changed. */
+        int top = 0;
+        while (top < height && rowMatches(pixels, top)) top++;
+        if (top == height) return; // the frame looks the same
+        int bottom = height - 1;
+        while (rowMatches(pixels, bottom)) bottom--;
+        int left = width;
+        int right = -1;
+        for (int y = top; y <= bottom; y++) {
+            int row = y * width;
+            for (int x = 0; x < left; x++)
+                if (pixels[row + x] != canvas[row + x]) {
+                    left = x;
+                    break;
+                }
+            for (int x = width - 1; x > right; x--)
+                if (pixels[row + x] != canvas[row + x]) {
+                    right = x;
+                    break;
+                }
+        }
+
+        writeFrame(rectangle, rectangleX, rectangleY, rectangleWidth,
+                rectangleHeight, (int) (time - rectangleTime));
+        framesWritten++;
+
+        rectangleX = left;
+        rectangleY = top;
+        rectangleWidth = right - left + 1;
+        rectangleHeight = bottom - top + 1;
+        rectangleTime = time;
+        int i = 0;
+        for (int y = top; y <= bottom; y++) {
+            int row = y * width;
+            for (int x = left; x <= right; x++) {
+                byte p = pixels[row + x];
+                if (p == canvas[row + x]) {
+                    rectangle[i++] = (byte) transparentIndex;
+                } else {
+                    rectangle[i++] = p;
+                    canvas[row + x] = p;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether a row of pixels is the same as on the canvas.
+     */
+    private boolean rowMatches(byte[] pixels, int y) {
+        return Arrays.equals(pixels, y * width, (y + 1) * width,
+                canvas, y * width, (y + 1) * width);
+    }
+}
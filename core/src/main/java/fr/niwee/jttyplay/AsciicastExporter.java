@@ -0,0 +1,184 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+
+/**
+ * An exporter that writes a ttyrec in asciicast v2 format (as used by
+ * asciinema): a JSON header line giving the terminal size, then one JSON
+ * line per frame, giving its time and what was written to the terminal.
+ * The frames' data is written out as it was recorded, so the ttyrec
+ * doesn't need to be decoded, just analyzed. Frames from the input stream
+ * of a .ttyrec2 become input events.
+ * <p>
+ * Frames are converted to text the same way as when they're written to a
+ * terminal: UTF-8 frames have characters that were split across frame
+ * boundaries moved into one frame, and IBM frames have code page 850
+ * translated into Unicode.
+ * @author ais523
+ */
+public class AsciicastExporter extends TextExporter {
+
+    /* Translations of bytes into Unicode, for the 8-bit encodings. */
+    private static final char[] LATIN1 = new char[256];
+    private static final char[] IBM = new char[256];
+    static {
+        vt320 t = new vt320();
+        for (int i = 0; i < 256; i++) {
+            LATIN1[i] = (char) i;
+            IBM[i] = i < 0x80 ? (char) i : t.map_cp850_unicode((char) i);
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /* Reused while converting frames to text. */
+    private final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder().
+            onMalformedInput(CodingErrorAction.REPLACE).
+            onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer bytes = ByteBuffer.allocate(4096);
+    private CharBuffer chars = CharBuffer.allocate(4096);
+
+    /**
+     * Writes the asciicast header, then each frame as an event. The frames
+     * exported are the ones that exist when the export starts. The size in
+     * the header is the forced size, if there is one, or else the size the
+     * terminal needs for those frames, found by reading through them
+     * first (rather than taken from a decoded frame, whose size might not
+     * be final yet).
+     */
+    @Override
+    protected void exportFrames(Ttyrec rec)
+            throws IOException, CancellationException {
+        Ttyrec.Encoding encoding = rec.getActualEncoding();
+        int count = rec.getFrameCount();
+        vt320 size = StreamingDecoder.readInitialState(rec, encoding, count);
+        writeAscii("{\"version\": 2, \"width\": " + size.getColumns() +
+                ", \"height\": " + size.getRows() + "}\n");
+
+        for (int i = 0; i < count; i++) {
+            TtyrecFrame frame = rec.getFrameAtIndex(i);
+            writeAscii('[');
+            writeTime(frame.getRelativeTimestamp());
+            writeAscii(frame.getStream() == 0 ? ", \"o\", \"" : ", \"i\", \"");
+            byte[] data;
+            int length;
+            if (encoding == Ttyrec.Encoding.UTF8) {
+                bytes.clear();
+                bytes = frame.putUnicodeData(bytes);
+                data = bytes.array();
+                length = bytes.position();
+            } else {
+                data = frame.getFrameData();
+                length = data.length;
+            }
+            /* Most frames are entirely ASCII, which is the same in every
+               encoding, and can be written straight out. */
+            int ascii = 0;
+            while (ascii < length && data[ascii] >= 0) ascii++;
+            if (ascii == length) {
+                for (int j = 0; j < length; j++) {
+                    if (needsEscape(data[j])) writeEscape(data[j]);
+                    else writeAscii(data[j]);
+                }
+            } else {
+                toText(data, length, encoding);
+                writeEscaped(chars.array(), chars.position());
+            }
+            writeAscii("\"]\n");
+            frameExported();
+        }
+    }
+
+    /**
+     * Converts a frame's data to text, leaving it in chars.
+     */
+    private void toText(byte[] data, int length, Ttyrec.Encoding encoding) {
+        /* None of the encodings have more characters than bytes. */
+        if (chars.capacity() < length)
+            chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+        chars.clear();
+        if (encoding == Ttyrec.Encoding.UTF8) {
+            utf8.reset();
+            utf8.decode(ByteBuffer.wrap(data, 0, length), chars, true);
+            utf8.flush(chars);
+        } else {
+            char[] table = encoding == Ttyrec.Encoding.IBM ? IBM : LATIN1;
+            char[] c = chars.array();
+            for (int i = 0; i < length; i++)
+                c[i] = table[data[i] & 0xFF];
+            chars.position(length);
+        }
+    }
+
+    /**
+     * Writes text as the contents of a JSON string. Runs of characters
+     * that don't need escaping are written all at once.
+     */
+    private void writeEscaped(char[] text, int length) throws IOException {
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (!needsEscape(text[i])) continue;
+            write(text, start, i - start);
+            writeEscape(text[i]);
+            start = i + 1;
+        }
+        write(text, start, length - start);
+    }
+
+    /**
+     * Checks whether a character has to be escaped in a JSON string. DEL
+     * is escaped too, so that the output is printable.
+     */
+    private static boolean needsEscape(int c) {
+        return c < 0x20 || c == '"' || c == '\\' || c == 0x7F;
+    }
+
+    /**
+     * Writes the escape sequence for a character in a JSON string.
+     */
+    private void writeEscape(int c) throws IOException {
+        writeAscii('\\');
+        switch (c) {
+            case '"':
+            case '\\':
+                writeAscii(c);
+                break;
+            case '\n':
+                writeAscii('n');
+                break;
+            case '\r':
+                writeAscii('r');
+                break;
+            case '\t':
+                writeAscii('t');
+                break;
+            case '\b':
+                writeAscii('b');
+                break;
+            default:
+                writeAscii("u00");
+                writeAscii(HEX[c >> 4]);
+                writeAscii(HEX[c & 0xF]);
+                break;
+        }
+    }
+
+    /**
+     * Requests the appropriate file extension for this exporter.
+     * @return Always returns "cast".
+     */
+    @Override
+    public String getFileExtension() {
+        return "cast";
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * A stream that compresses the data written to it in bzip2 format, and
+ * writes it to another stream. This is the counterpart of BZip2InputStream,
+ * mostly used to produce test input; it aims at being correct and simple
+ * rather than at compressing as well as the reference bzip2 does (it uses a
+ * single Huffman table per block, for instance). The output can be read by
+ * any bzip2 decompressor.
+ * @author ais523
+ */
+public class BZip2OutputStream extends FilterOutputStream {
+
+    private static final int[] CRC_TABLE = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i << 24;
+            for (int j = 0; j < 8; j++)
+                c = (c & 0x80000000) != 0 ? (c << 1) ^ 0x04c11db7 : c << 1;
+            CRC_TABLE[i] = c;
+        }
+    }
+
+    private static final int RUNA = 0;
+    private static final int RUNB = 1;
+    private static final int GROUP_SIZE = 50;
+    private static final int MAX_CODE_LENGTH = 17;
+
+    private final int blockSize;
+    private final byte[] block; // run-length-encoded input for this block
+    private int blockLength = 0;
+    private int blockCRC = 0xffffffff;
+    private int combinedCRC = 0;
+
+    // The run of identical bytes that hasn't been added to the block yet.
+    private int runByte = -1;
+    private int runLength = 0;
+
+    private long bitBuffer = 0;
+    private int bitCount = 0;
+    private boolean finished = false;
+
+    /**
+     * Creates a bzip2 compressing stream with the largest block size.
+     * @param out The stream to write compressed data to.
+     * @throws IOException If writing the stream header fails.
+     */
+    public BZip2OutputStream(OutputStream out) throws IOException {
+        this(out, 9);
+    }
+
+    /**
+     * Creates a bzip2 compressing stream.
+     * @param out The stream to write compressed data to.
+     * @param level The block size, in units of 100000 bytes, from 1 to 9.
+     * @throws IOException If writing the stream header fails.
+     */
+    public BZip2OutputStream(OutputStream out, int level) throws IOException {
+        super(out);
+        if (level < 1 || level > 9)
+            throw new IllegalArgumentException("Invalid block size");
+        // Leave room for a run to be flushed at the end of a block.
+        blockSize = level * 100000 - 20;
+        block = new byte[blockSize + 20];
+        out.write(new byte[]{'B', 'Z', 'h', (byte) ('0' + level)});
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (finished) throw new IOException("Stream finished");
+        b &= 0xff;
+        if (b == runByte && runLength < 255) {
+            runLength++;
+        } else {
+            flushRun();
+            runByte = b;
+            runLength = 1;
+        }
+        blockCRC = (blockCRC << 8) ^ CRC_TABLE[(blockCRC >>> 24) ^ b];
+        if (blockLength >= blockSize) {
+            flushRun();
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++)
+            write(b[i]);
+    }
+
+    /**
+     * Adds the pending run of identical bytes to the block: runs of 4 or
+     * more are stored as 4 copies and a count.
+     */
+    private void flushRun() {
+        if (runLength == 0) return;
+        int n = Math.min(runLength, 4);
+        for (int i = 0; i < n; i++)
+            block[blockLength++] = (byte) runByte;
+        if (runLength >= 4)
+            block[blockLength++] = (byte) (runLength - 4);
+        runLength = 0;
+        runByte = -1;
+    }
+
+    /**
+     * Finishes writing the compressed data, without closing the underlying
+     * stream.
+     * @throws IOException If writing fails.
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        flushRun();
+        if (blockLength > 0) writeBlock();
+        writeBits(24, 0x177245);
+        writeBits(24, 0x385090);
+        writeBits(32, combinedCRC);
+        if (bitCount > 0) writeBits(8 - bitCount, 0);
+        finished = true;
+        out.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // bzip2 can't flush part of a block; the data is written when the
+        // block fills up, or when the stream is finished.
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    private void writeBits(int n, int value) throws IOException {
+        bitBuffer = (bitBuffer << n) | (value & ((1L << n) - 1));
+        bitCount += n;
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            out.write((int) (bitBuffer >>> bitCount));
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        int crc = ~blockCRC;
+        combinedCRC = ((combinedCRC << 1) | (combinedCRC >>> 31)) ^ crc;
+        blockCRC = 0xffffffff;
+        int n = blockLength;
+        blockLength = 0;
+
+        int[] order = sortRotations(block, n);
+        int origPtr = -1;
+        byte[] bwt = new byte[n];
+        for (int i = 0; i < n; i++) {
+            if (order[i] == 0) origPtr = i;
+            bwt[i] = block[order[i] == 0 ? n - 1 : order[i] - 1];
+        }
+
+        boolean[] inUse = new boolean[256];
+        for (int i = 0; i < n; i++) inUse[bwt[i] & 0xff] = true;
+        int[] seqOf = new int[256];
+        int inUseCount = 0;
+        for (int i = 0; i < 256; i++)
+            if (inUse[i]) seqOf[i] = inUseCount++;
+        int alphaSize = inUseCount + 2;
+        int eob = inUseCount + 1;
+
+        // Move-to-front, with runs of zeros encoded as RUNA/RUNB digits.
+        int[] symbols = new int[n + 1];
+        int symbolCount = 0;
+        int[] freq = new int[alphaSize];
+        byte[] mtf = new byte[inUseCount];
+        for (int i = 0; i < inUseCount; i++) mtf[i] = (byte) i;
+        int zeros = 0;
+        for (int i = 0; i < n; i++) {
+            byte s = (byte) seqOf[bwt[i] & 0xff];
+            int j = 0;
+            byte prev = mtf[0];
+            while (prev != s) {
+                j++;
+                byte t = mtf[j];
+                mtf[j] = prev;
+                prev = t;
+            }
+            mtf[0] = s;
+            if (j == 0) {
+                zeros++;
+                continue;
+            }
+            symbolCount = emitZeros(zeros, symbols, symbolCount, freq);
+            zeros = 0;
+            symbols[symbolCount++] = j + 1;
+            freq[j + 1]++;
+        }
+        symbolCount = emitZeros(zeros, symbols, symbolCount, freq);
+        symbols[symbolCount++] = eob;
+        freq[eob]++;
+
+        int[] lengths = codeLengths(freq, MAX_CODE_LENGTH);
+        int[] codes = canonicalCodes(lengths);
+
+        writeBits(24, 0x314159);
+        writeBits(24, 0x265359);
+        writeBits(32, crc);
+        writeBits(1, 0); // not randomised
+        writeBits(24, origPtr);
+        int ranges = 0;
+        for (int i = 0; i < 16; i++)
+            for (int j = 0; j < 16; j++)
+                if (inUse[i * 16 + j]) ranges |= 0x8000 >>> i;
+        writeBits(16, ranges);
+        for (int i = 0; i < 16; i++) {
+            if ((ranges & (0x8000 >>> i)) == 0) continue;
+            int bits = 0;
+            for (int j = 0; j < 16; j++)
+                if (inUse[i * 16 + j]) bits |= 0x8000 >>> j;
+            writeBits(16, bits);
+        }
+        // The format needs at least two tables; both are the same, and
+        // every group of symbols uses the first.
+        int selectors = (symbolCount + GROUP_SIZE - 1) / GROUP_SIZE;
+        writeBits(3, 2);
+        writeBits(15, selectors);
+        for (int i = 0; i < selectors; i++)
+            writeBits(1, 0);
+        for (int t = 0; t < 2; t++) {
+            int current = lengths[0];
+            writeBits(5, current);
+            for (int i = 0; i < alphaSize; i++) {
+                while (current < lengths[i]) {
+                    writeBits(2, 2);
+                    current++;
+                }
+                while (current > lengths[i]) {
+                    writeBits(2, 3);
+                    current--;
+                }
+                writeBits(1, 0);
+            }
+        }
+        for (int i = 0; i < symbolCount; i++)
+            writeBits(lengths[symbols[i]], codes[symbols[i]]);
+    }
+
+    /**
+     * Writes a run of zeros in bijective base 2, using RUNA for a digit of
+     * 1 and RUNB for a digit of 2, least significant digit first.
+     */
+    private static int emitZeros(int zeros, int[] symbols, int count,
+                                 int[] freq) {
+        if (zeros == 0) return count;
+        zeros--;
+        for (;;) {
+            int s = (zeros & 1) != 0 ? RUNB : RUNA;
+            symbols[count++] = s;
+            freq[s]++;
+            if (zeros < 2) break;
+            zeros = (zeros - 2) / 2;
+        }
+        return count;
+    }
+
+    /**
+     * Sorts the rotations of a block of data, by repeatedly doubling the
+     * length of the prefixes compared, radix-sorting by the classes of the
+     * two halves each time.
+     * @return The starting positions of the rotations, in sorted order.
+     */
+    static int[] sortRotations(byte[] s, int n) {
+        int[] p = new int[n];
+        int[] c = new int[n];
+        int[] pn = new int[n];
+        int[] cn = new int[n];
+        int[] count = new int[Math.max(256, n)];
+        for (int i = 0; i < n; i++) count[s[i] & 0xff]++;
+        for (int i = 1; i < 256; i++) count[i] += count[i - 1];
+        for (int i = n - 1; i >= 0; i--) p[--count[s[i] & 0xff]] = i;
+        int classes = 1;
+        c[p[0]] = 0;
+        for (int i = 1; i < n; i++) {
+            if (s[p[i]] != s[p[i - 1]]) classes++;
+            c[p[i]] = classes - 1;
+        }
+        for (int h = 1; h < n && classes < n; h <<= 1) {
+            for (int i = 0; i < n; i++) {
+                int j = p[i] - h;
+                pn[i] = j < 0 ? j + n : j;
+            }
+            Arrays.fill(count, 0, classes, 0);
+            for (int i = 0; i < n; i++) count[c[pn[i]]]++;
+            for (int i = 1; i < classes; i++) count[i] += count[i - 1];
+            for (int i = n - 1; i >= 0; i--) p[--count[c[pn[i]]]] = pn[i];
+            cn[p[0]] = 0;
+            classes = 1;
+            for (int i = 1; i < n; i++) {
+                int a = p[i] + h, b = p[i - 1] + h;
+                if (a >= n) a -= n;
+                if (b >= n) b -= n;
+                if (c[p[i]] != c[p[i - 1]] || c[a] != c[b]) classes++;
+                cn[p[i]] = classes - 1;
+            }
+            int[] t = c; c = cn; cn = t;
+        }
+        return p;
+    }
+
+    /**
+     * Works out Huffman code lengths for the given symbol frequencies, no
+     * longer than the given maximum. Every symbol gets a code, even if it
+     * never occurs. If the lengths come out too long, the frequencies are
+     * flattened and the lengths recalculated, as the reference bzip2 does.
+     */
+    private static int[] codeLengths(int[] freq, int maxLength) {
+        int n = freq.length;
+        long[] weight = new long[n];
+        for (int i = 0; i < n; i++) weight[i] = Math.max(1, freq[i]);
+        int[] lengths = new int[n];
+        for (;;) {
+            int[] parent = new int[2 * n];
+            long[] w = Arrays.copyOf(weight, 2 * n);
+            PriorityQueue<Integer> queue = new PriorityQueue<>(n,
+                    (a, b) -> w[a] != w[b] ? Long.compare(w[a], w[b])
+                                           : Integer.compare(a, b));
+            for (int i = 0; i < n; i++) queue.add(i);
+            int next = n;
+            while (queue.size() > 1) {
+                int a = queue.poll(), b = queue.poll();
+                w[next] = w[a] + w[b];
+                parent[a] = next;
+                parent[b] = next;
+                queue.add(next++);
+            }
+            int root = next - 1;
+            boolean tooLong = false;
+            for (int i = 0; i < n; i++) {
+                int len = 0;
+                for (int j = i; j != root; j = parent[j]) len++;
+                lengths[i] = len;
+                if (len > maxLength) tooLong = true;
+            }
+            if (!tooLong) return lengths;
+            for (int i = 0; i < n; i++) weight[i] = 1 + weight[i] / 2;
+        }
+    }
+
+    /**
+     * Assigns codes to symbols given their code lengths, in the same order
+     * a bzip2 decompressor does: shorter codes first, and in symbol order
+     * within the same length.
+     */
+    private static int[] canonicalCodes(int[] lengths) {
+        int[] codes = new int[lengths.length];
+        int code = 0;
+        for (int len = 1; len <= MAX_CODE_LENGTH; len++) {
+            for (int i = 0; i < lengths.length; i++)
+                if (lengths[i] == len) codes[i] = code++;
+            code <<= 1;
+        }
+        return codes;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+/**
+ * A long-running piece of work that runs on the WorkerScheduler, rather
+ * than on a thread of its own. The methods for controlling it mirror those
+ * of Thread (start, join, interrupt), so that it can be used in the same
+ * way; however, the thread it runs on is only borrowed for the duration of
+ * the run() method, and might be a virtual thread.
+ * @author ais523
+ */
+public abstract class BackgroundTask implements Runnable {
+
+    private final String name;
+    private final Object runnerLock = new Object();
+    private Thread runner = null; // the thread running us, if any
+    private boolean started = false;
+    private boolean finished = false;
+
+    /**
+     * Creates a background task, without starting it.
+     * @param name The name of the task; the thread running it is given
+     * this name while it's doing so.
+     */
+    protected BackgroundTask(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Gets the name of this task.
+     * @return The name given when the task was created.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Starts running this task in the background. A task can only be
+     * started once.
+     * @throws IllegalStateException If the task was already started.
+     */
+    public void start() {
+        synchronized (runnerLock) {
+            if (started)
+                throw new IllegalStateException("Task already started");
+            started = true;
+        }
+        WorkerScheduler.submit(this);
+    }
+
+    /**
+     * Called by the scheduler to run this task on the current thread.
+     */
+    void runOnScheduler() {
+        Thread t = Thread.currentThread();
+        String oldName = t.getName();
+        synchronized (runnerLock) {
+            runner = t;
+        }
+        WorkerScheduler.taskStarted();
+        try {
+            t.setName(name);
+            run();
+        } finally {
+            t.setName(oldName);
+            synchronized (runnerLock) {
+                runner = null;
+                // Don't let an interrupt meant for us leak to whatever runs
+                // on this thread next.
+                Thread.interrupted();
+                finished = true;
+                runnerLock.notifyAll();
+            }
+            WorkerScheduler.taskFinished();
+            taskEnded();
+        }
+    }
+
+    /**
+     * Called on the thread that ran this task, once it has finished (so
+     * isAlive() already returns false). Does nothing by default; a task
+     * whose finishing is news to other threads can override this to tell
+     * them.
+     */
+    protected void taskEnded() {
+    }
+
+    /**
+     * Gets the thread currently running this task.
+     * @return The thread, or null if the task isn't running.
+     */
+    protected Thread getRunner() {
+        synchronized (runnerLock) {
+            return runner;
+        }
+    }
+
+    /**
+     * Queries whether this task is the one running on the current thread.
+     * @return True if called from within this task's run() method.
+     */
+    public boolean isCurrentTask() {
+        return getRunner() == Thread.currentThread();
+    }
+
+    /**
+     * Interrupts this task, if it's running, in the same way as
+     * Thread.interrupt() would.
+     */
+    public void interrupt() {
+        synchronized (runnerLock) {
+            if (runner != null) runner.interrupt();
+        }
+    }
+
+    /**
+     * Queries whether this task has been interrupted. This should only be
+     * called by the task itself.
+     * @return True if the thread running this task has been interrupted.
+     */
+    public boolean isInterrupted() {
+        synchronized (runnerLock) {
+            return runner != null && runner.isInterrupted();
+        }
+    }
+
+    /**
+     * Queries whether this task has been started and hasn't finished yet.
+     * @return True if the task is running, or waiting to run.
+     */
+    public boolean isAlive() {
+        synchronized (runnerLock) {
+            return started && !finished;
+        }
+    }
+
+    /**
+     * Waits for this task to finish running. Returns immediately if it was
+     * never started.
+     * @throws InterruptedException If the waiting thread was interrupted.
+     */
+    public void join() throws InterruptedException {
+        synchronized (runnerLock) {
+            while (started && !finished)
+                runnerLock.wait();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + name + "]";
+    }
+}
@@ -9,12 +9,18 @@ import java.util.Date;
  * An implementation of List, designed so that appending an array to the list
  * is a fast operation. It also records the times at which array chunks are
  * appended, for use with live data.
+ * <p>
+ * Chunks at the start of the list that are no longer needed can be
+ * discarded, to save memory when the list is read once from start to end.
+ * That doesn't change the indexes of the later bytes, or the size of the
+ * list; it just makes the discarded bytes unreadable.
  * @author ais523
  */
 public class ByteChunkList extends AbstractList<Byte> {
     ArrayList<Object> backingList; // holds chunks of byte[], Byte[], ArrayList<Byte>
     ArrayList<Integer> cumulativeSizeList;
     ArrayList<Date> chunkTimeList;
+    private int discarded = 0; // the bytes before the first chunk kept
     
     /**
      * Creates a new empty ByteChunkList.
@@ -26,6 +32,9 @@ public class ByteChunkList extends AbstractList<Byte> {
     }
 
     private int findChunk(int index) {
+        if (index < discarded)
+            throw new IndexOutOfBoundsException(
+                    "Index " + index + " was discarded");
         // We find the chunk that the index index is in via binary search.
         int searchDistance = cumulativeSizeList.size();
         if (searchDistance == 0) throw new IndexOutOfBoundsException();
@@ -45,6 +54,13 @@ public class ByteChunkList extends AbstractList<Byte> {
         return currentIndex;
     }
 
+    /**
+     * Returns the index of the first byte of the given chunk.
+     */
+    private int chunkStart(int chunk) {
+        return chunk > 0 ? cumulativeSizeList.get(chunk-1) : discarded;
+    }
+
     /**
      * Stores a conveniently-sized amount of data into storeIn, starting
      * at index, and not exceeding the storage space provided. There is
@@ -59,8 +75,7 @@ public class ByteChunkList extends AbstractList<Byte> {
     public synchronized int getRestOfChunk(
             int index, byte[] storeIn, int off, int len) {
         int chunk = findChunk(index);
-        int indexInChunk = index;
-        if (chunk > 0) indexInChunk -= cumulativeSizeList.get(chunk-1);
+        int indexInChunk = index - chunkStart(chunk);
         Object array = backingList.get(chunk);
         int l = len;
         if (array instanceof byte[]) {
@@ -121,8 +136,7 @@ public class ByteChunkList extends AbstractList<Byte> {
     @SuppressWarnings({"unchecked","rawtypes"})
     public synchronized Byte get(int index) {
         int chunk = findChunk(index);
-        int indexInChunk = index;
-        if (chunk > 0) indexInChunk -= cumulativeSizeList.get(chunk-1);
+        int indexInChunk = index - chunkStart(chunk);
         Object array = backingList.get(chunk);
         if (array instanceof byte[]) return ((byte[])array)[indexInChunk];
         if (array instanceof Byte[]) return ((Byte[])array)[indexInChunk];
@@ -151,7 +165,7 @@ public class ByteChunkList extends AbstractList<Byte> {
      */
     @Override
     public synchronized int size() {
-        if (cumulativeSizeList.isEmpty()) return 0;
+        if (cumulativeSizeList.isEmpty()) return discarded;
         return cumulativeSizeList.get(cumulativeSizeList.size()-1);
     }
     /**
@@ -205,8 +219,7 @@ public class ByteChunkList extends AbstractList<Byte> {
     @SuppressWarnings({"unchecked","rawtypes"})
     public synchronized Byte remove(int index) {
         int chunk = findChunk(index);
-        int indexInChunk = index;
-        if (chunk > 0) indexInChunk -= cumulativeSizeList.get(chunk-1);
+        int indexInChunk = index - chunkStart(chunk);
         Object array = backingList.get(chunk);
         if (array instanceof byte[]) {
             ArrayList<Byte> al = new ArrayList<>();
@@ -244,6 +257,35 @@ public class ByteChunkList extends AbstractList<Byte> {
         return super.set(index, element);
     }
 
+    /**
+     * Discards the chunks of this list that end at or before a given index,
+     * so that the memory they use can be reclaimed. A chunk that the index
+     * is in the middle of is kept. The bytes discarded can't be read any
+     * more, but the indexes and size of the list don't change.
+     * @param index The index of the first byte that might still be needed.
+     * @return True if anything was discarded.
+     */
+    public synchronized boolean discardBefore(int index) {
+        int chunks = 0;
+        while (chunks < cumulativeSizeList.size() &&
+                cumulativeSizeList.get(chunks) <= index)
+            chunks++;
+        if (chunks == 0) return false;
+        discarded = cumulativeSizeList.get(chunks - 1);
+        backingList.subList(0, chunks).clear();
+        cumulativeSizeList.subList(0, chunks).clear();
+        chunkTimeList.subList(0, chunks).clear();
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes in the list that haven't been discarded.
+     * @return The number of bytes that can still be read.
+     */
+    public synchronized int getRetainedSize() {
+        return size() - discarded;
+    }
+
     /**
      * Appends an array of bytes to the end of this list. The array is wrapped
      * by this list, rather than copied; as such, changing it after it has been
@@ -0,0 +1,44 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+/**
+ * A frame of a ttyrec, together with what the terminal looks like once the
+ * frame has been displayed. This is everything that video encoding (and
+ * other one-pass consumers, like text extraction) need to know about a
+ * frame.
+ * <p>
+ * A TtyrecFrame is a DecodedFrame once it's been decoded. The frames
+ * returned by a StreamingDecoder are also DecodedFrames, but they share a
+ * single terminal, so only the most recently returned one can be looked at.
+ * @see TtyrecFrame
+ * @see StreamingDecoder
+ * @author ais523
+ */
+public interface DecodedFrame {
+    /**
+     * Returns the timestamp of this frame, relative to the first frame in
+     * the same ttyrec.
+     * @return The number of seconds since the start of the ttyrec.
+     */
+    public double getRelativeTimestamp();
+
+    /**
+     * Returns the state of the terminal upon displaying this frame.
+     * @return The terminal state.
+     */
+    public vt320 getTerminalState();
+
+    /**
+     * Returns the parts of the screen that changed since the terminal was
+     * in the given state.
+     * @param state The terminal state the damage should be relative to.
+     * @return The damage done to the screen, or null if it isn't known
+     * relative to the given state (in which case the whole screen should be
+     * assumed to have changed).
+     */
+    public TerminalDamage getDamageSince(VDUBuffer state);
+}
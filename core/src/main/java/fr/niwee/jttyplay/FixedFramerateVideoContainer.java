@@ -0,0 +1,184 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A class that defines a skeleton implementation for encoding videos into
+ * a container that uses a fixed framerate. It handles the encoding process
+ * for the individual frames (calling abstract methods in the derived class
+ * to incorporate the encoded frames into the container); the bookkeeping
+ * shared with other containers is in AbstractVideoContainer.
+ * @author ais523
+ */
+public abstract class FixedFramerateVideoContainer
+        extends AbstractVideoContainer {
+
+    /* The screen of the last frame that was given to the codec. */
+    private FrameCache.Key lastScreen;
+
+    /**
+     * Encodes one keyframe into the container; a keyframe is a frame encoded
+     * in a way that does not depend on previous frames.
+     * @param frame The keyframe to encode.
+     */
+    protected abstract void encodeKeyframe(DecodedFrame frame);
+    /**
+     * Encodes one frame into the container relative to the previous frame,
+     * that is not a repeat of the previous frame.
+     * @param frame The frame to encode.
+     * @param prevFrame The previous frame that was encoded.
+     */
+    protected abstract void encodeNonKeyframe(
+            DecodedFrame frame, DecodedFrame prevFrame);
+    /**
+     * Encodes a frame into the container that is a repeat of the previous
+     * frame.
+     * @param frame The frame to encode.
+     */
+    protected abstract void encodeRepeatedFrame(DecodedFrame frame);
+
+    /**
+     * Encodes the frames of the video into the container, via calling back
+     * through abstract methods. This method is intended to be called by
+     * derived classes as part of their implementations of encodeVideo.
+     * {@code timer.getFrameRate()} frames will be produced (via callback) for
+     * each second of encoded video.
+     * <p>
+     * A frame that looks exactly the same as the previous frame encoded
+     * (e.g. because the program being recorded redrew the screen without
+     * changing it) is encoded as a repeat of that frame, rather than being
+     * rendered and compared with it.
+     * @param frames The frames to encode.
+     * @param timer An object describing the translation from times in the
+     * ttyrec to times in the encode.
+     * @return The number of encode frames in the resulting video.
+     * @throws CancellationException 
+     * @see VideoContainer#encodeVideo(jettyplay.VideoCodec, java.util.Iterator, jettyplay.FrameTimeConvertor) 
+     * @see #encodeKeyframe(jettyplay.DecodedFrame) 
+     * @see #encodeNonKeyframe(jettyplay.DecodedFrame, jettyplay.DecodedFrame) 
+     * @see #encodeRepeatedFrame(jettyplay.DecodedFrame)
+     */
+    protected final int encodeFrames(Iterator<? extends DecodedFrame> frames,
+        FrameTimeConvertor timer) throws CancellationException {
+        return encodeFrames(null, frames, timer);
+    }
+
+    /**
+     * Encodes the frames of the video into the container, as above, but
+     * preparing frames with the given codec ahead of encoding them. The
+     * callbacks are made in the same order, but up to
+     * {@code codec.getLookahead()} encode frames behind the frames being
+     * read, so the frames they're given may no longer be displayable (the
+     * codec only needs them to be when they're prepared).
+     * @param codec The codec the callbacks encode frames with, or null to
+     * not prepare frames.
+     * @param frames The frames to encode.
+     * @param timer An object describing the translation from times in the
+     * ttyrec to times in the encode.
+     * @return The number of encode frames in the resulting video.
+     * @throws CancellationException 
+     * @see VideoCodec#prepareFrame(jettyplay.DecodedFrame, boolean) 
+     */
+    protected final int encodeFrames(VideoCodec codec,
+        Iterator<? extends DecodedFrame> frames,
+        FrameTimeConvertor timer) throws CancellationException {
+        try {
+            return encodeFramesWithLookahead(codec, frames, timer);
+        } finally {
+            discardSteps();
+            if (codec != null) codec.finishEncode();
+        }
+    }
+
+    private int encodeFramesWithLookahead(VideoCodec codec,
+        Iterator<? extends DecodedFrame> frames,
+        FrameTimeConvertor timer) throws CancellationException {
+        timer.resetConvertor();
+        startEncode(codec);
+        int encodeFrames = 0;
+        int lastKeyframe = Integer.MIN_VALUE;
+        DecodedFrame prevFrame = null;
+        lastScreen = new FrameCache.Key();
+        DecodedFrame nextFrame = frames.hasNext() ? frames.next() : null;
+        double nextFrameTime = nextFrame == null ? 0 :
+            timer.convertFrameTime(nextFrame.getRelativeTimestamp());
+        while(nextFrame != null) {
+            DecodedFrame frame = nextFrame;
+            nextFrame = frames.hasNext() ? frames.next() : null;
+            double frameTime = nextFrameTime;
+            if (nextFrame != null) {
+                nextFrameTime =
+                    timer.convertFrameTime(nextFrame.getRelativeTimestamp());
+            } else {
+                /* The last frame in the video appears exactly once in the
+                 * encode. So we use 1.5 here to minimize rounding error. */
+                nextFrameTime = (encodeFrames + 1.5);
+            }
+            boolean repeat = false;
+            while (encodeFrames < nextFrameTime) {
+                checkForCancellation();
+                /* We place a keyframe every KEYFRAME_INTERVAL frames. The
+                 * other frames can be non-keyframes. Because we're using a
+                 * fixed framerate, we may have to repeat frames. Alternatively,
+                 * if frames come too fast, we skip some (the while loop isn't
+                 * entered at all). */
+                String kind;
+                if (!repeat && lastKeyframe + KEYFRAME_INTERVAL < encodeFrames) {
+                    lastKeyframe = encodeFrames;
+                    kind = "keyframe";
+                } else if (!repeat && lastScreen.matches(
+                        frame.getTerminalState())) {
+                    kind = "repeat";
+                    frameUnchanged();
+                } else if (!repeat) {
+                    kind = "delta";
+                } else {
+                    kind = "repeat";
+                }
+                if (!kind.equals("repeat")) {
+                    lastScreen.set(frame.getTerminalState());
+                    if (codec != null)
+                        codec.prepareFrame(frame, kind.equals("keyframe"));
+                }
+                queueStep(new EncodeStep(kind, frame, prevFrame, 0,
+                        encodeFrames));
+                encodeFrames++;
+                repeat = true;
+            }
+            
+            checkForCancellation();
+            
+            /* It's possible we dropped the frame. In this case, don't update
+             * prevFrame. */
+            if (repeat) prevFrame = frame;
+
+            frameDone();
+        }
+        flushSteps();
+        checkForCancellation();
+        return encodeFrames;
+    }
+
+    /**
+     * Makes the callback that encodes one encode frame.
+     */
+    @Override
+    final void encode(EncodeStep step) {
+        switch (step.kind) {
+            case "keyframe":
+                encodeKeyframe(step.frame);
+                break;
+            case "delta":
+                encodeNonKeyframe(step.frame, step.prevFrame);
+                break;
+            default:
+                encodeRepeatedFrame(step.frame);
+                break;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A StreamingDecoder that follows a ttyrec that's still being recorded
+ * (e.g. a termcast stream, or a file that's still being written). When
+ * it reaches the last frame found so far, hasNext() waits for the next
+ * frame to be analyzed, rather than ending the iteration; it only returns
+ * false once the source has been read to a permanent end, or the decoder
+ * is stopped. That makes it possible to encode a recording while it's
+ * being made: VariableFramerateVideoContainer encodes each frame as soon
+ * as it's found when it's given one of these, using isNextAvailable() to
+ * tell when it's caught up.
+ * <p>
+ * TtyrecLoader creates these for live encodes, and wakes them via
+ * progressMade() whenever its source reports progress, so a new frame is
+ * noticed as soon as the analysis listeners hear about it. As with any
+ * StreamingDecoder, the terminal size is worked out again if a frame
+ * needs a larger terminal; frames already returned aren't affected.
+ * <p>
+ * Only frames found by the newest analyzer are returned, so if the input
+ * has to be analyzed again, the decoder waits for the new analyzer to get
+ * to where it was. If the source has a retention limit, a decoder can be
+ * given a history to keep: the frames it's written to the terminal are
+ * then released, apart from those since the most recent natural keyframe
+ * (which it needs if the terminal size has to be worked out again), up to
+ * that many bytes of them. That way, following a recording that never
+ * ends takes a bounded amount of memory.
+ * @author ais523
+ */
+public class FollowingDecoder extends StreamingDecoder {
+
+    /** The least, in bytes, that's released at once; releasing frames
+     * clears the ttyrec's cache of frame data, so it's done in batches. */
+    private static final long RELEASE_BYTES = 65536;
+
+    private final TtyrecSource source;
+    private final Ttyrec rec;
+    private final long history; // -1 to release nothing
+    private boolean stopped = false;
+    private long notifications = 0; // calls to progressMade()
+    private long deadline = 0; // System.nanoTime() to stop at, 0 if none
+    private final int start; // the first frame returned
+    private int analyzer; // the analyzer whose frames are being returned
+    private boolean restarted = false;
+    private int keep; // the first frame still needed
+    private long keptBytes = 0; // the size of the frames from keep on
+    private long releasable = 0; // the size of those before keep
+
+    /**
+     * Creates a decoder that decodes the given source's ttyrec from its
+     * start, and keeps going as it grows. Whoever creates it has to call
+     * progressMade() when the source makes progress.
+     * @param source The source to follow.
+     */
+    FollowingDecoder(TtyrecSource source) {
+        this(source, -1);
+    }
+
+    /**
+     * Creates a decoder that decodes the given source's ttyrec from its
+     * start, keeps going as it grows, and releases the frames it's written
+     * that it no longer needs. Whoever creates it has to call progressMade()
+     * when the source makes progress.
+     * @param source The source to follow. Frames are only released if it
+     * has a retention limit.
+     * @param history How many bytes of frames to keep since the most
+     * recent natural keyframe, for working out the terminal size again; -1
+     * to keep every frame.
+     * @see TtyrecSource#setRetentionLimit(long)
+     */
+    FollowingDecoder(TtyrecSource source, long history) {
+        super(source.getTtyrec());
+        this.source = source;
+        this.rec = source.getTtyrec();
+        this.history = history;
+        analyzer = source.getAnalyzerSequenceNumber();
+        start = keep = framesReturned();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Frames that an older analyzer found, and the newest analyzer hasn't
+     * found again yet, don't count.
+     */
+    @Override
+    public boolean isNextAvailable() {
+        if (!super.isNextAvailable()) return false;
+        int newest = source.getAnalyzerSequenceNumber();
+        if (newest != analyzer) {
+            if (framesReturned() > start) restarted = true;
+            analyzer = newest;
+        }
+        return rec.getFrameAtIndex(framesReturned()).getAnalyzerSeqNumber()
+                == analyzer;
+    }
+
+    /**
+     * Queries whether the input was analyzed again after this decoder had
+     * returned frames, so the frames it returned before that might not be
+     * the final ones.
+     * @return True if the analysis restarted under the decoder.
+     */
+    boolean wasRestarted() {
+        return restarted;
+    }
+
+    /**
+     * Makes hasNext() give up waiting at a given time, as though stop() had
+     * been called then.
+     * @param deadline The System.nanoTime() to give up at.
+     */
+    synchronized void setDeadline(long deadline) {
+        this.deadline = deadline == 0 ? 1 : deadline;
+        notifyAll();
+    }
+
+    @Override
+    void frameWritten(TtyrecFrame frame, int index) {
+        if (history < 0) return;
+        long size = frame.getRetainedSize();
+        keptBytes += size;
+        if (index == getLastKeyframe() && index > keep) {
+            // nothing before a keyframe is needed
+            releasable += keptBytes - size;
+            keptBytes = size;
+            keep = index;
+        }
+        while (keptBytes > history && keep < index) {
+            long s = rec.getFrameAtIndex(keep++).getRetainedSize();
+            keptBytes -= s;
+            releasable += s;
+        }
+        if (releasable >= Math.max(history / 2, RELEASE_BYTES)) release();
+    }
+
+    /**
+     * Releases the frames that are no longer needed. This can fail (e.g.
+     * if analysis has restarted, in which case they might be about to be
+     * replaced), in which case it's tried again later.
+     */
+    private void release() {
+        if (releasable > 0 && source.releaseFramesBefore(keep, analyzer))
+            releasable = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If no more frames have been found yet, this waits until one is, the
+     * source reaches its end, stop() is called, or the deadline passes.
+     * While it waits, it releases the frames it no longer needs, so that
+     * analysis isn't held up by the retention limit.
+     * @throws CancellationException if the thread is interrupted while
+     * waiting.
+     */
+    @Override
+    public boolean hasNext() throws CancellationException {
+        for (;;) {
+            long seen;
+            synchronized (this) {
+                if (stopped) return false;
+                seen = notifications;
+            }
+            // analysis might finish between the checks, so check it first
+            boolean complete = source.isAnalysisComplete();
+            if (isNextAvailable()) return true;
+            if (complete) return false;
+            release();
+            /* Anything that happened since the checks has been notified, so
+             * we don't miss it by waiting now. */
+            synchronized (this) {
+                try {
+                    while (!stopped && notifications == seen) {
+                        if (deadline == 0) {
+                            wait();
+                            continue;
+                        }
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) return false;
+                        wait(Math.max(1,
+                                TimeUnit.NANOSECONDS.toMillis(left)));
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells the decoder that its source has made progress, waking it if
+     * it's waiting for a frame. It's safe to call from any thread.
+     */
+    synchronized void progressMade() {
+        notifications++;
+        notifyAll();
+    }
+
+    /**
+     * Stops following the recording. Iteration ends as though the end of
+     * the recording had been reached, even if more frames have been found;
+     * this is the way to finish an encode of a recording that never ends.
+     * It's safe to call from any thread, and wakes the decoder if it's
+     * waiting for a frame.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of data (such as renderings or encodings) worked out from
+ * terminal screens, so that a screen that's been seen before doesn't have
+ * to be dealt with again. Recordings often come back to the same screen:
+ * menus, idle prompts, and programs that redraw the screen without changing
+ * it.
+ * <p>
+ * Screens are identified by what's visible: the characters and attributes
+ * on the screen, the cursor's position, and the screen's size. Two
+ * terminals that look the same have the same key, even if they got there
+ * differently.
+ * <p>
+ * Screens are only admitted to the cache the second time they're seen, so
+ * that screens that are only seen once (most of them, for most
+ * recordings) don't push useful entries out. Past that, the least
+ * recently used entries are discarded to keep the cache within its size.
+ * <p>
+ * This class is thread-safe; data can be added to the cache from any
+ * thread.
+ * @author ais523
+ */
+public final class FrameCache {
+
+    /* The number of bits in the filter of screens that have been seen. So
+       that it doesn't fill up (and let every screen in), it's emptied
+       once an eighth of the bits are set. */
+    private static final int SEEN_BITS = 1 << 16;
+
+    private final long maxBytes;
+    private final Map<Key, byte[]> entries =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final long[] seen = new long[SEEN_BITS / 64];
+    private int seenCount = 0;
+    /* Reused to look screens up without allocating. */
+    private final Key probe = new Key();
+    private long bytes = 0;
+    private long lookups = 0;
+    private long hits = 0;
+
+    /**
+     * Creates an empty cache.
+     * @param maxBytes The most data to hold, in bytes. With 0, nothing is
+     * ever cached.
+     */
+    public FrameCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Looks up the data cached for a screen. This counts as a lookup in the
+     * cache's statistics.
+     * @param screen The terminal whose screen to look up.
+     * @return The data for the screen, or null if none is cached. It must
+     * not be changed.
+     */
+    synchronized byte[] get(VDUBuffer screen) {
+        lookups++;
+        probe.set(screen);
+        byte[] data = entries.get(probe);
+        if (data != null) hits++;
+        return data;
+    }
+
+    /**
+     * Records that a screen has been seen, and works out whether data for
+     * it should be added to the cache.
+     * @param screen The terminal whose screen was seen.
+     * @return The key to add the screen's data with, or null if the screen
+     * shouldn't be cached (yet).
+     */
+    synchronized Key admit(VDUBuffer screen) {
+        if (maxBytes == 0) return null;
+        probe.set(screen);
+        int bit = probe.hash & (SEEN_BITS - 1);
+        long mask = 1L << (bit & 63);
+        if ((seen[bit >> 6] & mask) == 0) {
+            if (++seenCount > SEEN_BITS / 8) {
+                Arrays.fill(seen, 0);
+                seenCount = 1;
+            }
+            seen[bit >> 6] |= mask;
+            return null;
+        }
+        return entries.containsKey(probe) ? null : probe.copy();
+    }
+
+    /**
+     * Adds the data for a screen to the cache, discarding the least
+     * recently used entries if it gets too large.
+     * @param key The key for the screen, from admit.
+     * @param data The data for the screen. It's used directly, rather than
+     * copied, so must not be changed afterwards.
+     */
+    synchronized void put(Key key, byte[] data) {
+        if (data.length > maxBytes) return;
+        byte[] old = entries.put(key, data);
+        if (old != null) bytes -= old.length;
+        bytes += data.length;
+        Iterator<byte[]> i = entries.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= i.next().length;
+            i.remove();
+        }
+    }
+
+    /**
+     * Empties the cache, and forgets which screens have been seen. The
+     * statistics are kept.
+     */
+    synchronized void clear() {
+        entries.clear();
+        Arrays.fill(seen, 0);
+        seenCount = 0;
+        bytes = 0;
+    }
+
+    /**
+     * Returns the number of screens in the cache.
+     * @return The number of entries.
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the amount of data in the cache.
+     * @return The total size of the cached data, in bytes.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of times the cache has been looked in.
+     * @return The number of lookups.
+     */
+    public synchronized long getLookups() {
+        return lookups;
+    }
+
+    /**
+     * Returns the number of lookups that found data in the cache.
+     * @return The number of hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the proportion of lookups that found data in the cache.
+     * @return The hit ratio, from 0 to 1 (0 if nothing was looked up yet).
+     */
+    public synchronized double getHitRatio() {
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * The visible contents of a terminal's screen. A key can be changed to
+     * hold a different screen, so that screens can be compared without
+     * allocating; keys in a cache are never changed.
+     */
+    static final class Key {
+        private int columns = -1;
+        private int rows = -1;
+        private int cursorColumn;
+        private int cursorRow;
+        private char[] chars = new char[0];
+        private short[] attributes = new short[0];
+        private int hash;
+
+        /**
+         * Changes this key to be the key for a terminal's current screen.
+         * @param screen The terminal.
+         */
+        void set(VDUBuffer screen) {
+            columns = screen.getColumns();
+            rows = screen.getRows();
+            if (chars.length != columns * rows) {
+                chars = new char[columns * rows];
+                attributes = new short[columns * rows];
+            }
+            /* This is what a renderer draws: the window, and the cursor if
+               it's in the window. */
+            int h = columns * 31 + rows;
+            for (int l = 0; l < rows; l++) {
+                char[] c = screen.getCharRow(screen.windowBase + l);
+                short[] a = screen.getAttributeRow(screen.windowBase + l);
+                System.arraycopy(c, 0, chars, l * columns, columns);
+                System.arraycopy(a, 0, attributes, l * columns, columns);
+                for (int i = 0; i < columns; i++)
+                    h = (h * 31 + c[i]) * 31 + a[i];
+            }
+            cursorColumn = screen.getCursorColumn();
+            cursorRow = screen.screenBase + screen.getCursorRow() -
+                    screen.windowBase;
+            hash = (h * 31 + cursorColumn) * 31 + cursorRow;
+        }
+
+        /**
+         * Checks whether this key is the key for a terminal's current
+         * screen, without changing it.
+         * @param screen The terminal.
+         * @return True if the terminal's screen looks like this key's.
+         */
+        boolean matches(VDUBuffer screen) {
+            if (screen.getColumns() != columns || screen.getRows() != rows ||
+                    screen.getCursorColumn() != cursorColumn ||
+                    screen.screenBase + screen.getCursorRow() -
+                    screen.windowBase != cursorRow)
+                return false;
+            for (int l = 0; l < rows; l++) {
+                char[] c = screen.getCharRow(screen.windowBase + l);
+                short[] a = screen.getAttributeRow(screen.windowBase + l);
+                if (!Arrays.equals(c, 0, columns,
+                        chars, l * columns, (l + 1) * columns) ||
+                        !Arrays.equals(a, 0, columns,
+                        attributes, l * columns, (l + 1) * columns))
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Checks whether a line of this key's screen is the same as a line
+         * of a terminal's current screen.
+         * @param line The line of this key's screen.
+         * @param screen The terminal.
+         * @param screenLine The line of the terminal's screen.
+         * @return True if the lines have the same characters and attributes
+         * (false if the screens are different widths).
+         */
+        boolean lineMatches(int line, VDUBuffer screen, int screenLine) {
+            if (screen.getColumns() != columns || line < 0 || line >= rows)
+                return false;
+            char[] c = screen.getCharRow(screen.windowBase + screenLine);
+            short[] a = screen.getAttributeRow(screen.windowBase + screenLine);
+            return Arrays.equals(c, 0, columns,
+                    chars, line * columns, (line + 1) * columns) &&
+                    Arrays.equals(a, 0, columns,
+                    attributes, line * columns, (line + 1) * columns);
+        }
+
+        /**
+         * Makes a copy of this key, which won't change when this one does.
+         */
+        Key copy() {
+            Key k = new Key();
+            k.columns = columns;
+            k.rows = rows;
+            k.cursorColumn = cursorColumn;
+            k.cursorRow = cursorRow;
+            k.chars = chars.clone();
+            k.attributes = attributes.clone();
+            k.hash = hash;
+            return k;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return hash == k.hash && columns == k.columns && rows == k.rows &&
+                    cursorColumn == k.cursorColumn &&
+                    cursorRow == k.cursorRow &&
+                    Arrays.equals(chars, k.chars) &&
+                    Arrays.equals(attributes, k.attributes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The list of frames in a ttyrec. Frames are appended to the end or
+ * replaced, and only ever removed from the start (when a program reading
+ * the ttyrec once through releases the frames it's finished with), so the
+ * list is stored as a directory of fixed-size chunks that never move once
+ * allocated; a chunk is dropped once every frame in it has been released,
+ * but the indexes of later frames don't change. Reading never locks:
+ * the number of frames is published through a volatile field after the
+ * frame itself has been stored, and replacements are single atomic stores.
+ * Writers (the analyzers) lock only against each other.
+ * <p>
+ * Alongside the frames, the table keeps a column of their timestamps (in
+ * microseconds relative to the start of the ttyrec) as primitive arrays, so
+ * that looking up frames by time only touches a few contiguous arrays,
+ * rather than every frame object along the way.
+ * <p>
+ * Threads that need a particular frame to appear or change can wait for
+ * that frame specifically, rather than being woken every time any frame is
+ * added.
+ * @author ais523
+ */
+final class FrameTable implements Iterable<TtyrecFrame> {
+
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile AtomicReferenceArray<TtyrecFrame>[] chunks;
+    private volatile long[][] timeChunks;
+    private volatile int count = 0;
+    private volatile int first = 0; // frames before this were released
+
+    private final Object writeLock = new Object();
+    private final List<Waiter> waiters = new ArrayList<>();
+
+    private static final class Waiter {
+        private final int index;
+        private final Thread thread;
+        Waiter(int index, Thread thread) {
+            this.index = index;
+            this.thread = thread;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    FrameTable() {
+        chunks = new AtomicReferenceArray[16];
+        timeChunks = new long[16][];
+    }
+
+    /**
+     * Converts a time relative to the start of the ttyrec to the units used
+     * for the timestamp column.
+     * @param time The time in seconds.
+     * @return The time in microseconds.
+     */
+    static long toMicros(double time) {
+        return Math.round(time * 1000000.0);
+    }
+
+    /**
+     * Returns the number of frames in the table.
+     * @return The number of frames.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns the index of the first frame that hasn't been released.
+     * @return The index, which is the number of frames if every frame has
+     * been released.
+     */
+    int first() {
+        return first;
+    }
+
+    /**
+     * Returns the frame at the given index.
+     * @param i The index of the frame.
+     * @return The frame.
+     * @throws IndexOutOfBoundsException If there's no such frame (yet), or
+     * it's been released.
+     */
+    TtyrecFrame get(int i) {
+        checkIndex(i);
+        return chunks[i >>> CHUNK_BITS].get(i & CHUNK_MASK);
+    }
+
+    private void checkIndex(int i) {
+        if (i < first || i >= count)
+            throw new IndexOutOfBoundsException("Index: " + i +
+                    ", Retained: " + first + " to " + count);
+    }
+
+    /**
+     * Returns the timestamp of the frame at the given index, without needing
+     * to look at the frame itself.
+     * @param i The index of the frame.
+     * @return The frame's time relative to the start of the ttyrec, in
+     * microseconds.
+     * @throws IndexOutOfBoundsException If there's no such frame (yet), or
+     * it's been released.
+     */
+    long getTime(int i) {
+        checkIndex(i);
+        return timeChunks[i >>> CHUNK_BITS][i & CHUNK_MASK];
+    }
+
+    /**
+     * Replaces the frame at the given index, or appends a frame if the index
+     * is the number of frames in the table. Any threads waiting for that
+     * frame are woken. Replacing a frame that's been released does nothing,
+     * as nothing can look at it any more.
+     * @param frame The frame to store.
+     * @param i The index to store it at.
+     * @return The frame that's no longer in the table as a result: the
+     * frame replaced, or the frame given if its index has been released;
+     * null if the frame was appended.
+     * @throws IndexOutOfBoundsException If the index is beyond the end of
+     * the table.
+     */
+    TtyrecFrame set(TtyrecFrame frame, int i) {
+        synchronized (writeLock) {
+            int n = count;
+            if (i < 0 || i > n)
+                throw new IndexOutOfBoundsException(
+                        "Index: " + i + ", Size: " + n);
+            if (i < first) return frame;
+            int c = i >>> CHUNK_BITS;
+            AtomicReferenceArray<TtyrecFrame>[] dir = chunks;
+            long[][] timeDir = timeChunks;
+            if (c >= dir.length) {
+                dir = Arrays.copyOf(dir, dir.length * 2);
+                timeDir = Arrays.copyOf(timeDir, timeDir.length * 2);
+                chunks = dir;
+                timeChunks = timeDir;
+            }
+            if (dir[c] == null) {
+                dir[c] = new AtomicReferenceArray<>(CHUNK_SIZE);
+                timeDir[c] = new long[CHUNK_SIZE];
+            }
+            // A replaced frame normally has the same timestamp; if it
+            // doesn't, readers might briefly see the old one, which is
+            // harmless for a lookup.
+            timeDir[c][i & CHUNK_MASK] = toMicros(frame.getRelativeTimestamp());
+            TtyrecFrame replaced = dir[c].getAndSet(i & CHUNK_MASK, frame);
+            if (i == n) count = n + 1;
+            wake(i);
+            return replaced;
+        }
+    }
+
+    /**
+     * Releases the frames before a given index, so that the table no longer
+     * refers to them; chunks whose frames have all been released are
+     * dropped. The released frames can't be looked at any more, via the
+     * table or its timestamps, so this must only be done once nothing will
+     * need them again.
+     * @param index The index of the first frame to keep. This is limited to
+     * the number of frames in the table.
+     * @return The frames released.
+     */
+    List<TtyrecFrame> discardBefore(int index) {
+        synchronized (writeLock) {
+            int from = first;
+            int to = Math.min(index, count);
+            if (to <= from) return new ArrayList<>();
+            // published first, so that readers fail cleanly rather than
+            // finding a dropped chunk
+            first = to;
+            AtomicReferenceArray<TtyrecFrame>[] dir = chunks;
+            long[][] timeDir = timeChunks;
+            List<TtyrecFrame> released = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++)
+                released.add(dir[i >>> CHUNK_BITS].getAndSet(
+                        i & CHUNK_MASK, null));
+            for (int c = from >>> CHUNK_BITS; c < to >>> CHUNK_BITS; c++) {
+                dir[c] = null;
+                timeDir[c] = null;
+            }
+            return released;
+        }
+    }
+
+    /**
+     * Wakes threads waiting for a given frame. Must be called with the
+     * write lock held.
+     */
+    private void wake(int i) {
+        for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+            Waiter w = it.next();
+            if (w.index == i) {
+                it.remove();
+                LockSupport.unpark(w.thread);
+            }
+        }
+    }
+
+    /**
+     * Wakes every thread waiting for any frame, so that it can check whether
+     * something other than the frames has changed.
+     */
+    void wakeAll() {
+        synchronized (writeLock) {
+            for (Waiter w : waiters)
+                LockSupport.unpark(w.thread);
+            waiters.clear();
+        }
+    }
+
+    /**
+     * Finds the first frame whose timestamp is after a given time (or at or
+     * after it, if inclusive is false). The timestamps are assumed to be in
+     * order. The search first picks a chunk by looking at the first
+     * timestamp of each, then searches within that chunk's array. Only
+     * frames that haven't been released are searched.
+     * @param micros The time to search for, in microseconds.
+     * @param inclusive Whether frames exactly at the time count as before it.
+     * @return The index of the first frame after the time (the first frame
+     * kept, if they're all after it), or the number of frames if there's no
+     * such frame.
+     */
+    private int search(long micros, boolean inclusive) {
+        int n = count;
+        int f = first;
+        if (n <= f) return n;
+        long[][] timeDir = timeChunks;
+        int lo = f >>> CHUNK_BITS, hi = (n - 1) >>> CHUNK_BITS;
+        // Find the last chunk whose first frame is before the time.
+        if (isAfter(timeDir[lo][f & CHUNK_MASK], micros, inclusive)) return f;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (isAfter(timeDir[mid][0], micros, inclusive)) hi = mid - 1;
+            else lo = mid;
+        }
+        long[] times = timeDir[lo];
+        int base = lo << CHUNK_BITS;
+        // the frame known not to be after the time is the first one kept,
+        // or the first of a later chunk
+        int a = (lo == f >>> CHUNK_BITS ? f - base : 0) + 1;
+        int b = Math.min(CHUNK_SIZE, n - base);
+        while (a < b) {
+            int mid = (a + b) >>> 1;
+            if (isAfter(times[mid], micros, inclusive)) b = mid;
+            else a = mid + 1;
+        }
+        return base + a;
+    }
+
+    private static boolean isAfter(long time, long micros, boolean inclusive) {
+        return inclusive ? time > micros : time >= micros;
+    }
+
+    /**
+     * Finds the last frame at or before a given time.
+     * @param micros The time, in microseconds.
+     * @return The index of the frame, or the index before the first frame
+     * kept (-1 if none were released) if every frame is after the time.
+     */
+    int indexAtOrBefore(long micros) {
+        return search(micros, true) - 1;
+    }
+
+    /**
+     * Finds the first frame at or after a given time.
+     * @param micros The time, in microseconds.
+     * @return The index of the frame, or the number of frames if every frame
+     * is before the time.
+     */
+    int indexAtOrAfter(long micros) {
+        return search(micros, false);
+    }
+
+    private TtyrecFrame peek(int i) {
+        return i < count && i >= first ? get(i) : null;
+    }
+
+    /**
+     * Waits until the frame at a given index is no longer a given frame:
+     * that is, until it's added (if seen is null) or replaced. This may
+     * return early if wakeAll is called, so callers should check again
+     * whatever they were waiting for.
+     * @param i The index of the frame to wait for.
+     * @param seen The frame the caller last saw at that index, or null if
+     * there was no frame there.
+     * @throws InterruptedException If the waiting thread was interrupted.
+     */
+    void awaitChange(int i, TtyrecFrame seen) throws InterruptedException {
+        Waiter w = new Waiter(i, Thread.currentThread());
+        synchronized (writeLock) {
+            if (peek(i) != seen) return;
+            waiters.add(w);
+        }
+        try {
+            for (;;) {
+                synchronized (writeLock) {
+                    if (!waiters.contains(w) || peek(i) != seen) return;
+                }
+                LockSupport.park(this);
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+        } finally {
+            synchronized (writeLock) {
+                waiters.remove(w);
+            }
+        }
+    }
+
+    /**
+     * Returns an iterator over the frames that exist when it's created (and
+     * haven't been released).
+     * @return The iterator.
+     */
+    @Override
+    public Iterator<TtyrecFrame> iterator() {
+        return iterator(first, count);
+    }
+
+    /**
+     * Returns an iterator over a range of frames.
+     * @param from The index of the first frame to return.
+     * @param to The index after the last frame to return.
+     * @return The iterator.
+     */
+    Iterator<TtyrecFrame> iterator(final int from, final int to) {
+        final int n = Math.min(to, count);
+        return new Iterator<>() {
+            private int i = from;
+            @Override
+            public boolean hasNext() {
+                return i < n;
+            }
+            @Override
+            public TtyrecFrame next() {
+                if (i >= n) throw new NoSuchElementException();
+                return get(i++);
+            }
+        };
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+/**
+ * A conversion routine that's given a sequence of frame times in a ttyrec,
+ * and converts them to frame times for use with a video.
+ * 
+ * Such classes can be stateful; they are given frames one at a time, and
+ * can remember information from one frame to the next.
+ * 
+ * @author ais523
+ */
+public interface FrameTimeConvertor {
+    /**
+     * Requests a sensible frame rate for use with this convertor.
+     * @return A frame rate, as a fraction of a second. Cannot sensibly
+     * return a zero or negative value.
+     */
+    public double getFrameRate();
+    /**
+     * Tells the convertor to forget any information accumulated so far;
+     * the next frame read will be considered to be the first in the ttyrec.
+     */
+    public void resetConvertor();
+    /**
+     * Calculates an appropriate time for the next frame.
+     * @param frameTime The time of the next frame in the ttyrec, in seconds.
+     * @return The time of the next frame in the video, in units of
+     * 1/getFrameRate() seconds.
+     * @see #getFrameRate() 
+     */
+    public int convertFrameTime(double frameTime);
+
+    /**
+     * Creates a convertor that plays the ttyrec back in real time, at 30
+     * frames per second.
+     * @return A new convertor.
+     */
+    public static FrameTimeConvertor linear() {
+        return new FrameTimeConvertor() {
+
+            public double getFrameRate() {
+                return 30.0;
+            }
+
+            public void resetConvertor() {
+            }
+
+            public int convertFrameTime(double frameTime) {
+                return (int) (frameTime * 30);
+            }
+        };
+    }
+
+    /**
+     * Creates a convertor that plays the ttyrec back in real time, at 30
+     * frames per second, except that pauses longer than a second are
+     * shortened logarithmically.
+     * @return A new convertor.
+     */
+    public static FrameTimeConvertor logarithmic() {
+        return new FrameTimeConvertor() {
+
+            private double lastFrameTime = 0;
+            private double adjustedLastFrameTime = 0;
+
+            public double getFrameRate() {
+                return 30.0;
+            }
+
+            public void resetConvertor() {
+                lastFrameTime = 0;
+                adjustedLastFrameTime = 0;
+            }
+
+            public int convertFrameTime(double frameTime) {
+                if (frameTime - lastFrameTime > 1) {
+                    adjustedLastFrameTime +=
+                            1 + Math.log(frameTime - lastFrameTime);
+                } else {
+                    adjustedLastFrameTime += frameTime - lastFrameTime;
+                }
+                lastFrameTime = frameTime;
+                return (int) (adjustedLastFrameTime * 30);
+            }
+        };
+    }
+
+    /**
+     * Creates a convertor that ignores the ttyrec's timing, and shows each
+     * frame of the ttyrec for one frame of the video.
+     * @param frameRate The frame rate of the video.
+     * @return A new convertor.
+     */
+    public static FrameTimeConvertor fixedSpeed(final double frameRate) {
+        return new FrameTimeConvertor() {
+
+            int frameNumber = 0;
+
+            public double getFrameRate() {
+                return frameRate;
+            }
+
+            public void resetConvertor() {
+                frameNumber = 0;
+            }
+
+            public int convertFrameTime(double frameTime) {
+                return frameNumber++;
+            }
+        };
+    }
+}
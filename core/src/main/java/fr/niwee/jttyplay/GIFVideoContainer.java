@@ -0,0 +1,223 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A container that encodes videos as animated GIFs. Each frame is the
+ * rectangle that changed since the previous frame, LZW-compressed, with
+ * its own delay; the palette is the codec's, which has to be a
+ * PaletteVideoCodec. The animation loops forever.
+ * @author ais523
+ */
+public class GIFVideoContainer extends AnimatedImageContainer {
+
+    /* The largest code that LZW can use in a GIF. */
+    private static final int MAX_CODE = 4095;
+    /* The size of the table of strings seen; a prime a bit larger than
+       MAX_CODE, so that it doesn't fill up. */
+    private static final int TABLE_SIZE = 5003;
+
+    private ByteArrayOutputStream output = null;
+    private byte[] encode = null;
+    private int minCodeSize;
+    private int transparent;
+
+    /* The state of the LZW compressor. */
+    private final int[] tableKeys = new int[TABLE_SIZE];
+    private final short[] tableCodes = new short[TABLE_SIZE];
+    private final byte[] block = new byte[256];
+    private int blockLength;
+    private int bitBuffer;
+    private int bitCount;
+
+    /**
+     * Encodes a ttyrec into an animated GIF. The timer isn't used: each
+     * frame is shown for as long as it was in the ttyrec.
+     * @throws IllegalArgumentException if the codec isn't a
+     * PaletteVideoCodec.
+     */
+    @Override
+    public void encodeVideo(VideoCodec codec,
+            Iterator<? extends DecodedFrame> frames,
+            FrameTimeConvertor timer) throws CancellationException {
+        encode = null;
+        output = new ByteArrayOutputStream();
+        try {
+            encodeAnimation(codec, frames);
+            if (output.size() == 0) {
+                /* No frames; a GIF still needs a size and a palette. */
+                startFrames(1, 1, new IndexColorModel(1, 1,
+                        new byte[1], new byte[1], new byte[1]), 1);
+            }
+            output.write(0x3B); // trailer
+            encode = output.toByteArray();
+        } finally {
+            output = null;
+        }
+    }
+
+    @Override
+    protected void startFrames(int width, int height,
+            IndexColorModel palette, int transparentIndex) {
+        /* The color table's size is a power of 2, 2 << bits entries. */
+        int bits = 0;
+        while ((2 << bits) < transparentIndex + 1) bits++;
+        minCodeSize = Math.max(bits + 1, 2);
+
+        output.write("GIF89a".getBytes(StandardCharsets.US_ASCII), 0, 6);
+        writeShort(width);
+        writeShort(height);
+        output.write(0x80 | (bits << 4) | bits); // global color table
+        output.write(0); // background color
+        output.write(0); // pixel aspect ratio
+        for (int i = 0; i < 2 << bits; i++) {
+            if (i < palette.getMapSize()) {
+                output.write(palette.getRed(i));
+                output.write(palette.getGreen(i));
+                output.write(palette.getBlue(i));
+            } else {
+                output.write(0);
+                output.write(0);
+                output.write(0);
+            }
+        }
+
+        /* The NETSCAPE2.0 extension makes the animation loop forever. */
+        output.write(0x21);
+        output.write(0xFF);
+        output.write(11);
+        output.write("NETSCAPE2.0".getBytes(StandardCharsets.US_ASCII),
+                0, 11);
+        output.write(3);
+        output.write(1);
+        writeShort(0);
+        output.write(0);
+
+        transparent = transparentIndex;
+    }
+
+    @Override
+    protected void writeFrame(byte[] pixels, int x, int y,
+            int width, int height, int delay) {
+        /* Graphic control extension: the delay, in centiseconds, and the
+           transparent color. Each frame is left in place for the next to
+           be drawn on top of. */
+        output.write(0x21);
+        output.write(0xF9);
+        output.write(4);
+        output.write((1 << 2) | 1);
+        writeShort(Math.min(delay / 10, 65535));
+        output.write(transparent);
+        output.write(0);
+
+        /* Image descriptor, with no local color table. */
+        output.write(0x2C);
+        writeShort(x);
+        writeShort(y);
+        writeShort(width);
+        writeShort(height);
+        output.write(0);
+
+        output.write(minCodeSize);
+        compress(pixels, width * height);
+        output.write(0); // end of the image data
+    }
+
+    /**
+     * LZW-compresses pixels into the output, as a series of sub-blocks.
+     * @param pixels The pixels to compress.
+     * @param length The number of pixels.
+     */
+    private void compress(byte[] pixels, int length) {
+        int clearCode = 1 << minCodeSize;
+        int nextCode = clearCode + 2;
+        int codeSize = minCodeSize + 1;
+        Arrays.fill(tableKeys, -1);
+        blockLength = 0;
+        bitBuffer = 0;
+        bitCount = 0;
+        writeCode(clearCode, codeSize);
+
+        int prefix = pixels[0] & 0xFF;
+        for (int i = 1; i < length; i++) {
+            int pixel = pixels[i] & 0xFF;
+            int key = (prefix << 8) | pixel;
+            int slot = key % TABLE_SIZE;
+            while (tableKeys[slot] != -1 && tableKeys[slot] != key)
+                if (--slot < 0) slot = TABLE_SIZE - 1;
+            if (tableKeys[slot] == key) {
+                prefix = tableCodes[slot];
+                continue;
+            }
+            writeCode(prefix, codeSize);
+            /* The decoder adds a code one step behind us, so the code size
+               goes up once the last code that fits has been added. */
+            if (nextCode == 1 << codeSize && codeSize < 12) codeSize++;
+            if (nextCode <= MAX_CODE) {
+                tableKeys[slot] = key;
+                tableCodes[slot] = (short) nextCode++;
+            } else {
+                writeCode(clearCode, codeSize);
+                Arrays.fill(tableKeys, -1);
+                nextCode = clearCode + 2;
+                codeSize = minCodeSize + 1;
+            }
+            prefix = pixel;
+        }
+        writeCode(prefix, codeSize);
+        if (nextCode == 1 << codeSize && codeSize < 12) codeSize++;
+        writeCode(clearCode + 1, codeSize); // end of information
+        if (bitCount > 0) writeByte(bitBuffer);
+        if (blockLength > 0) {
+            output.write(blockLength);
+            output.write(block, 0, blockLength);
+        }
+    }
+
+    private void writeCode(int code, int size) {
+        bitBuffer |= code << bitCount;
+        bitCount += size;
+        while (bitCount >= 8) {
+            writeByte(bitBuffer);
+            bitBuffer >>>= 8;
+            bitCount -= 8;
+        }
+    }
+
+    private void writeByte(int b) {
+        block[blockLength++] = (byte) b;
+        if (blockLength == 255) {
+            output.write(255);
+            output.write(block, 0, 255);
+            blockLength = 0;
+        }
+    }
+
+    private void writeShort(int s) {
+        output.write(s & 0xFF);
+        output.write((s >> 8) & 0xFF);
+    }
+
+    @Override
+    public void outputEncode(OutputStream os) throws IOException {
+        if (encode == null)
+            throw new IllegalStateException("No encode to write.");
+        os.write(encode);
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "gif";
+    }
+}
@@ -19,7 +19,7 @@ import java.util.Date;
  */
 class InputStreamTtyrecSource extends TtyrecSource {
     private final InputStreamable iStream;
-    private boolean lengthKnown;
+    private volatile boolean lengthKnown;
 
     public InputStreamTtyrecSource(InputStreamable iStream) {
         this.iStream = iStream;
@@ -39,6 +39,8 @@ class InputStreamTtyrecSource extends TtyrecSource {
                 int l = i.available();
                 if (l == 0) l = (int) (iStream.getLength() - bytesRead);
                 if (l < 0) l = 10000; // a sensible chunk size
+                l = reserveInput(l);
+                if (getFailure() != null) break;
                 byte[] b = new byte[l];
                 int obr = bytesRead;
                 try {
@@ -46,12 +48,14 @@ class InputStreamTtyrecSource extends TtyrecSource {
                 } catch(SocketTimeoutException s) {
                     bytesRead = -1;
                 }
-                if (interrupted()) throw new InterruptedException();
+                if (Thread.interrupted()) throw new InterruptedException();
                 if (obr > bytesRead || b.length == 0) {
                     if (iStream.isEOFPermanent()) break;
+                    // Only the first time we reach EOF is news; after that,
+                    // nothing changes until more data arrives.
+                    setReadEventHappened(!reachedEOF);
                     reachedEOF = true;
                     bytesRead = obr;
-                    setReadEventHappened(true);
                     Thread.sleep(100);
                     continue;
                 }
@@ -74,13 +78,18 @@ class InputStreamTtyrecSource extends TtyrecSource {
             }
         } catch (IOException ex) {
             // TODO: Show in the GUI
-            System.out.println("Input failed: "+ex.getMessage());
+            System.err.println("Input failed: "+ex.getMessage());
         } catch (InterruptedException ex) {
-            System.out.println("Source ending via interruption...");
+            if (debug) System.err.println("Source ending via interruption...");
             return;
         }
         lengthKnown = true;
-        System.out.println("Source ending...");
+        // Wake analyzers waiting for more data; there won't be any.
+        synchronized(getBytestream()) {
+            getBytestream().notifyAll();
+        }
+        setReadEventHappened(true);
+        if (debug) System.err.println("Source ending...");
     }
 
     @Override
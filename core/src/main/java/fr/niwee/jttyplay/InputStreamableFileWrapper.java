@@ -13,14 +13,28 @@ import java.net.URI;
  */
 public class InputStreamableFileWrapper implements InputStreamable {
     private final File file;
+    private final boolean finished;
     private InputStream stream;
 
     /**
-     * Creates a new InputStreamable from a given File.
+     * Creates a new InputStreamable from a given File. The file might still
+     * be being written, so reaching its end doesn't end the input.
      * @param file The filename of the file to open.
      */
     public InputStreamableFileWrapper(File file) {
+        this(file, false);
+    }
+
+    /**
+     * Creates a new InputStreamable from a given File, which may be known to
+     * be complete.
+     * @param file The filename of the file to open.
+     * @param finished True if nothing more will be written to the file, so
+     * that its end is the end of the input.
+     */
+    public InputStreamableFileWrapper(File file, boolean finished) {
         this.file = file;
+        this.finished = finished;
     }
 
     public InputStream getInputStream() throws FileNotFoundException {
@@ -41,11 +55,11 @@ public class InputStreamableFileWrapper implements InputStreamable {
     }
 
     public boolean isEOFPermanent() {
-        return false;
+        return finished;
     }
 
     public boolean couldBeStreamable() {
-        return true;
+        return !finished;
     }
 
     public boolean mustBeStreamable() {
@@ -0,0 +1,543 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A class describing the Matroska video container format, and performing
+ * encodes into that container. Unlike AVI, each frame in a Matroska file
+ * has its own timestamp, so frames are only stored when the terminal
+ * changes, and idle periods take up no space.
+ * <p>
+ * Any codec can be used; it's stored using the "V_MS/VFW/FOURCC" codec
+ * ID, which wraps the same header that describes the codec in an AVI
+ * file, so players decode the frames the same way as they would in an
+ * AVI. Each keyframe starts a new cluster, and is listed in the cues (the
+ * index used for seeking).
+ * <p>
+ * By default, the encode is built up in memory, and written out by
+ * outputEncode. A container created with a FileChannel instead writes
+ * each frame to the channel as soon as it's encoded, then goes back to
+ * fill in the sizes and duration at the end. Until then, the file can
+ * still be played as far as it goes; so encoding from a FollowingDecoder
+ * into a file archives a recording as it's being made.
+ * @author ais523
+ */
+public class MatroskaVideoContainer extends VariableFramerateVideoContainer {
+
+    /* The IDs of the elements that are written. */
+    private static final int EBML = 0x1A45DFA3;
+    private static final int EBML_VERSION = 0x4286;
+    private static final int EBML_READ_VERSION = 0x42F7;
+    private static final int EBML_MAX_ID_LENGTH = 0x42F2;
+    private static final int EBML_MAX_SIZE_LENGTH = 0x42F3;
+    private static final int DOC_TYPE = 0x4282;
+    private static final int DOC_TYPE_VERSION = 0x4287;
+    private static final int DOC_TYPE_READ_VERSION = 0x4285;
+    private static final int SEGMENT = 0x18538067;
+    private static final int SEEK_HEAD = 0x114D9B74;
+    private static final int SEEK = 0x4DBB;
+    private static final int SEEK_ID = 0x53AB;
+    private static final int SEEK_POSITION = 0x53AC;
+    private static final int INFO = 0x1549A966;
+    private static final int TIMESTAMP_SCALE = 0x2AD7B1;
+    private static final int MUXING_APP = 0x4D80;
+    private static final int WRITING_APP = 0x5741;
+    private static final int DURATION = 0x4489;
+    private static final int TRACKS = 0x1654AE6B;
+    private static final int TRACK_ENTRY = 0xAE;
+    private static final int TRACK_NUMBER = 0xD7;
+    private static final int TRACK_UID = 0x73C5;
+    private static final int TRACK_TYPE = 0x83;
+    private static final int FLAG_LACING = 0x9C;
+    private static final int CODEC_ID = 0x86;
+    private static final int CODEC_PRIVATE = 0x63A2;
+    private static final int VIDEO = 0xE0;
+    private static final int PIXEL_WIDTH = 0xB0;
+    private static final int PIXEL_HEIGHT = 0xBA;
+    private static final int CLUSTER = 0x1F43B675;
+    private static final int TIMESTAMP = 0xE7;
+    private static final int SIMPLE_BLOCK = 0xA3;
+    private static final int CUES = 0x1C53BB6B;
+    private static final int CUE_POINT = 0xBB;
+    private static final int CUE_TIME = 0xB3;
+    private static final int CUE_TRACK_POSITIONS = 0xB7;
+    private static final int CUE_TRACK = 0xF7;
+    private static final int CUE_CLUSTER_POSITION = 0xF1;
+    private static final int VOID = 0xEC;
+
+    /* The length of an entry in the seek head. */
+    private static final int SEEK_LENGTH = 28;
+
+    /* When following a recording, the cluster being written is finished
+       when the encode catches up, once it's this many milliseconds long. */
+    private static final long FLUSH_CLUSTER_MILLIS = 5000;
+
+    /* An 8-byte element size meaning "unknown", which is what a master
+       element's size is until it's finished. That way, a file that's
+       still being written can be played as far as it goes. */
+    private static final long UNKNOWN_SIZE = 0x01FFFFFFFFFFFFFFL;
+
+    /* Where to write the encode as it's produced, or null to build it in
+       memory. */
+    private final FileChannel output;
+    /* The encode, if it's built in memory, and how much of it is used. */
+    private ByteBuffer memory;
+    private long length;
+    /* Whether the encode is complete. */
+    private boolean complete = false;
+
+    /* The state of the encode in progress. */
+    private VideoCodec codec;
+    private long position; // where the next element goes
+    private long segmentStart; // the position of the segment's contents
+    private boolean headersWritten;
+    /* Where values that are only known at the end have to be filled in. */
+    private long durationPosition;
+    private long cuesSeekPosition;
+    /* The cluster being written: where it starts (-1 if there isn't one),
+       and the timestamp that its blocks' timestamps are relative to. */
+    private long clusterStart;
+    private long clusterTime;
+    private long blockTime; // the timestamp of the last block written
+    /* The cues, held in parallel arrays. */
+    private long[] cueTimes;
+    private long[] cuePositions;
+    private int cueCount;
+    /* Frames are encoded into frameBuffer, which is reused. */
+    private ByteBuffer frameBuffer;
+    private final ByteBuffer blockHeader = ByteBuffer.allocate(32);
+
+    /**
+     * Creates a container that builds its encode in memory.
+     */
+    public MatroskaVideoContainer() {
+        this.output = null;
+    }
+
+    /**
+     * Creates a container that writes its encode to a file as it's
+     * produced. Anything already in the file is overwritten. The channel
+     * isn't closed by the container; outputEncode can still be used, and
+     * copies the file.
+     * @param output The file to write the encode to; it must be open for
+     * reading and writing.
+     */
+    public MatroskaVideoContainer(FileChannel output) {
+        this.output = output;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Frames are given the times that the timer gives them, but a frame
+     * is only stored once, however long it's shown for. The last frame is
+     * shown for one frame at the timer's framerate.
+     * @throws UncheckedIOException if the container writes to a file, and
+     * the file can't be written.
+     */
+    @Override
+    public void encodeVideo(VideoCodec codec,
+            Iterator<? extends DecodedFrame> frames,
+            FrameTimeConvertor timer) throws CancellationException {
+        this.codec = codec;
+        complete = false;
+        position = 0;
+        length = 0;
+        headersWritten = false;
+        clusterStart = -1;
+        cueTimes = new long[256];
+        cuePositions = new long[256];
+        cueCount = 0;
+        frameBuffer = ByteBuffer.allocate(65536);
+        try {
+            if (output != null) {
+                output.truncate(0);
+            } else {
+                memory = ByteBuffer.allocate(65536);
+            }
+            long lastTime = encodeFrames(codec, frames, timer);
+
+            if (!headersWritten) writeHeaders(0, 0);
+            finishCluster();
+            ByteBuffer buffer = ByteBuffer.allocate(SEEK_LENGTH);
+            putSeek(buffer, CUES, position - segmentStart);
+            writeBuffer(buffer, cuesSeekPosition);
+            writeCues();
+
+            /* Fill in the segment's size and duration. */
+            writeBuffer(buffer.putLong(0x0100000000000000L |
+                    (position - segmentStart)), segmentStart - 8);
+            double duration = lastTime == -1 ? 0 :
+                    lastTime + 1000 / timer.getFrameRate();
+            writeBuffer(buffer.putDouble(duration), durationPosition);
+            complete = true;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            frameBuffer = null;
+            cueTimes = cuePositions = null;
+        }
+        checkForCancellation();
+    }
+
+    /**
+     * Encodes a frame, and writes it to the current cluster as a
+     * SimpleBlock. A keyframe starts a new cluster (as does a frame whose
+     * timestamp is too far from the cluster's to be stored relative to
+     * it).
+     */
+    @Override
+    protected void encodeFrame(DecodedFrame frame, DecodedFrame prevFrame,
+            boolean keyframe, long time) {
+        frameBuffer.clear();
+        frameBuffer = keyframe || prevFrame == null ?
+                codec.encodeKeyframe(frame, frameBuffer) :
+                codec.encodeNonKeyframe(frame, prevFrame, frameBuffer);
+        boolean key = keyframe || prevFrame == null ||
+                codec.newFramesAreKeyframes();
+        try {
+            if (!headersWritten)
+                writeHeaders(codec.getActualWidth(), codec.getActualHeight());
+            if (clusterStart == -1 || keyframe ||
+                    time - clusterTime > Short.MAX_VALUE) {
+                finishCluster();
+                startCluster(time);
+                if (key) addCue(time, clusterStart - segmentStart);
+            }
+            int blockLength = frameBuffer.position();
+            putId(blockHeader, SIMPLE_BLOCK);
+            putSize(blockHeader, blockLength + 4);
+            blockHeader.put((byte) 0x81); // track 1
+            blockHeader.putShort((short) (time - clusterTime));
+            blockHeader.put((byte) (key ? 0x80 : 0));
+            position += writeBuffer(blockHeader, position);
+            position += writeBuffer(frameBuffer, position);
+            blockTime = time;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Finishes the cluster being written, if it's become long, and makes
+     * sure that everything written to the file so far has reached the
+     * disk. That way, a file that's still being written while following a
+     * recording can be read (even by players that can't handle clusters
+     * of unknown size) up to nearly the latest frame, and survives the
+     * encode being interrupted.
+     * @throws UncheckedIOException if the container writes to a file, and
+     * the file can't be written.
+     */
+    @Override
+    protected void flushEncode() {
+        if (clusterStart == -1 ||
+                blockTime - clusterTime < FLUSH_CLUSTER_MILLIS) return;
+        try {
+            finishCluster();
+            if (output != null) output.force(false);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Writes the EBML header, the start of the segment, and the segment's
+     * headers (the seek head, the segment info and the tracks).
+     * @param width The width of the video.
+     * @param height The height of the video.
+     */
+    private void writeHeaders(int width, int height) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int ebml = startElement(buffer, EBML);
+        putUint(buffer, EBML_VERSION, 1);
+        putUint(buffer, EBML_READ_VERSION, 1);
+        putUint(buffer, EBML_MAX_ID_LENGTH, 4);
+        putUint(buffer, EBML_MAX_SIZE_LENGTH, 8);
+        putString(buffer, DOC_TYPE, "matroska");
+        putUint(buffer, DOC_TYPE_VERSION, 2);
+        putUint(buffer, DOC_TYPE_READ_VERSION, 2);
+        endElement(buffer, ebml);
+
+        /* The segment's size is filled in at the end. */
+        putId(buffer, SEGMENT);
+        buffer.putLong(UNKNOWN_SIZE);
+        int segment = buffer.position();
+
+        /* The seek head says where the other headers are; the positions
+           are all 8 bytes long, so they can be filled in later. The cues
+           don't exist until the end, so their entry starts off as a Void
+           element of the same size, which is replaced when they're
+           written; that way, the seek head is valid while the encode is
+           still being written. */
+        int seekHead = startElement(buffer, SEEK_HEAD);
+        int[] seekPositions = new int[2];
+        seekPositions[0] = putSeek(buffer, INFO, 0);
+        seekPositions[1] = putSeek(buffer, TRACKS, 0);
+        int cuesSeek = buffer.position();
+        putId(buffer, VOID);
+        buffer.putLong(0x0100000000000000L | (SEEK_LENGTH - 9));
+        buffer.position(cuesSeek + SEEK_LENGTH);
+        endElement(buffer, seekHead);
+
+        buffer.putLong(seekPositions[0], buffer.position() - segment);
+        int info = startElement(buffer, INFO);
+        putUint(buffer, TIMESTAMP_SCALE, 1000000); // milliseconds
+        putString(buffer, MUXING_APP, "Jettyplay");
+        putString(buffer, WRITING_APP, "Jettyplay");
+        putId(buffer, DURATION);
+        putSize(buffer, 8);
+        int duration = buffer.position();
+        buffer.putDouble(0);
+        endElement(buffer, info);
+
+        buffer.putLong(seekPositions[1], buffer.position() - segment);
+        int tracks = startElement(buffer, TRACKS);
+        int trackEntry = startElement(buffer, TRACK_ENTRY);
+        putUint(buffer, TRACK_NUMBER, 1);
+        putUint(buffer, TRACK_UID, 1);
+        putUint(buffer, TRACK_TYPE, 1); // video
+        putUint(buffer, FLAG_LACING, 0);
+        putString(buffer, CODEC_ID, "V_MS/VFW/FOURCC");
+        /* The codec's private data is a BITMAPINFOHEADER, as in the "strf"
+           header of an AVI. */
+        ByteBuffer bitmapInfo = ByteBuffer.allocate(40).
+                order(ByteOrder.LITTLE_ENDIAN);
+        bitmapInfo.putInt(40); /* biSize */
+        bitmapInfo.putInt(width); /* biWidth */
+        bitmapInfo.putInt(height *
+                (codec.getVerticalFlip() ? -1 : 1)); /* biHeight */
+        bitmapInfo.putShort((short)1); /* biPlanes */
+        bitmapInfo.putShort((short)codec.getColorDepth()); /* biBitCount */
+        bitmapInfo.put(codec.getFourCC().getBytes(
+                StandardCharsets.ISO_8859_1)); /* biCompression */
+        bitmapInfo.putInt(width * height *
+                codec.getColorDepth() / 8); /* biSizeImage */
+        putBinary(buffer, CODEC_PRIVATE, bitmapInfo.array(), 0, 40);
+        int video = startElement(buffer, VIDEO);
+        putUint(buffer, PIXEL_WIDTH, width);
+        putUint(buffer, PIXEL_HEIGHT, height);
+        endElement(buffer, video);
+        endElement(buffer, trackEntry);
+        endElement(buffer, tracks);
+
+        segmentStart = position + segment;
+        durationPosition = position + duration;
+        cuesSeekPosition = position + cuesSeek;
+        position += writeBuffer(buffer, position);
+        headersWritten = true;
+    }
+
+    /**
+     * Writes an entry of the seek head.
+     * @param id The ID of the element the entry is for.
+     * @param position The position of the element, relative to the
+     * segment.
+     * @return The position of the element's position in the buffer.
+     */
+    private static int putSeek(ByteBuffer buffer, int id, long position) {
+        int seek = startElement(buffer, SEEK);
+        ByteBuffer idBytes = ByteBuffer.allocate(4).putInt(id);
+        putBinary(buffer, SEEK_ID, idBytes.array(), 0, 4);
+        putId(buffer, SEEK_POSITION);
+        putSize(buffer, 8);
+        int positionAt = buffer.position();
+        buffer.putLong(position);
+        endElement(buffer, seek);
+        return positionAt;
+    }
+
+    /**
+     * Starts a cluster, whose size is filled in when it's finished.
+     * @param time The cluster's timestamp.
+     */
+    private void startCluster(long time) throws IOException {
+        putId(blockHeader, CLUSTER);
+        blockHeader.putLong(UNKNOWN_SIZE);
+        putUint(blockHeader, TIMESTAMP, time);
+        clusterStart = position;
+        clusterTime = time;
+        position += writeBuffer(blockHeader, position);
+    }
+
+    /**
+     * Fills in the size of the cluster being written, if there is one.
+     */
+    private void finishCluster() throws IOException {
+        if (clusterStart == -1) return;
+        blockHeader.putLong(0x0100000000000000L |
+                (position - clusterStart - 12));
+        writeBuffer(blockHeader, clusterStart + 4);
+        clusterStart = -1;
+    }
+
+    /**
+     * Records that a keyframe can be found in a cluster.
+     * @param time The keyframe's timestamp.
+     * @param clusterPosition The position of the cluster, relative to the
+     * start of the segment's contents.
+     */
+    private void addCue(long time, long clusterPosition) {
+        if (cueCount == cueTimes.length) {
+            cueTimes = Arrays.copyOf(cueTimes, cueCount * 2);
+            cuePositions = Arrays.copyOf(cuePositions, cueCount * 2);
+        }
+        cueTimes[cueCount] = time;
+        cuePositions[cueCount] = clusterPosition;
+        cueCount++;
+    }
+
+    /**
+     * Writes the cues, which say where the keyframes are.
+     */
+    private void writeCues() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16 + cueCount * 40);
+        int cues = startElement(buffer, CUES);
+        for (int i = 0; i < cueCount; i++) {
+            int cuePoint = startElement(buffer, CUE_POINT);
+            putUint(buffer, CUE_TIME, cueTimes[i]);
+            int cueTrackPositions = startElement(buffer, CUE_TRACK_POSITIONS);
+            putUint(buffer, CUE_TRACK, 1);
+            putUint(buffer, CUE_CLUSTER_POSITION, cuePositions[i]);
+            endElement(buffer, cueTrackPositions);
+            endElement(buffer, cuePoint);
+        }
+        endElement(buffer, cues);
+        position += writeBuffer(buffer, position);
+    }
+
+    /**
+     * Writes the start of a master element, with its size left to be
+     * filled in by endElement.
+     * @return The position of the element's size in the buffer.
+     */
+    private static int startElement(ByteBuffer buffer, int id) {
+        putId(buffer, id);
+        int size = buffer.position();
+        buffer.putLong(UNKNOWN_SIZE);
+        return size;
+    }
+
+    /**
+     * Fills in the size of a master element, once its contents have been
+     * written.
+     * @param size The position of the element's size in the buffer.
+     */
+    private static void endElement(ByteBuffer buffer, int size) {
+        buffer.putLong(size, 0x0100000000000000L |
+                (buffer.position() - size - 8));
+    }
+
+    private static void putId(ByteBuffer buffer, int id) {
+        for (int shift = id >>> 24 != 0 ? 24 : id >>> 16 != 0 ? 16 :
+                id >>> 8 != 0 ? 8 : 0; shift >= 0; shift -= 8)
+            buffer.put((byte) (id >>> shift));
+    }
+
+    /**
+     * Writes an element size, in as few bytes as possible.
+     */
+    private static void putSize(ByteBuffer buffer, long size) {
+        int bytes = 1;
+        /* all ones means "unknown", so a size can't be 2^(7n) - 1 */
+        while (bytes < 8 && size >= (1L << (7 * bytes)) - 1) bytes++;
+        for (int i = bytes - 1; i >= 0; i--) {
+            long b = size >>> (8 * i);
+            if (i == bytes - 1) b |= 0x100 >>> bytes;
+            buffer.put((byte) b);
+        }
+    }
+
+    private static void putUint(ByteBuffer buffer, int id, long value) {
+        int bytes = 1;
+        while (bytes < 8 && value >>> (8 * bytes) != 0) bytes++;
+        putId(buffer, id);
+        putSize(buffer, bytes);
+        for (int i = bytes - 1; i >= 0; i--)
+            buffer.put((byte) (value >>> (8 * i)));
+    }
+
+    private static void putString(ByteBuffer buffer, int id, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putBinary(buffer, id, bytes, 0, bytes.length);
+    }
+
+    private static void putBinary(ByteBuffer buffer, int id, byte[] value,
+            int offset, int length) {
+        putId(buffer, id);
+        putSize(buffer, length);
+        buffer.put(value, offset, length);
+    }
+
+    /**
+     * Writes what's been put into a buffer to the encode, and empties the
+     * buffer ready for reuse.
+     * @param buffer The buffer.
+     * @param position The position in the encode to write at.
+     * @return The number of bytes written.
+     */
+    private int writeBuffer(ByteBuffer buffer, long position)
+            throws IOException {
+        buffer.flip();
+        int written = buffer.remaining();
+        if (output != null) {
+            int n = 0;
+            while (buffer.hasRemaining())
+                n += output.write(buffer, position + n);
+        } else {
+            long end = position + written;
+            if (end > memory.capacity()) {
+                if (end > Integer.MAX_VALUE)
+                    throw new IOException(
+                            "Video is too large to encode in memory");
+                ByteBuffer larger = ByteBuffer.allocate((int) Math.min(
+                        Math.max(end, memory.capacity() * 3L / 2),
+                        Integer.MAX_VALUE));
+                larger.put(memory.array(), 0, (int) length);
+                memory = larger;
+            }
+            memory.position((int) position);
+            memory.put(buffer);
+            length = Math.max(length, end);
+        }
+        buffer.clear();
+        return written;
+    }
+
+    @Override
+    public void outputEncode(OutputStream os) throws IOException {
+        if (!complete)
+            throw new IllegalStateException("No encode to write.");
+        if (output != null) {
+            long size = output.size();
+            long transferred = 0;
+            while (transferred < size)
+                transferred += output.transferTo(transferred,
+                        size - transferred, Channels.newChannel(os));
+            return;
+        }
+        os.write(memory.array(), 0, (int) length);
+    }
+
+    /**
+     * Requests the appropriate file extension for this container.
+     * @return Always returns "mkv".
+     */
+    @Override
+    public String getFileExtension() {
+        return "mkv";
+    }
+}
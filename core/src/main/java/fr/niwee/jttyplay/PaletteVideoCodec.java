@@ -0,0 +1,219 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A codec for uncompressed encoding of video as one byte per pixel, each
+ * an index into a fixed palette of the colors the terminal is drawn with.
+ * This is the form that animated image formats (GIF, APNG) compress;
+ * there's no AVI format for it that doesn't also need the palette, so it's
+ * only useful with containers that write the palette themselves.
+ * <p>
+ * Frames are rendered in 24-bit color and then looked up in the palette,
+ * rather than being drawn onto an indexed image, as Java2D only draws
+ * approximations of the palette's colors onto those. With antialiased
+ * text, colors that aren't in the palette are replaced with the nearest
+ * color that is.
+ *
+ * @author ais523
+ */
+public class PaletteVideoCodec extends AbstractVideoCodec {
+
+    /* The most colors the palette has, leaving one index of a byte free
+       for containers to use as a transparent color. */
+    private static final int MAX_COLORS = 255;
+
+    /* The size of the table of colors looked up; it's emptied if it gets
+       half full. */
+    private static final int LOOKUP_SIZE = 4096;
+
+    private IndexColorModel palette = null;
+    private int[] paletteRGB;
+    /* Colors that have been looked up in the palette, as 0xRRGGBB, and the
+       indexes they were given; -1 for unused entries. */
+    private final int[] lookupColors = new int[LOOKUP_SIZE];
+    private final byte[] lookupIndexes = new byte[LOOKUP_SIZE];
+    private int lookupCount = 0;
+
+    /**
+     * Creates a new palette video codec to encode videos with the specified
+     * parameters.
+     * @param height The maximum height of the resulting encode.
+     * @param font The font to encode with.
+     * @param antialiasing The antialiasing scheme to use on the encode
+     * (a RenderingHints.VALUE_TEXT_ANTIALIAS_* value).
+     * @param allowBold Whether to use bold fonts in addition to color.
+     * @see RenderingHints#VALUE_TEXT_ANTIALIAS_OFF
+     * @see RenderingHints#VALUE_TEXT_ANTIALIAS_ON
+     */
+    public PaletteVideoCodec(int height, Font font, Object antialiasing,
+                             boolean allowBold) {
+        super(height, font, antialiasing, allowBold);
+        Arrays.fill(lookupColors, -1);
+    }
+
+    /**
+     * Returns the palette that the encoded pixels index into. It has at
+     * most 255 colors, so an index is always free for transparency.
+     * @return The palette.
+     * @throws IllegalStateException if no frames have been encoded yet.
+     */
+    public IndexColorModel getPalette() {
+        if (palette == null) {
+            throw new IllegalStateException("No frames have been encoded yet");
+        }
+        return palette;
+    }
+
+    @Override
+    public String getFourCC() {
+        return "\0\0\0\0";
+    }
+
+    @Override
+    public int getBlockSize() {
+        return 65536;
+    }
+
+    @Override
+    public int getColorDepth() {
+        return 8;
+    }
+
+    @Override
+    public boolean getVerticalFlip() {
+        return false;
+    }
+
+    @Override
+    public int getActualMaxFrameSize() {
+        return getActualWidth() * getActualHeight();
+    }
+
+    @Override
+    public boolean newFramesAreKeyframes() {
+        return true;
+    }
+
+    @Override
+    public boolean repeatedFramesAreKeyframes() {
+        return true;
+    }
+
+    @Override
+    protected int getRenderingDepth() {
+        return 24;
+    }
+
+    @Override
+    protected int[] getPixelOrder() {
+        int[] pixelOrder = {2, 1, 0}; /* BGR, as it's converted anyway */
+        return pixelOrder;
+    }
+
+    @Override
+    protected ColorModel getColorModel() {
+        if (palette == null) {
+            Color[] colors = getRenderer().getPalette(MAX_COLORS);
+            byte[] r = new byte[colors.length];
+            byte[] g = new byte[colors.length];
+            byte[] b = new byte[colors.length];
+            paletteRGB = new int[colors.length];
+            for (int i = 0; i < colors.length; i++) {
+                r[i] = (byte) colors[i].getRed();
+                g[i] = (byte) colors[i].getGreen();
+                b[i] = (byte) colors[i].getBlue();
+                paletteRGB[i] = colors[i].getRGB() & 0xFFFFFF;
+            }
+            palette = new IndexColorModel(8, colors.length, r, g, b);
+        }
+        int[] colorWidths = {8, 8, 8}; /* 24-bit color */
+        return new ComponentColorModel(
+                ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                colorWidths, false, false, Transparency.OPAQUE,
+                DataBuffer.TYPE_BYTE);
+    }
+
+    /**
+     * Encodes the current frame as palette indexes, one per pixel.
+     * @param frame The frame to encode.
+     * @return The palette indexes.
+     */
+    @Override
+    public byte[] encodeKeyframe(DecodedFrame frame) {
+        return encodeKeyframe(frame, ByteBuffer.allocate(0)).array();
+    }
+
+    /**
+     * Encodes the current frame as palette indexes, one per pixel, straight
+     * from the buffer it was rendered into.
+     */
+    @Override
+    public ByteBuffer encodeKeyframe(DecodedFrame frame, ByteBuffer output) {
+        byte[] pixels = takePreparedFrame(frame, true);
+        int length = pixels.length / 3;
+        output = ensureRemaining(output, length);
+        int lastColor = -1;
+        byte lastIndex = 0;
+        for (int i = 0; i < length; i++) {
+            int color = (pixels[i * 3 + 2] & 0xFF) << 16 |
+                    (pixels[i * 3 + 1] & 0xFF) << 8 | (pixels[i * 3] & 0xFF);
+            /* Most pixels are the same color as the one before them. */
+            if (color != lastColor) {
+                lastColor = color;
+                lastIndex = lookUp(color);
+            }
+            output.put(lastIndex);
+        }
+        return output;
+    }
+
+    /**
+     * Finds the palette index for a color.
+     * @param color The color, as 0xRRGGBB.
+     * @return The index of the color in the palette, or of the nearest
+     * color if it isn't in the palette.
+     */
+    private byte lookUp(int color) {
+        int slot = (color * 0x9E3779B1 >>> 20) & (LOOKUP_SIZE - 1);
+        while (lookupColors[slot] != -1) {
+            if (lookupColors[slot] == color) return lookupIndexes[slot];
+            slot = (slot + 1) & (LOOKUP_SIZE - 1);
+        }
+        if (lookupCount >= LOOKUP_SIZE / 2) {
+            Arrays.fill(lookupColors, -1);
+            lookupCount = 0;
+            slot = (color * 0x9E3779B1 >>> 20) & (LOOKUP_SIZE - 1);
+        }
+        int nearest = 0;
+        int nearestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < paletteRGB.length; i++) {
+            int dr = (paletteRGB[i] >> 16) - (color >> 16);
+            int dg = (paletteRGB[i] >> 8 & 0xFF) - (color >> 8 & 0xFF);
+            int db = (paletteRGB[i] & 0xFF) - (color & 0xFF);
+            int distance = dr * dr + dg * dg + db * db;
+            if (distance < nearestDistance) {
+                nearest = i;
+                nearestDistance = distance;
+            }
+        }
+        lookupColors[slot] = color;
+        lookupIndexes[slot] = (byte) nearest;
+        lookupCount++;
+        return (byte) nearest;
+    }
+}
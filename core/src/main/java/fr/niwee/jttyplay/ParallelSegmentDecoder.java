@@ -0,0 +1,312 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.Future;
+
+/**
+ * Decodes stretches of a ttyrec ahead of its decoder, using the computation
+ * threads of the WorkerScheduler.
+ * <p>
+ * Each stretch (a "segment") starts at a frame that looks like it resets the
+ * screen, and is decoded starting from the most recent terminal state the
+ * decoder had when the segment was started, rather than from the state of
+ * the frame before it (which doesn't exist yet). The screen is cleared at
+ * the start of the segment, so the only things that could differ are modes
+ * that changed in between. That guess might be wrong, so nothing from a
+ * segment is used until the
+ * decoder has reached its first frame the normal way, and checked that the
+ * terminal state it got there is identical to the one the segment got.
+ * Decoding is deterministic, so from then on the rest of the segment is
+ * known to be the same as a sequential decode would produce.
+ * <p>
+ * Objects of this class belong to one decoder, and must only be used from
+ * that decoder's thread.
+ * @author ais523
+ */
+class ParallelSegmentDecoder {
+
+    private static final int MAX_PENDING_SEGMENTS =
+            WorkerScheduler.getComputationThreadCount() * 2;
+    private static final int MAX_SEGMENT_LENGTH = 1024;
+
+    private final Ttyrec rec;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private int scanned = 0; // frames before this have been looked at
+    private Settings settings = null;
+
+    /**
+     * Creates a parallel decoder for a ttyrec.
+     * @param rec The ttyrec whose frames will be decoded.
+     */
+    ParallelSegmentDecoder(Ttyrec rec) {
+        this.rec = rec;
+    }
+
+    /**
+     * The decoding parameters that a segment was decoded with; a segment can
+     * only be used if the decoder is still using the same ones.
+     */
+    private static final class Settings {
+        private final Ttyrec.Encoding encoding;
+        private final int rows;
+        private final int columns;
+        private final boolean sizeForced;
+        private final boolean autoAutoResize;
+
+        Settings(Ttyrec.Encoding encoding, int rows, int columns,
+                 boolean sizeForced, boolean autoAutoResize) {
+            this.encoding = encoding;
+            this.rows = rows;
+            this.columns = columns;
+            this.sizeForced = sizeForced;
+            this.autoAutoResize = autoAutoResize;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Settings)) return false;
+            Settings s = (Settings) obj;
+            return encoding == s.encoding && rows == s.rows &&
+                    columns == s.columns && sizeForced == s.sizeForced &&
+                    autoAutoResize == s.autoAutoResize;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(encoding, rows, columns,
+                    sizeForced, autoAutoResize);
+        }
+    }
+
+    /**
+     * A run of frames starting at a natural keyframe, being decoded on the
+     * pool.
+     */
+    private static final class Segment implements Runnable {
+        private final int start;
+        private final TtyrecFrame[] frames;
+        private final Settings settings;
+        private final vt320 base;
+        private final TtyrecFrame.DecodeResult[] results;
+        private int available = 0; // results before this can be used
+        private boolean finished = false;
+        private volatile boolean cancelled = false;
+        private boolean validated = false; // only used by the decoder
+        private Future<?> future;
+
+        Segment(int start, TtyrecFrame[] frames, Settings settings,
+                vt320 base) {
+            this.start = start;
+            this.frames = frames;
+            this.settings = settings;
+            this.base = base;
+            this.results = new TtyrecFrame.DecodeResult[frames.length];
+        }
+
+        int end() {
+            return start + frames.length;
+        }
+
+        @Override
+        public void run() {
+            vt320 state = base;
+            try {
+                for (int i = 0; i < frames.length && !cancelled; i++) {
+                    TtyrecFrame.DecodeResult r = frames[i].decodeFrom(state,
+                            settings.encoding, settings.rows, settings.columns,
+                            settings.sizeForced, settings.autoAutoResize);
+                    state = r.getState();
+                    // The previous result is only handed out once we've
+                    // finished cloning its state, so that nobody else can
+                    // be using it at the same time.
+                    synchronized (this) {
+                        results[i] = r;
+                        available = i;
+                        notifyAll();
+                    }
+                }
+                synchronized (this) {
+                    if (!cancelled) available = frames.length;
+                }
+            } finally {
+                synchronized (this) {
+                    finished = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits for a frame of the segment to be decoded.
+         * @param i The index of the frame within the segment.
+         * @return The result of decoding the frame, or null if it won't
+         * ever be available.
+         */
+        synchronized TtyrecFrame.DecodeResult await(int i) {
+            while (available <= i && !finished) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return available > i ? results[i] : null;
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (future != null) future.cancel(false);
+            synchronized (this) {
+                finished = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Looks for natural keyframes after the frame the decoder is about to
+     * decode, and starts decoding from them on the pool.
+     * @param index The index of the frame the decoder is about to decode.
+     * @param latest The terminal state of the frame before that one, or
+     * null if there isn't one. This isn't modified.
+     * The other arguments are the parameters it's decoding with, as in
+     * TtyrecFrame.decodeFrame.
+     */
+    void scheduleAhead(int index, vt320 latest, Ttyrec.Encoding encoding,
+                       int rows, int columns, boolean sizeForced,
+                       boolean autoAutoResize) {
+        Settings s = new Settings(encoding, rows, columns,
+                sizeForced, autoAutoResize);
+        if (!s.equals(settings)) {
+            cancel();
+            settings = s;
+            scanned = index + 1;
+        }
+        while (!segments.isEmpty() && segments.peekFirst().end() <= index)
+            segments.pollFirst().cancel();
+        if (scanned <= index) scanned = index + 1;
+        int frameCount = rec.getFrameCount();
+        while (segments.size() < MAX_PENDING_SEGMENTS &&
+               scanned < frameCount) {
+            if (!rec.getFrameAtIndex(scanned).isNaturalKeyframe()) {
+                scanned++;
+                continue;
+            }
+            int end = scanned + 1;
+            while (end < frameCount && end - scanned < MAX_SEGMENT_LENGTH &&
+                   !rec.getFrameAtIndex(end).isNaturalKeyframe())
+                end++;
+            TtyrecFrame[] frames = new TtyrecFrame[end - scanned];
+            for (int i = 0; i < frames.length; i++)
+                frames[i] = rec.getFrameAtIndex(scanned + i);
+            vt320 base = null;
+            if (latest != null) {
+                try {
+                    base = (vt320) latest.clone();
+                } catch (CloneNotSupportedException ex) {
+                    throw new Error(ex.getMessage());
+                }
+            }
+            Segment seg = new Segment(scanned, frames, settings, base);
+            seg.future = WorkerScheduler.submitComputation(seg);
+            segments.addLast(seg);
+            scanned = end;
+        }
+    }
+
+    /**
+     * Finds the segment containing a given frame, if it's still usable.
+     */
+    private Segment segmentFor(int index, TtyrecFrame frame) {
+        for (Iterator<Segment> it = segments.iterator(); it.hasNext();) {
+            Segment seg = it.next();
+            if (index < seg.start || index >= seg.end()) continue;
+            if (seg.frames[index - seg.start] == frame)
+                return seg;
+            // The ttyrec was reanalyzed under us.
+            seg.cancel();
+            it.remove();
+            return null;
+        }
+        return null;
+    }
+
+    private void drop(Segment seg) {
+        seg.cancel();
+        segments.remove(seg);
+    }
+
+    /**
+     * Gets a frame's decode from a segment that's been checked against the
+     * sequential decode.
+     * @param index The index of the frame.
+     * @param frame The frame itself.
+     * @return The result of decoding the frame, or null if there isn't a
+     * checked result for it, in which case it must be decoded normally.
+     */
+    TtyrecFrame.DecodeResult takeResult(int index, TtyrecFrame frame) {
+        Segment seg = segmentFor(index, frame);
+        if (seg == null || !seg.validated || index == seg.start) return null;
+        TtyrecFrame.DecodeResult r = seg.await(index - seg.start);
+        if (r == null) drop(seg);
+        return r;
+    }
+
+    /**
+     * Checks the sequential decode of a frame against the start of any
+     * segment that starts at it. If they match, the rest of the segment can
+     * be used.
+     * @param index The index of the frame.
+     * @param frame The frame itself.
+     * @param sequential The result of decoding the frame normally.
+     * @return The result to use for the frame. This has the same contents as
+     * the sequential result, but might share its terminal state with the
+     * segment.
+     */
+    TtyrecFrame.DecodeResult checkKeyframe(int index, TtyrecFrame frame,
+            TtyrecFrame.DecodeResult sequential) {
+        Segment seg = segmentFor(index, frame);
+        if (seg == null || index != seg.start) return sequential;
+        TtyrecFrame.DecodeResult r = seg.await(0);
+        if (r == null || !r.getState().hasSameStateAs(sequential.getState())) {
+            drop(seg);
+            return sequential;
+        }
+        seg.validated = true;
+        // Keep the segment's state, which the next frame was based on, so
+        // that its damage record is still relative to the frame before it.
+        return r.withDamageFrom(sequential);
+    }
+
+    /**
+     * Stops using the segment containing a frame, because its results were
+     * found to be wrong.
+     * @param index The index of the frame.
+     */
+    void discard(int index) {
+        for (Segment seg : segments) {
+            if (index >= seg.start && index < seg.end()) {
+                drop(seg);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops all outstanding work.
+     */
+    void cancel() {
+        for (Segment seg : segments)
+            seg.cancel();
+        segments.clear();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events emitted by the playback engine. They cost
+ * almost nothing unless a recording with them enabled is running, e.g.
+ * via {@code -XX:StartFlightRecording} or {@code jcmd PID JFR.start}.
+ * @author ais523
+ */
+final class PlaybackEvents {
+
+    private PlaybackEvents() {}
+
+    @Name("fr.niwee.jttyplay.FrameAnalyzed")
+    @Label("Frame Analyzed")
+    @Category("Jettyplay")
+    @Description("An analyzer found a frame in the input")
+    static final class FrameAnalyzed extends Event {
+        @Label("Frame")
+        int frame;
+        @Label("Stream")
+        int stream;
+        @Label("Analyzer")
+        int analyzer;
+        @Label("Size")
+        @DataAmount
+        int size;
+    }
+
+    @Name("fr.niwee.jttyplay.FrameDecoded")
+    @Label("Frame Decoded")
+    @Category("Jettyplay")
+    @Description("A decoder worked out the terminal state after a frame")
+    static final class FrameDecoded extends Event {
+        @Label("Frame")
+        int frame;
+        @Label("Decoder")
+        int decoder;
+    }
+
+    @Name("fr.niwee.jttyplay.SeekServed")
+    @Label("Seek Served")
+    @Category("Jettyplay")
+    @Description("A frame the user was waiting for became available")
+    static final class SeekServed extends Event {
+        @Label("Frame")
+        int frame;
+        @Label("Time To First Pixel")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    @Name("fr.niwee.jttyplay.VideoFrameEncoded")
+    @Label("Video Frame Encoded")
+    @Category("Jettyplay")
+    @Description("A frame of an exported video was encoded")
+    static final class VideoFrameEncoded extends Event {
+        @Label("Video Frame")
+        int videoFrame;
+        @Label("Kind")
+        String kind;
+    }
+}
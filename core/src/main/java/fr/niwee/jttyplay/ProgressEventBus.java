@@ -0,0 +1,167 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers progress notifications from background workers to listeners,
+ * coalescing them along the way. Listeners are called via the dispatch
+ * executor; by default that's the bus's own thread, but a GUI will want
+ * to set it to its event thread.
+ * <p>
+ * Workers report progress by firing a Channel, which is cheap enough to do
+ * for every frame: it's a single flag check unless the channel has
+ * listeners and hasn't already got a notification pending. The first
+ * notification on any channel schedules a dispatch, at most the maximum
+ * latency later; every channel that fires before then is notified in that
+ * same dispatch, once. Nothing runs at all while nothing is changing, or
+ * when nobody is listening.
+ * @author ais523
+ */
+public final class ProgressEventBus {
+
+    private ProgressEventBus() {}
+
+    private static volatile int maxLatency = 100;
+    private static volatile Executor dispatchExecutor = Runnable::run;
+
+    private static final ConcurrentLinkedQueue<Channel> dirty =
+            new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean dispatchScheduled = new AtomicBoolean();
+    private static final AtomicLong dispatchCount = new AtomicLong();
+    private static final ScheduledThreadPoolExecutor timer;
+
+    static {
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "Ttyrec Progress Events");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * A stream of progress notifications of one kind, from one source, and
+     * the listeners interested in it.
+     */
+    public static final class Channel {
+        private final Set<ProgressListener> listeners =
+                new CopyOnWriteArraySet<>();
+        private final AtomicBoolean pending = new AtomicBoolean();
+
+        /**
+         * Adds a listener to this channel. It will be called via the
+         * dispatch executor.
+         * @param l The listener to add.
+         */
+        public void addListener(ProgressListener l) {
+            listeners.add(l);
+        }
+
+        /**
+         * Removes a listener from this channel.
+         * @param l The listener to remove.
+         */
+        public void removeListener(ProgressListener l) {
+            listeners.remove(l);
+        }
+
+        /**
+         * Removes all listeners from this channel. Any pending notification
+         * is dropped.
+         */
+        public void clearListeners() {
+            listeners.clear();
+        }
+
+        /**
+         * Records that progress has been made. This can be called from any
+         * thread, and never blocks.
+         */
+        public void fire() {
+            if (listeners.isEmpty()) return;
+            if (!pending.compareAndSet(false, true)) return;
+            dirty.add(this);
+            scheduleDispatch();
+        }
+
+        private void dispatch() {
+            pending.set(false);
+            for (ProgressListener l : listeners)
+                l.progressMade();
+        }
+    }
+
+    private static void scheduleDispatch() {
+        if (!dispatchScheduled.compareAndSet(false, true)) return;
+        timer.schedule(() -> dispatchExecutor.execute(
+                ProgressEventBus::dispatch), maxLatency, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Notifies the listeners of every channel that fired since the last
+     * dispatch. Runs via the dispatch executor.
+     */
+    private static void dispatch() {
+        // Anything that fires from here on needs a new dispatch, even if we
+        // end up handling it in this one.
+        dispatchScheduled.set(false);
+        dispatchCount.incrementAndGet();
+        Channel c;
+        while ((c = dirty.poll()) != null)
+            c.dispatch();
+    }
+
+    /**
+     * Sets the longest time that can pass between progress being made and
+     * listeners being told about it. Larger values mean fewer, larger
+     * batches of notifications.
+     * @param ms The maximum latency, in milliseconds.
+     * @throws IllegalArgumentException If the latency is negative.
+     */
+    public static void setMaxLatency(int ms) {
+        if (ms < 0) throw new IllegalArgumentException();
+        maxLatency = ms;
+    }
+
+    /**
+     * Gets the longest time that can pass between progress being made and
+     * listeners being told about it.
+     * @return The maximum latency, in milliseconds.
+     */
+    public static int getMaxLatency() {
+        return maxLatency;
+    }
+
+    /**
+     * Sets where listeners are called. The Swing player passes
+     * {@code SwingUtilities::invokeLater}; headless programs can leave the
+     * default, which calls listeners on the bus's own thread, so listeners
+     * must not block for long.
+     * @param executor The executor to call listeners with.
+     */
+    public static void setDispatchExecutor(Executor executor) {
+        if (executor == null) throw new NullPointerException();
+        dispatchExecutor = executor;
+    }
+
+    /**
+     * Returns the number of batches of notifications that have been
+     * dispatched since the program started, for diagnostic purposes.
+     * @return The number of dispatches.
+     */
+    public static long getDispatchCount() {
+        return dispatchCount.get();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+
+/**
+ * An exporter that writes what the terminal's screen looks like after each
+ * frame of a ttyrec, as plain text. Each screen starts with a line giving
+ * the frame's time in square brackets, followed by the rows of the screen
+ * with trailing spaces removed. A frame that leaves the text on the screen
+ * the same as the previous screen written (e.g. because it only moved the
+ * cursor or changed colors) is left out.
+ * <p>
+ * The ttyrec is decoded with a StreamingDecoder, so it doesn't need to
+ * have been decoded beforehand.
+ * @author ais523
+ */
+public class ScreenTextExporter extends TextExporter {
+
+    /* The text of the last screen written, a row at a time. */
+    private char[][] lastScreen = new char[0][];
+
+    @Override
+    protected void exportFrames(Ttyrec rec)
+            throws IOException, CancellationException {
+        StreamingDecoder frames = new StreamingDecoder(rec);
+        lastScreen = new char[0][];
+        while (frames.hasNext()) {
+            DecodedFrame frame = frames.next();
+            vt320 screen = frame.getTerminalState();
+            if (!screenMatches(screen)) {
+                writeAscii('[');
+                writeTime(frame.getRelativeTimestamp());
+                writeAscii("]\n");
+                for (int l = 0; l < lastScreen.length; l++) {
+                    char[] row = lastScreen[l];
+                    int length = row.length;
+                    while (length > 0 && row[length - 1] == ' ') length--;
+                    write(row, 0, length);
+                    writeAscii('\n');
+                }
+            }
+            frameExported();
+        }
+    }
+
+    /**
+     * Checks whether the text on a terminal's screen is the same as on the
+     * last screen written; if it isn't, it's remembered as the last screen.
+     * Blank cells are remembered as spaces.
+     * @return True if the text is unchanged.
+     */
+    private boolean screenMatches(vt320 screen) {
+        int rows = screen.getRows();
+        int columns = screen.getColumns();
+        boolean matches = lastScreen.length == rows &&
+                (rows == 0 || lastScreen[0].length == columns);
+        if (!matches) {
+            lastScreen = new char[rows][columns];
+        }
+        for (int l = 0; l < rows; l++) {
+            char[] row = screen.getCharRow(screen.windowBase + l);
+            char[] last = lastScreen[l];
+            for (int c = 0; c < columns; c++) {
+                char ch = row[c] == 0 ? ' ' : row[c];
+                if (last[c] != ch) {
+                    last[c] = ch;
+                    matches = false;
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Requests the appropriate file extension for this exporter.
+     * @return Always returns "txt".
+     */
+    @Override
+    public String getFileExtension() {
+        return "txt";
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing the work a TtyrecSource and its workers have done,
+ * for diagnostic purposes. Workers update these as they go; updating never
+ * blocks, so it's cheap enough to do for every frame.
+ * @author ais523
+ */
+public final class SourceStatistics {
+
+    private final LongAdder formatAttempts = new LongAdder();
+    private final LongAdder analyzeRestarts = new LongAdder();
+    private final LongAdder decodeRestarts = new LongAdder();
+    private final LongAdder framesDecoded = new LongAdder();
+    private final LongAdder retainedStateBytes = new LongAdder();
+    private final LongAdder rowInternLookups = new LongAdder();
+    private final LongAdder rowInternHits = new LongAdder();
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+
+    /**
+     * A histogram of durations, with one bucket for each power of two
+     * nanoseconds. Percentiles are therefore only accurate to within a
+     * factor of two, which is plenty for spotting where time goes.
+     */
+    static final class LatencyHistogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+
+        void record(long nanos) {
+            buckets.incrementAndGet(
+                    64 - Long.numberOfLeadingZeros(Math.max(0, nanos)) & 63);
+            count.increment();
+        }
+
+        /**
+         * Estimates a percentile of the recorded durations.
+         * @param p The percentile, from 0 to 100.
+         * @return The upper bound of the bucket containing the percentile,
+         * in nanoseconds, or 0 if nothing has been recorded.
+         */
+        long percentile(double p) {
+            long total = count.sum();
+            if (total == 0) return 0;
+            long wanted = (long) Math.ceil(total * p / 100.0);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= wanted && seen > 0) return i == 0 ? 0 : 1L << i;
+            }
+            return Long.MAX_VALUE;
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+    }
+
+    void formatAttempted() {
+        formatAttempts.increment();
+    }
+
+    void analyzeRestarted() {
+        analyzeRestarts.increment();
+    }
+
+    void decodeRestarted() {
+        decodeRestarts.increment();
+    }
+
+    void frameDecoded(long nanos) {
+        framesDecoded.increment();
+        decodeLatency.record(nanos);
+    }
+
+    void stateBytesChanged(long delta) {
+        retainedStateBytes.add(delta);
+    }
+
+    void rowsInterned(int lookups, int hits) {
+        rowInternLookups.add(lookups);
+        rowInternHits.add(hits);
+    }
+
+    /**
+     * Returns the number of analyzers that have been run on the source,
+     * each trying one input format.
+     * @return The number of format attempts.
+     */
+    public long getFormatAttempts() {
+        return formatAttempts.sum();
+    }
+
+    /**
+     * Returns the number of times a backport analyzer was started, to
+     * reanalyze the input from the start.
+     * @return The number of analysis restarts.
+     */
+    public long getAnalyzeRestarts() {
+        return analyzeRestarts.sum();
+    }
+
+    /**
+     * Returns the number of times a backport decoder was started, to
+     * redecode the ttyrec from the start.
+     * @return The number of decode restarts.
+     */
+    public long getDecodeRestarts() {
+        return decodeRestarts.sum();
+    }
+
+    /**
+     * Returns the total number of frame decodes done by all decoders,
+     * including frames that were decoded more than once.
+     * @return The number of frame decodes.
+     */
+    public long getFramesDecoded() {
+        return framesDecoded.sum();
+    }
+
+    /**
+     * Returns an estimate of the memory used by the terminal states of the
+     * ttyrec's frames: the size of the screen rows they hold that aren't
+     * shared with earlier frames.
+     * @return The estimated size, in bytes.
+     */
+    public long getRetainedStateBytes() {
+        return retainedStateBytes.sum();
+    }
+
+    /**
+     * Returns the proportion of the screen rows of this source's terminal
+     * states that were found in the shared row cache (and so share memory
+     * with an earlier state) when the states were made read-only.
+     * @return The hit ratio, from 0 to 1 (0 if nothing was looked up yet).
+     */
+    public double getRowInternHitRatio() {
+        long lookups = rowInternLookups.sum();
+        return lookups == 0 ? 0 : (double) rowInternHits.sum() / lookups;
+    }
+
+    /**
+     * Estimates a percentile of the time taken to decode a frame.
+     * @param p The percentile, from 0 to 100.
+     * @return The time, in nanoseconds (accurate to within a factor of 2).
+     */
+    public long getDecodeLatencyPercentile(double p) {
+        return decodeLatency.percentile(p);
+    }
+}
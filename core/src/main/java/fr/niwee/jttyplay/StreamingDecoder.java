@@ -0,0 +1,350 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Decodes the frames of a ttyrec in a single pass, writing them all to one
+ * terminal rather than storing a terminal state in each frame. This uses
+ * the same amount of memory no matter how long the ttyrec is, so it's the
+ * way to go through a recording once from start to end (e.g. to encode it
+ * as a video); TtyrecDecoder is for when frames need to be looked at in any
+ * order.
+ * <p>
+ * The frames this returns all share the decoder's terminal. To make it
+ * possible to look ahead (e.g. at the next frame's timestamp), a frame's
+ * data is only written to the terminal when the frame's terminal state or
+ * damage is first asked for; frames skipped over are written at the same
+ * time. After that, the terminal states of earlier frames are no longer
+ * available, and asking for them throws an IllegalStateException.
+ * <p>
+ * The ttyrec only needs to have been analyzed, not decoded. If it has
+ * been decoded, the terminal starts with the same size as the decoded
+ * frames; otherwise, a ttyrec that resizes the terminal automatically has
+ * to be read through once before decoding starts, to find out how large
+ * the terminal gets (the same thing TtyrecDecoder does by restarting).
+ * If a frame found later makes the terminal grow anyway, or analysis
+ * finds out that the ttyrec marks which parts of it can be resized, the
+ * size is worked out again, and the frames since the most recent natural
+ * keyframe (one that clears the screen) are written to a new terminal of
+ * that size; so the screen looks the way it would if the decoder had been
+ * created after that frame was found, without having to go back through
+ * the whole ttyrec (or needing its earlier frames to have been kept; see
+ * FollowingDecoder).
+ * <p>
+ * This class isn't thread-safe; the frames it returns should be used on
+ * the thread using the iterator.
+ * @author ais523
+ */
+public class StreamingDecoder implements Iterator<DecodedFrame> {
+
+    private final Ttyrec rec;
+    private vt320 state;
+    /* The size state had when it was last set up; if it grows past that,
+     * it's set up again. */
+    private int rows, columns;
+    /* Whether analysis had found autoresize range information when state
+     * was set up. */
+    private boolean rangeInformation;
+    /* False once the size has been found to be bogus (see readInitialState),
+     * so that we don't keep working it out again. */
+    private boolean resizable;
+    private int returned; // frames returned by next()
+    private int written; // frames written to state
+    private int lastKeyframe; // the last natural keyframe written
+    private boolean tracking = false; // is state tracking damage?
+    private TerminalDamage damage = null; // the last damage finished
+
+    /**
+     * Creates a decoder that decodes the given ttyrec from its start. The
+     * terminal size and resize behaviour are determined from the ttyrec as
+     * it is now, and worked out again if frames found later need it. Each
+     * frame is decoded with the encoding the ttyrec has when the frame is
+     * written to the terminal, so if analysis later finds that the ttyrec
+     * isn't in the encoding it seemed to be in, the frames from then on are
+     * decoded correctly. If the ttyrec's earliest frames have been
+     * released, decoding starts at the first frame kept.
+     * @param rec The ttyrec to decode. It can still be being analyzed;
+     * frames found after the decoder was created will be decoded too.
+     */
+    public StreamingDecoder(Ttyrec rec) {
+        this.rec = rec;
+        returned = written = lastKeyframe = rec.getFirstRetainedFrame();
+        int count = rec.getFrameCount();
+        rangeInformation = count > 0 && rec.containsAutoResizeRangeInformation(
+                rec.getFrameAtIndex(count - 1).getAnalyzerSeqNumber(), -1);
+        setState(initialState(rec, rec.getActualEncoding()));
+    }
+
+    /**
+     * Starts writing frames to a new terminal.
+     */
+    private void setState(vt320 t) {
+        state = t;
+        rows = t.getRows();
+        columns = t.getColumns();
+        resizable = rec.getForcedHeight() == -1;
+    }
+
+    /**
+     * Works out the state a ttyrec's terminal starts in, including how big
+     * it should be.
+     */
+    private static vt320 initialState(Ttyrec rec, Ttyrec.Encoding encoding) {
+        int count = rec.getFrameCount();
+        if (rec.getForcedHeight() != -1)
+            return TtyrecFrame.initialTerminalState(rec.getForcedHeight(),
+                    rec.getForcedWidth(), true, true);
+        int analyzerSeq = count == 0 ? -1 :
+                rec.getFrameAtIndex(count - 1).getAnalyzerSeqNumber();
+        int from = rec.getFirstRetainedFrame();
+        TtyrecFrame first = count <= from ? null : rec.getFrameAtIndex(from);
+        vt320 decoded = first == null ? null : first.getTerminalState();
+        if (decoded != null)
+            return TtyrecFrame.initialTerminalState(decoded.getRows(),
+                    decoded.getColumns(), false,
+                    rec.containsAutoResizeRangeInformation(analyzerSeq,
+                    first.getDecoderSeqNumber()));
+        /* Nothing's been decoded, so find the size the hard way. */
+        return readInitialState(rec, encoding, count);
+    }
+
+    /**
+     * Works out the state a ttyrec's terminal starts in by reading through
+     * its first frames, ignoring any terminal states they've been decoded
+     * with; so unlike the size of a decoded frame, the answer doesn't
+     * depend on how far decoding has got.
+     * @param rec The ttyrec.
+     * @param encoding The encoding to read the frames in.
+     * @param count How many frames, from the start (or the first frame kept,
+     * if earlier frames have been released), the terminal needs to be big
+     * enough for.
+     * @return A terminal with nothing written to it.
+     */
+    static vt320 readInitialState(Ttyrec rec, Ttyrec.Encoding encoding,
+            int count) {
+        return readInitialState(rec, encoding, rec.getFirstRetainedFrame(),
+                count, 24, 80);
+    }
+
+    /**
+     * Works out the size a terminal needs to be to write some of a ttyrec's
+     * frames to it, in the same way as readInitialState(Ttyrec,
+     * Ttyrec.Encoding, int), but starting from a given frame and size.
+     * @param rec The ttyrec.
+     * @param encoding The encoding to read the frames in.
+     * @param from The index of the first frame to read.
+     * @param count The index after the last frame to read.
+     * @param minRows The fewest rows the terminal can have.
+     * @param minColumns The fewest columns the terminal can have.
+     * @return A terminal with nothing written to it.
+     */
+    private static vt320 readInitialState(Ttyrec rec,
+            Ttyrec.Encoding encoding, int from, int count, int minRows,
+            int minColumns) {
+        if (rec.getForcedHeight() != -1)
+            return TtyrecFrame.initialTerminalState(rec.getForcedHeight(),
+                    rec.getForcedWidth(), true, true);
+        int analyzerSeq = count == 0 ? -1 :
+                rec.getFrameAtIndex(count - 1).getAnalyzerSeqNumber();
+        /* Like TtyrecDecoder, we start again whenever the terminal grows, as
+         * frames before the growth may come out differently at the larger
+         * size; this stops when a size is found that's big enough for the
+         * whole ttyrec. */
+        boolean autoAutoResize =
+                rec.containsAutoResizeRangeInformation(analyzerSeq, -1);
+        int rows = minRows, columns = minColumns;
+        restart:
+        for (;;) {
+            vt320 t = TtyrecFrame.initialTerminalState(rows, columns, false,
+                    autoAutoResize);
+            for (int i = from; i < count; i++) {
+                rec.getFrameAtIndex(i).decodeInto(t, encoding);
+                if (!t.isAutoResize()) continue;
+                int c = t.getColumns();
+                int r = t.getRows();
+                if (c <= columns && r <= rows) continue;
+                // as in TtyrecDecoder, this large means the resizing is bogus
+                if (c >= 500 || r >= 500)
+                    return TtyrecFrame.initialTerminalState(minRows,
+                            minColumns, false, true);
+                rows = r;
+                columns = c;
+                continue restart;
+            }
+            return TtyrecFrame.initialTerminalState(rows, columns, false,
+                    autoAutoResize);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return isNextAvailable();
+    }
+
+    /**
+     * Checks whether next() can return a frame straight away. That's the
+     * same as hasNext(), unless a subclass waits for more frames.
+     * @return True if a frame after the last one returned has been found.
+     * @see FollowingDecoder
+     */
+    public boolean isNextAvailable() {
+        return returned < rec.getFrameCount();
+    }
+
+    /**
+     * Returns the index of the frame that next() returns next.
+     * @return The number of frames returned so far, counting any released
+     * before the decoder was created.
+     */
+    int framesReturned() {
+        return returned;
+    }
+
+    /**
+     * Called after each frame is written to the terminal, with the size of
+     * the terminal already worked out again if the frame needed it. After
+     * this, the decoder only needs the frames from the most recent natural
+     * keyframe onwards, so a subclass can release the ones before.
+     * @param frame The frame written.
+     * @param index Its index in the ttyrec.
+     */
+    void frameWritten(TtyrecFrame frame, int index) {
+    }
+
+    /**
+     * Returns the index of the most recent natural keyframe written to the
+     * terminal; if the size of the terminal is worked out again, only the
+     * frames from it onwards are written again.
+     * @return The index of the keyframe, or of the first frame if there
+     * hasn't been one.
+     */
+    int getLastKeyframe() {
+        return lastKeyframe;
+    }
+
+    @Override
+    public DecodedFrame next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        int index = returned++;
+        return new Frame(index,
+                rec.getFrameAtIndex(index).getRelativeTimestamp());
+    }
+
+    /**
+     * Returns the terminal that frames are decoded into. It has the state
+     * of the most recent frame whose state was asked for. If the terminal
+     * size has to be worked out again, the decoder moves on to a new
+     * terminal, so this can return a different terminal later.
+     * @return The terminal.
+     */
+    public vt320 getTerminal() {
+        return state;
+    }
+
+    /**
+     * Writes frames to the terminal up to and including the given frame.
+     * If the size of the terminal needs working out again, the terminal is
+     * replaced; the damage is then null, as the new terminal has nothing to
+     * be compared to.
+     * @param index The index of the frame that should be displayed.
+     * @throws IllegalStateException If a later frame has been written.
+     */
+    private void writeUpTo(int index) {
+        if (index < written - 1)
+            throw new IllegalStateException("frame " + index +
+                    " has been overwritten by frame " + (written - 1));
+        if (index < written) return;
+        if (!tracking) {
+            state.startDamageTracking();
+            tracking = true;
+        }
+        while (written <= index) {
+            int i = written++;
+            TtyrecFrame frame = rec.getFrameAtIndex(i);
+            frame.decodeInto(state, rec.getActualEncoding());
+            if (frame.isNaturalKeyframe()) lastKeyframe = i;
+            if (resizable) {
+                if (!rangeInformation &&
+                        rec.containsAutoResizeRangeInformation(
+                        frame.getAnalyzerSeqNumber(), -1)) {
+                    rangeInformation = true;
+                    rederive(false);
+                } else if (state.getRows() > rows ||
+                        state.getColumns() > columns)
+                    rederive(true);
+            }
+            frameWritten(frame, i);
+        }
+    }
+
+    /**
+     * Works out the size of the terminal again, and writes the frames
+     * written so far to a new terminal of that size. Only the frames from
+     * the most recent natural keyframe are needed, as the screen is unlikely
+     * to depend on anything before it. (If that keyframe has been released,
+     * this starts from the first frame kept, which is as close as it can
+     * get.)
+     * @param grow True if the terminal is being rederived because it grew;
+     * its size so far (which the frames before the keyframe needed) is
+     * then kept as a minimum. Otherwise, the size is worked out afresh.
+     */
+    private void rederive(boolean grow) {
+        Ttyrec.Encoding encoding = rec.getActualEncoding();
+        int from = Math.max(lastKeyframe, rec.getFirstRetainedFrame());
+        setState(readInitialState(rec, encoding, from, written,
+                grow ? rows : 24, grow ? columns : 80));
+        for (int i = from; i < written; i++)
+            rec.getFrameAtIndex(i).decodeInto(state, encoding);
+        /* The size is big enough for every frame, unless it was bogus and
+         * readInitialState fell back to 80x24; in that case, let the
+         * terminal grow the way it wants to from now on. */
+        if (state.getRows() > rows || state.getColumns() > columns)
+            resizable = false;
+        state.startDamageTracking();
+    }
+
+    /**
+     * One frame returned by a StreamingDecoder.
+     */
+    private class Frame implements DecodedFrame {
+        private final int index;
+        private final double relativeTimestamp;
+
+        Frame(int index, double relativeTimestamp) {
+            this.index = index;
+            this.relativeTimestamp = relativeTimestamp;
+        }
+
+        @Override
+        public double getRelativeTimestamp() {
+            return relativeTimestamp;
+        }
+
+        @Override
+        public vt320 getTerminalState() {
+            writeUpTo(index);
+            return state;
+        }
+
+        /**
+         * Returns the damage done to the terminal since the damage was last
+         * asked for (or since it was created). The only state that this can
+         * be relative to is the decoder's terminal itself.
+         */
+        @Override
+        public TerminalDamage getDamageSince(VDUBuffer since) {
+            writeUpTo(index);
+            if (tracking) {
+                damage = state.finishDamageTracking();
+                tracking = false;
+            }
+            return since == state ? damage : null;
+        }
+    }
+}
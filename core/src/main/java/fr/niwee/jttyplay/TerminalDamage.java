@@ -0,0 +1,216 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+/**
+ * A record of which parts of a terminal's screen were changed while a frame
+ * was being decoded: for each row, the span of columns that might have been
+ * altered, and where the cursor moved from and to. Rows are counted from the
+ * top of the screen, not the scrollback buffer.
+ *
+ * Scrolling is recorded too, as the number of lines that the contents of
+ * the screen (or of its scrolling region) moved up by; this is only a
+ * hint, as several scrolls in different regions or directions are added
+ * together.
+ *
+ * A damage record can be "full", meaning that the whole screen has to be
+ * treated as changed (for instance, because the terminal was resized, or
+ * there was no previous state to compare against).
+ *
+ * Objects of this class are immutable.
+ * @author ais523
+ */
+public class TerminalDamage {
+    private final int columns;
+    private final int rows;
+    private final boolean full;
+    private final int[] firstColumn; // -1 for undamaged rows
+    private final int[] lastColumn; // inclusive
+    private final int oldCursorColumn;
+    private final int oldCursorRow;
+    private final int cursorColumn;
+    private final int cursorRow;
+    private final int scrollLines;
+
+    /**
+     * Creates a damage record. The column arrays are used directly, rather
+     * than copied, so must not be changed afterwards.
+     * @param columns The width of the screen the damage applies to.
+     * @param rows The height of the screen the damage applies to.
+     * @param full Whether the entire screen is damaged.
+     * @param firstColumn For each row, the first damaged column, or -1 if
+     * the row is undamaged. Ignored if full is set.
+     * @param lastColumn For each row, the last damaged column. Ignored if
+     * full is set.
+     * @param oldCursorColumn The cursor column before the change.
+     * @param oldCursorRow The cursor row before the change.
+     * @param cursorColumn The cursor column after the change.
+     * @param cursorRow The cursor row after the change.
+     * @param scrollLines The number of lines the screen scrolled up by
+     * (negative if it scrolled down).
+     */
+    TerminalDamage(int columns, int rows, boolean full,
+                   int[] firstColumn, int[] lastColumn,
+                   int oldCursorColumn, int oldCursorRow,
+                   int cursorColumn, int cursorRow, int scrollLines) {
+        this.columns = columns;
+        this.rows = rows;
+        this.full = full;
+        this.firstColumn = firstColumn;
+        this.lastColumn = lastColumn;
+        this.oldCursorColumn = oldCursorColumn;
+        this.oldCursorRow = oldCursorRow;
+        this.cursorColumn = cursorColumn;
+        this.cursorRow = cursorRow;
+        this.scrollLines = scrollLines;
+    }
+
+    /**
+     * Creates a damage record saying that the whole of a screen changed.
+     * @param columns The width of the screen.
+     * @param rows The height of the screen.
+     * @param cursorColumn The cursor column after the change.
+     * @param cursorRow The cursor row after the change.
+     * @return A full damage record.
+     */
+    static TerminalDamage fullDamage(int columns, int rows,
+                                     int cursorColumn, int cursorRow) {
+        return new TerminalDamage(columns, rows, true, null, null,
+                cursorColumn, cursorRow, cursorColumn, cursorRow, 0);
+    }
+
+    /**
+     * Gets the width of the screen this damage applies to.
+     * @return The number of columns.
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Gets the height of the screen this damage applies to.
+     * @return The number of rows.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Queries whether the whole screen must be treated as changed.
+     * @return True if no finer-grained information is available.
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Queries whether nothing at all changed, not even the cursor position.
+     * @return True if the screen and cursor are unchanged.
+     */
+    public boolean isEmpty() {
+        if (full || isCursorMoved()) return false;
+        for (int c : firstColumn)
+            if (c >= 0) return false;
+        return true;
+    }
+
+    /**
+     * Queries whether any character on a given row might have changed.
+     * @param row The row to check, counting from 0 at the top.
+     * @return True if the row is damaged.
+     */
+    public boolean isRowDamaged(int row) {
+        if (full) return true;
+        if (row < 0 || row >= rows) return false;
+        return firstColumn[row] >= 0;
+    }
+
+    /**
+     * Gets the first column on a row that might have changed.
+     * @param row The row to check, counting from 0 at the top.
+     * @return The leftmost damaged column, or -1 if the row is undamaged.
+     */
+    public int getFirstDamagedColumn(int row) {
+        if (full) return 0;
+        if (row < 0 || row >= rows) return -1;
+        return firstColumn[row];
+    }
+
+    /**
+     * Gets the last column on a row that might have changed.
+     * @param row The row to check, counting from 0 at the top.
+     * @return The rightmost damaged column, or -1 if the row is undamaged.
+     */
+    public int getLastDamagedColumn(int row) {
+        if (full) return columns - 1;
+        if (row < 0 || row >= rows || firstColumn[row] < 0) return -1;
+        return lastColumn[row];
+    }
+
+    /**
+     * Counts the rows that might have changed.
+     * @return The number of damaged rows.
+     */
+    public int getDamagedRowCount() {
+        if (full) return rows;
+        int count = 0;
+        for (int c : firstColumn)
+            if (c >= 0) count++;
+        return count;
+    }
+
+    /**
+     * Queries whether the cursor moved.
+     * @return True if the cursor is in a different position.
+     */
+    public boolean isCursorMoved() {
+        return oldCursorColumn != cursorColumn || oldCursorRow != cursorRow;
+    }
+
+    /**
+     * Gets the column the cursor was in before the change.
+     * @return The old cursor column.
+     */
+    public int getOldCursorColumn() {
+        return oldCursorColumn;
+    }
+
+    /**
+     * Gets the row the cursor was in before the change.
+     * @return The old cursor row.
+     */
+    public int getOldCursorRow() {
+        return oldCursorRow;
+    }
+
+    /**
+     * Gets the column the cursor is in after the change.
+     * @return The new cursor column.
+     */
+    public int getCursorColumn() {
+        return cursorColumn;
+    }
+
+    /**
+     * Gets the row the cursor is in after the change.
+     * @return The new cursor row.
+     */
+    public int getCursorRow() {
+        return cursorRow;
+    }
+
+    /**
+     * Gets the number of lines that the screen scrolled up by, e.g. as a
+     * result of output at the bottom of the screen. The lines that scrolled
+     * are damaged, but their contents will mostly be the same as those of
+     * the lines below them before the change.
+     * @return The number of lines scrolled up, negative if the screen
+     * scrolled down, or 0 if it didn't scroll (or if this is full damage).
+     */
+    public int getScrollLines() {
+        return scrollLines;
+    }
+}
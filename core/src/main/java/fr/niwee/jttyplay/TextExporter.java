@@ -0,0 +1,221 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A class that defines a skeleton implementation for exporting a ttyrec as
+ * text, rather than as a video. This is far cheaper than rendering the
+ * frames, and enough for anything that only needs to know what was
+ * written to the terminal. Exporters go through the ttyrec once from start
+ * to end, and use the same amount of memory no matter how long it is.
+ * <p>
+ * This handles the progressListeners and cancellation, and writes UTF-8
+ * output through a buffer, so that derived classes can write a character
+ * at a time cheaply.
+ * @author ais523
+ */
+public abstract class TextExporter {
+
+    private final Set<ProgressListener> progressListeners;
+    private int frameCount;
+    private boolean cancelExport = false;
+
+    /* The output, and the bytes waiting to be written to it. */
+    private OutputStream output = null;
+    private final byte[] buffer = new byte[65536];
+    private int buffered = 0;
+
+    /**
+     * The constructor. Does nothing in this skeleton implementation
+     * but initializing listeners.
+     */
+    public TextExporter() {
+        this.progressListeners = new HashSet<>();
+        this.frameCount = 0;
+    }
+
+    /**
+     * Adds an object that will be notified whenever a frame is exported.
+     * @param listener The object to notify.
+     */
+    public void addProgressListener(ProgressListener listener) {
+        progressListeners.add(listener);
+    }
+
+    /**
+     * Exports the frames of a ttyrec. If the ttyrec is still being
+     * analyzed, which of the frames found during the export are included
+     * depends on the exporter; to export every frame, wait for analysis to
+     * finish first.
+     * @param rec The ttyrec to export. It only needs to have been analyzed.
+     * @param os Where to write the export. It isn't closed.
+     * @throws IOException if the export can't be written.
+     * @throws CancellationException if the export is cancelled.
+     */
+    public void export(Ttyrec rec, OutputStream os)
+            throws IOException, CancellationException {
+        synchronized(this) {
+            frameCount = 0;
+        }
+        output = os;
+        buffered = 0;
+        try {
+            exportFrames(rec);
+            flush();
+        } finally {
+            output = null;
+        }
+    }
+
+    /**
+     * Exports the frames of a ttyrec, via the write methods. The
+     * implementation should call frameExported for each frame.
+     * @param rec The ttyrec to export.
+     * @throws IOException if the export can't be written.
+     * @throws CancellationException if the export is cancelled.
+     */
+    protected abstract void exportFrames(Ttyrec rec)
+            throws IOException, CancellationException;
+
+    /**
+     * Requests the appropriate file extension for this exporter.
+     * @return The extension, without the leading ".".
+     */
+    public abstract String getFileExtension();
+
+    /**
+     * Records that a frame was exported, and stops the export if it's been
+     * cancelled.
+     * @throws CancellationException if another thread is trying to cancel
+     * the export.
+     */
+    protected void frameExported() throws CancellationException {
+        synchronized(this) {
+            frameCount++;
+        }
+        if (!progressListeners.isEmpty()) {
+            for (ProgressListener pl : progressListeners) {
+                pl.progressMade();
+            }
+        }
+        checkForCancellation();
+    }
+
+    /**
+     * Requests that the export in progress is stopped; export will then
+     * throw a CancellationException.
+     */
+    public synchronized void cancelExport() {
+        cancelExport = true;
+    }
+
+    /**
+     * Returns the number of frames exported so far.
+     * @return The number of frames.
+     */
+    public synchronized int getFramesExported() {
+        return frameCount;
+    }
+
+    /**
+     * Immediately throws a CancellationException if cancelExport() has
+     * been called more recently than checkForCancellation() has been called.
+     * @throws CancellationException if another thread is trying to cancel
+     * the export
+     */
+    protected synchronized void checkForCancellation()
+            throws CancellationException {
+        if (cancelExport) {
+            cancelExport = false;
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Writes an ASCII character.
+     * @param c The character; it must be below 0x80.
+     */
+    protected final void writeAscii(int c) throws IOException {
+        if (buffered == buffer.length) flush();
+        buffer[buffered++] = (byte) c;
+    }
+
+    /**
+     * Writes a string that only contains ASCII characters.
+     * @param s The string.
+     */
+    protected final void writeAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            writeAscii(s.charAt(i));
+    }
+
+    /**
+     * Writes a time in seconds, to the nearest microsecond.
+     * @param time The time.
+     */
+    protected final void writeTime(double time) throws IOException {
+        long micros = Math.round(time * 1000000);
+        if (buffered > buffer.length - 28) flush();
+        long seconds = micros / 1000000;
+        int digits = 1;
+        for (long s = seconds; s >= 10; s /= 10) digits++;
+        for (int i = digits - 1; i >= 0; i--, seconds /= 10)
+            buffer[buffered + i] = (byte) ('0' + seconds % 10);
+        buffered += digits;
+        buffer[buffered++] = '.';
+        int fraction = (int) (micros % 1000000);
+        for (int i = 5; i >= 0; i--, fraction /= 10)
+            buffer[buffered + i] = (byte) ('0' + fraction % 10);
+        buffered += 6;
+    }
+
+    /**
+     * Writes characters as UTF-8. A surrogate that isn't part of a pair is
+     * written as U+FFFD.
+     * @param chars The characters.
+     * @param offset Where in chars to start.
+     * @param length How many characters to write.
+     */
+    protected final void write(char[] chars, int offset, int length)
+            throws IOException {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            char c = chars[i];
+            if (buffered > buffer.length - 4) flush();
+            if (c < 0x80) {
+                buffer[buffered++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[buffered++] = (byte) (0xC0 | c >> 6);
+                buffer[buffered++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < end &&
+                    Character.isLowSurrogate(chars[i + 1])) {
+                int cp = Character.toCodePoint(c, chars[++i]);
+                buffer[buffered++] = (byte) (0xF0 | cp >> 18);
+                buffer[buffered++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                buffer[buffered++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                buffer[buffered++] = (byte) (0x80 | cp & 0x3F);
+            } else {
+                if (Character.isSurrogate(c)) c = '\uFFFD';
+                buffer[buffered++] = (byte) (0xE0 | c >> 12);
+                buffer[buffered++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buffer[buffered++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    /**
+     * Writes the output that's been buffered so far.
+     */
+    protected final void flush() throws IOException {
+        output.write(buffer, 0, buffered);
+        buffered = 0;
+    }
+}
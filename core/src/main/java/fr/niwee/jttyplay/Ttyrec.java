@@ -5,13 +5,14 @@
 
 package fr.niwee.jttyplay;
 
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A class representing a terminal recording (ttyrec).
@@ -20,7 +21,7 @@ import java.util.Map;
  */
 public class Ttyrec {
 
-    private ArrayList<TtyrecFrame> frames;
+    private final FrameTable frames;
     private double initialTimestamp;
     private double length;
     private double lengthOffset;
@@ -68,17 +69,22 @@ public class Ttyrec {
     private Set<Integer> overrideAutoResizeRangeInformation;
     private int forcedWidth = -1;
     private int forcedHeight = -1;
-    private int wantedFrame = -1;
+    private volatile int wantedFrame = -1;
+    private volatile int playheadFrame = -1;
+    private volatile int seekTarget = -1; // frame being waited for
+    private volatile long seekStartedAt; // System.nanoTime of the seek
+    private volatile long timeToFirstPixel = -1; // in nanoseconds
     private boolean isStreaming;
     private Date lastActivity;
     private final Map<Integer,byte[]> bytesRegistry;
+    private final AtomicLong retainedFrameBytes = new AtomicLong();
     
     /**
      * Creates a new ttyrec, without any information filled in
      * yet.
      */
     public Ttyrec() {
-        frames = new ArrayList<>();
+        frames = new FrameTable();
         initialTimestamp = 0;
         length = 0;
         lengthOffset = 0;
@@ -129,13 +135,14 @@ public class Ttyrec {
         encodings.add(Encoding.IBM);
         encodings.add(Encoding.Latin1);
         encoding = Encoding.Autodetect;
+        frames.wakeAll();
     }
     /**
      * Flags this ttyrec as definitely not being in UTF-8, for autodetection
      * purposes.
      */
     public void setNotUTF8() {
-        encodings.remove(Encoding.UTF8);
+        if (encodings.remove(Encoding.UTF8)) frames.wakeAll();
         if (encoding == Encoding.UTF8) {
             encoding = Encoding.Autodetect;
         }
@@ -145,7 +152,7 @@ public class Ttyrec {
      * autodetection purposes.
      */
     public void setNotIBM() {
-        encodings.remove(Encoding.IBM);
+        if (encodings.remove(Encoding.IBM)) frames.wakeAll();
         if (encoding == Encoding.IBM) {
             encoding = Encoding.Autodetect;
         }
@@ -155,7 +162,7 @@ public class Ttyrec {
      * autodetection purposes.
      */
     public void setNotLatin1() {
-        encodings.remove(Encoding.Latin1);
+        if (encodings.remove(Encoding.Latin1)) frames.wakeAll();
         if (encoding == Encoding.Latin1) {
             encoding = Encoding.Autodetect;
         }
@@ -203,12 +210,14 @@ public class Ttyrec {
         if (!isEncodingPossible(e))
             throw new IllegalArgumentException();
         this.encoding = e;
+        frames.wakeAll();
     }
     /**
      * Sets the encoding used by this ttyrec back to its default value.
      */
     public void resetEncoding() {
         encoding = Encoding.Autodetect;
+        frames.wakeAll();
     }
 
     /**
@@ -275,7 +284,8 @@ public class Ttyrec {
     /**
      * Returns a Map from hashcodes of Strings that represent a literal
      * translation of bytes into codepoints of byte arrays to the arrays
-     * themselves, used to cache byte arrays to prevent duplication.
+     * themselves, used to cache byte arrays to prevent duplication. Access
+     * to it must be synchronized on the map.
      * @return The registry of byte arrays.
      */
     public Map<Integer, byte[]> getBytesRegistry() {
@@ -371,9 +381,10 @@ public class Ttyrec {
      * the course of the ttyrec, the value at the start is used.
      */
     public int getColumns() {
-        if (frames.isEmpty() || frames.get(0).getTerminalState() == null)
+        int f = frames.first();
+        if (frames.size() <= f || frames.get(f).getTerminalState() == null)
             return 80;
-        return frames.get(0).getTerminalState().getColumns();
+        return frames.get(f).getTerminalState().getColumns();
     }
     /**
      * Returns the number of rows that this ttyrec appears to have, based on
@@ -382,23 +393,82 @@ public class Ttyrec {
      * the ttyrec, the value at the start is used.
      */
     public int getRows() {
-        if (frames.isEmpty() || frames.get(0).getTerminalState() == null)
+        int f = frames.first();
+        if (frames.size() <= f || frames.get(f).getTerminalState() == null)
             return 24;
-        return frames.get(0).getTerminalState().getRows();
+        return frames.get(f).getTerminalState().getRows();
     }
 
     /**
-     * Alters one frame of the ttyrec, or adds one to the end.
+     * Alters one frame of the ttyrec, or adds one to the end. The change is
+     * visible to other threads atomically, and wakes any thread waiting for
+     * that frame.
      * @param ttyrecFrame The frame to add, or new value of the frame to alter.
      * @param index The index of the frame to alter, or the number of frames to
      * add one.
      */
-    public synchronized void setFrame(TtyrecFrame ttyrecFrame, int index) {
-        if (index != frames.size())
-            frames.set(index, ttyrecFrame);
-        else
-            frames.add(ttyrecFrame);
-        notifyAll(); // wake decoders waiting for new frames
+    public void setFrame(TtyrecFrame ttyrecFrame, int index) {
+        TtyrecFrame gone = frames.set(ttyrecFrame, index);
+        retainedFrameBytes.addAndGet(ttyrecFrame.getRetainedSize() -
+                (gone == null ? 0 : gone.getRetainedSize()));
+    }
+
+    /**
+     * Releases the frames before a given index, for a program that reads
+     * the ttyrec once from start to end and has finished with them, so that
+     * they can be garbage collected. The frames' indexes don't change, but
+     * the released frames (and their timestamps) can't be looked at any
+     * more, and lookups by time only find the frames kept.
+     * @param index The index of the first frame to keep.
+     * @see TtyrecSource#setRetentionLimit(long)
+     */
+    void discardFramesBefore(int index) {
+        List<TtyrecFrame> released = frames.discardBefore(index);
+        if (released.isEmpty()) return;
+        long bytes = 0;
+        for (TtyrecFrame f : released) {
+            bytes += f.getRetainedSize();
+            f.unlink();
+        }
+        retainedFrameBytes.addAndGet(-bytes);
+        // it'd keep the released frames' data otherwise
+        synchronized (bytesRegistry) {
+            bytesRegistry.clear();
+        }
+    }
+
+    /**
+     * Returns the index of the first frame that hasn't been released. This
+     * is 0 unless a program reading the ttyrec once through has asked for
+     * the frames it's finished with to be released.
+     * @return The index of the first frame that can be looked at.
+     */
+    public int getFirstRetainedFrame() {
+        return frames.first();
+    }
+
+    /**
+     * Estimates the memory used by the frames that haven't been released,
+     * not counting their terminal states.
+     * @return The estimated size, in bytes.
+     */
+    long getRetainedFrameBytes() {
+        return retainedFrameBytes.get();
+    }
+    /**
+     * Waits until the frame at a given index is different from a given frame;
+     * that is, until a frame is added at that index (if there was none), or
+     * the frame there is replaced. This can also return early if something
+     * else about the ttyrec that a decoder might be waiting for, such as the
+     * possible encodings, changes.
+     * @param index The index of the frame to wait for.
+     * @param seen The frame that the caller saw at that index, or null if
+     * there wasn't one.
+     * @throws InterruptedException If the calling thread is interrupted.
+     */
+    public void awaitFrameChange(int index, TtyrecFrame seen)
+            throws InterruptedException {
+        frames.awaitChange(index, seen);
     }
     /**
      * Gets the frame at (or before, if no frame is exactly at) the
@@ -406,24 +476,45 @@ public class Ttyrec {
      * @param time The time in seconds.
      * @return The frame at or before the given time.
      */
-    public synchronized int getFrameIndexAtRelativeTime(double time) {
-        // For efficiency, do a binary search on frame times.
-        int searchDistance = frames.size();
-        if (searchDistance == 0) return 0;
-        int currentIndex = 0;
-        while (searchDistance > 1) {
-            double t = frames.get(currentIndex).getRelativeTimestamp();
-            if (t == time) return currentIndex;
-            searchDistance = (searchDistance + 1) / 2;
-            if (t < time) currentIndex += searchDistance;
-            else currentIndex -= searchDistance;
-            if (currentIndex < 0) currentIndex = 0;
-            if (currentIndex >= frames.size())
-                currentIndex = frames.size() - 1;
-        }
-        if (frames.get(currentIndex).getRelativeTimestamp() > time)
-            currentIndex--;
-        return currentIndex;
+    public int getFrameIndexAtRelativeTime(double time) {
+        if (frames.size() == 0) return 0;
+        return frames.indexAtOrBefore(FrameTable.toMicros(time));
+    }
+    /**
+     * Returns the frames whose timestamps lie within a given range of times,
+     * measured relative to the start of the recording. Only frames that
+     * exist when this is called are included.
+     * @param from The start of the range in seconds, inclusive.
+     * @param to The end of the range in seconds, inclusive.
+     * @return The frames in the range, in order.
+     */
+    public Iterable<TtyrecFrame> getFramesBetweenRelativeTimes(
+            double from, double to) {
+        final int first = frames.indexAtOrAfter(FrameTable.toMicros(from));
+        final int last = frames.indexAtOrBefore(FrameTable.toMicros(to));
+        return () -> frames.iterator(first, last + 1);
+    }
+    /**
+     * Returns the number of frames whose timestamps lie within a given range
+     * of times, without looking at the frames themselves.
+     * @param from The start of the range in seconds, inclusive.
+     * @param to The end of the range in seconds, inclusive.
+     * @return The number of frames in the range.
+     */
+    public int countFramesBetweenRelativeTimes(double from, double to) {
+        int first = frames.indexAtOrAfter(FrameTable.toMicros(from));
+        int last = frames.indexAtOrBefore(FrameTable.toMicros(to));
+        return Math.max(0, last + 1 - first);
+    }
+    /**
+     * Returns the timestamp of the frame at the given index, relative to the
+     * start of the recording. This is the same as the frame's own relative
+     * timestamp (to the microsecond), but doesn't need to look at the frame.
+     * @param i The index of the frame.
+     * @return The frame's time in seconds.
+     */
+    public double getFrameRelativeTime(int i) {
+        return frames.getTime(i) / 1000000.0;
     }
     /**
      * Returns the frame at the given index. Note that the first frame is 0 in
@@ -461,10 +552,76 @@ public class Ttyrec {
      */
     public void setWantedFrame(int wantedFrame) {
         this.wantedFrame = wantedFrame;
+        startSeekTimer(wantedFrame);
+    }
+
+    /**
+     * Specifies which frame is currently being shown to the user. Decoders
+     * use this to decide which part of the ttyrec to decode first.
+     * @param playheadFrame The index of the frame being shown.
+     */
+    public void setPlayheadFrame(int playheadFrame) {
+        if (this.playheadFrame == playheadFrame) return;
+        this.playheadFrame = playheadFrame;
+        startSeekTimer(playheadFrame);
+    }
+
+    /**
+     * Returns the frame that the user most urgently wants to see: the frame
+     * that should be jumped to once it exists, if there is one, otherwise
+     * the frame currently being shown.
+     * @return The index of the frame, or -1 if there is no such frame.
+     */
+    public int getDecodeTarget() {
+        int w = wantedFrame;
+        return w > -1 ? w : playheadFrame;
+    }
+
+    private synchronized void startSeekTimer(int frame) {
+        if (frame < 0 || frame == seekTarget) return;
+        if (frame < frames.size() &&
+                frames.get(frame).getTerminalState() != null) return;
+        seekTarget = frame;
+        seekStartedAt = System.nanoTime();
+    }
+
+    /**
+     * Tells the ttyrec that a frame now has a terminal state, so that the time
+     * taken to decode a frame the user was waiting for can be measured. This
+     * should be called by decoders.
+     * @param index The index of the frame that was decoded.
+     */
+    void frameDecoded(int index) {
+        if (index != seekTarget) return;
+        synchronized (this) {
+            if (index != seekTarget) return;
+            timeToFirstPixel = System.nanoTime() - seekStartedAt;
+            seekTarget = -1;
+        }
+        PlaybackEvents.SeekServed event = new PlaybackEvents.SeekServed();
+        if (event.shouldCommit()) {
+            event.frame = index;
+            event.latency = timeToFirstPixel;
+            event.commit();
+        }
+    }
+
+    /**
+     * Returns how long it took for the most recent frame that the user was
+     * waiting for (because they jumped to a frame that hadn't been decoded
+     * yet) to be decoded, measured from the jump to the moment a terminal
+     * state for the frame became available.
+     * @return The time taken in nanoseconds, or -1 if the user has never had
+     * to wait for a frame.
+     */
+    public long getTimeToFirstPixel() {
+        return timeToFirstPixel;
     }
     
     /**
-     * Encodes this ttyrec into a video.
+     * Encodes this ttyrec into a video. The frames are decoded as they're
+     * encoded, via a StreamingDecoder, so the ttyrec only needs to have been
+     * analyzed; the terminal states stored in the frames aren't used.
      * @param container The container to use for the video format.
      * @param codec The codec to use to encode the individual frames.
      * @param timer An object that calculates the timings to use in the video.
@@ -472,6 +629,6 @@ public class Ttyrec {
      */
     public void encodeVideo(VideoContainer container, VideoCodec codec,
             FrameTimeConvertor timer) {
-        container.encodeVideo(codec, frames.iterator(), timer);
+        container.encodeVideo(codec, new StreamingDecoder(this), timer);
     }
 }
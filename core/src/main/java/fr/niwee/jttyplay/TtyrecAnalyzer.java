@@ -57,6 +57,7 @@ public class TtyrecAnalyzer extends TtyrecWorker {
     private long byteloc;
     private InputStream outerInputStream;
     private InputStream innerInputStream;
+    private int rawloc = 0; // where innerInputStream is in the bytestream
 
     private final boolean formatDebug = false;
 
@@ -70,18 +71,26 @@ public class TtyrecAnalyzer extends TtyrecWorker {
                 ", this="+this+this.hashCode()+")");
     }
 
+    /**
+     * Gets the format this analyzer is trying to read its input as.
+     * @return The input format.
+     */
+    InputFormat getFormat() {
+        return format;
+    }
+
     private void buildInnerInputStream() {
         final ByteChunkList bytestream = workingFor.getBytestream();
         innerInputStream = new InputStream() {
 
-            private int loc = 0;
-
             @Override
             public int read() throws IOException {
-                while (loc > bytestream.size() - 1 &&
+                while (rawloc > bytestream.size() - 1 &&
                         !workingFor.knownLength()) {
                     try {
                         synchronized(bytestream) {
+                            workingFor.inputNeeded(TtyrecAnalyzer.this,
+                                    rawloc + 1);
                             bytestream.wait();
                         }
                     } catch (InterruptedException ex) {
@@ -90,7 +99,7 @@ public class TtyrecAnalyzer extends TtyrecWorker {
                 }
                 int i;
                 try {
-                    i = bytestream.get(loc++);
+                    i = bytestream.get(rawloc++);
                 } catch (IndexOutOfBoundsException ex) {
                     return -1;
                 }
@@ -102,10 +111,12 @@ public class TtyrecAnalyzer extends TtyrecWorker {
 
             @Override
             public int read(byte[] b, int off, int len) throws IOException {
-                while (loc > bytestream.size() - 1 &&
+                while (rawloc > bytestream.size() - 1 &&
                         !workingFor.knownLength()) {
                     try {
                         synchronized(bytestream) {
+                            workingFor.inputNeeded(TtyrecAnalyzer.this,
+                                    rawloc + 1);
                             bytestream.wait();
                         }
                     } catch (InterruptedException ex) {
@@ -114,8 +125,8 @@ public class TtyrecAnalyzer extends TtyrecWorker {
                 }
                 int i;
                 try {
-                    i = bytestream.getRestOfChunk(loc, b, off, len);
-                    loc += i;
+                    i = bytestream.getRestOfChunk(rawloc, b, off, len);
+                    rawloc += i;
                 } catch (IndexOutOfBoundsException ex) {
                     return -1;
                 }
@@ -124,7 +135,7 @@ public class TtyrecAnalyzer extends TtyrecWorker {
 
             @Override
             public int available() throws IOException {
-                return (bytestream.size() - loc);
+                return (bytestream.size() - rawloc);
             }
         };
     }
@@ -141,6 +152,7 @@ public class TtyrecAnalyzer extends TtyrecWorker {
         if (format != InputFormat.GZIP && format != InputFormat.BZIP2) {
             while (byteloc > bytestream.size() - length && !workingFor.knownLength()) {
                 synchronized(bytestream) {
+                    workingFor.inputNeeded(this, targetByteloc);
                     bytestream.wait();
                 }
             }
@@ -196,6 +208,7 @@ public class TtyrecAnalyzer extends TtyrecWorker {
     @Override
     public void run() {
         boolean validHeaderFound = false;
+        workingFor.getStatistics().formatAttempted();
         try {
             // Try to deduce length, if we can.
             long bytesTotal = Long.MAX_VALUE;
@@ -229,6 +242,7 @@ public class TtyrecAnalyzer extends TtyrecWorker {
             byte[] frameBuffer = null;
             int framesAnalyzed = 0;
             try {
+                frameLoop:
                 while (continueMainLoop() && byteloc < bytesTotal) {
                     setProgress(byteloc);
                     long length = -1;
@@ -243,13 +257,20 @@ public class TtyrecAnalyzer extends TtyrecWorker {
                          * Each is stored lsb first. */
                         synchronized (bytestream) {
                             for (int i = 0; i < 12; i++) {
+                                // checked before reading, so that data added
+                                // just before the source finished isn't missed
+                                boolean inputComplete =
+                                        i == 0 && workingFor.knownLength();
                                 try {
                                     ibunsigned[i] = getNextByte();
                                 } catch (NullPointerException ex) {
                                     if (i == 0) {
                                         // End of the file, and it's somewhere we
-                                        // were expecting; loop until something
+                                        // were expecting. If the source has
+                                        // finished reading, so have we;
+                                        // otherwise, loop until something
                                         // more happens.
+                                        if (inputComplete) break frameLoop;
                                         bytestream.wait(1000);
                                         i--;
                                         continue;
@@ -324,8 +345,10 @@ public class TtyrecAnalyzer extends TtyrecWorker {
                             // A check for knownLength is omitted here; may as
                             // well just go into an infinite loop if the input
                             while (byteloc > bytestream.size() - 1 &&
-                                    !workingFor.knownLength())
+                                    !workingFor.knownLength()) {
+                                workingFor.inputNeeded(this, byteloc + 1);
                                 bytestream.wait();
+                            }
                             // Are we at a definite EOF?
                             if (byteloc >= bytestream.size()) break;
                         }
@@ -382,17 +405,17 @@ public class TtyrecAnalyzer extends TtyrecWorker {
                     byte[] oldFrameData =
                             Arrays.copyOf(frameData,frameData.length);
                     if (couldBeUnicode || stream > 0) {
+                        byte[] fd = frameData;
+                        if (choppedOff[stream] != null) {
+                            fd = Arrays.copyOf(choppedOff[stream],
+                                    choppedOff[stream].length +
+                                    frameData.length);
+                            System.arraycopy(frameData, 0, fd,
+                                    choppedOff[stream].length,
+                                    frameData.length);
+                        }
                         for (int i = 0;; i++) {
                             try {
-                                byte[] fd = frameData;
-                                if (choppedOff[stream] != null) {
-                                    fd = Arrays.copyOf(choppedOff[stream],
-                                            choppedOff[stream].length +
-                                            frameData.length);
-                                    System.arraycopy(frameData, 0, fd,
-                                            choppedOff[stream].length,
-                                            frameData.length);
-                                }
                                 /* ignore the result, we're just checking for
                                  * validity... */
                                 Charset.forName("UTF-8").newDecoder().
@@ -404,8 +427,11 @@ public class TtyrecAnalyzer extends TtyrecWorker {
                                 break;
                             } catch (CharacterCodingException ex) {
                                 // Looks like it isn't UTF-8 in this frame, implying
-                                // that the whole ttyrec isn't Unicode.
-                                if (i < 4 && i < frameData.length) continue;
+                                // that the whole ttyrec isn't Unicode. (The
+                                // bytes held back can include ones from
+                                // earlier frames, if a character was split
+                                // more than once.)
+                                if (i < 4 && i < fd.length) continue;
                                 try {
                                     if (workingFor.debug) {
                                         System.err.println("\"" +
@@ -421,11 +447,24 @@ public class TtyrecAnalyzer extends TtyrecWorker {
                             }
                         }
                     }
+                    PlaybackEvents.FrameAnalyzed event =
+                            new PlaybackEvents.FrameAnalyzed();
                     rec.setFrame(previousFrame = new TtyrecFrame(previousFrame,
                             oldFrameData, oldChoppedOff,
                             choppedOff[stream].length, stream, timestamp,
                             sequenceNumber, rec.getBytesRegistry()),
                             framesAnalyzed++);
+                    if (event.shouldCommit()) {
+                        event.frame = framesAnalyzed - 1;
+                        event.stream = stream;
+                        event.analyzer = sequenceNumber;
+                        event.size = oldFrameData.length;
+                        event.commit();
+                    }
+                    // lets the source apply its retention and memory limits
+                    workingFor.inputRead(this, format == InputFormat.GZIP ||
+                            format == InputFormat.BZIP2 ? rawloc : byteloc);
+                    workingFor.frameAdded();
                     /* A sort of hack to determine autoresizing. The area of the
                      * ttyrec controlled by curses is normally marked with
                      * \e[?1049h .. \e[?1049l, but not all terminals support that.
@@ -448,9 +487,6 @@ public class TtyrecAnalyzer extends TtyrecWorker {
                     firstframe = false;
                     if (rec.getLength() < lastTimestamp - rec.getInitialTimestamp())
                         rec.setLength(lastTimestamp - rec.getInitialTimestamp());
-                    synchronized(rec) {
-                        rec.notifyAll();
-                    }
                 }
             } catch (ArrayIndexOutOfBoundsException ex) {
                 throw new TtyrecException("Unexpected EOF");
@@ -0,0 +1,539 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Processes whole archives of ttyrecs from the command line, several files
+ * at a time, and writes one line of JSON for each: its length, number of
+ * frames, time spent idle, terminal size and final screen. Each file is
+ * analyzed but not decoded; one terminal follows the analysis, working out
+ * the statistics and final screen as the frames are found, and the frames
+ * and input behind it are released as it goes. So the memory used for a
+ * file doesn't depend on its length. (If a file turns out not to be in the
+ * format it seemed to be in after some of it has been released, it's
+ * loaded again with everything kept.)
+ * <p>
+ * The memory cap is applied by the file's source whenever it allocates
+ * memory for the input, the frames or their terminal states, so a file
+ * can't go over it between checks.
+ * <p>
+ * With --validate, each file is also decoded (so every frame is kept), with
+ * stretches of it decoded in parallel and checked against a sequential
+ * decode; this is much slower, and is for testing the parallel decoder
+ * against real archives.
+ * <p>
+ * Run it with {@code -h} for the options. The JSON goes to standard output
+ * (or the -o file), and a summary of the throughput to standard error.
+ * @author ais523
+ */
+public class TtyrecBatch {
+
+    /** The fraction of the memory cap used as the retention limit when a
+     * file is streamed. A source uses a small multiple of its retention
+     * limit (the input and frames either side of the analysis and the
+     * terminal following it), so this leaves room for frames larger than
+     * the limit. */
+    private static final int RETENTION_SHARE = 8;
+
+    /** How many frames are processed between checks of the time limit. */
+    private static final int CHECK_FRAMES = 1024;
+
+    /** The names that are looked for when a directory is given. */
+    private static final String TTYREC_NAME =
+            "(?i).*\\.(ttyrec2?|tty)(\\.(gz|bz2))?";
+
+    private final int workers;
+    private final long memoryCap;
+    private final long timeoutMillis;
+    private final double idleThreshold;
+    private final Writer output;
+    private boolean validate = false;
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final AtomicInteger filesFailed = new AtomicInteger();
+    private final AtomicLong bytesDone = new AtomicLong();
+
+    /**
+     * Creates a batch processor.
+     * @param workers How many files to process at once.
+     * @param memoryCap The most memory, in bytes, that a file's input and
+     * frames (including their terminal states, if they're decoded) may use
+     * at once; files that need more are abandoned, with an error.
+     * @param timeoutMillis The longest time to spend on one file.
+     * @param idleThreshold Gaps between frames longer than this many
+     * seconds count as idle time.
+     * @param output Where to write the JSON.
+     */
+    public TtyrecBatch(int workers, long memoryCap, long timeoutMillis,
+            double idleThreshold, Writer output) {
+        if (workers < 1)
+            throw new IllegalArgumentException("need at least one worker");
+        this.workers = workers;
+        this.memoryCap = memoryCap;
+        this.timeoutMillis = timeoutMillis;
+        this.idleThreshold = idleThreshold;
+        this.output = output;
+    }
+
+    /**
+     * Specifies whether files should also be decoded, checking that
+     * decoding in parallel gives the same results as decoding sequentially.
+     * This turns on parallel decoding and its validation for every decoder
+     * created from now on, not just this processor's.
+     * @param validate True to check the parallel decoder.
+     * @see TtyrecDecoder#setValidateParallelDecoding(boolean)
+     */
+    public void setValidate(boolean validate) {
+        this.validate = validate;
+        if (validate) {
+            TtyrecDecoder.setParallelDecoding(true);
+            TtyrecDecoder.setValidateParallelDecoding(true);
+        }
+    }
+
+    /**
+     * Finds the ttyrecs named by a command-line argument. Directories are
+     * searched recursively for files with ttyrec-like names; an argument
+     * containing wildcards is treated as a glob (with ** matching across
+     * directories); anything else is taken to be a file.
+     * @param arg The argument.
+     * @return The files found, in sorted order.
+     * @throws IOException If a directory couldn't be read.
+     */
+    public static List<File> expand(String arg) throws IOException {
+        File f = new File(arg);
+        if (f.isDirectory()) {
+            try (Stream<Path> s = Files.walk(f.toPath())) {
+                return s.filter(Files::isRegularFile).
+                        filter(p -> p.getFileName().toString().
+                        matches(TTYREC_NAME)).
+                        sorted().map(Path::toFile).
+                        collect(Collectors.toList());
+            }
+        }
+        int wild = indexOfWildcard(arg);
+        if (wild < 0) {
+            List<File> l = new ArrayList<>();
+            l.add(f);
+            return l;
+        }
+        int slash = arg.lastIndexOf(File.separatorChar, wild);
+        if (File.separatorChar != '/')
+            slash = Math.max(slash, arg.lastIndexOf('/', wild));
+        Path base = Paths.get(slash < 0 ? "" : arg.substring(0, slash + 1));
+        PathMatcher m = FileSystems.getDefault().getPathMatcher(
+                "glob:" + arg);
+        if (!Files.isDirectory(base.toAbsolutePath())) return new ArrayList<>();
+        try (Stream<Path> s = Files.walk(base)) {
+            return s.filter(Files::isRegularFile).filter(m::matches).
+                    sorted().map(Path::toFile).
+                    collect(Collectors.toList());
+        }
+    }
+
+    private static int indexOfWildcard(String s) {
+        for (int i = 0; i < s.length(); i++)
+            if ("*?[{".indexOf(s.charAt(i)) >= 0) return i;
+        return -1;
+    }
+
+    /**
+     * Processes a list of files, using up to the given number of workers
+     * at once, and writes a line of JSON for each. Lines are written in
+     * the order the files finish.
+     * @param files The files to process.
+     * @throws InterruptedException If interrupted while waiting for the
+     * workers.
+     */
+    public void run(List<File> files) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "TtyrecBatch worker");
+            t.setDaemon(true);
+            return t;
+        });
+        // bounds the number of files queued, not just those running, so
+        // that huge archives don't all get queued at once
+        Semaphore slots = new Semaphore(workers);
+        try {
+            for (File f : files) {
+                slots.acquire();
+                pool.execute(() -> {
+                    try {
+                        writeLine(process(f));
+                    } finally {
+                        slots.release();
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Processes a single file.
+     * @param f The file to process.
+     * @return A line of JSON describing the file.
+     */
+    public String process(File f) {
+        long started = System.nanoTime();
+        StringBuilder json = new StringBuilder("{\"file\":");
+        appendString(json, f.getPath());
+        long length = f.length();
+        json.append(",\"bytes\":").append(length);
+        String error = null;
+        if (!f.isFile() || !f.canRead()) {
+            error = "cannot read file";
+        } else {
+            long deadline = started +
+                    TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            try {
+                error = validate ? load(json, f, deadline) :
+                        stream(json, f, deadline);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                error = "interrupted";
+            } catch (RuntimeException ex) {
+                error = ex.toString();
+            }
+        }
+        if (error != null) {
+            json.append(",\"error\":");
+            appendString(json, error);
+            filesFailed.incrementAndGet();
+        }
+        json.append(",\"millis\":").append(TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - started)).append('}');
+        filesDone.incrementAndGet();
+        bytesDone.addAndGet(length);
+        return json.toString();
+    }
+
+    /**
+     * Creates a source for a file, limited to the memory cap.
+     */
+    private TtyrecSource open(File f) {
+        TtyrecSource source = new InputStreamTtyrecSource(
+                new InputStreamableFileWrapper(f, true));
+        source.setMemoryLimit(memoryCap);
+        return source;
+    }
+
+    private String timedOut() {
+        return "timed out after " + timeoutMillis + " ms";
+    }
+
+    /**
+     * Describes a file by following its analysis with one terminal, which
+     * releases the frames behind it. If the input had to be analyzed again
+     * after frames had been released, this falls back to load().
+     * @return null if the file was described, or an error message.
+     */
+    private String stream(StringBuilder json, File f, long deadline)
+            throws InterruptedException {
+        TtyrecSource source = open(f);
+        long limit = memoryCap / RETENTION_SHARE;
+        source.setAnalysisOnly(true);
+        source.setRetentionLimit(limit);
+        try (TtyrecLoader loader = new TtyrecLoader(source, false)) {
+            FollowingDecoder decoder = loader.follow(limit);
+            decoder.setDeadline(deadline);
+            int count = 0;
+            double idle = 0;
+            double previous = 0;
+            try {
+                while (decoder.hasNext()) {
+                    if (decoder.wasRestarted()) break;
+                    DecodedFrame frame = decoder.next();
+                    double time = frame.getRelativeTimestamp();
+                    if (count > 0 && time - previous > idleThreshold)
+                        idle += time - previous;
+                    previous = time;
+                    // writes the frame, so that the ones before it can go
+                    frame.getTerminalState();
+                    if (++count % CHECK_FRAMES == 0 &&
+                            System.nanoTime() - deadline > 0)
+                        return timedOut();
+                }
+            } finally {
+                loader.unfollow(decoder);
+            }
+            if (!decoder.wasRestarted() && !source.wasReanalysisRefused()) {
+                if (source.getFailure() != null) return source.getFailure();
+                if (!source.isAnalysisComplete()) return timedOut();
+                describe(json, source, count, idle, decoder.getTerminal());
+                return null;
+            }
+        }
+        // the frames needed to start again are gone, so keep them this time
+        return load(json, f, deadline);
+    }
+
+    /**
+     * Describes a file by loading the whole of it (and decoding it, when
+     * validating), then running one terminal through its frames.
+     * @return null if the file was described, or an error message.
+     */
+    private String load(StringBuilder json, File f, long deadline)
+            throws InterruptedException {
+        TtyrecSource source = open(f);
+        try (TtyrecLoader loader = new TtyrecLoader(source, validate)) {
+            if (!loader.awaitAnalysis(deadline - System.nanoTime(),
+                    TimeUnit.NANOSECONDS))
+                return timedOut();
+            if (validate && !loader.awaitDecode(
+                    deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                return timedOut();
+            if (source.getFailure() != null) return source.getFailure();
+            Ttyrec rec = loader.getTtyrec();
+            int count = rec.getFrameCount();
+            double idle = 0;
+            for (int i = 1; i < count; i++) {
+                double gap = rec.getFrameRelativeTime(i) -
+                        rec.getFrameRelativeTime(i - 1);
+                if (gap > idleThreshold) idle += gap;
+            }
+            vt320 screen = finalState(loader, deadline);
+            if (screen == null) return timedOut();
+            describe(json, source, count, idle, screen);
+            return null;
+        }
+    }
+
+    /**
+     * Runs one terminal through every frame of a file, unless that takes
+     * too long. This is what decodeFinalState() does, with time checks.
+     * @return The terminal state after the last frame, or null if the time
+     * limit was reached.
+     */
+    private static vt320 finalState(TtyrecLoader loader, long deadline) {
+        StreamingDecoder decoder = new StreamingDecoder(loader.getTtyrec());
+        DecodedFrame last = null;
+        for (int i = 1; decoder.hasNext(); i++) {
+            last = decoder.next();
+            if (i % CHECK_FRAMES != 0) continue;
+            // writes the frames so far to the terminal
+            last.getTerminalState();
+            if (System.nanoTime() - deadline > 0) return null;
+        }
+        if (last != null) last.getTerminalState();
+        return decoder.getTerminal();
+    }
+
+    /**
+     * Appends the description of a file that's been loaded to its JSON.
+     */
+    private void describe(StringBuilder json, TtyrecSource source,
+            int count, double idle, vt320 screen) {
+        Ttyrec rec = source.getTtyrec();
+        TtyrecAnalyzer analyzer = source.getLeadingEdgeAnalyze();
+        if (analyzer != null) {
+            json.append(",\"input\":");
+            appendString(json, analyzer.getFormat().toString());
+        }
+        json.append(",\"type\":");
+        appendString(json, rec.getFileType().toString());
+        json.append(",\"encoding\":");
+        appendString(json, rec.getActualEncoding().toString());
+        json.append(",\"frames\":").append(count);
+        json.append(",\"duration\":").append(seconds(rec.getLength()));
+        json.append(",\"idle\":").append(seconds(idle));
+        json.append(",\"rows\":").append(screen.getRows());
+        json.append(",\"columns\":").append(screen.getColumns());
+        json.append(",\"screen\":[");
+        for (int l = 0; l < screen.getRows(); l++) {
+            StringBuilder line = new StringBuilder(screen.getColumns());
+            for (int c = 0; c < screen.getColumns(); c++) {
+                char ch = screen.getChar(c, l);
+                line.append(ch == 0 ? ' ' : ch);
+            }
+            int end = line.length();
+            while (end > 0 && line.charAt(end - 1) == ' ') end--;
+            line.setLength(end);
+            if (l > 0) json.append(',');
+            appendString(json, line.toString());
+        }
+        json.append(']');
+    }
+
+    private static String seconds(double s) {
+        return String.format(Locale.ROOT, "%.3f", s);
+    }
+
+    private static void appendString(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') json.append('\\').append(c);
+            else if (c < 0x20 || (c >= 0xd800 && c < 0xe000) || c == 0x7f)
+                json.append(String.format("\\u%04x", (int) c));
+            else json.append(c);
+        }
+        json.append('"');
+    }
+
+    private void writeLine(String line) {
+        synchronized (output) {
+            try {
+                output.write(line);
+                output.write('\n');
+                output.flush();
+            } catch (IOException ex) {
+                System.err.println("Could not write output: " +
+                        ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns how many files have been processed so far.
+     * @return The number of files, including those that failed.
+     */
+    public int getFilesDone() {
+        return filesDone.get();
+    }
+
+    /**
+     * Returns how many files could not be processed.
+     * @return The number of files that had errors.
+     */
+    public int getFilesFailed() {
+        return filesFailed.get();
+    }
+
+    /**
+     * Returns the total size of the files processed so far.
+     * @return The number of bytes.
+     */
+    public long getBytesDone() {
+        return bytesDone.get();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: TtyrecBatch [options] file|directory|glob" +
+                "...\n" +
+                "Options:\n" +
+                "  -j workers  files to process at once (default: one per " +
+                "processor)\n" +
+                "  -m size     memory cap per file, e.g. 512M (default 512M)\n" +
+                "  -t seconds  time limit per file (default 600)\n" +
+                "  -i seconds  gaps longer than this count as idle " +
+                "(default 5)\n" +
+                "  -o file     write the JSON to a file, not standard output\n" +
+                "  --validate  also decode each file, checking parallel " +
+                "decoding against\n" +
+                "              sequential decoding\n" +
+                "Globs should be quoted, so that the shell doesn't expand " +
+                "them.");
+    }
+
+    /**
+     * Processes ttyrecs from the command line.
+     * @param args The command-line arguments; see usage().
+     */
+    public static void main(String[] args) {
+        int workers = Runtime.getRuntime().availableProcessors();
+        long memoryCap = 512L << 20;
+        long timeout = 600;
+        double idle = 5;
+        String outputName = null;
+        boolean validate = false;
+        List<String> inputs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String a = args[i];
+                if (a.equals("-h") || a.equals("--help")) {
+                    usage();
+                    return;
+                }
+                if (a.equals("--validate")) {
+                    validate = true;
+                    continue;
+                }
+                if (a.startsWith("-") && a.length() > 1 &&
+                        i + 1 >= args.length) {
+                    usage();
+                    System.exit(1);
+                }
+                if (a.equals("-j")) workers = Integer.parseInt(args[++i]);
+                else if (a.equals("-m"))
+                    memoryCap = TtyrecGenerator.parseSize(args[++i]);
+                else if (a.equals("-t")) timeout = Long.parseLong(args[++i]);
+                else if (a.equals("-i")) idle = Double.parseDouble(args[++i]);
+                else if (a.equals("-o")) outputName = args[++i];
+                else inputs.add(a);
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+            System.err.println("Invalid argument: " + ex.getMessage());
+            usage();
+            System.exit(1);
+        }
+        if (inputs.isEmpty() || workers < 1) {
+            usage();
+            System.exit(1);
+        }
+        try {
+            List<File> files = new ArrayList<>();
+            for (String in : inputs) {
+                List<File> found = expand(in);
+                if (found.isEmpty())
+                    System.err.println("No ttyrecs found for " + in);
+                files.addAll(found);
+            }
+            Writer w = new BufferedWriter(new OutputStreamWriter(
+                    outputName == null ? System.out :
+                    new FileOutputStream(outputName), StandardCharsets.UTF_8));
+            TtyrecBatch batch = new TtyrecBatch(workers, memoryCap,
+                    timeout * 1000, idle, w);
+            batch.setValidate(validate);
+            long started = System.nanoTime();
+            batch.run(files);
+            w.close();
+            double elapsed = (System.nanoTime() - started) / 1e9;
+            double mb = batch.getBytesDone() / 1048576.0;
+            System.err.println(String.format(Locale.ROOT,
+                    "%d files (%d failed), %.1f MB in %.2f s: " +
+                    "%.2f files/s, %.2f MB/s", batch.getFilesDone(),
+                    batch.getFilesFailed(), mb, elapsed,
+                    batch.getFilesDone() / elapsed, mb / elapsed));
+            long mismatches = TtyrecDecoder.getParallelDecodingMismatches();
+            if (validate)
+                System.err.println(mismatches + " frames decoded " +
+                        "differently in parallel");
+            System.exit(batch.getFilesFailed() == 0 && mismatches == 0 ?
+                    0 : 2);
+        } catch (IOException ex) {
+            System.err.println("Could not process input: " + ex.getMessage());
+            System.exit(1);
+        } catch (InterruptedException ex) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+/**
+ *
+ * @author ais523
+ */
+public class TtyrecDecoder extends TtyrecWorker {
+
+    private int analyzerSeq;
+    private int rows;
+    private int columns;
+    private Ttyrec.Encoding encodingCreatedWith;
+
+    /**
+     * Creates a new ttyrec decoder.
+     * @param source The TtyrecSource of the ttyrec to decode.
+     * @param seq The sequence number of this worker.
+     * @param rows The number of rows to decode for.
+     * @param columns The number of columns to decode for.
+     */
+    public TtyrecDecoder(TtyrecSource source, int seq, int rows, int columns) {
+        super(source, seq, "Ttyrec Decoder");
+        this.analyzerSeq = source.getAnalyzerSequenceNumber();
+        this.rows = rows;
+        this.columns = columns;
+        this.encodingCreatedWith = source.getTtyrec().getActualEncoding();
+        if (source.debug)
+            System.out.println("Decoder created! (workingFor="+
+                workingFor+workingFor.hashCode()+
+                ", this="+this+this.hashCode()+")");
+    }
+    /**
+     * Creates a new ttyrec decoder based on this one, designed to redecode
+     * everything from the start.
+     * @param analyzerSeq The sequence number of the analyzer to redecode from.
+     * @return The new decoder.
+     */
+    public TtyrecDecoder cloneWithAnalyzerSequence(int analyzerSeq) {
+        return new TtyrecDecoder(workingFor, workingFor.getNextSequenceNumber(),
+                24, 80);
+    }
+
+    private void backportOnFormatMismatch() {
+        Ttyrec rec = workingFor.getTtyrec();
+        if (this.encodingCreatedWith != rec.getActualEncoding()) {
+            // The backport is started outside the lock; starting it may
+            // wait for an older backport, which may in turn be trying to
+            // stop this decoder.
+            TtyrecDecoder replacement = null;
+            synchronized (this) {
+                if (!this.isHalted) {
+                    this.encodingCreatedWith = rec.getActualEncoding();
+                    replacement = new TtyrecDecoder(workingFor,
+                            workingFor.getNextSequenceNumber(),
+                            rows, columns);
+                }
+            }
+            if (replacement != null)
+                workingFor.newBackportWorkerOfType(this, replacement);
+        }
+    }
+
+    /**
+     * Decodes each frame of the ttyrec in turn.
+     */
+    @Override
+    public void run() {
+        ParallelSegmentDecoder parallel = null;
+        if (parallelDecoding)
+            parallel = new ParallelSegmentDecoder(workingFor.getTtyrec());
+        try {
+            decodeAll(parallel);
+        } finally {
+            if (parallel != null) parallel.cancel();
+        }
+    }
+
+    private void decodeAll(ParallelSegmentDecoder parallel) {
+        Ttyrec rec = workingFor.getTtyrec();
+        int afc = 0;
+        setProgress(0);
+        while (continueMainLoop()) {
+            seekIfNeeded(afc);
+            // We need to wait until a frame is available that was
+            // generated by either the worker we're decoding for, or a
+            // newer one.
+            while (rec.getFrameCount() <= afc ||
+                   rec.getFrameAtIndex(afc).getAnalyzerSeqNumber() < analyzerSeq) {
+                backportOnFormatMismatch();
+                try {
+                    rec.awaitFrameChange(afc, afc < rec.getFrameCount() ?
+                            rec.getFrameAtIndex(afc) : null);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+            TtyrecFrame frame = rec.getFrameAtIndex(afc);
+            if (frame.getDecoderSeqNumber() > sequenceNumber) {
+                // We've been overtaken.
+                subsume();
+                return;
+            }
+            if (rec.getForcedHeight() != -1) {
+                rows = rec.getForcedHeight();
+                columns = rec.getForcedWidth();
+            }
+            PlaybackEvents.FrameDecoded event =
+                    new PlaybackEvents.FrameDecoded();
+            event.begin();
+            long started = System.nanoTime();
+            if (parallel == null) {
+                if (frame.getDecoderSeqNumber() < sequenceNumber)
+                    install(frame, frame.decodeAfterPrevious(
+                            rec.getActualEncoding(), rows, columns,
+                            rec.getForcedHeight() != -1,
+                            rec.containsAutoResizeRangeInformation(
+                            analyzerSeq, sequenceNumber)),
+                            sequenceNumber);
+            } else
+                decodeFrameInParallel(parallel, afc, frame);
+            workingFor.getStatistics().frameDecoded(
+                    System.nanoTime() - started);
+            if (event.shouldCommit()) {
+                event.frame = afc;
+                event.decoder = sequenceNumber;
+                event.commit();
+            }
+            rec.frameDecoded(afc);
+            switch (frame.getTerminalState().getCharacterEncodingOverride()) {
+                case Latin1:
+                    rec.setNotUTF8();
+                    rec.setNotIBM();
+                    break;
+                case UTF8:
+                    rec.setNotLatin1();
+                    rec.setNotIBM();
+                    break;
+            }
+            backportOnFormatMismatch();
+            if (frame.getTerminalState().isAutoResize()) {
+                int c = frame.getTerminalState().getColumns();
+                int r = frame.getTerminalState().getRows();
+                if ((c > columns || r > rows) &&
+                        rec.getForcedHeight() == -1) {
+                    // arbitrary: 500x500 or more means something went wrong
+                    // probably the recording was made on a terminal where
+                    // curses can't be distinguished from non-curses
+                    // so set to 80x24 nonresizing; maybe the user will add
+                    // an override
+                    if (c >= 500 || r >= 500) {
+                        TtyrecDecoder replacement = null;
+                        synchronized (this) {
+                            if (!this.isHalted) {
+                                int s = workingFor.getNextSequenceNumber();
+                                rec.overrideContainsAutoResizeRangeInformation(s);
+                                replacement =
+                                        new TtyrecDecoder(workingFor, s, 24, 80);
+                            }
+                        }
+                        if (replacement != null)
+                            workingFor.newBackportWorkerOfType(this, replacement);
+                        stopWorking(); // can't continue meaningfully
+                    } else {
+                        // We expand the state of this decoder, and start a
+                        // backport decoder to fix the start of the encoding to
+                        // the same size as the end.
+                        columns = c;
+                        rows = r;
+                        TtyrecDecoder replacement = null;
+                        synchronized (this) {
+                            if (!this.isHalted)
+                                replacement = new TtyrecDecoder(workingFor,
+                                        workingFor.getNextSequenceNumber(), r, c);
+                        }
+                        if (replacement != null)
+                            workingFor.newBackportWorkerOfType(this, replacement);
+                    }
+                } else
+                    afc++;
+            } else
+                afc++;
+            setProgress(afc);
+            if (this.isInterrupted()) return;
+        }
+    }
+
+    /**
+     * Stores the result of decoding a frame, keeping track of how much
+     * memory the frame's terminal state uses (and so checking the source's
+     * memory limit).
+     * @param frame The frame that was decoded.
+     * @param r The result of decoding it.
+     * @param seq The sequence number to store the result under.
+     */
+    private void install(TtyrecFrame frame, TtyrecFrame.DecodeResult r,
+                         int seq) {
+        long delta = frame.installDecodeResult(r, seq);
+        if (delta == Long.MIN_VALUE) return;
+        workingFor.getStatistics().stateBytesChanged(delta);
+        r.countRowInterning(workingFor.getStatistics());
+        if (delta > 0) workingFor.reserveMemory(0);
+    }
+
+    /**
+     * Decodes one frame, using the results of a parallel decode where
+     * they're known to be correct.
+     * @param parallel The parallel decoder for this decoder.
+     * @param afc The index of the frame to decode.
+     * @param frame The frame to decode.
+     */
+    private void decodeFrameInParallel(ParallelSegmentDecoder parallel,
+                                       int afc, TtyrecFrame frame) {
+        if (frame.getDecoderSeqNumber() >= sequenceNumber) return;
+        Ttyrec rec = workingFor.getTtyrec();
+        Ttyrec.Encoding encoding = rec.getActualEncoding();
+        boolean sizeForced = rec.getForcedHeight() != -1;
+        boolean autoAutoResize = rec.containsAutoResizeRangeInformation(
+                analyzerSeq, sequenceNumber);
+        vt320 latest = afc == 0 ? null :
+                rec.getFrameAtIndex(afc - 1).getTerminalState();
+        parallel.scheduleAhead(afc, latest, encoding, rows, columns,
+                sizeForced, autoAutoResize);
+        TtyrecFrame.DecodeResult r = parallel.takeResult(afc, frame);
+        if (r == null) {
+            r = frame.decodeAfterPrevious(encoding, rows, columns,
+                    sizeForced, autoAutoResize);
+            r = parallel.checkKeyframe(afc, frame, r);
+        } else if (validateParallelDecoding) {
+            TtyrecFrame.DecodeResult s = frame.decodeAfterPrevious(
+                    encoding, rows, columns, sizeForced, autoAutoResize);
+            if (!s.getState().hasSameStateAs(r.getState())) {
+                synchronized (TtyrecDecoder.class) {
+                    parallelDecodingMismatches++;
+                }
+                System.err.println("Parallel decode of frame " + (afc + 1) +
+                        " differs from sequential decode");
+                parallel.discard(afc);
+                r = s;
+            }
+        }
+        install(frame, r, sequenceNumber);
+    }
+
+    /**
+     * If the frame the user wants to see is more than this many frames ahead
+     * of the decoder, it's decoded provisionally rather than waiting for the
+     * decoder to get there.
+     */
+    private static final int SEEK_DISTANCE = 256;
+    /**
+     * How many frames before and after the wanted frame to give a terminal
+     * state when seeking, so that the user can step or play from there.
+     */
+    private static final int SEEK_FRAMES_BEFORE = 16;
+    private static final int SEEK_FRAMES_AFTER = 256;
+    /**
+     * The decoder sequence number used for provisional decodes; it's lower
+     * than that of any decoder, so any decoder will overwrite them.
+     */
+    private static final int PROVISIONAL_SEQUENCE_NUMBER = 0;
+
+    /**
+     * If the user wants to see a frame that's far ahead of this decoder and
+     * hasn't been decoded yet, decodes the frames around it provisionally,
+     * so that something can be shown straight away. The decoder will
+     * overwrite the provisional decodes with accurate ones when it gets
+     * there.
+     * <p>
+     * To get there quickly, this starts from the nearest frame before the
+     * wanted one that either has been decoded, or resets the screen; in the
+     * latter case, it assumes that the terminal modes are the same as in
+     * the most recent frame this decoder has decoded. Frames that are far
+     * from the wanted frame are decoded into a single terminal without
+     * keeping their states, which is much faster than decoding them
+     * properly.
+     * @param afc The frame this decoder is about to decode.
+     */
+    private void seekIfNeeded(int afc) {
+        Ttyrec rec = workingFor.getTtyrec();
+        int target = rec.getDecodeTarget();
+        if (target - afc <= SEEK_DISTANCE) return;
+        if (target >= rec.getFrameCount()) return;
+        if (rec.getFrameAtIndex(target).getTerminalState() != null) return;
+        Ttyrec.Encoding encoding = rec.getActualEncoding();
+        boolean sizeForced = rec.getForcedHeight() != -1;
+        boolean autoAutoResize = rec.containsAutoResizeRangeInformation(
+                analyzerSeq, sequenceNumber);
+        // Find somewhere to start from.
+        int start = target;
+        vt320 base = null;
+        while (start > afc) {
+            TtyrecFrame f = rec.getFrameAtIndex(start);
+            if (f.isNaturalKeyframe()) break;
+            vt320 t = rec.getFrameAtIndex(start - 1).getTerminalState();
+            if (t != null) {
+                base = t;
+                break;
+            }
+            start--;
+        }
+        if (base == null && afc > 0)
+            base = rec.getFrameAtIndex(afc - 1).getTerminalState();
+        // Skip over the frames that don't need a state.
+        int firstKept = Math.max(start, target - SEEK_FRAMES_BEFORE);
+        if (firstKept > start) {
+            vt320 t;
+            if (base == null) {
+                t = rec.getFrameAtIndex(start).decodeFrom(null, encoding,
+                        rows, columns, sizeForced, autoAutoResize).getState();
+                start++;
+            } else {
+                try {
+                    t = (vt320) base.clone();
+                } catch (CloneNotSupportedException ex) {
+                    throw new Error(ex.getMessage());
+                }
+            }
+            for (int i = start; i < firstKept; i++) {
+                rec.getFrameAtIndex(i).decodeInto(t, encoding);
+                if ((i & 1023) == 0 && (this.isInterrupted() ||
+                        rec.getDecodeTarget() != target)) return;
+            }
+            base = t;
+        }
+        // Decode the frames around the target properly.
+        int last = Math.min(target + SEEK_FRAMES_AFTER,
+                rec.getFrameCount() - 1);
+        for (int i = firstKept; i <= last; i++) {
+            TtyrecFrame f = rec.getFrameAtIndex(i);
+            if (f.getTerminalState() == null) {
+                install(f, f.decodeFrom(base, encoding, rows,
+                        columns, sizeForced, autoAutoResize),
+                        PROVISIONAL_SEQUENCE_NUMBER);
+                rec.frameDecoded(i);
+            }
+            base = f.getTerminalState();
+            // Let listeners know there's something new to show.
+            if (i == target) setProgress(afc);
+        }
+    }
+
+    private static volatile boolean parallelDecoding = false;
+    private static volatile boolean validateParallelDecoding = false;
+    private static long parallelDecodingMismatches = 0;
+
+    /**
+     * Specifies whether decoders created from now on should decode stretches
+     * of the ttyrec that start with a screen reset in parallel, ahead of
+     * the frame they're working on.
+     * @param parallelDecoding True to decode in parallel.
+     */
+    public static void setParallelDecoding(boolean parallelDecoding) {
+        TtyrecDecoder.parallelDecoding = parallelDecoding;
+    }
+
+    /**
+     * Queries whether decoders decode in parallel.
+     * @return True if parallel decoding is in use.
+     * @see #setParallelDecoding
+     */
+    public static boolean isParallelDecoding() {
+        return parallelDecoding;
+    }
+
+    /**
+     * Specifies whether frames decoded in parallel should also be decoded
+     * sequentially, to check that the two decodes agree. This is slower
+     * than not decoding in parallel at all, so is mostly useful for testing;
+     * disagreements are counted, reported on standard error, and resolved in
+     * favour of the sequential decode.
+     * @param validate True to check parallel decodes.
+     */
+    public static void setValidateParallelDecoding(boolean validate) {
+        TtyrecDecoder.validateParallelDecoding = validate;
+    }
+
+    /**
+     * Returns how many frames were decoded differently in parallel than
+     * sequentially, while parallel decodes were being checked.
+     * @return The number of mismatching frames seen so far.
+     * @see #setValidateParallelDecoding
+     */
+    public static synchronized long getParallelDecodingMismatches() {
+        return parallelDecodingMismatches;
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        if (workingFor.debug)
+            System.out.println("Decoder finalized! (workingFor="+
+                workingFor+workingFor.hashCode()+
+                ", this="+this+this.hashCode()+")");
+    }
+}
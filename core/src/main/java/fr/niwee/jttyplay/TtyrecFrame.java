@@ -7,10 +7,12 @@ package fr.niwee.jttyplay;
 
 import java.awt.Color;
 import java.awt.font.TextAttribute;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.text.AttributedString;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -21,19 +23,24 @@ import java.util.regex.Pattern;
  * Holds information about one frame of a ttyrec.
  * @author ais523
  */
-public class TtyrecFrame {
-    private final TtyrecFrame previous;
+public class TtyrecFrame implements DecodedFrame {
+    // not final, so that unlink() can let go of earlier frames
+    private TtyrecFrame previous;
     private final TtyrecFrame[] previousInStream;
     private final byte[] frameData; // the raw bytes that make up the frame
     private final byte[] unicodePrefix; // bytes to prepend for Unicode to work
     private final int unicodeChopEnding; // bytes to chop off for Unicode to work
     private final double relativeTimestamp;
     private vt320 terminalState;
+    private TerminalDamage damage; // what decoding changed on the screen
+    private WeakReference<vt320> damageBase; // the state damage is relative to
     private final int stream;
     private final int seqNumber; // sequence number of this frame
     private final int analyzerSeqNumber; // sequence number of the analyzer
     private int decoderSeqNumber; // sequence number of the analyzer
     private boolean dirty = true;
+    private int stateBytes = 0; // estimated size of terminalState
+    private final boolean naturalKeyframe; // resets the screen
 
     private final Map<Integer, byte[]> bytesRegistry;
 
@@ -44,6 +51,14 @@ public class TtyrecFrame {
      */
     public static final int MAX_STREAM_COUNT = 2;
 
+    /**
+     * An estimate of the memory each frame uses besides its data: the frame
+     * object, the arrays it refers to, and its entries in the frame table.
+     * (Measured at 140 to 180 bytes on a 64-bit JVM, depending on the size
+     * of the frames.)
+     */
+    static final int OVERHEAD = 192;
+
     //public static long created = 0;
     //public static long destroyed = 0;
 
@@ -57,7 +72,9 @@ public class TtyrecFrame {
      * middle of a UTF-8 character.
      * @param unicodeChopEnding The number of bytes that should be ignored at
      * the end of the frame when decoding it as UTF-8, maybe because the frame
-     * ends in the middle of a UTF-8 character.
+     * ends in the middle of a UTF-8 character. If a character is split over
+     * more than two frames, this can be more than the length of frameData,
+     * in which case the end of unicodePrefix is ignored too.
      * @param stream Which stream number in the ttyrec this frame represents.
      * Stream 0 is considered raw terminal data; stream 1 is considered binary
      * data that is not decoded in any way (and is shown to the user as a
@@ -94,6 +111,8 @@ public class TtyrecFrame {
         this.analyzerSeqNumber = analyzerSeqNumber;
         this.decoderSeqNumber = -1;
         this.unicodePrefix = unicodePrefix;
+        this.naturalKeyframe = stream == 0 && frameData != null &&
+                containsScreenReset(this.frameData);
         //System.out.println("Frames created: " + ++created);
     }
 
@@ -121,6 +140,31 @@ public class TtyrecFrame {
     public synchronized vt320 getTerminalState() {
         return terminalState;
     }
+    /**
+     * Returns the parts of the screen that changed when this frame was
+     * decoded, relative to the terminal state of the previous frame at the
+     * time. This is a full damage record for the first frame, and null if
+     * the frame hasn't been decoded yet.
+     * @return The damage done to the screen by this frame.
+     */
+    public synchronized TerminalDamage getDamage() {
+        return damage;
+    }
+    /**
+     * Returns the parts of the screen that changed when this frame was
+     * decoded, but only if the decode started from the given terminal state.
+     * This allows a caller that is displaying the previous frame to only
+     * update what changed, without being confused if the previous frame has
+     * been decoded again in the meantime.
+     * @param state The terminal state the damage should be relative to.
+     * @return The damage done to the screen by this frame, or null if it
+     * isn't relative to the given state.
+     */
+    public synchronized TerminalDamage getDamageSince(VDUBuffer state) {
+        if (damageBase == null || state == null || damageBase.get() != state)
+            return null;
+        return damage;
+    }
     /**
      * Queries this frame's stream number.
      * @return The stream number of this frame.
@@ -128,6 +172,13 @@ public class TtyrecFrame {
     public int getStream() {
         return stream;
     }
+    /**
+     * Queries how many bytes were recorded in this frame.
+     * @return The length of the frame's data.
+     */
+    public int getDataLength() {
+        return frameData.length;
+    }
     /**
      * Gets the sequence number of the analyzer that determined that this frame
      * existed.
@@ -186,38 +237,229 @@ public class TtyrecFrame {
             boolean sizeForced,
             boolean autoAutoResize, int decoderSeqNumber) {
         if (decoderSeqNumber <= this.decoderSeqNumber) return;
-        this.decoderSeqNumber = decoderSeqNumber;
-        if (previous == null) {
-            terminalState = new vt320();
-            terminalState.setScreenSize(columns, rows);
-            if (!autoAutoResize)
-                terminalState.setAutoResize(true);
-            if (sizeForced) {
-                terminalState.setAutoResize(false);
-                terminalState.setVetoAutoResize(true);
-            }
+        installDecodeResult(decodeAfterPrevious(encoding, rows, columns,
+                sizeForced, autoAutoResize), decoderSeqNumber);
+    }
+
+    /**
+     * The result of decoding a frame, which can be installed into the frame
+     * later (or thrown away, if it turns out not to be needed).
+     */
+    static final class DecodeResult {
+        private final vt320 state;
+        private final TerminalDamage damage;
+        private final WeakReference<vt320> damageBase;
+        private final int stateBytes;
+        private final int rowLookups;
+        private final int rowHits;
+
+        private DecodeResult(vt320 state, TerminalDamage damage,
+                             vt320 damageBase, int stateBytes,
+                             int rowLookups, int rowHits) {
+            this.state = state;
+            this.damage = damage;
+            this.damageBase =
+                    damageBase == null ? null : new WeakReference<>(damageBase);
+            this.stateBytes = stateBytes;
+            this.rowLookups = rowLookups;
+            this.rowHits = rowHits;
+        }
+
+        private DecodeResult(DecodeResult stateFrom, DecodeResult damageFrom) {
+            this.state = stateFrom.state;
+            this.damage = damageFrom.damage;
+            this.damageBase = damageFrom.damageBase;
+            this.stateBytes = stateFrom.stateBytes;
+            this.rowLookups = stateFrom.rowLookups;
+            this.rowHits = stateFrom.rowHits;
+        }
+
+        /**
+         * Gets the terminal state produced by the decode.
+         * @return The terminal state after the frame.
+         */
+        vt320 getState() {
+            return state;
+        }
+
+        /**
+         * Counts the screen rows that making the state read-only looked up
+         * in the shared row cache, towards a source's statistics.
+         * @param stats The statistics to add the counts to.
+         */
+        void countRowInterning(SourceStatistics stats) {
+            stats.rowsInterned(rowLookups, rowHits);
+        }
+
+        /**
+         * Creates a result that has the terminal state of this result, but
+         * the damage record of another. This is used when two decodes are
+         * known to produce the same state, to keep the state that other
+         * decodes have already been based on.
+         * @param damageFrom The result to take the damage record from.
+         * @return The combined result.
+         */
+        DecodeResult withDamageFrom(DecodeResult damageFrom) {
+            return new DecodeResult(this, damageFrom);
+        }
+    }
+
+    /**
+     * Creates the terminal state that a ttyrec starts in, before its first
+     * frame is decoded. The arguments have the same meaning as in
+     * decodeFrame.
+     */
+    static vt320 initialTerminalState(int rows, int columns,
+            boolean sizeForced, boolean autoAutoResize) {
+        vt320 t = new vt320();
+        t.setScreenSize(columns, rows);
+        if (!autoAutoResize)
+            t.setAutoResize(true);
+        if (sizeForced) {
+            t.setAutoResize(false);
+            t.setVetoAutoResize(true);
+        }
+        return t;
+    }
+
+    /**
+     * Decodes this frame on top of a given terminal state, without storing
+     * the result in the frame. This does not look at or change any state
+     * of the frame itself, so it can be called from any thread.
+     * @param previousState The terminal state to decode on top of (which is
+     * not modified), or null to decode from the state a ttyrec starts in.
+     * The other arguments have the same meaning as in decodeFrame.
+     * @return The result of the decode.
+     */
+    DecodeResult decodeFrom(vt320 previousState,
+            Ttyrec.Encoding encoding, int rows, int columns,
+            boolean sizeForced, boolean autoAutoResize) {
+        vt320 state;
+        if (previousState == null) {
+            state = initialTerminalState(rows, columns,
+                    sizeForced, autoAutoResize);
         } else {
             try {
-                terminalState = (vt320) previous.getTerminalState().clone();
+                state = (vt320) previousState.clone();
             } catch (CloneNotSupportedException ex) {
                 // Something has gone very wrong...
                 throw new Error(ex.getMessage());
             }
+            state.startDamageTracking();
         }
-        if (stream != 0) return; // nonzero streams don't need decoding
+        if (stream != 0) {
+            // nonzero streams don't need decoding
+            return new DecodeResult(state, state.finishDamageTracking(),
+                    previousState, 0, 0, 0);
+        }
+        decodeInto(state, encoding);
+        TerminalDamage damage = state.finishDamageTracking();
+        int retained = state.makeReadOnly();
+        return new DecodeResult(state, damage, previousState, retained,
+                state.getRowInternLookups(), state.getRowInternHits());
+    }
+
+    /**
+     * Writes the data of this frame to a terminal, changing it in place.
+     * This is much cheaper than decodeFrom, as the terminal doesn't need to
+     * be copied, so it's useful for skipping over frames whose terminal
+     * state won't be looked at.
+     * @param state The terminal to write to.
+     * @param encoding The encoding to decode the frame with.
+     */
+    void decodeInto(vt320 state, Ttyrec.Encoding encoding) {
+        if (stream != 0) return;
         if (encoding == Ttyrec.Encoding.IBM)
-            terminalState.setIBMCharset(true);
+            state.setIBMCharset(true);
         else
-            terminalState.setIBMCharset(false);
+            state.setIBMCharset(false);
         if (encoding == Ttyrec.Encoding.UTF8) {
-            terminalState.putString(getUnicodeData());
+            state.putString(getUnicodeData());
         } else {
             // Decoding as ISO-8859-1 turns bytes into codepoints literally,
             // because it's equal to Unicode for codepoints 0-255.
-            terminalState.putString(getRawData());
+            state.putString(getRawData());
+        }
+    }
+
+    /**
+     * Decodes this frame on top of the current terminal state of the
+     * previous frame, without storing the result in the frame. The
+     * arguments have the same meaning as in decodeFrame.
+     * @return The result of the decode.
+     */
+    DecodeResult decodeAfterPrevious(Ttyrec.Encoding encoding,
+            int rows, int columns, boolean sizeForced, boolean autoAutoResize) {
+        return decodeFrom(previous == null ? null : previous.getTerminalState(),
+                encoding, rows, columns, sizeForced, autoAutoResize);
+    }
+
+    /**
+     * Stores the result of decoding this frame, unless a decoder newer than
+     * the given one has already decoded it.
+     * @param r The result of the decode.
+     * @param decoderSeqNumber The sequence number of the decoder that the
+     * result is being stored for.
+     * @return The change in the estimated memory retained by this frame's
+     * terminal state, in bytes; or Long.MIN_VALUE if the result wasn't
+     * stored.
+     */
+    synchronized long installDecodeResult(DecodeResult r,
+                                          int decoderSeqNumber) {
+        if (decoderSeqNumber <= this.decoderSeqNumber) return Long.MIN_VALUE;
+        this.decoderSeqNumber = decoderSeqNumber;
+        terminalState = r.state;
+        damage = r.damage;
+        damageBase = r.damageBase;
+        long delta = (long) r.stateBytes - stateBytes;
+        stateBytes = r.stateBytes;
+        if (stream == 0) setDirty(true);
+        return delta;
+    }
+
+    /**
+     * Queries whether this frame resets the terminal to the extent that the
+     * screen afterwards is unlikely to depend on anything that happened
+     * before it, because it clears the screen and homes the cursor. (ESC c
+     * and switches to the alternate screen don't clear the screen in this
+     * terminal emulation, so they only count along with a clear.) This is
+     * only a hint; modes set earlier in the ttyrec could still affect the
+     * result.
+     * @return True if decoding could likely start afresh at this frame.
+     */
+    public boolean isNaturalKeyframe() {
+        return naturalKeyframe;
+    }
+
+    /**
+     * Looks for a screen clear together with a cursor home in raw frame data.
+     */
+    private static boolean containsScreenReset(byte[] data) {
+        boolean cleared = false;
+        boolean homed = false;
+        for (int i = 0; i + 1 < data.length; i++) {
+            if (data[i] != 27 || data[i+1] != '[') continue;
+            // Read a control sequence: parameters, then a final byte.
+            int j = i + 2;
+            while (j < data.length && data[j] >= 0x20 && data[j] < 0x40) j++;
+            if (j >= data.length) break;
+            String params = new String(data, i + 2, j - i - 2,
+                    StandardCharsets.ISO_8859_1);
+            switch (data[j]) {
+                case 'J':
+                    if (params.equals("2")) cleared = true;
+                    break;
+                case 'H':
+                case 'f':
+                    if (params.isEmpty() || params.equals(";") ||
+                        params.equals("1") || params.equals("1;1") ||
+                        params.equals(";1") || params.equals("1;"))
+                        homed = true;
+                    break;
+            }
+            i = j;
         }
-        terminalState.makeReadOnly();
-        setDirty(true);
+        return cleared && homed;
     }
 
     /**
@@ -287,12 +529,39 @@ public class TtyrecFrame {
         if (data == null) return null;
         Integer hc = Charset.forName("ISO-8859-1").
                 decode(ByteBuffer.wrap(data)).toString().hashCode();
-        byte[] s = bytesRegistry.get(hc);
-        if (s != null && Arrays.equals(s, data)) return s;
-        bytesRegistry.put(hc, data);
+        // the ttyrec clears the registry when frames are released
+        synchronized (bytesRegistry) {
+            byte[] s = bytesRegistry.get(hc);
+            if (s != null && Arrays.equals(s, data)) return s;
+            bytesRegistry.put(hc, data);
+        }
         return data;
     }
 
+    /**
+     * Estimates the memory this frame uses, not counting its terminal state
+     * (which the decoder keeps track of). Data shared with other frames is
+     * counted for each of them.
+     * @return The estimated size, in bytes.
+     */
+    long getRetainedSize() {
+        return OVERHEAD + (frameData == null ? 0 : frameData.length) +
+                unicodePrefix.length;
+    }
+
+    /**
+     * Forgets the earlier frames this frame refers to, so that once a ttyrec
+     * has released this frame, the frames before it can be garbage
+     * collected too (otherwise every frame would keep the whole ttyrec
+     * before it). The frame can't be decoded relative to the previous frame,
+     * or give annotations from before it, afterwards; so this is only done
+     * to frames that have been released.
+     */
+    void unlink() {
+        previous = null;
+        Arrays.fill(previousInStream, null);
+    }
+
     /**
      * Returns the data for this frame raw, encoding each byte of the input
      * string as one Latin-1 character.
@@ -313,12 +582,9 @@ public class TtyrecFrame {
      */
     private String getUnicodeData() {
         byte[] b;
-        if (unicodePrefix.length != 0 || unicodeChopEnding != 0) {
-            b = new byte[frameData.length + unicodePrefix.length - unicodeChopEnding];
-            System.arraycopy(unicodePrefix,0,b,0,unicodePrefix.length);
-            System.arraycopy(frameData,0,b,
-                    unicodePrefix.length,frameData.length - unicodeChopEnding);
-        } else b = frameData;
+        if (unicodePrefix.length != 0 || unicodeChopEnding != 0)
+            b = putUnicodeData(ByteBuffer.allocate(0)).array();
+        else b = frameData;
         String unicodeData;
         try {
             unicodeData = Charset.forName("UTF-8").newDecoder().
@@ -330,6 +596,40 @@ public class TtyrecFrame {
         return unicodeData;
     }
 
+    /**
+     * Returns the raw data of this frame. The returned array must not be
+     * modified.
+     * @return The bytes of the frame, as they were recorded.
+     */
+    byte[] getFrameData() {
+        return frameData;
+    }
+
+    /**
+     * Copies the bytes of this frame that are decoded as UTF-8 into a
+     * buffer: the frame's data, with the end of a character that started
+     * in the previous frame added at the start, and a character that ends
+     * in the next frame removed from the end. So the bytes copied from
+     * consecutive frames always consist of whole characters.
+     * @param buffer The buffer to copy to; it's written from its position.
+     * @return The buffer, or a larger copy of it if it didn't have room;
+     * its position is after the bytes copied.
+     */
+    ByteBuffer putUnicodeData(ByteBuffer buffer) {
+        int length = unicodePrefix.length + frameData.length -
+                unicodeChopEnding;
+        if (buffer.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(
+                    Math.max(buffer.position() + length,
+                    buffer.capacity() * 2));
+            buffer.flip();
+            buffer = larger.put(buffer);
+        }
+        int fromPrefix = Math.min(unicodePrefix.length, length);
+        return buffer.put(unicodePrefix, 0, fromPrefix).
+                put(frameData, 0, length - fromPrefix);
+    }
+
     private class AttributedStringAndNumber {
         private final AttributedString a;
         private final int n;
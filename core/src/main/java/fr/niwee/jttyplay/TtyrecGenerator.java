@@ -0,0 +1,651 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates synthetic ttyrecs, for testing and benchmarking Jettyplay on
+ * inputs that are large and reproducible (unlike real recordings, which are
+ * hard to come by in bulk and often can't be redistributed). The same
+ * profile, seed and terminal size always produce the same bytes, and the
+ * output is written as it's generated, so it can be arbitrarily large.
+ * <p>
+ * This can be used as a library, or from the command line; run it with
+ * {@code -h} for the options.
+ * @author ais523
+ */
+public class TtyrecGenerator {
+
+    /**
+     * The file formats the generator can write.
+     */
+    public enum Format {
+        /** A regular ttyrec. */
+        TTYREC(".ttyrec"),
+        /** A ttyrec with a second stream of annotations (.ttyrec2). */
+        MULTISTREAM(".ttyrec2"),
+        /** A regular ttyrec, compressed with gzip. */
+        GZIP(".ttyrec.gz"),
+        /** A regular ttyrec, compressed with bzip2. */
+        BZIP2(".ttyrec.bz2"),
+        /** The output of script(1), which has no timing information. */
+        SCRIPT(".script");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        /**
+         * Gets the file extension conventionally used for this format.
+         * @return The extension, including the leading dot.
+         */
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    /**
+     * The kinds of terminal session the generator can imitate.
+     */
+    public enum Profile {
+        /** Log output scrolling past, a few lines at a time. */
+        SCROLL,
+        /** A full-screen curses program: cursor movement, colours, and
+         * occasional complete redraws. */
+        CURSES,
+        /** Text that's mostly multibyte UTF-8, with characters often split
+         * between frames. */
+        UNICODE,
+        /** Very many frames of one or two bytes each, often with identical
+         * timestamps. */
+        TINY_FRAMES,
+        /** Short bursts of output separated by gaps of minutes or hours. */
+        IDLE_GAPS,
+        /** Frames of several megabytes each. */
+        GIANT_FRAMES,
+        /** A mixture of all the other profiles, switching every so often. */
+        MIXED
+    }
+
+    private static final long START_TIME = 1262304000L; // 2010-01-01
+    private static final long MAX_TIME = 0xf0000000L;
+
+    private static final String[] WORDS = {
+        "the", "dungeon", "level", "you", "see", "here", "a", "scroll",
+        "potion", "kill", "monster", "door", "open", "closed", "gold",
+        "pieces", "hits", "misses", "connection", "request", "worker",
+        "thread", "started", "finished", "error", "warning", "cache",
+        "miss", "flushed", "bytes", "frame", "decoded", "timeout"
+    };
+    private static final String[] LEVELS = {
+        "INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"
+    };
+    private static final String UNICODE_CHARS =
+            "αβγδεζηθικλμνξοπρστυφχψω" +
+            "абвгдежзийклмнопрстуфхцчшщыэюя" +
+            "日本語の文字列漢字平仮名片仮名東京大阪" +
+            "한국어문자열" +
+            "─│┌┐└┘├┤┬┴┼═║╔╗╚╝" +
+            "€£¥©®°±µ¶·»«¿" +
+            "→←↑↓⇒⇔∀∃∈∑√∞≠≤≥";
+
+    private final Profile profile;
+    private final long seed;
+    private final Random random;
+    private int rows = 24;
+    private int columns = 80;
+
+    private long time; // current time, in microseconds since the epoch
+    private long lineNumber = 0;
+    private boolean needRedraw = true;
+    private Profile mixedCurrent = Profile.SCROLL;
+    private int mixedRemaining = 0;
+    private byte[] pendingBytes = null; // for splitting UTF-8 across frames
+    private int pendingOffset = 0;
+
+    /**
+     * Creates a generator.
+     * @param profile The kind of session to imitate.
+     * @param seed The seed for the pseudorandom choices; the same seed always
+     * produces the same output.
+     */
+    public TtyrecGenerator(Profile profile, long seed) {
+        this.profile = profile;
+        this.seed = seed;
+        this.random = new Random(seed);
+        this.time = START_TIME * 1000000L;
+    }
+
+    /**
+     * Sets the size of the terminal that the generated output is meant for.
+     * This must be called before generating anything.
+     * @param rows The number of rows.
+     * @param columns The number of columns.
+     */
+    public void setTerminalSize(int rows, int columns) {
+        if (rows < 2 || columns < 10)
+            throw new IllegalArgumentException("Terminal too small");
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    /**
+     * Writes a generated ttyrec to a stream. Generation stops at the end of
+     * the first frame that takes the amount of uncompressed data written
+     * to at least maxBytes, or after maxFrames frames, whichever comes
+     * first. The stream is finished (for compressed formats) but not closed.
+     * @param out The stream to write to.
+     * @param format The format to write in.
+     * @param maxBytes The approximate number of bytes to write, before any
+     * compression.
+     * @param maxFrames The maximum number of frames to write.
+     * @return The number of frames written.
+     * @throws IOException If writing to the stream fails.
+     */
+    public long generate(OutputStream out, Format format, long maxBytes,
+                         long maxFrames) throws IOException {
+        OutputStream o;
+        GZIPOutputStream gzip = null;
+        BZip2OutputStream bzip2 = null;
+        if (format == Format.GZIP)
+            o = gzip = new GZIPOutputStream(out, 65536);
+        else if (format == Format.BZIP2)
+            o = bzip2 = new BZip2OutputStream(out);
+        else
+            o = out;
+        o = new BufferedOutputStream(o, 65536);
+        long written = 0;
+        long frames = 0;
+        if (format == Format.SCRIPT) {
+            byte[] header = ("Script started on " + describeTime() + "\n").
+                    getBytes(StandardCharsets.US_ASCII);
+            o.write(header);
+            written += header.length;
+        }
+        byte[] headerBytes = new byte[13];
+        while (written < maxBytes && frames < maxFrames) {
+            byte[] data;
+            int stream = 0;
+            if (format == Format.MULTISTREAM && random.nextInt(50) == 0) {
+                data = annotation();
+                stream = 1;
+            } else
+                data = nextFrame();
+            if (format == Format.SCRIPT) {
+                o.write(data);
+                written += data.length;
+            } else {
+                long s = time / 1000000L;
+                long us = time % 1000000L;
+                putInt(headerBytes, 0, s);
+                putInt(headerBytes, 4, us);
+                putInt(headerBytes, 8, data.length);
+                int headerLength = 12;
+                if (format == Format.MULTISTREAM)
+                    headerBytes[headerLength++] = (byte) stream;
+                o.write(headerBytes, 0, headerLength);
+                o.write(data);
+                written += headerLength + data.length;
+            }
+            frames++;
+            advanceTime();
+        }
+        if (format == Format.SCRIPT) {
+            o.write(("\nScript done on " + describeTime() + "\n").
+                    getBytes(StandardCharsets.US_ASCII));
+        }
+        o.flush();
+        if (gzip != null) gzip.finish();
+        if (bzip2 != null) bzip2.finish();
+        out.flush();
+        return frames;
+    }
+
+    /**
+     * Writes a generated ttyrec to a file. The arguments are as for
+     * generate(OutputStream, ...).
+     * @param file The file to create or overwrite.
+     * @param format The format to write in.
+     * @param maxBytes The approximate number of uncompressed bytes to write.
+     * @param maxFrames The maximum number of frames to write.
+     * @return The number of frames written.
+     * @throws IOException If writing to the file fails.
+     */
+    public long generate(File file, Format format, long maxBytes,
+                         long maxFrames) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            return generate(out, format, maxBytes, maxFrames);
+        }
+    }
+
+    /**
+     * Writes a corpus of test files to a directory: one for each profile in
+     * each format, named after the profile and format. Each file is
+     * generated from its own seed derived from the given one, so files can
+     * be regenerated individually.
+     * @param directory The directory to write to; it's created if needed.
+     * @param bytesPerFile The approximate uncompressed size of each file.
+     * @param seed The seed for the whole corpus.
+     * @throws IOException If writing fails.
+     */
+    public static void writeCorpus(File directory, long bytesPerFile,
+                                   long seed) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+        for (Profile p : Profile.values()) {
+            for (Format f : Format.values()) {
+                long fileSeed = seed * 31 + p.ordinal() * 7 + f.ordinal();
+                File file = new File(directory,
+                        p.name().toLowerCase(Locale.ROOT) + f.getExtension());
+                new TtyrecGenerator(p, fileSeed).generate(file, f,
+                        bytesPerFile, Long.MAX_VALUE);
+            }
+        }
+    }
+
+    /**
+     * Checks that Jettyplay reads back what the generator writes: generates
+     * a ttyrec with each profile, loads it, and checks that it has as many
+     * frames as were written, and is detected as UTF-8 (which all the
+     * profiles' output is).
+     * @param bytesPerFile The approximate uncompressed size of each file.
+     * @param seed The seed to generate the files from.
+     * @param report Where to write a line about each profile.
+     * @return True if every profile's output loaded correctly.
+     * @throws IOException If the temporary files can't be written.
+     * @throws InterruptedException If the thread is interrupted while
+     * waiting for a file to load.
+     */
+    public static boolean checkProfiles(long bytesPerFile, long seed,
+            PrintStream report) throws IOException, InterruptedException {
+        boolean ok = true;
+        for (Profile p : Profile.values()) {
+            File file = File.createTempFile("jettyplay-check", ".ttyrec");
+            try {
+                long written = new TtyrecGenerator(p, seed).generate(file,
+                        Format.TTYREC, bytesPerFile, Long.MAX_VALUE);
+                String problem = null;
+                try (TtyrecLoader loader = new TtyrecLoader(
+                        new InputStreamableFileWrapper(file, true), false)) {
+                    Ttyrec rec = loader.getTtyrec();
+                    if (!loader.awaitAnalysis(5, TimeUnit.MINUTES))
+                        problem = "timed out";
+                    else if (rec.getFrameCount() != written)
+                        problem = "read " + rec.getFrameCount() +
+                                " frames, expected " + written;
+                    else if (rec.getActualEncoding() != Ttyrec.Encoding.UTF8)
+                        problem = "detected as " + rec.getActualEncoding() +
+                                ", expected UTF8";
+                }
+                report.println(p.name().toLowerCase(Locale.ROOT) + ": " +
+                        (problem == null ? "ok, " + written + " frames" :
+                        problem));
+                if (problem != null) ok = false;
+            } finally {
+                file.delete();
+            }
+        }
+        return ok;
+    }
+
+    private static void putInt(byte[] b, int offset, long value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >>> 8);
+        b[offset + 2] = (byte) (value >>> 16);
+        b[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private String describeTime() {
+        return String.format(Locale.ROOT, "%1$tF %1$tT+00:00",
+                new Date(time / 1000L));
+    }
+
+    private Profile currentProfile() {
+        if (profile != Profile.MIXED) return profile;
+        if (mixedRemaining-- <= 0 && pendingBytes == null) {
+            Profile[] choices = Profile.values();
+            do {
+                mixedCurrent = choices[random.nextInt(choices.length)];
+            } while (mixedCurrent == Profile.MIXED ||
+                     (mixedCurrent == Profile.GIANT_FRAMES &&
+                      random.nextInt(10) != 0));
+            mixedRemaining = mixedCurrent == Profile.GIANT_FRAMES ?
+                    1 + random.nextInt(3) : 50 + random.nextInt(2000);
+            needRedraw = true;
+        }
+        return mixedCurrent;
+    }
+
+    private void advanceTime() {
+        long delay;
+        switch (currentProfileForTiming()) {
+            case TINY_FRAMES:
+                // Often the same timestamp, which Jettyplay has to fudge.
+                delay = random.nextInt(4) == 0 ? 0 : random.nextInt(2000);
+                break;
+            case IDLE_GAPS:
+                if (random.nextInt(20) == 0) {
+                    // minutes to hours
+                    delay = (60 + (long) random.nextInt(4 * 3600)) * 1000000L;
+                } else
+                    delay = random.nextInt(300000);
+                break;
+            case GIANT_FRAMES:
+                delay = 500000 + random.nextInt(5000000);
+                break;
+            default:
+                delay = 1000 + random.nextInt(random.nextInt(8) == 0 ?
+                        2000000 : 100000);
+                break;
+        }
+        // Keep the seconds within the 32 bits the format has room for.
+        if (time / 1000000L + delay / 1000000L > MAX_TIME)
+            delay = random.nextInt(1000);
+        time += delay;
+    }
+
+    private Profile currentProfileForTiming() {
+        return profile == Profile.MIXED ? mixedCurrent : profile;
+    }
+
+    private byte[] nextFrame() {
+        if (pendingBytes != null) return nextSplitFrame();
+        switch (currentProfile()) {
+            case SCROLL:
+                return scrollFrame(1 + random.nextInt(6));
+            case CURSES:
+                return cursesFrame();
+            case UNICODE:
+                pendingBytes = unicodeText().getBytes(StandardCharsets.UTF_8);
+                pendingOffset = 0;
+                return nextSplitFrame();
+            case TINY_FRAMES:
+                return tinyFrame();
+            case IDLE_GAPS:
+                return scrollFrame(1);
+            case GIANT_FRAMES:
+                return giantFrame();
+            default:
+                throw new AssertionError(profile);
+        }
+    }
+
+    private String logLine() {
+        StringBuilder sb = new StringBuilder();
+        long ms = time / 1000L;
+        appendDigits(sb, ms / 3600000L % 24, 2).append(':');
+        appendDigits(sb, ms / 60000L % 60, 2).append(':');
+        appendDigits(sb, ms / 1000L % 60, 2).append('.');
+        appendDigits(sb, ms % 1000L, 3).append(' ');
+        sb.append(LEVELS[random.nextInt(LEVELS.length)]).append(" [");
+        sb.append(WORDS[random.nextInt(WORDS.length)]).append("-");
+        sb.append(random.nextInt(16)).append("] #").append(lineNumber++);
+        int target = random.nextInt(columns * 2);
+        while (sb.length() < target)
+            sb.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+        return sb.toString();
+    }
+
+    private static StringBuilder appendDigits(StringBuilder sb, long value,
+                                              int digits) {
+        for (long d = 10; d < Math.pow(10, digits); d *= 10)
+            if (value < d) sb.append('0');
+        return sb.append(value);
+    }
+
+    private byte[] scrollFrame(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++)
+            sb.append(logLine()).append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void moveTo(StringBuilder sb, int row, int column) {
+        sb.append("\033[").append(row).append(';').append(column).append('H');
+    }
+
+    private void colour(StringBuilder sb) {
+        int r = random.nextInt(10);
+        if (r < 4) sb.append("\033[0m");
+        else if (r < 8) sb.append("\033[").append(31 + random.nextInt(7)).
+                append('m');
+        else sb.append("\033[1;").append(41 + random.nextInt(7)).append('m');
+    }
+
+    private byte[] cursesFrame() {
+        StringBuilder sb = new StringBuilder();
+        if (random.nextInt(40) == 0 || needRedraw) {
+            // A complete redraw.
+            if (needRedraw) sb.append("\033[?1049h");
+            needRedraw = false;
+            sb.append("\033[H\033[2J");
+            for (int r = 1; r < rows; r++) {
+                moveTo(sb, r, 1);
+                colour(sb);
+                for (int c = 0; c < columns; c++)
+                    sb.append(random.nextInt(5) == 0 ? '#' :
+                              random.nextInt(3) == 0 ? ' ' : '.');
+            }
+        } else {
+            int changes = 1 + random.nextInt(12);
+            for (int i = 0; i < changes; i++) {
+                moveTo(sb, 1 + random.nextInt(rows - 1),
+                        1 + random.nextInt(columns - 4));
+                colour(sb);
+                sb.append((char) ('@' + random.nextInt(58)));
+                if (random.nextInt(4) == 0)
+                    sb.append("\033[K");
+            }
+        }
+        // The status line.
+        moveTo(sb, rows, 1);
+        sb.append("\033[0mDlvl:").append(1 + random.nextInt(50)).
+                append(" $:").append(random.nextInt(10000)).
+                append(" HP:").append(random.nextInt(100)).append("(100)");
+        sb.append("\033[K");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private String unicodeText() {
+        StringBuilder sb = new StringBuilder();
+        int lines = 1 + random.nextInt(4);
+        for (int l = 0; l < lines; l++) {
+            int length = random.nextInt(columns - 1);
+            for (int i = 0; i < length; i++) {
+                if (random.nextInt(6) == 0) sb.append(' ');
+                else sb.append(UNICODE_CHARS.charAt(
+                        random.nextInt(UNICODE_CHARS.length())));
+            }
+            sb.append("\r\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the next part of the pending bytes, cutting them at an
+     * arbitrary byte rather than at a character boundary.
+     */
+    private byte[] nextSplitFrame() {
+        int left = pendingBytes.length - pendingOffset;
+        int n = random.nextInt(3) == 0 ? 1 + random.nextInt(left) : left;
+        byte[] b = new byte[n];
+        System.arraycopy(pendingBytes, pendingOffset, b, 0, n);
+        pendingOffset += n;
+        if (pendingOffset == pendingBytes.length) pendingBytes = null;
+        return b;
+    }
+
+    private byte[] tinyFrame() {
+        int r = random.nextInt(20);
+        if (r == 0) return new byte[]{'\r', '\n'};
+        if (r == 1) return new byte[]{'\b'};
+        if (r == 2) return new byte[]{(byte) ('a' + random.nextInt(26)),
+                                      (byte) ('a' + random.nextInt(26))};
+        return new byte[]{(byte) (' ' + random.nextInt(95))};
+    }
+
+    private byte[] giantFrame() {
+        int size = (1 << 20) + random.nextInt(7 << 20);
+        StringBuilder sb = new StringBuilder(size + columns * 2);
+        while (sb.length() < size)
+            sb.append(logLine()).append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private byte[] annotation() {
+        return ("<" + WORDS[random.nextInt(WORDS.length)] + "> " +
+                WORDS[random.nextInt(WORDS.length)] + " " +
+                WORDS[random.nextInt(WORDS.length)] + "\n").
+                getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public String toString() {
+        return "TtyrecGenerator[" + profile + ", seed " + seed + ", " +
+                columns + "x" + rows + "]";
+    }
+
+    /**
+     * Parses a size given on the command line, such as 20G.
+     * @param s A number, optionally followed by K, M or G.
+     * @return The size in bytes.
+     */
+    static long parseSize(String s) {
+        long multiplier = 1;
+        char last = Character.toUpperCase(s.charAt(s.length() - 1));
+        if (last == 'K') multiplier = 1L << 10;
+        if (last == 'M') multiplier = 1L << 20;
+        if (last == 'G') multiplier = 1L << 30;
+        if (multiplier != 1) s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) * multiplier;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: TtyrecGenerator [options] output-file\n" +
+                "       TtyrecGenerator [options] -c corpus-directory\n" +
+                "Options:\n" +
+                "  -p profile  scroll, curses, unicode, tiny_frames, " +
+                "idle_gaps,\n" +
+                "              giant_frames or mixed (default mixed)\n" +
+                "  -f format   ttyrec, multistream, gzip, bzip2 or script\n" +
+                "              (default: guessed from the file name)\n" +
+                "  -s seed     random seed (default 0)\n" +
+                "  -b size     uncompressed size, e.g. 500M or 20G " +
+                "(default 10M)\n" +
+                "  -n frames   maximum number of frames\n" +
+                "  -z RxC      terminal size (default 24x80)\n" +
+                "  -c dir      write one file per profile and format to dir\n" +
+                "  -t          check that each profile's output loads back " +
+                "correctly\n" +
+                "The output file can be - for standard output.");
+    }
+
+    private static Format guessFormat(String name) {
+        String n = name.toLowerCase(Locale.ROOT);
+        if (n.endsWith(".gz")) return Format.GZIP;
+        if (n.endsWith(".bz2")) return Format.BZIP2;
+        if (n.endsWith(".ttyrec2")) return Format.MULTISTREAM;
+        if (n.endsWith(".script") || n.endsWith(".txt")) return Format.SCRIPT;
+        return Format.TTYREC;
+    }
+
+    /**
+     * Generates a ttyrec (or a corpus of them) from the command line.
+     * @param args The command-line arguments; see usage().
+     */
+    public static void main(String[] args) {
+        Profile profile = Profile.MIXED;
+        Format format = null;
+        long seed = 0;
+        long bytes = 10L << 20;
+        long frames = Long.MAX_VALUE;
+        int rows = 24, columns = 80;
+        String corpus = null;
+        String output = null;
+        boolean check = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String a = args[i];
+                if (a.equals("-h") || a.equals("--help")) {
+                    usage();
+                    return;
+                }
+                if (a.equals("-t")) {
+                    check = true;
+                    continue;
+                }
+                if (a.startsWith("-") && a.length() > 1 &&
+                        i + 1 >= args.length) {
+                    usage();
+                    System.exit(1);
+                }
+                if (a.equals("-p")) profile = Profile.valueOf(
+                        args[++i].toUpperCase(Locale.ROOT));
+                else if (a.equals("-f")) format = Format.valueOf(
+                        args[++i].toUpperCase(Locale.ROOT));
+                else if (a.equals("-s")) seed = Long.parseLong(args[++i]);
+                else if (a.equals("-b")) bytes = parseSize(args[++i]);
+                else if (a.equals("-n")) frames = Long.parseLong(args[++i]);
+                else if (a.equals("-c")) corpus = args[++i];
+                else if (a.equals("-z")) {
+                    String[] rc = args[++i].toLowerCase(Locale.ROOT).
+                            split("x");
+                    rows = Integer.parseInt(rc[0]);
+                    columns = Integer.parseInt(rc[1]);
+                } else output = a;
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+            System.err.println("Invalid argument: " + ex.getMessage());
+            usage();
+            System.exit(1);
+        }
+        if (check) {
+            try {
+                System.exit(checkProfiles(bytes, seed, System.out) ? 0 : 1);
+            } catch (IOException | InterruptedException ex) {
+                System.err.println("Could not check profiles: " + ex);
+                System.exit(1);
+            }
+        }
+        try {
+            if (corpus != null) {
+                writeCorpus(new File(corpus), bytes, seed);
+                return;
+            }
+            if (output == null) {
+                usage();
+                System.exit(1);
+            }
+            if (format == null) format = guessFormat(output);
+            TtyrecGenerator g = new TtyrecGenerator(profile, seed);
+            g.setTerminalSize(rows, columns);
+            long n;
+            if (output.equals("-")) {
+                n = g.generate(System.out, format, bytes, frames);
+            } else {
+                n = g.generate(new File(output), format, bytes, frames);
+            }
+            System.err.println(g + ": wrote " + n + " frames");
+        } catch (IOException ex) {
+            System.err.println("Could not write output: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
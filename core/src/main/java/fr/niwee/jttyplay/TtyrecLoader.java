@@ -0,0 +1,402 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.io.File;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens a ttyrec and loads it in the background, for programs that want
+ * the recording's terminal states without a GUI. This needs nothing from
+ * Swing, so it works with {@code -Djava.awt.headless=true}. A typical use:
+ * <pre>
+ * try (TtyrecLoader loader = TtyrecLoader.open(file)) {
+ *     loader.awaitDecode(1, TimeUnit.MINUTES);
+ *     for (TtyrecFrame frame : loader.frames())
+ *         process(frame.getRelativeTimestamp(), frame.getTerminalState());
+ * }
+ * </pre>
+ * Everything the GUI can do with a recording is available via
+ * getSource() and getTtyrec(); this class only adds ways to wait for the
+ * loading to finish.
+ * @author ais523
+ */
+public final class TtyrecLoader implements AutoCloseable {
+
+    /** The longest we wait between checks for things with no event. */
+    private static final long POLL_MILLIS = 100;
+
+    /** How much of the recording a live encode keeps by default, in bytes:
+     * enough for a few of even the largest frames. */
+    public static final long LIVE_RETENTION = 16 << 20;
+
+    private final TtyrecSource source;
+    private final boolean decode;
+    private final Object progressLock = new Object();
+    private final ProgressListener wakeWaiters = this::progressMade;
+    private volatile boolean closed = false;
+    /* The decoders of live encodes in progress, which close() stops. */
+    private final Set<FollowingDecoder> followers = new HashSet<>();
+
+    /**
+     * Starts loading a ttyrec from the given input.
+     * @param input Where to read the ttyrec from.
+     */
+    public TtyrecLoader(InputStreamable input) {
+        this(input, true);
+    }
+
+    /**
+     * Starts loading a ttyrec from the given input, optionally without
+     * decoding it. A loader that doesn't decode uses much less memory, as
+     * no terminal states are stored; its frames can still be looked at,
+     * and decodeFinalState() works, but awaitDecode() and frames() never
+     * finish.
+     * @param input Where to read the ttyrec from.
+     * @param decode Whether to decode every frame of the ttyrec.
+     */
+    public TtyrecLoader(InputStreamable input, boolean decode) {
+        this(new InputStreamTtyrecSource(input), decode);
+    }
+
+    /**
+     * Starts loading a ttyrec from a source that hasn't been started yet,
+     * e.g. so that limits can be set on it first.
+     * @param source The source to start.
+     * @param decode Whether to decode every frame of the ttyrec.
+     */
+    TtyrecLoader(TtyrecSource source, boolean decode) {
+        this.source = source;
+        this.decode = decode;
+        source.setAnalysisOnly(!decode);
+        source.addAnalysisListener(wakeWaiters);
+        source.addDecodeListener(wakeWaiters);
+        source.addReadListener(wakeWaiters);
+        source.completeUnpause();
+        source.start();
+    }
+
+    /**
+     * Starts loading a ttyrec from a file that has finished being written.
+     * (To follow a recording that's still growing, construct the loader
+     * from an InputStreamableFileWrapper instead.)
+     * @param file The file to read.
+     * @return A loader for the file.
+     */
+    public static TtyrecLoader open(File file) {
+        return new TtyrecLoader(new InputStreamableFileWrapper(file, true));
+    }
+
+    /**
+     * Starts loading a ttyrec from a URL. Streaming protocols (such as
+     * telnet and termcast) only work if StreamingURLStreamHandlerFactory
+     * has been installed; they never finish loading.
+     * @param url The URL to read.
+     * @return A loader for the URL.
+     */
+    public static TtyrecLoader open(URL url) {
+        return new TtyrecLoader(new InputStreamableURLWrapper(url));
+    }
+
+    private void progressMade() {
+        synchronized (progressLock) {
+            progressLock.notifyAll();
+            for (FollowingDecoder decoder : followers)
+                decoder.progressMade();
+        }
+    }
+
+    /**
+     * Gets the source doing the loading, e.g. to add listeners to it.
+     * @return The source.
+     */
+    public TtyrecSource getSource() {
+        return source;
+    }
+
+    /**
+     * Gets the ttyrec being loaded. Its contents change as loading
+     * proceeds.
+     * @return The ttyrec.
+     */
+    public Ttyrec getTtyrec() {
+        return source.getTtyrec();
+    }
+
+    /**
+     * Queries whether every frame of the ttyrec has been found. That's the
+     * case once the input has been read to its end and analyzed, with no
+     * re-analysis pending.
+     * @return True if no more frames will appear.
+     */
+    public boolean isAnalysisComplete() {
+        return source.isAnalysisComplete();
+    }
+
+    /**
+     * Queries whether every frame of the ttyrec has its final terminal
+     * state.
+     * @return True if analysis and decoding have both finished (or the
+     * source has failed, so they won't get any further).
+     * @see TtyrecSource#getFailure()
+     */
+    public boolean isDecodeComplete() {
+        if (source.getFailure() != null) return true;
+        if (!isAnalysisComplete()) return false;
+        if (source.getBackportDecode() != null) return false;
+        Ttyrec rec = source.getTtyrec();
+        int count = rec.getFrameCount();
+        if (source.decodeProgress() < count) return false;
+        return count == 0 ||
+                rec.getFrameAtIndex(count - 1).getTerminalState() != null;
+    }
+
+    /**
+     * Waits for every frame of the ttyrec to be found.
+     * @param timeout The longest time to wait.
+     * @param unit The unit of the timeout.
+     * @return True if analysis finished, false if the time ran out (which
+     * always happens with streaming sources).
+     * @throws InterruptedException If the calling thread is interrupted.
+     */
+    public boolean awaitAnalysis(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isAnalysisComplete())
+            if (!awaitProgress(deadline)) return false;
+        return true;
+    }
+
+    /**
+     * Waits for every frame of the ttyrec to be decoded.
+     * @param timeout The longest time to wait.
+     * @param unit The unit of the timeout.
+     * @return True if decoding finished, false if the time ran out (which
+     * always happens with streaming sources).
+     * @throws InterruptedException If the calling thread is interrupted.
+     */
+    public boolean awaitDecode(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isDecodeComplete())
+            if (!awaitProgress(deadline)) return false;
+        return true;
+    }
+
+    /**
+     * Waits until progress is reported, or a short while passes.
+     * @param deadline The System.nanoTime() after which to give up.
+     * @return False if the deadline has passed.
+     */
+    private boolean awaitProgress(long deadline) throws InterruptedException {
+        long left = deadline - System.nanoTime();
+        if (left <= 0) return false;
+        synchronized (progressLock) {
+            progressLock.wait(Math.max(1, Math.min(POLL_MILLIS,
+                    TimeUnit.NANOSECONDS.toMillis(left))));
+        }
+        return true;
+    }
+
+    /**
+     * Calculates the terminal state at the end of the ttyrec, by running
+     * one terminal through every frame found so far. Unlike decoding, this
+     * stores nothing in the frames, so it's the cheap way to get a
+     * recording's final screen; call awaitAnalysis first so that every
+     * frame is included.
+     * @return The terminal state after the last frame.
+     */
+    public vt320 decodeFinalState() {
+        StreamingDecoder decoder = new StreamingDecoder(source.getTtyrec());
+        DecodedFrame last = null;
+        while (decoder.hasNext()) last = decoder.next();
+        if (last != null) last.getTerminalState();
+        return decoder.getTerminal();
+    }
+
+    /**
+     * Returns the frames of the ttyrec in order, decoded one at a time into
+     * a single terminal by a StreamingDecoder. Unlike frames(), this works
+     * without decoding and uses no memory per frame, but only the frame
+     * most recently looked at has a terminal state. Iteration ends at the
+     * last frame found so far, so call awaitAnalysis first.
+     * @return The frames, decoded as they're reached.
+     */
+    public Iterable<DecodedFrame> decodedFrames() {
+        return () -> new StreamingDecoder(source.getTtyrec());
+    }
+
+    /**
+     * Returns the frames of the ttyrec in order, each with a terminal
+     * state. If loading hasn't finished, iterating waits for each frame to
+     * be analyzed and decoded, and ends when analysis does. Frames decoded
+     * before loading finished may have a provisional state (e.g. if the
+     * encoding changes later); call awaitDecode first to avoid that.
+     * <p>
+     * The iterator throws a CancellationException if the thread using it
+     * is interrupted, or the loader is closed, while it's waiting.
+     * @return The decoded frames.
+     */
+    public Iterable<TtyrecFrame> frames() {
+        return () -> new Iterator<TtyrecFrame>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                Ttyrec rec = source.getTtyrec();
+                for (;;) {
+                    if (index < rec.getFrameCount() &&
+                            rec.getFrameAtIndex(index).getTerminalState()
+                            != null)
+                        return true;
+                    // analysis might finish between the checks, so check it
+                    // first
+                    boolean complete = isAnalysisComplete();
+                    if (complete && index >= rec.getFrameCount())
+                        return false;
+                    if (closed) throw new CancellationException();
+                    try {
+                        awaitProgress(System.nanoTime() +
+                                TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new CancellationException();
+                    }
+                }
+            }
+
+            @Override
+            public TtyrecFrame next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return source.getTtyrec().getFrameAtIndex(index++);
+            }
+        };
+    }
+
+    /**
+     * Encodes the ttyrec into a video while it's still being loaded, keeping
+     * at most about LIVE_RETENTION bytes of it if the loader doesn't decode
+     * (a loader that decodes needs every frame, so it keeps everything).
+     * @param container The container to use for the video format.
+     * @param codec The codec to use to encode the individual frames.
+     * @param timer An object that calculates the timings to use in the
+     * video.
+     * @throws CancellationException if the encode is cancelled, or the
+     * thread is interrupted while waiting for frames.
+     * @see #encodeVideoLive(VideoContainer, VideoCodec, FrameTimeConvertor,
+     * long)
+     */
+    public void encodeVideoLive(VideoContainer container, VideoCodec codec,
+            FrameTimeConvertor timer) throws CancellationException {
+        encodeVideoLive(container, codec, timer, decode ? -1 :
+                LIVE_RETENTION);
+    }
+
+    /**
+     * Encodes the ttyrec into a video while it's still being loaded, e.g.
+     * to archive a termcast stream, or a recording that's still being
+     * written, as it happens. Encoding starts once the first frame has been
+     * found; the frames are then decoded by a FollowingDecoder, so with a
+     * variable-framerate container, each frame is encoded soon after it's
+     * recorded (and a MatroskaVideoContainer writing to a FileChannel has
+     * it in the file). The encode finishes cleanly when the input reaches
+     * its end, or the loader is closed.
+     * <p>
+     * The retention limit caps how far back the loader keeps the recording:
+     * the input once it's been analyzed, and the frames once they've been
+     * encoded, apart from those since the most recent natural keyframe
+     * (which the decoder needs if the terminal size has to be worked out
+     * again), up to that many bytes of them. So the memory used is bounded,
+     * however long the recording runs, apart from whatever the container
+     * keeps. Frames that have been released can't be read from the ttyrec
+     * afterwards, and if the input turns out to need analyzing again from
+     * its start, the encode ends early instead, with
+     * getSource().getFailure() saying why.
+     * @param container The container to use for the video format.
+     * @param codec The codec to use to encode the individual frames.
+     * @param timer An object that calculates the timings to use in the
+     * video.
+     * @param retention The retention limit in bytes, or -1 to keep the
+     * whole recording.
+     * @throws CancellationException if the encode is cancelled, or the
+     * thread is interrupted while waiting for frames.
+     * @throws IllegalStateException if a retention limit is given, but the
+     * loader decodes the ttyrec.
+     * @see TtyrecSource#setRetentionLimit(long)
+     */
+    public void encodeVideoLive(VideoContainer container, VideoCodec codec,
+            FrameTimeConvertor timer, long retention)
+            throws CancellationException {
+        source.setRetentionLimit(retention);
+        Ttyrec rec = source.getTtyrec();
+        while (rec.getFrameCount() == 0 && !isAnalysisComplete() &&
+                !closed) {
+            try {
+                awaitProgress(System.nanoTime() +
+                        TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException();
+            }
+        }
+        FollowingDecoder decoder = follow(retention);
+        try {
+            container.encodeVideo(codec, decoder, timer);
+        } finally {
+            unfollow(decoder);
+        }
+    }
+
+    /**
+     * Creates a decoder that follows the ttyrec as it's loaded, and is woken
+     * whenever the source makes progress, until it's passed to unfollow().
+     * Closing the loader stops it.
+     * @param history How many bytes of frames the decoder keeps since the
+     * most recent keyframe, releasing the rest, if the source has a
+     * retention limit; -1 to keep every frame.
+     * @return The decoder.
+     */
+    FollowingDecoder follow(long history) {
+        FollowingDecoder decoder = new FollowingDecoder(source, history);
+        synchronized (progressLock) {
+            if (closed) decoder.stop();
+            followers.add(decoder);
+        }
+        return decoder;
+    }
+
+    /**
+     * Stops waking a decoder created by follow().
+     * @param decoder The decoder.
+     */
+    void unfollow(FollowingDecoder decoder) {
+        synchronized (progressLock) {
+            followers.remove(decoder);
+        }
+    }
+
+    /**
+     * Stops loading, and releases the source. The ttyrec stays usable, but
+     * won't change any more; live encodes in progress finish.
+     */
+    @Override
+    public void close() {
+        synchronized (progressLock) {
+            if (closed) return;
+            closed = true;
+            progressLock.notifyAll();
+            for (FollowingDecoder decoder : followers)
+                decoder.stop();
+        }
+        source.completeCancel();
+    }
+}
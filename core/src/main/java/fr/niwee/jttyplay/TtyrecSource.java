@@ -6,9 +6,6 @@ package fr.niwee.jttyplay;
 
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashSet;
-import java.util.Set;
-import javax.swing.Timer;
 
 /**
  * A source capable of providing a ttyrec, analyzing and decoding it.
@@ -43,18 +40,29 @@ import javax.swing.Timer;
  * cannot happen with the backport process, because it cannot reach that
  * stage without overtaking the leading edge process.) Likewise, the leading
  * edge decode process may reach the last frame that's been analyzed so far;
- * in such a case, it should wait on the ttyrec's monitor, and is notified
- * if and when more information is available on the ttyrec.
+ * in such a case, it should wait for that frame to change via
+ * Ttyrec.awaitFrameChange, and is woken if and when more information is
+ * available on the ttyrec.
  * <p>
  * TtyrecWorkers may also need to be suspended, generally because another
  * ttyrec has been selected to view by the user. In this case, a flag is
  * set to tell them to stop; they should wait on their own monitor for the
  * flag to be cleared again. Likewise, they must be capable of stopping
  * altogether.
+ * <p>
+ * Normally a source keeps everything: the whole bytestream, and every
+ * frame. A program that reads the ttyrec once from start to end can set a
+ * retention limit instead, and release the frames it's finished with, so
+ * that memory use doesn't depend on the length of the ttyrec; and a memory
+ * limit can be set, which the source checks whenever it allocates memory
+ * for the input, the frames or their terminal states. A source that goes
+ * over its memory limit (or that can't re-analyze its input because it's
+ * already been released) fails: it stops reading and working, and
+ * getFailure() says why.
  *
  * @author ais523
  */
-public abstract class TtyrecSource extends Thread {
+public abstract class TtyrecSource extends BackgroundTask {
 
     private volatile TtyrecAnalyzer leadingEdgeAnalyze;
     private volatile TtyrecAnalyzer backportAnalyze;
@@ -63,15 +71,29 @@ public abstract class TtyrecSource extends Thread {
     private final Ttyrec rec;
     private final ByteChunkList bytestream;
     private int nextSequenceNumber;
-    private final Set<ProgressListener> analysisListeners;
-    private final Set<ProgressListener> decodeListeners;
-    private final Set<ProgressListener> readListeners;
-    private final Timer listenerTimer;
-    private volatile boolean analyzeEventHappened = false;
-    private volatile boolean decodeEventHappened = false;
-    private volatile boolean readEventHappened = false;
+    private final ProgressEventBus.Channel analysisEvents;
+    private final ProgressEventBus.Channel decodeEvents;
+    private final ProgressEventBus.Channel readEvents;
+    private final SourceStatistics statistics;
+    private final TtyrecSourceMonitor monitor;
+    private volatile boolean analysisOnly = false;
+    private volatile long retentionLimit = -1;
+    private volatile long memoryLimit = -1;
+    private volatile String failure = null;
+    private volatile boolean reanalysisRefused = false;
+    /* The offset in the bytestream that the newest analyzer needs input up
+     * to; with a retention limit, the input isn't read far beyond it.
+     * Changes are notified on the bytestream's monitor. */
+    private volatile long inputNeeded = 0;
+    /* Guards releasing data, and starting analysis again from the start
+     * (which needs the data); notified when frames are released. */
+    private final Object retentionLock = new Object();
+    private boolean released = false;
     final boolean debug = false;
 
+    /** The most input read at once when there's a retention limit. */
+    private static final int RETAINED_READ_SIZE = 65536;
+
     /**
      * Creates the ttyrec source. This should be overriden in implementing
      * classes to take arguments that specify things like the file or
@@ -84,11 +106,12 @@ public abstract class TtyrecSource extends Thread {
         bytestream = new ByteChunkList();
         backportAnalyze = null;
         backportDecode = null;
-        analysisListeners = new HashSet<>();
-        decodeListeners = new HashSet<>();
-        readListeners = new HashSet<>();
-        listenerTimer = new Timer(100, e -> firePendingEvents());
-        listenerTimer.restart();
+        analysisEvents = new ProgressEventBus.Channel();
+        decodeEvents = new ProgressEventBus.Channel();
+        readEvents = new ProgressEventBus.Channel();
+        statistics = new SourceStatistics();
+        monitor = new TtyrecSourceMonitor(this);
+        monitor.register();
         // The analyzer must be created before the decoder.
         // The analyzer starts with the most obvious-to-reject format (GZIP),
         // then tries the other formats in turn.
@@ -96,14 +119,262 @@ public abstract class TtyrecSource extends Thread {
                 new TtyrecAnalyzer(this, 1, TtyrecAnalyzer.InputFormat.GZIP);
         // The decoder starts by trying 24x80, expanding if necessary.
         leadingEdgeDecode = new TtyrecDecoder(this, 2, 24, 80);
+        leadingEdgeDecode.setThrottled(true);
         leadingEdgeAnalyze.start();
         leadingEdgeDecode.start();
-        leadingEdgeDecode.setPriority(MIN_PRIORITY);
         nextSequenceNumber = 3;
     }
 
     /**
-     * Unpauses all workers for this source.
+     * Specifies whether this source should analyze its input without
+     * decoding it. Decoding stores a terminal state for every frame, which
+     * is wasted memory for a program that only wants the frames themselves
+     * (or decodes them some cheaper way). This must be set before the
+     * workers are first unpaused; decode workers are then left paused.
+     * @param analysisOnly True to analyze, but not decode.
+     */
+    public void setAnalysisOnly(boolean analysisOnly) {
+        this.analysisOnly = analysisOnly;
+    }
+
+    /**
+     * Limits how much of the ttyrec this source keeps, for a program that
+     * reads the ttyrec once from start to end and releases the frames it's
+     * finished with (via a FollowingDecoder). The input is read no more than
+     * about this many bytes ahead of what's been analyzed, and is discarded
+     * once it's this far behind; and analysis waits for frames to be
+     * released once those not yet released use twice this much memory. So
+     * the memory used is a small multiple of the limit, however long the
+     * ttyrec is.
+     * <p>
+     * Once anything has been released, the input can't be analyzed again
+     * from the start; if that turns out to be needed (because the input
+     * isn't in the format it seemed to be in), the source fails instead.
+     * The source must be analysis-only, as decoders need every frame.
+     * @param limit The limit in bytes, or -1 to keep everything (the
+     * default).
+     * @throws IllegalStateException If the source isn't analysis-only.
+     */
+    public void setRetentionLimit(long limit) {
+        if (limit >= 0 && !analysisOnly)
+            throw new IllegalStateException(
+                    "decoding needs every frame to be kept");
+        retentionLimit = limit;
+    }
+
+    /**
+     * Gets the limit on how much of the ttyrec this source keeps.
+     * @return The limit in bytes, or -1 if everything is kept.
+     */
+    public long getRetentionLimit() {
+        return retentionLimit;
+    }
+
+    /**
+     * Limits the memory this source can use for the input it's kept, its
+     * frames, and their terminal states. This is checked whenever memory is
+     * allocated for any of those, so it's never exceeded by more than one
+     * frame's worth; if it would be, the source fails instead. This should
+     * be set before the source starts.
+     * @param limit The limit in bytes, or -1 for no limit (the default).
+     * @see #getRetainedMemory()
+     */
+    public void setMemoryLimit(long limit) {
+        memoryLimit = limit;
+    }
+
+    /**
+     * Estimates the memory this source is using for the input it's kept,
+     * its frames, and their terminal states.
+     * @return The estimated size, in bytes.
+     */
+    public long getRetainedMemory() {
+        return bytestream.getRetainedSize() + rec.getRetainedFrameBytes() +
+                statistics.getRetainedStateBytes();
+    }
+
+    /**
+     * Returns why this source failed, if it did. A source fails if it goes
+     * over its memory limit, or can't analyze the input again because the
+     * input has been released; it then stops reading and working, and
+     * counts as having finished analysis.
+     * @return The reason for the failure, or null if it hasn't failed.
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    /**
+     * Queries whether this source failed because the input had to be
+     * analyzed again after some of it was released. That wouldn't have
+     * happened with the whole ttyrec kept.
+     * @return True if that's why the source failed.
+     */
+    boolean wasReanalysisRefused() {
+        return reanalysisRefused;
+    }
+
+    /**
+     * Makes this source fail: it stops reading, its workers stop, and
+     * everything waiting for it is woken. Only the first reason given is
+     * kept.
+     * @param reason Why the source failed.
+     */
+    void fail(String reason) {
+        synchronized (retentionLock) {
+            if (failure != null) return;
+            failure = reason;
+            retentionLock.notifyAll();
+        }
+        for (TtyrecWorker w : new TtyrecWorker[] {leadingEdgeAnalyze,
+                backportAnalyze, leadingEdgeDecode, backportDecode})
+            if (w != null) w.stopWorking();
+        if (!isCurrentTask()) interrupt();
+        synchronized (bytestream) {
+            bytestream.notifyAll();
+        }
+        analysisEvents.fire();
+        decodeEvents.fire();
+        readEvents.fire();
+    }
+
+    /**
+     * Checks whether allocating some more memory would keep this source
+     * within its memory limit. If it wouldn't, the source fails.
+     * @param bytes The amount about to be allocated (0 to check memory
+     * that's just been allocated).
+     * @return True if the memory can be used.
+     */
+    boolean reserveMemory(long bytes) {
+        long limit = memoryLimit;
+        if (limit < 0 || getRetainedMemory() + bytes <= limit) return true;
+        fail("memory cap of " + limit + " bytes exceeded");
+        return false;
+    }
+
+    /**
+     * Called by the reader before it allocates memory for some input, to
+     * apply the retention and memory limits. With a retention limit, this
+     * waits until the input isn't too far ahead of the analysis, and reads
+     * in smaller pieces.
+     * @param length The amount of input the reader wants to read.
+     * @return The amount it should read; 0 if the source has failed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    protected int reserveInput(int length) throws InterruptedException {
+        long limit = retentionLimit;
+        if (limit >= 0) {
+            length = Math.min(length, RETAINED_READ_SIZE);
+            synchronized (bytestream) {
+                while (failure == null &&
+                        bytestream.size() - inputNeeded > limit)
+                    bytestream.wait();
+            }
+        }
+        if (failure != null || !reserveMemory(length)) return 0;
+        return length;
+    }
+
+    /**
+     * Queries whether an analyzer is the one whose results are going to be
+     * kept: the backport analyzer if there is one, or otherwise the leading
+     * edge.
+     */
+    private boolean isNewestAnalyzer(TtyrecAnalyzer a) {
+        TtyrecAnalyzer bpa = backportAnalyze;
+        return a == (bpa != null ? bpa : leadingEdgeAnalyze);
+    }
+
+    /**
+     * Called by an analyzer to say how far into the bytestream it needs the
+     * input to have been read, so that with a retention limit, the reader
+     * doesn't wait while an analyzer needs more. The caller must hold the
+     * bytestream's monitor.
+     * @param a The analyzer.
+     * @param offset The bytestream offset it needs input up to.
+     */
+    void inputNeeded(TtyrecAnalyzer a, long offset) {
+        if (retentionLimit < 0 || !isNewestAnalyzer(a)) return;
+        inputNeeded = offset;
+        bytestream.notifyAll();
+    }
+
+    /**
+     * Called by an analyzer after each frame with how far it's read, so that
+     * with a retention limit, the input far enough behind it can be
+     * discarded. Only the newest analyzer's position counts.
+     * @param a The analyzer.
+     * @param offset The bytestream offset it's read up to.
+     */
+    void inputRead(TtyrecAnalyzer a, long offset) {
+        long limit = retentionLimit;
+        if (limit < 0) return;
+        synchronized (retentionLock) {
+            if (failure == null && isNewestAnalyzer(a) &&
+                    bytestream.discardBefore((int) Math.max(0,
+                    Math.min(offset - limit, Integer.MAX_VALUE))))
+                released = true;
+        }
+        synchronized (bytestream) {
+            inputNeeded(a, offset);
+        }
+    }
+
+    /**
+     * Called by an analyzer after it adds a frame. With a retention limit,
+     * this waits while the frames not yet released use more than twice the
+     * limit, until the program reading them releases some; it also checks
+     * the memory limit.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    void frameAdded() throws InterruptedException {
+        if (!reserveMemory(0)) return;
+        long limit = retentionLimit;
+        if (limit < 0) return;
+        synchronized (retentionLock) {
+            boolean told = false;
+            while (failure == null && retentionLimit >= 0 &&
+                    rec.getRetainedFrameBytes() > 2 * limit &&
+                    rec.getFirstRetainedFrame() < rec.getFrameCount() - 1) {
+                // the frame's progress isn't reported until this returns,
+                // and the program might be waiting for it to release any
+                if (!told) analysisEvents.fire();
+                told = true;
+                retentionLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Releases the frames before a given index, for a program that reads
+     * the ttyrec once through and has finished with them. This only
+     * happens if there's a retention limit, and the frames were found by
+     * the newest analyzer; otherwise they might be replaced by frames that
+     * the program hasn't seen.
+     * @param index The index of the first frame to keep.
+     * @param analyzer The sequence number of the analyzer that found the
+     * frames the program has seen.
+     * @return True if the frames were released (or already had been).
+     */
+    boolean releaseFramesBefore(int index, int analyzer) {
+        synchronized (retentionLock) {
+            TtyrecAnalyzer bpa = backportAnalyze;
+            TtyrecAnalyzer newest = bpa != null ? bpa : leadingEdgeAnalyze;
+            if (failure != null || retentionLimit < 0 || newest == null ||
+                    newest.getSequenceNumber() != analyzer)
+                return false;
+            if (index > rec.getFirstRetainedFrame()) {
+                released = true;
+                rec.discardFramesBefore(index);
+                retentionLock.notifyAll();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Unpauses all workers for this source (except decode workers, if the
+     * source is analysis-only).
      */
     public void completeUnpause() {
         try {
@@ -112,12 +383,14 @@ public abstract class TtyrecSource extends Thread {
         try {
             leadingEdgeAnalyze.resumeWorking();
         } catch (NullPointerException x) {}
-        try {
-            backportDecode.resumeWorking();
-        } catch (NullPointerException x) {}
-        try {
-            leadingEdgeDecode.resumeWorking();
-        } catch (NullPointerException x) {}
+        if (!analysisOnly) {
+            try {
+                backportDecode.resumeWorking();
+            } catch (NullPointerException x) {}
+            try {
+                leadingEdgeDecode.resumeWorking();
+            } catch (NullPointerException x) {}
+        }
         if (debug) {
             System.err.println("Unpausing " + this);
         }
@@ -136,8 +409,11 @@ public abstract class TtyrecSource extends Thread {
     public void completeCancel() {
         if (debug) {
             System.err.println("Cancelling " + this + this.hashCode());
-        }        listenerTimer.stop();
-        listenerTimer.removeActionListener(listenerTimer.getActionListeners()[0]);
+        }
+        analysisEvents.clearListeners();
+        decodeEvents.clearListeners();
+        readEvents.clearListeners();
+        monitor.unregister();
         try {
             backportAnalyze.stopWorking();
             try {
@@ -278,7 +554,7 @@ public abstract class TtyrecSource extends Thread {
                     backportAnalyze = null;
             }
 /*            try {
-                if(Thread.currentThread() != overtaken) overtaken.join();
+                if(!overtaken.isCurrentTask()) overtaken.join();
             } catch (InterruptedException ex) {
                 Thread.currentThread().interrupt();
             }*/
@@ -300,86 +576,78 @@ public abstract class TtyrecSource extends Thread {
                     backportDecode = null;
             }
             try {
-                leadingEdgeDecode.setPriority(MIN_PRIORITY);
+                leadingEdgeDecode.setThrottled(true);
             } catch (NullPointerException x) {}
 /*            try {
-                if(Thread.currentThread() != overtaken) overtaken.join();
+                if(!overtaken.isCurrentTask()) overtaken.join();
             } catch (InterruptedException ex) {
                 Thread.currentThread().interrupt();
             }*/
-        } // otherwise two threads probably subsumed each other
+        } else {
+            // Otherwise two threads probably subsumed each other, or the
+            // backport that overtook this worker hasn't been registered yet.
+            // Either way nothing replaced it, so let a later call try again;
+            // a worker that stops because it was overtaken would otherwise
+            // stay the leading edge forever.
+            overtaken.setSubsumed(false);
+        }
     }
 
     /**
      * Adds a listener for progress made on analysis. The listener is called
-     * at most ten times per second, and on the Swing event thread; however,
-     * all progress will be notified within 100ms.
+     * via ProgressEventBus's dispatch executor, with notifications coalesced so that all
+     * progress is notified within ProgressEventBus.getMaxLatency()
+     * milliseconds, but no more often than that.
      * @param l The listener to add.
      */
-    public synchronized void addAnalysisListener(ProgressListener l) {
-        analysisListeners.add(l);
+    public void addAnalysisListener(ProgressListener l) {
+        analysisEvents.addListener(l);
     }
 
     /**
      * Adds a listener for progress made on decoding. The listener is called
-     * at most ten times per second, and on the Swing event thread; however,
-     * all progress will be notified within 100ms.
+     * via ProgressEventBus's dispatch executor, with notifications coalesced so that all
+     * progress is notified within ProgressEventBus.getMaxLatency()
+     * milliseconds, but no more often than that.
      * @param l The listener to add.
      */
-    public synchronized void addDecodeListener(ProgressListener l) {
-        decodeListeners.add(l);
+    public void addDecodeListener(ProgressListener l) {
+        decodeEvents.addListener(l);
     }
 
     /**
      * Adds a listener for progress made on reading the file. The listener is
-     * called at most ten times per second, and on the Swing event thread;
-     * however, all progress will be notified within 100ms.
+     * called via ProgressEventBus's dispatch executor, with notifications coalesced so that
+     * all progress is notified within ProgressEventBus.getMaxLatency()
+     * milliseconds, but no more often than that.
      * @param l The listener to add.
      */
-    public synchronized void addReadListener(ProgressListener l) {
-        readListeners.add(l);
+    public void addReadListener(ProgressListener l) {
+        readEvents.addListener(l);
     }
 
     /**
      * If called by a backport worker, subsumes the matching leading-edge worker
      * if the backport worker has matched or overtaken its progress. If called
      * by a leading-edge worker, notifies ProgressListeners of progress.
+     * <p>
+     * This is called for every frame, so it doesn't lock anything unless a
+     * worker actually needs to be subsumed; the progress counters are
+     * volatile, so comparing them is safe without a lock, and subsumeWorker
+     * copes with being asked to subsume a worker that's already gone.
      * @param worker The worker who called this method.
      */
-    public synchronized void progressMade(TtyrecWorker worker) {
-        if (worker instanceof TtyrecAnalyzer) analyzeEventHappened = true;
-        if (worker instanceof TtyrecDecoder) decodeEventHappened = true;
-        try {
-            long leap = leadingEdgeAnalyze.getProgress();
-            long bap = backportAnalyze.getProgress();
-            if (leap <= bap) subsumeWorker(leadingEdgeAnalyze);
-        } catch (NullPointerException x) {}
-        try {
-            long ledp = leadingEdgeDecode.getProgress();
-            long bdp = backportDecode.getProgress();
-            if (ledp <= bdp) subsumeWorker(leadingEdgeDecode);
-        } catch (NullPointerException x) {}
-    }
-
-    private synchronized void firePendingEvents() {
-        if (analyzeEventHappened) {
-            for (ProgressListener l : analysisListeners) {
-                l.progressMade();
-            }
-        }
-        if (decodeEventHappened) {
-            for (ProgressListener l : decodeListeners) {
-                l.progressMade();
-            }
-        }
-        if (readEventHappened) {
-            for (ProgressListener l : readListeners) {
-                l.progressMade();
-            }
-        }
-        analyzeEventHappened = false;
-        decodeEventHappened = false;
-        setReadEventHappened(false);
+    public void progressMade(TtyrecWorker worker) {
+        if (worker instanceof TtyrecAnalyzer) analysisEvents.fire();
+        if (worker instanceof TtyrecDecoder) decodeEvents.fire();
+        TtyrecAnalyzer lea = leadingEdgeAnalyze, bpa = backportAnalyze;
+        if (lea != null && bpa != null &&
+                lea.getProgress() <= bpa.getProgress())
+            subsumeWorker(lea);
+        TtyrecDecoder led = leadingEdgeDecode, bpd = backportDecode;
+        if (led != null && bpd != null &&
+                led.getProgress() <= bpd.getProgress())
+            subsumeWorker(led);
     }
 
     /**
@@ -460,13 +728,30 @@ public abstract class TtyrecSource extends Thread {
         if (debug) {
             System.err.println("Setting analyze backport " + backport + backport.hashCode());
         }
-        TtyrecWorker oldBackport = backportAnalyze;
-        if (oldBackport != null) {
-            oldBackport.stopWorking();
+        TtyrecWorker oldBackport = null;
+        boolean refused, start;
+        synchronized (retentionLock) {
+            // the new analyzer starts from the start of the input and
+            // replaces every frame, which can't be done once any have been
+            // released
+            refused = released && failure == null;
+            if (refused) reanalysisRefused = true;
+            start = !refused && failure == null;
+            if (start) {
+                oldBackport = backportAnalyze;
+                if (oldBackport != null) {
+                    oldBackport.stopWorking();
+                }
+                statistics.analyzeRestarted();
+                backportAnalyze = backport;
+            }
         }
-        backportAnalyze = backport;
+        if (refused)
+            fail("the input needs analyzing again, but its start has " +
+                    "been released");
+        if (!start) return;
         try {
-            if (oldBackport != null && Thread.currentThread() != oldBackport)
+            if (oldBackport != null && !oldBackport.isCurrentTask())
                 oldBackport.join();
         } catch(InterruptedException x) {Thread.currentThread().interrupt();}
         backport.start();
@@ -488,13 +773,14 @@ public abstract class TtyrecSource extends Thread {
         if (oldBackport != null) {
             oldBackport.stopWorking();
         }
+        statistics.decodeRestarted();
         backportDecode = backport;
         try {
-            if (oldBackport != null && Thread.currentThread() != oldBackport)
+            if (oldBackport != null && !oldBackport.isCurrentTask())
                 oldBackport.join();
         } catch(InterruptedException x) {Thread.currentThread().interrupt();}
         backport.start();
-        backport.resumeWorking();
+        if (!analysisOnly) backport.resumeWorking();
     }
 
     /**
@@ -518,6 +804,15 @@ public abstract class TtyrecSource extends Thread {
                 getNextSequenceNumber(), 24, 80));
     }
 
+    /**
+     * Gets the statistics about the work done on this source so far.
+     * These are also available over JMX, via TtyrecSourceMXBean.
+     * @return The statistics.
+     */
+    public SourceStatistics getStatistics() {
+        return statistics;
+    }
+
     /**
      * Gets the ttyrec that this source is creating.
      * @return The ttyrec.
@@ -577,6 +872,21 @@ public abstract class TtyrecSource extends Thread {
         return true;
     }
 
+    /**
+     * Queries whether every frame of the ttyrec has been found. That's the
+     * case once the input has been read to its end and analyzed, with no
+     * re-analysis pending; a streaming input never gets there. A source
+     * that's failed won't find any more frames, so this is true then too.
+     * @return True if no more frames will appear.
+     */
+    public boolean isAnalysisComplete() {
+        if (failure != null) return true;
+        if (!knownLength()) return false;
+        if (backportAnalyze != null) return false;
+        TtyrecAnalyzer a = leadingEdgeAnalyze;
+        return a == null || !a.isAlive();
+    }
+
     /**
      * Gets the current backport analyzer.
      * @return The current backport analyzer.
@@ -620,10 +930,13 @@ public abstract class TtyrecSource extends Thread {
     }
 
     /**
-     * @param readEventHappened the readEventHappened to set
+     * Notifies read listeners that more of the input has been read, or that
+     * reading has finished.
+     * @param readEventHappened True if anything has changed; false does
+     * nothing.
      */
     protected void setReadEventHappened(boolean readEventHappened) {
-        this.readEventHappened = readEventHappened;
+        if (readEventHappened) readEvents.fire();
     }
 
     /**
@@ -0,0 +1,73 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+/**
+ * The management interface of a TtyrecSource, as seen through JMX (e.g. in
+ * JConsole or VisualVM). Each open source is registered under the name
+ * {@code fr.niwee.jttyplay:type=TtyrecSource,id=N}.
+ * @author ais523
+ */
+public interface TtyrecSourceMXBean {
+    /**
+     * @return The URI the source is reading from, or null if unknown.
+     */
+    public String getURI();
+    /**
+     * @return The number of bytes read from the input so far.
+     */
+    public long getBytesRead();
+    /**
+     * @return The number of frames the analyzers have found so far.
+     */
+    public int getFramesAnalyzed();
+    /**
+     * @return The number of frames the leading-edge decoder has decoded.
+     */
+    public int getFramesDecoded();
+    /**
+     * @return The total number of frame decodes by all decoders.
+     */
+    public long getFrameDecodesTotal();
+    /**
+     * @return The number of analyzers run, each trying one input format.
+     */
+    public long getAnalyzerFormatAttempts();
+    /**
+     * @return The number of times analysis was restarted by a backport.
+     */
+    public long getAnalyzeBackportRestarts();
+    /**
+     * @return The number of times decoding was restarted by a backport.
+     */
+    public long getDecodeBackportRestarts();
+    /**
+     * @return The proportion of this source's screen rows found in the
+     * shared row cache when its terminal states were made read-only.
+     */
+    public double getRowInternHitRatio();
+    /**
+     * @return An estimate of the bytes held by the frames' terminal states.
+     */
+    public long getRetainedStateBytes();
+    /**
+     * @return The median time to decode a frame, in microseconds.
+     */
+    public double getDecodeLatencyP50Micros();
+    /**
+     * @return The 90th percentile time to decode a frame, in microseconds.
+     */
+    public double getDecodeLatencyP90Micros();
+    /**
+     * @return The 99th percentile time to decode a frame, in microseconds.
+     */
+    public double getDecodeLatencyP99Micros();
+    /**
+     * @return The time taken to show the most recent frame the user had to
+     * wait for, in milliseconds, or -1 if there hasn't been one.
+     */
+    public double getSeekLatencyMillis();
+}
@@ -0,0 +1,138 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes a TtyrecSource's progress and statistics over JMX. The monitor
+ * only reads from the source when asked by a JMX client, so it costs
+ * nothing while nobody is looking.
+ * @author ais523
+ */
+class TtyrecSourceMonitor implements TtyrecSourceMXBean {
+
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+
+    private final TtyrecSource source;
+    private ObjectName name = null;
+
+    TtyrecSourceMonitor(TtyrecSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Registers this monitor with the platform MBean server. Failure to
+     * register isn't fatal; the source just won't be visible over JMX.
+     */
+    void register() {
+        try {
+            ObjectName n = new ObjectName(
+                    "fr.niwee.jttyplay:type=TtyrecSource,id=" +
+                    nextId.getAndIncrement());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+            name = n;
+        } catch (JMException | SecurityException ex) {
+            if (source.debug)
+                System.err.println("Could not register MBean: " + ex);
+        }
+    }
+
+    /**
+     * Removes this monitor from the platform MBean server, if it was
+     * registered.
+     */
+    void unregister() {
+        if (name == null) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(name);
+        } catch (JMException ex) {
+            // already gone
+        }
+        name = null;
+    }
+
+    @Override
+    public String getURI() {
+        try {
+            return String.valueOf(source.getURI());
+        } catch (URISyntaxException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public long getBytesRead() {
+        return source.getBytestream().size();
+    }
+
+    @Override
+    public int getFramesAnalyzed() {
+        return source.getTtyrec().getFrameCount();
+    }
+
+    @Override
+    public int getFramesDecoded() {
+        return source.decodeProgress();
+    }
+
+    @Override
+    public long getFrameDecodesTotal() {
+        return source.getStatistics().getFramesDecoded();
+    }
+
+    @Override
+    public long getAnalyzerFormatAttempts() {
+        return source.getStatistics().getFormatAttempts();
+    }
+
+    @Override
+    public long getAnalyzeBackportRestarts() {
+        return source.getStatistics().getAnalyzeRestarts();
+    }
+
+    @Override
+    public long getDecodeBackportRestarts() {
+        return source.getStatistics().getDecodeRestarts();
+    }
+
+    @Override
+    public double getRowInternHitRatio() {
+        return source.getStatistics().getRowInternHitRatio();
+    }
+
+    @Override
+    public long getRetainedStateBytes() {
+        return source.getStatistics().getRetainedStateBytes();
+    }
+
+    @Override
+    public double getDecodeLatencyP50Micros() {
+        return source.getStatistics().getDecodeLatencyPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getDecodeLatencyP90Micros() {
+        return source.getStatistics().getDecodeLatencyPercentile(90) / 1000.0;
+    }
+
+    @Override
+    public double getDecodeLatencyP99Micros() {
+        return source.getStatistics().getDecodeLatencyPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getSeekLatencyMillis() {
+        long t = source.getTtyrec().getTimeToFirstPixel();
+        return t < 0 ? -1 : t / 1000000.0;
+    }
+}
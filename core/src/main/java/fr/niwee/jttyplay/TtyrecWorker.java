@@ -5,7 +5,7 @@
 
 package fr.niwee.jttyplay;
 
-import java.util.Date;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Something capable of analyzing a Ttyrec in the background. This
@@ -22,12 +22,16 @@ import java.util.Date;
  * created paused, and so should check for this before running a
  * single iteration of their main loop.
  * <p>
- * Nothing but the TtyrecWorker itself should wait on its monitor,
- * as otherwise there may be deadlocks on the worker, and spurious
- * wakeups on whatever else was waiting there.
+ * Workers run as tasks on the WorkerScheduler, rather than having
+ * threads of their own. A paused worker parks the thread it's running
+ * on (which is cheap if it's a virtual thread); pausing, resuming and
+ * stopping it unpark that thread again.
+ * <p>
+ * The worker's monitor is only held briefly, to change whether it's
+ * paused or halted; nothing should wait on it.
  * @author ais523
  */
-public abstract class TtyrecWorker extends Thread {
+public abstract class TtyrecWorker extends BackgroundTask {
 
     /**
      * The TtyrecSource this TtyrecWorker is working for. The value of this
@@ -39,7 +43,7 @@ public abstract class TtyrecWorker extends Thread {
      * and not halted.
      * @param workingFor The TtyrecSource this Worker should be attached to.
      * @param sequenceNumber A number greater than that assigned to all previous TtyrecWorkers performing the same job.
-     * @param name The name of the thread that represents this worker..
+     * @param name The name of the task that represents this worker.
      */
     public TtyrecWorker(TtyrecSource workingFor, int sequenceNumber, String name) {
         super(name);
@@ -48,13 +52,13 @@ public abstract class TtyrecWorker extends Thread {
         isHalted = false;
         this.sequenceNumber = sequenceNumber;
         progress = 0;
-        this.setPriority(MAX_PRIORITY);
+        throttled = false;
     }
 
     /**
      * A boolean that specifies whether this worker is currently paused; if
-     * this is ever set, the worker should, at a convenient moment, block and
-     * wait on its own monitor for this boolean to be cleared again.
+     * this is ever set, the worker should, at a convenient moment, call
+     * hibernate() to block until this boolean is cleared again.
      */
     volatile protected boolean isPaused;
     /**
@@ -89,7 +93,7 @@ public abstract class TtyrecWorker extends Thread {
         isHalted = true;
         if (isPaused) {
             isPaused = false;
-            notify();
+            wake();
         } else
             this.interrupt();
     }
@@ -101,7 +105,15 @@ public abstract class TtyrecWorker extends Thread {
     public synchronized void resumeWorking() {
         if (!isPaused) return;
         isPaused = false;
-        notify();
+        wake();
+    }
+    /**
+     * Unparks the thread running this worker, if it's running, so that it
+     * notices a change in whether it's paused or halted.
+     */
+    private void wake() {
+        Thread runner = getRunner();
+        if (runner != null) LockSupport.unpark(runner);
     }
     /**
      * This method should be called by the TtyrecWorker itself at
@@ -109,38 +121,62 @@ public abstract class TtyrecWorker extends Thread {
      * if isPaused is set, either directly or via continueMainLoop().
      * It does not return until the worker is unpaused or halted.
      */
-    protected synchronized void hibernate() {
-        while (isPaused && !isHalted) {
-            try {
-                wait();
-            } catch (InterruptedException ex) {
-                // Just check again. Interrupting us is kind-of pointless
-                // because we should just be notified instead.
+    protected void hibernate() {
+        if (!isPaused || isHalted) return;
+        WorkerScheduler.taskPaused();
+        try {
+            while (isPaused && !isHalted) {
+                LockSupport.park(this);
+                // Interrupting us is kind-of pointless, because we should
+                // just be woken instead; clear it so we don't spin.
+                Thread.interrupted();
             }
+        } finally {
+            WorkerScheduler.taskUnpaused();
         }
     }
-    private long timeAtLastContinue = 0;
+    private volatile boolean throttled;
+    private long timeAtLastContinue = 0; // System.nanoTime(), 0 if unset
+    /**
+     * Specifies whether this worker should give way to another worker doing
+     * the same job. A throttled worker spends at least as long idle as it
+     * does working, while there's another worker of its type.
+     * @param throttled True to throttle this worker.
+     */
+    public void setThrottled(boolean throttled) {
+        this.throttled = throttled;
+    }
+    /**
+     * Queries whether this worker is throttled.
+     * @return True if this worker gives way to others doing the same job.
+     * @see #setThrottled
+     */
+    public boolean isThrottled() {
+        return throttled;
+    }
     /**
      * A convenience method. If the main loop of a TtyrecWorker is written
      * as while(continueMainLoop()) { ... }, it will automatically obey the
      * part of the TtyrecWorker concerned with pausing and halting; it
      * does not return if the TtyrecWorker is paused until it is unpaused
      * again (or halted, which unpauses it), and its return value indicates
-     * whether to halt. It also delays a bit if the thread is set to run at
-     * minimum priority and there's another worker doing the same job.
+     * whether to halt. It also delays a bit if the worker is throttled
+     * and there's another worker doing the same job.
      * @return false if the TtyrecWorker has been halted, false otherwise.
      */
     protected boolean continueMainLoop() {
         hibernate();
         long talc = timeAtLastContinue;
-        timeAtLastContinue = new Date().getTime();
-        if (getPriority() == MIN_PRIORITY && workingFor.anotherThread(this)) {
-            try {
-                if (talc > 0)
-                    Thread.sleep(timeAtLastContinue-talc);
-                timeAtLastContinue = new Date().getTime();
-            } catch(InterruptedException ex) {
-            }
+        long now = System.nanoTime();
+        timeAtLastContinue = now;
+        if (throttled && talc != 0 && workingFor.anotherThread(this)) {
+            long deadline = now + (now - talc);
+            long left;
+            while (!isHalted && !isPaused &&
+                   !Thread.currentThread().isInterrupted() &&
+                   (left = deadline - System.nanoTime()) > 0)
+                LockSupport.parkNanos(this, left);
+            timeAtLastContinue = System.nanoTime();
         }
         return !isHalted;
     }
@@ -210,6 +246,15 @@ public abstract class TtyrecWorker extends Thread {
         this.progress = progress;
         workingFor.progressMade(this);
     }
+    /**
+     * Notifies the source's ProgressListeners that this worker has
+     * finished, as that can complete the loading (e.g. a leading-edge
+     * analyzer finishing means every frame has been found).
+     */
+    @Override
+    protected void taskEnded() {
+        workingFor.progressMade(this);
+    }
     /**
      * Returns the amount of progress this worker has made, in bytes for
      * analyze workers or frames for decode workers.
@@ -49,6 +49,14 @@ public class VDUBuffer implements Cloneable {
   char[][] charArray;                            /* contains the characters */
   short[][] charAttributes;                       /* contains character attrs */
   private boolean[] needLazyCloning;            /* which lines need cloning */
+  private int ringBase;              /* storage index of the first line */
+  private char[] blankChars;                /* shared contents of blank lines */
+  private short[] blankAttributes;        /* shared attributes of blank lines */
+  private int[] damageFirst;       /* first damaged column per line, or -1 */
+  private int[] damageLast;               /* last damaged column per line */
+  private boolean damageAll;              /* whole screen needs redrawing */
+  private int damageCursorX, damageCursorY;     /* cursor before damage */
+  private int damageScroll;          /* lines scrolled up since damage start */
   protected int bufSize;
   protected int maxBufSize;                                  /* buffer sizes */
   protected int screenBase;                      /* the actual screen start */
@@ -146,9 +154,38 @@ public class VDUBuffer implements Cloneable {
   public void putChar(int c, int l, char ch, short attributes) {
     c = checkBounds(c, 0, width - 1);
     l = checkBounds(l, 0, height - 1);
-    cloneCheck(screenBase + l);
-    charArray[screenBase + l][c] = ch;
-    charAttributes[screenBase + l][c] = attributes;
+    int r = row(screenBase + l);
+    cloneCheck(r);
+    charArray[r][c] = ch;
+    charAttributes[r][c] = attributes;
+    damage(l, c, c);
+  }
+
+  /**
+   * Put a run of characters on one line of the screen, all with the same
+   * attributes. This has the same effect as calling putChar for each
+   * character in turn, but the line is only cloned and bounds-checked once.
+   * Characters that would fall beyond the right edge are discarded.
+   * You need to call redraw() to update the screen.
+   * @param c x-coordinate (column) of the first character
+   * @param l y-coordinate (line)
+   * @param chars the array holding the characters to show on the screen
+   * @param offset the index in chars of the first character
+   * @param length the number of characters to show
+   * @param attributes the character attributes
+   * @see #putChar
+   */
+  public void putChars(int c, int l, char[] chars, int offset, int length,
+                       short attributes) {
+    c = checkBounds(c, 0, width - 1);
+    l = checkBounds(l, 0, height - 1);
+    length = Math.min(length, width - c);
+    if (length <= 0) return;
+    int r = row(screenBase + l);
+    cloneCheck(r);
+    System.arraycopy(chars, offset, charArray[r], c, length);
+    Arrays.fill(charAttributes[r], c, c + length, attributes);
+    damage(l, c, c + length - 1);
   }
 
   /**
@@ -161,7 +198,7 @@ public class VDUBuffer implements Cloneable {
   public char getChar(int c, int l) {
     c = checkBounds(c, 0, width - 1);
     l = checkBounds(l, 0, height - 1);
-    return charArray[screenBase + l][c];
+    return charArray[row(screenBase + l)][c];
   }
 
   /**
@@ -174,7 +211,7 @@ public class VDUBuffer implements Cloneable {
   public int getAttributes(int c, int l) {
     c = checkBounds(c, 0, width - 1);
     l = checkBounds(l, 0, height - 1);
-    return charAttributes[screenBase + l][c];
+    return charAttributes[row(screenBase + l)][c];
   }
 
   /**
@@ -198,10 +235,12 @@ public class VDUBuffer implements Cloneable {
   public void insertChar(int c, int l, char ch, short attributes) {
     c = checkBounds(c, 0, width - 1);
     l = checkBounds(l, 0, height - 1);
-    System.arraycopy(charArray[screenBase + l], c,
-                     charArray[screenBase + l], c + 1, width - c - 1);
-    System.arraycopy(charAttributes[screenBase + l], c,
-                     charAttributes[screenBase + l], c + 1, width - c - 1);
+    int r = row(screenBase + l);
+    cloneCheck(r);
+    System.arraycopy(charArray[r], c, charArray[r], c + 1, width - c - 1);
+    System.arraycopy(charAttributes[r], c,
+                     charAttributes[r], c + 1, width - c - 1);
+    damage(l, c, width - 1);
     putChar(c, l, ch, attributes);
   }
 
@@ -219,10 +258,12 @@ public class VDUBuffer implements Cloneable {
     c = checkBounds(c, 0, width - 1);
     l = checkBounds(l, 0, height - 1);
     if (c < width - 1) {
-      System.arraycopy(charArray[screenBase + l], c + 1,
-                       charArray[screenBase + l], c, width - c - 1);
-      System.arraycopy(charAttributes[screenBase + l], c + 1,
-                       charAttributes[screenBase + l], c, width - c - 1);
+      int r = row(screenBase + l);
+      cloneCheck(r);
+      System.arraycopy(charArray[r], c + 1, charArray[r], c, width - c - 1);
+      System.arraycopy(charAttributes[r], c + 1,
+                       charAttributes[r], c, width - c - 1);
+      damage(l, c, width - 1);
     }
     putChar(width - 1, l, (char) 0);
   }
@@ -268,8 +309,12 @@ public class VDUBuffer implements Cloneable {
    * @see #redraw
    */
   public void putString(int c, int l, String s, short attributes) {
-    for (int i = 0; i < s.length() && c + i < width; i++)
-      putChar(c + i, l, s.charAt(i), attributes);
+    if (c < 0 || c >= width) {
+      for (int i = 0; i < s.length() && c + i < width; i++)
+        putChar(c + i, l, s.charAt(i), attributes);
+      return;
+    }
+    putChars(c, l, s.toCharArray(), 0, s.length(), attributes);
   }
 
   /**
@@ -324,14 +369,8 @@ public class VDUBuffer implements Cloneable {
    * @see #redraw
    */
   public synchronized void insertLine(int l, int n, boolean scrollDown) {
-    strictClone();
     l = checkBounds(l, 0, height - 1);
 
-    char cbuf[][] = null;
-    short abuf[][] = null;
-    int offset = 0;
-    int oldBase = screenBase;
-
     if (l > bottomMargin) /* We do not scroll below bottom margin (below the scrolling region). */
       return;
     int top = (l < topMargin ?
@@ -347,102 +386,86 @@ public class VDUBuffer implements Cloneable {
 
     if (scrollDown) {
       if (n > (bottom - top)) n = (bottom - top);
-      cbuf = new char[bottom - l - (n - 1)][width];
-      abuf = new short[bottom - l - (n - 1)][width];
-
-      System.arraycopy(charArray, oldBase + l, cbuf, 0, bottom - l - (n - 1));
-      System.arraycopy(charAttributes, oldBase + l,
-                       abuf, 0, bottom - l - (n - 1));
-      System.arraycopy(cbuf, 0, charArray, oldBase + l + n,
-                       bottom - l - (n - 1));
-      System.arraycopy(abuf, 0, charAttributes, oldBase + l + n,
-                       bottom - l - (n - 1));
-      cbuf = charArray;
-      abuf = charAttributes;
+      if (n > bottom - l + 1) n = bottom - l + 1;
+      // move the lines from l down by n, then blank the gap left behind
+      for (int i = bottom; i >= l + n; i--)
+        moveRow(screenBase + i - n, screenBase + i);
+      for (int i = 0; i < n; i++)
+        blankRow(screenBase + l + i);
+      for (int i = l; i <= bottom; i++)
+        damage(i, 0, width - 1);
+      damageScroll -= n;
     } else {
         if (n > (bottom - top) + 1) n = (bottom - top) + 1;
+        if (n > l - top + 1) n = l - top + 1;
         if (bufSize < maxBufSize) {
-          if (bufSize + n > maxBufSize) {
-            offset = n - (maxBufSize - bufSize);
-            scrollMarker += offset;
-            bufSize = maxBufSize;
-            screenBase = maxBufSize - height - 1;
-            windowBase = screenBase;
-          } else {
-            scrollMarker += n;
-            screenBase += n;
-            windowBase += n;
-            bufSize += n;
-          }
-
-          cbuf = new char[bufSize][width];
-          abuf = new short[bufSize][width];
-        } else {
-          offset = n;
-          cbuf = charArray;
-          abuf = charAttributes;
-        }
-        // copy anything from the top of the buffer (+offset) to the new top
-        // up to the screenBase.
-        if (oldBase > 0) {
-          System.arraycopy(charArray, offset,
-                           cbuf, 0,
-                           oldBase - offset);
-          System.arraycopy(charAttributes, offset,
-                           abuf, 0,
-                           oldBase - offset);
-        }
-        // copy anything from the top of the screen (screenBase) up to the
-        // topMargin to the new screen
-        if (top > 0) {
-          System.arraycopy(charArray, oldBase,
-                           cbuf, screenBase,
-                           top);
-          System.arraycopy(charAttributes, oldBase,
-                           abuf, screenBase,
-                           top);
+          int grow = Math.min(n, maxBufSize - bufSize);
+          growBuffer(grow);
+          scrollMarker += grow;
         }
-        // copy anything from the topMargin up to the amount of lines inserted
-        // to the gap left over between scrollback buffer and screenBase
-        if (oldBase > 0) {
-          System.arraycopy(charArray, oldBase + top,
-                           cbuf, oldBase - offset,
-                           n);
-          System.arraycopy(charAttributes, oldBase + top,
-                           abuf, oldBase - offset,
-                           n);
-        }
-        // copy anything from topMargin + n up to the line linserted to the
-        // topMargin
-        System.arraycopy(charArray, oldBase + top + n,
-                         cbuf, screenBase + top,
-                         l - top - (n - 1));
-        System.arraycopy(charAttributes, oldBase + top + n,
-                         abuf, screenBase + top,
-                         l - top - (n - 1));
-        //
-        // copy the all lines next to the inserted to the new buffer
-        if (l < height - 1) {
-          System.arraycopy(charArray, oldBase + l + 1,
-                           cbuf, screenBase + l + 1,
-                           (height - 1) - l);
-          System.arraycopy(charAttributes, oldBase + l + 1,
-                           abuf, screenBase + l + 1,
-                           (height - 1) - l);
+        /* The lines from topMargin to l scroll up into the scrollback
+         * buffer (if any), whose oldest lines are lost. Treat the
+         * scrollback followed by that part of the screen as one sequence
+         * and rotate it by n lines. If that sequence is the whole of
+         * storage, rotating the ring does this without moving any rows. */
+        int length = screenBase + l - top + 1;
+        if (top == 0 && length == charArray.length) {
+          ringBase = row(n);
+        } else {
+          for (int i = 0; i < length - n; i++)
+            moveRow(scrolledLine(i + n, top), scrolledLine(i, top));
         }
+        for (int i = length - n; i < length; i++)
+          blankRow(scrolledLine(i, top));
+        for (int i = top; i <= l; i++)
+          damage(i, 0, width - 1);
+        damageScroll += n;
     }
 
     // this is a little helper to mark the scrolling
     scrollMarker -= n;
+  }
 
+  /**
+   * Maps a position in the sequence of lines that scrolls up when lines
+   * are inserted (the scrollback buffer, then the screen from the top of
+   * the scrolling region) to a buffer line.
+   * @param i position in the sequence
+   * @param top first screen line that scrolls
+   * @return The corresponding buffer line.
+   */
+  private int scrolledLine(int i, int top) {
+    return i < screenBase ? i : i + top;
+  }
 
+  /**
+   * Adds blank lines to the top of the scrollback buffer, moving the screen
+   * down to make room for lines scrolling off it. This is the only form of
+   * scrolling that needs new storage.
+   * @param n number of lines to add
+   */
+  private void growBuffer(int n) {
+    char cbuf[][] = new char[bufSize + n][];
+    short abuf[][] = new short[bufSize + n][];
+    boolean lazy[] = new boolean[bufSize + n];
     for (int i = 0; i < n; i++) {
-      cbuf[(screenBase + l) + (scrollDown ? i : -i)] = new char[width];
-      abuf[(screenBase + l) + (scrollDown ? i : -i)] = new short[width];
+      cbuf[i] = blankChars;
+      abuf[i] = blankAttributes;
+      lazy[i] = true;
+    }
+    for (int i = 0; i < bufSize; i++) {
+      int r = row(i);
+      cbuf[n + i] = charArray[r];
+      abuf[n + i] = charAttributes[r];
+      lazy[n + i] = needLazyCloning[r];
     }
-
     charArray = cbuf;
     charAttributes = abuf;
+    needLazyCloning = lazy;
+    ringBase = 0;
+    bufSize += n;
+    screenBase += n;
+    windowBase = screenBase;
   }
 
   /**
@@ -453,17 +476,17 @@ public class VDUBuffer implements Cloneable {
    * @see #deleteLine
    */
   public void deleteLine(int l) {
-    strictClone();
     l = checkBounds(l, 0, height - 1);
 
     int bottom = (l > bottomMargin ? height - 1:
             (l < topMargin?topMargin:bottomMargin + 1));
-    System.arraycopy(charArray, screenBase + l + 1,
-                     charArray, screenBase + l, bottom - l - 1);
-    System.arraycopy(charAttributes, screenBase + l + 1,
-                     charAttributes, screenBase + l, bottom - l - 1);
-    charArray[screenBase + bottom - 1] = new char[width];
-    charAttributes[screenBase + bottom - 1] = new short[width];
+    if (bottom - l - 1 < 0) return;
+    for (int i = l; i < bottom - 1; i++)
+      moveRow(screenBase + i + 1, screenBase + i);
+    blankRow(screenBase + bottom - 1);
+    for (int i = l; i < bottom; i++)
+      damage(i, 0, width - 1);
+    damageScroll++;
   }
 
   /**
@@ -479,17 +502,15 @@ public class VDUBuffer implements Cloneable {
    * @see #redraw
    */
   public void deleteArea(int c, int l, int w, int h, short curAttr) {
-    strictClone();
     c = checkBounds(c, 0, width - 1);
     l = checkBounds(l, 0, height - 1);
 
-    char cbuf[] = new char[w];
-    short abuf[] = new short[w];
-
-    for (int i = 0; i < w; i++) abuf[i] = curAttr;
     for (int i = 0; i < h && l + i < height; i++) {
-      System.arraycopy(cbuf, 0, charArray[screenBase + l + i], c, w);
-      System.arraycopy(abuf, 0, charAttributes[screenBase + l + i], c, w);
+      int r = row(screenBase + l + i);
+      cloneCheck(r);
+      Arrays.fill(charArray[r], c, c + w, (char) 0);
+      Arrays.fill(charAttributes[r], c, c + w, curAttr);
+      damage(l + i, c, c + w - 1);
     }
   }
 
@@ -505,17 +526,7 @@ public class VDUBuffer implements Cloneable {
    * @see #redraw
    */
   public void deleteArea(int c, int l, int w, int h) {
-    strictClone();
-    c = checkBounds(c, 0, width - 1);
-    l = checkBounds(l, 0, height - 1);
-
-    char cbuf[] = new char[w];
-    short abuf[] = new short[w];
-
-    for (int i = 0; i < h && l + i < height; i++) {
-      System.arraycopy(cbuf, 0, charArray[screenBase + l + i], c, w);
-      System.arraycopy(abuf, 0, charAttributes[screenBase + l + i], c, w);
-    }
+    deleteArea(c, l, w, h, NORMAL);
   }
 
   /**
@@ -630,17 +641,23 @@ public class VDUBuffer implements Cloneable {
   public void setBufferSize(int amount) {
     if (amount < height) amount = height;
     if (amount < maxBufSize) {
-      char cbuf[][] = new char[amount][width];
-      short abuf[][] = new short[amount][width];
       int copyStart = bufSize - amount < 0 ? 0 : bufSize - amount;
       int copyCount = bufSize - amount < 0 ? bufSize : amount;
-      if (charArray != null)
-        System.arraycopy(charArray, copyStart, cbuf, 0, copyCount);
-      if (charAttributes != null)
-        System.arraycopy(charAttributes, copyStart, abuf, 0, copyCount);
+      char cbuf[][] = new char[copyCount][];
+      short abuf[][] = new short[copyCount][];
+      boolean lazy[] = new boolean[copyCount];
+      for (int i = 0; i < copyCount; i++) {
+        int r = row(copyStart + i);
+        cbuf[i] = charArray[r];
+        abuf[i] = charAttributes[r];
+        lazy[i] = needLazyCloning[r];
+      }
       charArray = cbuf;
       charAttributes = abuf;
+      needLazyCloning = lazy;
+      ringBase = 0;
       bufSize = copyCount;
+      damageAll = true;
       screenBase = bufSize - height;
       windowBase = screenBase;
     }
@@ -700,21 +717,40 @@ public class VDUBuffer implements Cloneable {
       screenBase = bufSize - h;
 
 
-    cbuf = new char[bufSize][w];
-    abuf = new short[bufSize][w];
+    if (blankChars == null || w != width) {
+      blankChars = new char[w];
+      blankAttributes = new short[w];
+    }
 
-    if (charArray != null && charAttributes != null) {
-      for (int i = 0; i < bsize && i < bufSize; i++) {
-        System.arraycopy(charArray[i], 0, cbuf[i], 0,
-                         w < width ? w : width);
-        System.arraycopy(charAttributes[i], 0, abuf[i], 0,
-                         w < width ? w : width);
+    cbuf = new char[bufSize][];
+    abuf = new short[bufSize][];
+    boolean lazy[] = new boolean[bufSize];
+
+    for (int i = 0; i < bufSize; i++) {
+      if (charArray != null && i < bsize) {
+        int r = row(i);
+        if (w == width) {
+          /* The line might be shared with a read-only buffer, so it
+           * must be cloned before it's next written to. */
+          cbuf[i] = charArray[r];
+          abuf[i] = charAttributes[r];
+          lazy[i] = true;
+        } else {
+          cbuf[i] = Arrays.copyOf(charArray[r], w);
+          abuf[i] = Arrays.copyOf(charAttributes[r], w);
+        }
+      } else {
+        cbuf[i] = blankChars;
+        abuf[i] = blankAttributes;
+        lazy[i] = true;
       }
     }
 
     charArray = cbuf;
     charAttributes = abuf;
-    needLazyCloning = new boolean[bufSize];
+    needLazyCloning = lazy;
+    ringBase = 0;
+    damageAll = true;
     width = w;
     height = h;
     topMargin = 0;
@@ -757,8 +793,64 @@ public class VDUBuffer implements Cloneable {
     private void cloneStorage() {
         charArray = charArray.clone();
         charAttributes = charAttributes.clone();
-        for (int i = 0; i < charArray.length; i++) {
-            needLazyCloning[i] = true;
+        /* Every line is now shared between this buffer and the one it was
+         * cloned from, so both need to clone before writing; after that,
+         * each buffer keeps track of its own lines. */
+        Arrays.fill(needLazyCloning, true);
+        needLazyCloning = needLazyCloning.clone();
+        damageFirst = null;
+        damageLast = null;
+    }
+
+    /**
+     * Starts recording which parts of the screen are changed. Any damage
+     * recorded previously is forgotten.
+     * @see #finishDamageTracking
+     */
+    void startDamageTracking() {
+        if (damageFirst == null || damageFirst.length != height) {
+            damageFirst = new int[height];
+            damageLast = new int[height];
+        }
+        Arrays.fill(damageFirst, -1);
+        damageAll = false;
+        damageScroll = 0;
+        damageCursorX = cursorX;
+        damageCursorY = cursorY;
+    }
+
+    /**
+     * Stops recording which parts of the screen are changed, and returns
+     * what changed since startDamageTracking was called.
+     * @return The damage done to the screen; this will be a full damage
+     * record if the screen was resized or tracking was never started.
+     */
+    TerminalDamage finishDamageTracking() {
+        TerminalDamage d;
+        if (damageFirst == null || damageAll || damageFirst.length != height)
+            d = TerminalDamage.fullDamage(width, height, cursorX, cursorY);
+        else
+            d = new TerminalDamage(width, height, false,
+                    damageFirst, damageLast, damageCursorX, damageCursorY,
+                    cursorX, cursorY, damageScroll);
+        damageFirst = null;
+        damageLast = null;
+        return d;
+    }
+
+    /**
+     * Records that columns first to last of screen line l have changed.
+     * Does nothing if damage isn't being tracked.
+     */
+    private void damage(int l, int first, int last) {
+        if (damageFirst == null || damageAll) return;
+        if (l < 0 || l >= damageFirst.length) return;
+        if (damageFirst[l] < 0) {
+            damageFirst[l] = first;
+            damageLast[l] = last;
+        } else {
+            if (first < damageFirst[l]) damageFirst[l] = first;
+            if (last > damageLast[l]) damageLast[l] = last;
         }
     }
 
@@ -766,6 +858,28 @@ public class VDUBuffer implements Cloneable {
             = new ConcurrentHashMap<>(100000,0.5f,1);
     private static Map<Integer,short[]> charAttributesShared
             = new ConcurrentHashMap<>(100000,0.5f,1);
+    /* How many rows makeReadOnly looked up in the shared cache, and how
+     * many of them it found there. */
+    private int internLookups = 0;
+    private int internHits = 0;
+
+    /**
+     * Returns the number of rows that makeReadOnly looked up in the shared
+     * row cache when this buffer was made read-only.
+     * @return The number of rows looked up.
+     */
+    int getRowInternLookups() {
+        return internLookups;
+    }
+
+    /**
+     * Returns the number of rows that makeReadOnly found to be duplicates
+     * of rows already in the shared cache.
+     * @return The number of rows shared with other buffers.
+     */
+    int getRowInternHits() {
+        return internHits;
+    }
 
     public static void resetCaches() {
         try {
@@ -785,13 +899,19 @@ public class VDUBuffer implements Cloneable {
      *  behaviour. (Clones of it can still be modified, though.) The
      *  main purpose of this is to save on memory, as it tries to share
      *  memory with other read-only VDUBuffers.
+     *  @return The number of bytes of row data this buffer holds that
+     *  aren't shared with any buffer made read-only before it.
      */
-    void makeReadOnly() {
+    int makeReadOnly() {
+        int retained = 0;
+        internLookups = 0;
+        internHits = 0;
         for (int i = 0; i < charArray.length; i++) {
             /* We can skip the deduplication if the row is still
              * marked as needing lazy cloning, because that means it's
              * already in deduplicated form. */
             if (!needLazyCloning[i]) {
+                internLookups++;
                 String ca = new String(charArray[i]);
                 Integer cah = ca.hashCode();
                 char[] x = charArrayShared.get(cah);
@@ -800,7 +920,10 @@ public class VDUBuffer implements Cloneable {
                      * is for future reference. */
                     charArrayShared.put(cah, charArray[i]);
                     charAttributesShared.put(cah, charAttributes[i]);
+                    retained += 2 * charArray[i].length +
+                            2 * charAttributes[i].length;
                 } else {
+                    internHits++;
                     /* We've seen the string before, so deduplicate it.
                      * Have we seen its colouring before? */
                     charArray[i] = x;
@@ -813,11 +936,13 @@ public class VDUBuffer implements Cloneable {
                          * more likely to come up later than the older
                          * colouring. */
                         charAttributesShared.put(cah, charAttributes[i]);
+                        retained += 2 * charAttributes[i].length;
                     }
                 }
             }
         }
         if (charArrayShared.size() > 99000) resetCaches();
+        return retained;
     }
 
     private void cloneCheck(int i) {
@@ -828,10 +953,80 @@ public class VDUBuffer implements Cloneable {
         }
     }
 
-    private void strictClone() {
+    /**
+     * Returns the storage index of the given line of the buffer (line 0
+     * being the top of the scrollback buffer). Lines are stored in a ring,
+     * so that scrolling the whole buffer only needs the start of the ring
+     * to move.
+     */
+    private int row(int line) {
+        int i = line + ringBase;
+        return i >= charArray.length ? i - charArray.length : i;
+    }
+
+    /**
+     * Moves the contents of one line of the buffer to another, by reference.
+     * The line moved from must be overwritten afterwards.
+     */
+    private void moveRow(int from, int to) {
+        int f = row(from);
+        int t = row(to);
+        charArray[t] = charArray[f];
+        charAttributes[t] = charAttributes[f];
+        needLazyCloning[t] = needLazyCloning[f];
+    }
+
+    /**
+     * Blanks a line of the buffer, by pointing it at the shared blank line;
+     * it will be cloned if anything is written to it.
+     */
+    private void blankRow(int line) {
+        int r = row(line);
+        charArray[r] = blankChars;
+        charAttributes[r] = blankAttributes;
+        needLazyCloning[r] = true;
+    }
+
+    /**
+     * Gets the characters on a line of the buffer. The returned array must
+     * not be modified.
+     * @param line the line, counting from the top of the scrollback buffer
+     * @return The characters on that line.
+     */
+    char[] getCharRow(int line) {
+        return charArray[row(line)];
+    }
+
+    /**
+     * Gets the character attributes on a line of the buffer. The returned
+     * array must not be modified.
+     * @param line the line, counting from the top of the scrollback buffer
+     * @return The attributes on that line.
+     */
+    short[] getAttributeRow(int line) {
+        return charAttributes[row(line)];
+    }
+
+    /**
+     * Compares the contents of this buffer (characters, attributes, sizes,
+     * margins and cursor position) to those of another buffer.
+     * @param b The buffer to compare to.
+     * @return True if the buffers have the same contents.
+     */
+    boolean hasSameContentsAs(VDUBuffer b) {
+        if (width != b.width || height != b.height || bufSize != b.bufSize ||
+            maxBufSize != b.maxBufSize || screenBase != b.screenBase ||
+            windowBase != b.windowBase || topMargin != b.topMargin ||
+            bottomMargin != b.bottomMargin || cursorX != b.cursorX ||
+            cursorY != b.cursorY || showcursor != b.showcursor ||
+            charArray.length != b.charArray.length)
+            return false;
         for (int i = 0; i < charArray.length; i++) {
-            cloneCheck(i);
+            if (!Arrays.equals(getCharRow(i), b.getCharRow(i)) ||
+                !Arrays.equals(getAttributeRow(i), b.getAttributeRow(i)))
+                return false;
         }
+        return true;
     }
 
     boolean containsPattern(Pattern p) {
@@ -10,11 +10,18 @@ import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.Area;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import javax.swing.UIManager;
+import java.util.Set;
 
 /**
  *
@@ -108,10 +115,13 @@ public class VDURenderer {
     private Object textAntialiasingType; /* how to render text */
     private boolean colorPrinting = false; /* print display in color */
     private boolean allowBold = true;
+    private Color marginColor = new Color(238, 238, 238); /* around terminal */
     /*    private BufferedImage backingStore = null;
     private int backingStoreRows = 0;
     private int backingStoreColumns = 0;*/
     private boolean[] update;
+    private char[] lineChars = new char[0]; /* line being drawn */
+    private short[] lineAttributes = new short[0];
     /** A list of colors used for representation of the display */
     private Color[] color = {new Color(0, 0, 0),
                              new Color(175, 0, 0),
@@ -198,6 +208,26 @@ public class VDURenderer {
         return (f1 < f2) ? f1 : f2;
     }
 
+    /**
+     * Copies a line of the buffer into lineChars and lineAttributes, with
+     * control characters replaced by spaces. The buffer itself isn't
+     * changed, as its lines may be shared with other buffers.
+     * @param line the line, counting from the top of the scrollback buffer
+     */
+    private void loadLine(int line) {
+        if (lineChars.length != buffer.width) {
+            lineChars = new char[buffer.width];
+            lineAttributes = new short[buffer.width];
+        }
+        char[] chars = buffer.getCharRow(line);
+        System.arraycopy(chars, 0, lineChars, 0, buffer.width);
+        System.arraycopy(buffer.getAttributeRow(line), 0,
+                         lineAttributes, 0, buffer.width);
+        for (int i = 0; i < buffer.width; i++) {
+            if (lineChars[i] < ' ') lineChars[i] = ' ';
+        }
+    }
+
     /**
      * Set a new terminal (VDU) buffer.
      * @param buffer new buffer
@@ -210,12 +240,15 @@ public class VDURenderer {
         } else {
             this.buffer = buffer;
             update = new boolean[buffer.charAttributes.length + 1];
-            if (old != null && old.charAttributes.length == buffer.charAttributes.length) {
+            /* A buffer that was changed in place can't be compared with
+             * itself, so it has to be redrawn completely. */
+            if (old != null && old != buffer &&
+                old.charAttributes.length == buffer.charAttributes.length) {
                 for (int i = 0; i < old.charAttributes.length; i++) {
                     /* Due to the deduplication method used, if the
                      * charAttributes pointers are the same, then so is ther
                      * charArray. */
-                    if (old.charAttributes[i] != buffer.charAttributes[i]) {
+                    if (old.getAttributeRow(i) != buffer.getAttributeRow(i)) {
                         update[i + 1] = true;
                     } else {
                         update[i + 1] = false;
@@ -231,6 +264,37 @@ public class VDURenderer {
         }
     }
 
+    /**
+     * Set a new terminal (VDU) buffer that was produced from the current one
+     * by decoding a frame, only redrawing the lines that the frame damaged.
+     * If no damage information is available, this is the same as
+     * setVDUBuffer(VDUBuffer), which compares the two buffers line by line.
+     * @param buffer new buffer
+     * @param damage the damage done by the frame, relative to the current
+     * buffer; or null if not known
+     */
+    public void setVDUBuffer(VDUBuffer buffer, TerminalDamage damage) {
+        VDUBuffer old = this.buffer;
+        if (damage == null || damage.isFull() || buffer == null ||
+            old == null || update == null ||
+            old.charAttributes.length != buffer.charAttributes.length ||
+            old.height != buffer.height ||
+            old.windowBase != old.screenBase ||
+            buffer.windowBase != buffer.screenBase) {
+            setVDUBuffer(buffer);
+            return;
+        }
+        this.buffer = buffer;
+        /* Lines still waiting to be redrawn stay marked. */
+        for (int l = 0; l < buffer.height; l++) {
+            if (damage.isRowDamaged(l)) update[l + 1] = true;
+        }
+        /* The damage, not the old buffer, knows where the cursor was, in
+         * case the buffer was changed in place. */
+        update[damage.getOldCursorRow() + 1] = true;
+        update[buffer.cursorY + 1] = true;
+    }
+
     /**
      * Return the currently associated VDUBuffer.
      * @return the current buffer
@@ -320,6 +384,65 @@ public class VDURenderer {
         redraw(g, false, w, h);
     }
 
+    /**
+     * Gets the lines of the screen that have changed since it was last
+     * redrawn, according to the buffers (and damage) given to setVDUBuffer.
+     * @return For each line of the screen, whether it needs redrawing; or
+     * null if the whole screen does (e.g. because the font changed).
+     */
+    public boolean[] getChangedLines() {
+        if (update[0]) return null;
+        return Arrays.copyOfRange(update, 1, buffer.height + 1);
+    }
+
+    /**
+     * Redraw just the lines that have changed since the last redraw on the
+     * given Graphics, which must still show what was drawn then. The rest
+     * of the Graphics is left as it is.
+     * @param g The Graphics to draw on.
+     * @param w The amount of width of the Graphics to use.
+     * @param h The amount of height of the Graphics to use.
+     * @see #getChangedLines()
+     */
+    public void redrawChangedLines(Graphics g, int w, int h) {
+        if (update[0]) {
+            redraw(g, false, w, h);
+            return;
+        }
+        int yoffset = (h - charHeight * buffer.height) / 2;
+        Area changed = new Area();
+        for (int l = 0; l < buffer.height; l++) {
+            if (update[l + 1])
+                changed.add(new Area(new Rectangle(0,
+                        l * charHeight + yoffset, w, charHeight)));
+        }
+        if (changed.isEmpty()) return;
+        Shape clip = g.getClip();
+        if (clip != null) changed.intersect(new Area(clip));
+        g.setClip(changed);
+        redraw(g, false, w, h);
+        g.setClip(clip);
+    }
+
+    /**
+     * Replaces the record of which lines have changed since the last redraw,
+     * e.g. because what was drawn has been moved on the Graphics since.
+     * @param changed For each line of the screen, whether it needs
+     * redrawing.
+     */
+    public void setChangedLines(boolean[] changed) {
+        update[0] = false;
+        System.arraycopy(changed, 0, update, 1, buffer.height);
+    }
+
+    /**
+     * Forgets which lines have changed, as though the screen had just been
+     * redrawn (e.g. because it was drawn by a different renderer).
+     */
+    public void forgetChangedLines() {
+        Arrays.fill(update, false);
+    }
+
     /**
      * Returns the current height of the area of this SwingTerminal used
      * to actually draw the terminal.
@@ -369,13 +492,12 @@ public class VDURenderer {
             hints.put(RenderingHints.KEY_TEXT_ANTIALIASING, textAntialiasingType);
             ((Graphics2D) g).addRenderingHints(hints);
         }
-        // clear background; grab the default background color for a panel in
-        // the current LaF, and use it as the background color for the areas
-        // of the SwingTerminal that aren't occupied by the terminal itself
+        // clear background; the areas of the drawing area that aren't
+        // occupied by the terminal itself are filled with the margin color
         int xoffset = 0;
         int yoffset = 0;
         if (!renderHTML) {
-            g.setColor(UIManager.getColor("Panel.background"));
+            g.setColor(marginColor);
             g.fillRect(0, 0, drawWidth, drawHeight);
             xoffset = (drawWidth - width) / 2;
             yoffset = (drawHeight - height) / 2;
@@ -393,9 +515,10 @@ public class VDURenderer {
                     System.err.println("redraw(): line " + l);
                 }
             }
+            loadLine(buffer.windowBase + l);
             for (int c = 0; c < buffer.width; c++) {
                 int addr = 0;
-                int currAttr = buffer.charAttributes[buffer.windowBase + l][c];
+                int currAttr = lineAttributes[c];
                 fg = darken(color[COLOR_FG_STD]);
                 bg = darken(color[COLOR_BG_STD]);
                 if ((currAttr & VDUBuffer.COLOR_FG) != 0) {
@@ -434,15 +557,10 @@ public class VDURenderer {
                     }
                 }
                 // determine the maximum of characters we can print in one go
-                while ((c + addr < buffer.width) && ((buffer.charArray[buffer.windowBase + l][c + addr] < ' ') || (buffer.charAttributes[buffer.windowBase + l][c + addr] == currAttr))) {
+                while ((c + addr < buffer.width) && (lineAttributes[c + addr] == currAttr)) {
                     if (buffer.screenBase + buffer.cursorY == buffer.windowBase + l && buffer.cursorX == c + addr) {
                         break;
                     }
-                    if (buffer.charArray[buffer.windowBase + l][c + addr] < ' ') {
-                        buffer.charArray[buffer.windowBase + l][c + addr] = ' ';
-                        buffer.charAttributes[buffer.windowBase + l][c + addr] = 0;
-                        continue;
-                    }
                     addr++;
                 }
                 if (addr == 0) {
@@ -471,11 +589,11 @@ public class VDURenderer {
                 // draw the characters, if not invisible.
                 if ((currAttr & VDUBuffer.INVISIBLE) == 0) {
                     if (!renderHTML) {
-                        g.drawChars(buffer.charArray[buffer.windowBase + l], c, addr,
+                        g.drawChars(lineChars, c, addr,
                                     c * charWidth + xoffset, (l + 1) * charHeight - charDescent + yoffset);
                     } else {
                         for (int i = 0; i < addr; i++) {
-                            int cp = Character.codePointAt(buffer.charArray[buffer.windowBase + l], c + i);
+                            int cp = Character.codePointAt(lineChars, c + i);
                             if (cp == 0) {
                                 html.append(' ');
                             } else if (cp >= 32 && cp <= 126 && cp != '&' && cp != '"') {
@@ -505,6 +623,47 @@ public class VDURenderer {
         return html.toString();
     }
 
+    /**
+     * Sets the color used for the parts of the drawing area that the
+     * terminal doesn't cover. A Swing component will typically want its
+     * look and feel's panel background here.
+     * @param marginColor The color to fill the margins with.
+     */
+    public void setMarginColor(Color marginColor) {
+        this.marginColor = marginColor;
+    }
+
+    /**
+     * Returns the colors this renderer draws with, when text isn't
+     * antialiased: the margin color, the colors in the color table, and the
+     * darker and brighter versions of them used for backgrounds, dim text
+     * and the cursor.
+     * @param maxColors The most colors to return. If there are more than
+     * this, the versions furthest from the color table are left out.
+     * @return The colors, with no color listed twice.
+     */
+    public Color[] getPalette(int maxColors) {
+        Set<Color> palette = new LinkedHashSet<>();
+        palette.add(marginColor);
+        for (Color c : color)
+            if (c != null) palette.add(c);
+        /* Backgrounds and dim text are darkened once, and the cursor
+           brightens or darkens what it's on twice more. */
+        List<Color> generation = new ArrayList<>(palette);
+        for (int i = 0; i < 3; i++) {
+            List<Color> next = new ArrayList<>();
+            for (Color c : generation) {
+                next.add(darken(c));
+                next.add(brighten(c));
+            }
+            palette.addAll(next);
+            generation = next;
+        }
+        Color[] colors = palette.toArray(new Color[0]);
+        return colors.length > maxColors ?
+                Arrays.copyOf(colors, maxColors) : colors;
+    }
+
     /**
      * Set default for printing black&amp;white or colorized as displayed on
      * screen.
@@ -0,0 +1,181 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A class that defines a skeleton implementation for encoding videos into
+ * a container in which each frame has its own timestamp. Rather than
+ * resampling the ttyrec to a fixed framerate, each frame of the ttyrec is
+ * encoded once, at its own time (as converted by the frame time
+ * convertor), and shown until the next frame; so idle periods in the
+ * ttyrec take up no space in the encode. It handles the encoding process
+ * for the individual frames (calling an abstract method in the derived
+ * class to incorporate the encoded frames into the container); the
+ * bookkeeping shared with other containers is in AbstractVideoContainer.
+ * @author ais523
+ */
+public abstract class VariableFramerateVideoContainer
+        extends AbstractVideoContainer {
+
+    /* The state of the encode in progress. */
+    private VideoCodec codec;
+    private double frameRate;
+    private FrameCache.Key lastScreen;
+    private DecodedFrame prevFrame;
+    private int encodeFrames;
+    private int lastFrameTime; // in frames at the timer's rate
+    private long lastTime; // in milliseconds
+
+    /**
+     * Encodes one frame into the container.
+     * @param frame The frame to encode.
+     * @param prevFrame The previous frame that was encoded, or null if
+     * this is the first.
+     * @param keyframe Whether to encode the frame as a keyframe, one that
+     * doesn't depend on previous frames.
+     * @param time When the frame is shown, in milliseconds from the start
+     * of the video.
+     */
+    protected abstract void encodeFrame(DecodedFrame frame,
+            DecodedFrame prevFrame, boolean keyframe, long time);
+
+    /**
+     * Encodes the frames of the video into the container, via calling back
+     * through encodeFrame. This method is intended to be called by derived
+     * classes as part of their implementations of encodeVideo.
+     * <p>
+     * Frames are prepared with the codec ahead of encoding them, as with
+     * FixedFramerateVideoContainer. A frame is left out if the timer gives
+     * the next frame the same time (it would never be seen), or if it
+     * looks the same as the previous frame encoded (the previous frame is
+     * shown for longer instead). Every KEYFRAME_INTERVAL frames encoded,
+     * one is a keyframe.
+     * <p>
+     * If frames is a FollowingDecoder, the encode follows a recording
+     * that's still being made. Whenever the encode catches up with the
+     * recording, the frames found so far are all encoded straight away,
+     * and flushEncode is called; so each frame is encoded soon after it's
+     * recorded, rather than after the next frame is. The encode finishes
+     * when the decoder stops.
+     * @param codec The codec the callbacks encode frames with.
+     * @param frames The frames to encode.
+     * @param timer An object describing the translation from times in the
+     * ttyrec to times in the encode.
+     * @return The time of the last frame encoded, in milliseconds, or -1
+     * if no frames were encoded.
+     * @throws CancellationException if the encode is cancelled.
+     * @see #encodeFrame(jettyplay.DecodedFrame, jettyplay.DecodedFrame, boolean, long)
+     * @see VideoCodec#prepareFrame(jettyplay.DecodedFrame, boolean)
+     */
+    protected final long encodeFrames(VideoCodec codec,
+            Iterator<? extends DecodedFrame> frames,
+            FrameTimeConvertor timer) throws CancellationException {
+        try {
+            return encodeFramesWithLookahead(codec, frames, timer);
+        } finally {
+            codec.finishEncode();
+        }
+    }
+
+    private long encodeFramesWithLookahead(VideoCodec codec,
+            Iterator<? extends DecodedFrame> frames,
+            FrameTimeConvertor timer) throws CancellationException {
+        timer.resetConvertor();
+        this.codec = codec;
+        frameRate = timer.getFrameRate();
+        startEncode(codec);
+        lastScreen = new FrameCache.Key();
+        prevFrame = null;
+        encodeFrames = 0;
+        lastTime = -1;
+        try {
+            DecodedFrame nextFrame = frames.hasNext() ? frames.next() : null;
+            int nextFrameTime = nextFrame == null ? 0 :
+                timer.convertFrameTime(nextFrame.getRelativeTimestamp());
+            while (nextFrame != null) {
+                checkForCancellation();
+                DecodedFrame frame = nextFrame;
+                int frameTime = nextFrameTime;
+                /* If the next frame hasn't been recorded yet, there's no
+                   telling when it'll come; so rather than waiting to see
+                   whether it hides this frame, this frame and the frames
+                   the codec is preparing are encoded now. */
+                boolean caughtUp = frames instanceof StreamingDecoder &&
+                        !((StreamingDecoder) frames).isNextAvailable();
+                if (caughtUp) {
+                    offerFrame(frame, frameTime);
+                    flushSteps();
+                    flushEncode();
+                }
+                nextFrame = frames.hasNext() ? frames.next() : null;
+                if (nextFrame != null)
+                    nextFrameTime = timer.convertFrameTime(
+                            nextFrame.getRelativeTimestamp());
+                if (!caughtUp &&
+                        (nextFrame == null || nextFrameTime != frameTime))
+                    offerFrame(frame, frameTime);
+
+                frameDone();
+            }
+            flushSteps();
+            checkForCancellation();
+            return lastTime;
+        } finally {
+            discardSteps();
+            prevFrame = null;
+        }
+    }
+
+    /**
+     * Decides whether to encode a frame that's been chosen to be shown, and
+     * if so, prepares it with the codec, and encodes the frames prepared
+     * too far before it.
+     * @param frame The frame.
+     * @param frameTime The frame's time, in frames at the timer's rate.
+     */
+    private void offerFrame(DecodedFrame frame, int frameTime) {
+        if (encodeFrames > 0 &&
+                lastScreen.matches(frame.getTerminalState())) {
+            frameUnchanged();
+            return;
+        }
+        /* Two frames can only be at the same time if the first was encoded
+           before the second was recorded; the second is shown a frame
+           later, so that each frame has a time of its own. */
+        if (encodeFrames > 0 && frameTime <= lastFrameTime)
+            frameTime = lastFrameTime + 1;
+        boolean keyframe = encodeFrames % KEYFRAME_INTERVAL == 0;
+        lastScreen.set(frame.getTerminalState());
+        codec.prepareFrame(frame, keyframe);
+        lastFrameTime = frameTime;
+        lastTime = Math.round(frameTime * 1000.0 / frameRate);
+        queueStep(new EncodeStep(keyframe ? "keyframe" : "delta", frame,
+                prevFrame, lastTime, encodeFrames));
+        prevFrame = frame;
+        encodeFrames++;
+    }
+
+    /**
+     * Called when every frame found so far has been encoded, and the next
+     * frame hasn't been recorded yet, so there may be a wait before
+     * anything more is encoded. Derived classes can override this to make
+     * what they've written so far usable, e.g. by finishing a section of
+     * the container. This does nothing by default.
+     */
+    protected void flushEncode() {
+    }
+
+    /**
+     * Makes the callback that encodes one frame.
+     */
+    @Override
+    final void encode(EncodeStep step) {
+        encodeFrame(step.frame, step.prevFrame, step.kind.equals("keyframe"),
+                step.time);
+    }
+}
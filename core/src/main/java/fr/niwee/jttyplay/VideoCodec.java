@@ -0,0 +1,269 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A class that represents codecs for representing individual frames
+ * of video inside a video file.
+ * 
+ * The class will be passed frames to render, in order. It will also
+ * be given a renderer to do rendering with; the same renderer should
+ * be passed in on every call, and the codec may make changes to the
+ * renderer if it likes (for instance, setting its size or resize
+ * policy).
+ * 
+ * @author ais523
+ */
+public abstract class VideoCodec {
+    /**
+     * Calculates the maximum number of bytes that will be needed to represent
+     * the given frame, rendered using the given renderer, in this codec. This
+     * can be a very approximate guess and does not need to look at the frame
+     * in detail, although it must be greater than or equal to the actual number
+     * of bytes needed.
+     * @param frame The frame to determine the size of.
+     * @return The maximum number of bytes in the frame.
+     */
+    public abstract int getMaxFrameSize(DecodedFrame frame);
+    /**
+     * Returns how many frames ahead of the frame being encoded this codec
+     * would like to have prepared. A codec that prepares frames on other
+     * threads needs enough frames prepared to keep those threads busy.
+     * 
+     * By default, this is 0: each frame is prepared just before it's
+     * encoded.
+     * 
+     * @return The number of frames to prepare in advance.
+     * @see #prepareFrame(jettyplay.DecodedFrame, boolean) 
+     */
+    public int getLookahead() {
+        return 0;
+    }
+    /**
+     * Tells the codec about a frame that will be encoded, as a keyframe or
+     * a non-keyframe, so that it can start work on it. Frames must be
+     * prepared in the order they're encoded, with repeated frames left out;
+     * up to getLookahead() frames may have been prepared but not encoded.
+     * The codec must finish with the frame's terminal state during this
+     * call, as the frame may not be displayable any more by the time it's
+     * encoded.
+     * 
+     * Preparing frames is optional; by default, this does nothing.
+     * 
+     * @param frame The frame that will be encoded.
+     * @param keyframe Whether the frame will be encoded as a keyframe.
+     */
+    public void prepareFrame(DecodedFrame frame, boolean keyframe) {
+    }
+    /**
+     * Tells the codec that a video has finished being encoded, or that the
+     * encode was abandoned; any frames prepared but not encoded will not be
+     * encoded. The codec should release anything it was using for the
+     * encode, such as threads.
+     * 
+     * By default, this does nothing.
+     */
+    public void finishEncode() {
+    }
+    /**
+     * Encodes the given frame using an encoding capable of standing on its
+     * own, with no reference to previous frames.
+     * 
+     * @param frame The frame to encode.
+     * @return The encoding of the frame, as a byte array.
+     */
+    public abstract byte[] encodeKeyframe(DecodedFrame frame);
+    /**
+     * Encodes the given frame, possibly relative to the previous frame.
+     * 
+     * By default, this just ignores the previous frame and calls {@code
+     * encodeKeyFrame}. It can (and probably should) be overridden in order to
+     * produce more efficient encodings when using compressed formats.
+     * 
+     * @param frame The frame to encode.
+     * @param prevFrame The previous frame encoded into the video.
+     * @return The encoding of the frame, as a byte array.
+     */
+    public byte[] encodeNonKeyframe(DecodedFrame frame, DecodedFrame prevFrame) {
+        return encodeKeyframe(frame);
+    }
+    /**
+     * Encodes the given frame, which is identical to the previous frame.
+     * 
+     * By default, this simply copies the encoding of the previous frame. It
+     * can (and probably should) be overridden in order to produce more
+     * efficient encodings when using compressed formats, and must be in
+     * cases where repeating the encoding of the previous frame would be
+     * incorrect.
+     * 
+     * @param frame The frame to encode.
+     * @param prevEncoding The encoding that was used last time this frame
+     * was encoded.
+     * @return The encoding of the frame. This might or might not share with
+     * prevEncoding.
+     */
+    public byte[] encodeRepeatFrame(DecodedFrame frame,
+            byte[] prevEncoding) {
+        return prevEncoding;
+    }
+
+    /**
+     * Encodes the given frame as a keyframe, writing the encoding to a
+     * buffer instead of returning it. A container that writes frames out
+     * as they're encoded can use this to reuse one buffer for every frame.
+     * 
+     * By default, this copies the result of {@code encodeKeyframe}. Codecs
+     * that build their encoding in a buffer of their own can override it to
+     * write straight into the given buffer.
+     * 
+     * @param frame The frame to encode.
+     * @param output The buffer to append the encoding to.
+     * @return The buffer containing the encoding: {@code output}, or a
+     * larger copy of it if it didn't have enough space remaining.
+     * @see #encodeKeyframe(jettyplay.DecodedFrame)
+     */
+    public ByteBuffer encodeKeyframe(DecodedFrame frame, ByteBuffer output) {
+        byte[] encoding = encodeKeyframe(frame);
+        return ensureRemaining(output, encoding.length).put(encoding);
+    }
+    /**
+     * Encodes the given frame, possibly relative to the previous frame,
+     * writing the encoding to a buffer instead of returning it.
+     * 
+     * By default, this copies the result of {@code encodeNonKeyframe}.
+     * 
+     * @param frame The frame to encode.
+     * @param prevFrame The previous frame encoded into the video.
+     * @param output The buffer to append the encoding to.
+     * @return The buffer containing the encoding: {@code output}, or a
+     * larger copy of it if it didn't have enough space remaining.
+     * @see #encodeNonKeyframe(jettyplay.DecodedFrame, jettyplay.DecodedFrame)
+     */
+    public ByteBuffer encodeNonKeyframe(DecodedFrame frame,
+            DecodedFrame prevFrame, ByteBuffer output) {
+        byte[] encoding = encodeNonKeyframe(frame, prevFrame);
+        return ensureRemaining(output, encoding.length).put(encoding);
+    }
+    /**
+     * Encodes the given frame, which is identical to the previous frame,
+     * writing the encoding to a buffer instead of returning it.
+     * 
+     * By default, this copies the result of {@code encodeRepeatFrame}.
+     * 
+     * @param frame The frame to encode.
+     * @param prevEncoding The encoding that was used last time this frame
+     * was encoded, between its position and limit. It isn't changed.
+     * @param output The buffer to append the encoding to; it mustn't share
+     * with prevEncoding.
+     * @return The buffer containing the encoding: {@code output}, or a
+     * larger copy of it if it didn't have enough space remaining.
+     * @see #encodeRepeatFrame(jettyplay.DecodedFrame, byte[])
+     */
+    public ByteBuffer encodeRepeatFrame(DecodedFrame frame,
+            ByteBuffer prevEncoding, ByteBuffer output) {
+        byte[] prev = new byte[prevEncoding.remaining()];
+        prevEncoding.duplicate().get(prev);
+        byte[] encoding = encodeRepeatFrame(frame, prev);
+        return ensureRemaining(output, encoding.length).put(encoding);
+    }
+
+    /**
+     * Makes sure a buffer has space for at least the given number of
+     * bytes. If it doesn't, a larger buffer is allocated (at least 1.5
+     * times the size, so that a buffer that's grown repeatedly doesn't
+     * have to be copied often), and the contents, position and byte order
+     * of the buffer are copied to it.
+     * @param buffer The buffer that's being written to.
+     * @param needed The number of bytes that need to be written.
+     * @return {@code buffer}, or a larger copy of it.
+     */
+    protected static ByteBuffer ensureRemaining(ByteBuffer buffer,
+            int needed) {
+        if (buffer.remaining() >= needed) return buffer;
+        int capacity = Math.max(buffer.position() + needed,
+                buffer.capacity() * 3 / 2);
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        larger.order(buffer.order());
+        buffer.flip();
+        return larger.put(buffer);
+    }
+    
+    /**
+     * Requests the height that this encoder actually used to encode frames.
+     * This only has a meaningful value once at least one frame has been
+     * encoded.
+     * @return The height used for each frame.
+     */
+    public abstract int getActualHeight();
+    
+    /**
+     * Requests the width that this encoder actually used to encode frames.
+     * This only has a meaningful value once at least one frame has been
+     * encoded.
+     * @return The width used for each frame.
+     */
+    public abstract int getActualWidth();
+    
+    /**
+     * Requests the size of the largest frame that was actually encoded.
+     * (This can be much smaller than any return of getMaxFrameSize();
+     * getMaxFrameSize() returns an estimate made in advance of how big a frame
+     * can possibly get, whereas getActualMaxFrameSize looks back at the frames
+     * that were actually produced and returns the actual size of the largest.)
+     * This only has a meaningful value once at least one frame has been
+     * encoded.
+     * @return The size of the largest frame that has been encoded, in bytes.
+     */
+    public abstract int getActualMaxFrameSize();
+
+    /**
+     * Requests the FourCC code used to represent this codec inside containers.
+     * @return A FourCC code specific to this container, represented as a
+     * four-character string, each of whose characters is in the Latin-1 range.
+     */
+    public abstract String getFourCC();
+
+    /**
+     * Returns a suggested buffer size for holding "blocks" encoded in this
+     * codec. This method should not be called until after frames are encoded,
+     * in case the block size for the codec depends on the frame content.
+     * (What a "block" is depends on the codec.)
+     * @return The suggested buffer size, in bytes.
+     */
+    public abstract int getBlockSize();
+    
+    /**
+     * Returns the number of bits per pixel that this codec uses to represent
+     * colors. (Note that many container formats may only support powers of 2,
+     * plus 24.)
+     * @return The color depth, in bits per pixel.
+     */
+    public abstract int getColorDepth();
+    
+    /**
+     * Returns whether the container should request that this video is flipped
+     * vertically.
+     * @return Whether to instruct players playing this video to flip it
+     * vertically.
+     */
+    public abstract boolean getVerticalFlip();
+
+    /**
+     * Returns whether non-repeated frames are keyframes in this codec even
+     * if encoded with getNonKeyframe.
+     * @return true if new frames are always keyframes; false if frames are
+     * keyframes only if they're requested to be keyframes.
+     */
+    public abstract boolean newFramesAreKeyframes();
+    
+    /**
+     * Returns whether repeated frames are keyframes in this codec.
+     * @return true if encoding a repeated frame encodes it as a keyframe;
+     * false if repeated frames are not encoded as keyframes.
+     */
+    public abstract boolean repeatedFramesAreKeyframes();
+}
@@ -8,7 +8,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Iterator;
 import java.util.concurrent.CancellationException;
-import javax.swing.SwingUtilities;
 
 /**
  * An interface describing a file format used to contain raw video.
@@ -27,7 +26,8 @@ public interface VideoContainer {
      * @throws CancellationException if the encode is cancelled using
      * {@code cancelEncode()} before it finishes encoding.
      */
-    public void encodeVideo(VideoCodec codec, Iterator<TtyrecFrame> frames,
+    public void encodeVideo(VideoCodec codec,
+            Iterator<? extends DecodedFrame> frames,
             FrameTimeConvertor timer) throws CancellationException;
 
     /**
@@ -58,7 +58,6 @@ public interface VideoContainer {
      * is encoded. Note that it may be called from an unusual thread, and as
      * such, it should take care to be thread-safe, e.g. by passing control
      * off to the UI thread rather than handling the notification itself.
-     * @see SwingUtilities#invokeLater(java.lang.Runnable)
      */
     public void addProgressListener(ProgressListener listener);
     
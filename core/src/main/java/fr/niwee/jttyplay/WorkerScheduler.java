@@ -0,0 +1,194 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The threads that all background work in Jettyplay runs on. There are two
+ * kinds of work:
+ * <ul>
+ * <li>Tasks, such as sources, analyzers and decoders, that run for a long
+ * time and spend much of it blocked waiting for input. These run on virtual
+ * threads if the Java runtime supports them (Java 21 or later), and
+ * otherwise on a pool of platform threads that are reused as tasks come and
+ * go, rather than each task creating its own thread.</li>
+ * <li>Short computations that keep a CPU busy, such as decoding segments of
+ * a ttyrec in parallel. These run on a fixed pool with one thread per spare
+ * CPU, so that they don't starve the tasks.</li>
+ * </ul>
+ * The numbers of tasks in various states, and the number of computations
+ * waiting for a thread, can be queried for diagnostic purposes.
+ * @author ais523
+ */
+public final class WorkerScheduler {
+
+    private WorkerScheduler() {}
+
+    private static final AtomicLong submittedTasks = new AtomicLong();
+    private static final AtomicLong completedTasks = new AtomicLong();
+    private static final AtomicInteger runningTasks = new AtomicInteger();
+    private static final AtomicInteger pausedTasks = new AtomicInteger();
+
+    private static final boolean virtual;
+    private static final ExecutorService tasks;
+    private static final ThreadPoolExecutor computations;
+
+    static {
+        ExecutorService e = null;
+        if (Runtime.version().feature() >= 21) {
+            try {
+                e = (ExecutorService) Executors.class.
+                        getMethod("newVirtualThreadPerTaskExecutor").
+                        invoke(null);
+            } catch (ReflectiveOperationException | ClassCastException ex) {
+                // fall back to platform threads
+            }
+        }
+        virtual = e != null;
+        if (e == null)
+            e = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                    60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                    daemonThreads("Ttyrec Worker", Thread.NORM_PRIORITY));
+        tasks = e;
+        int cpus = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        computations = new ThreadPoolExecutor(cpus, cpus,
+                0, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                daemonThreads("Ttyrec Computation", Thread.MIN_PRIORITY));
+    }
+
+    private static ThreadFactory daemonThreads(String name, int priority) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + " " + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(priority);
+            return t;
+        };
+    }
+
+    /**
+     * Starts running a task.
+     * @param task The task to run.
+     */
+    static void submit(BackgroundTask task) {
+        submittedTasks.incrementAndGet();
+        tasks.execute(task::runOnScheduler);
+    }
+
+    /**
+     * Queues a computation to run on the computation pool.
+     * @param computation The computation to run.
+     * @return A future that can be used to cancel the computation.
+     */
+    static Future<?> submitComputation(Runnable computation) {
+        return computations.submit(computation);
+    }
+
+    /**
+     * Returns the number of threads in the computation pool.
+     * @return The maximum number of computations that can run at once.
+     */
+    static int getComputationThreadCount() {
+        return computations.getMaximumPoolSize();
+    }
+
+    static void taskStarted() {
+        runningTasks.incrementAndGet();
+    }
+
+    static void taskFinished() {
+        runningTasks.decrementAndGet();
+        completedTasks.incrementAndGet();
+    }
+
+    static void taskPaused() {
+        pausedTasks.incrementAndGet();
+    }
+
+    static void taskUnpaused() {
+        pausedTasks.decrementAndGet();
+    }
+
+    /**
+     * Queries whether tasks run on virtual threads.
+     * @return True if virtual threads are in use; false if platform threads
+     * are.
+     */
+    public static boolean isUsingVirtualThreads() {
+        return virtual;
+    }
+
+    /**
+     * Returns the number of tasks that have been started since the program
+     * started.
+     * @return The number of tasks ever submitted.
+     */
+    public static long getSubmittedTaskCount() {
+        return submittedTasks.get();
+    }
+
+    /**
+     * Returns the number of tasks that have finished running.
+     * @return The number of tasks completed.
+     */
+    public static long getCompletedTaskCount() {
+        return completedTasks.get();
+    }
+
+    /**
+     * Returns the number of tasks that are currently running, including
+     * those that are paused or waiting for input.
+     * @return The number of tasks running.
+     */
+    public static int getRunningTaskCount() {
+        return runningTasks.get();
+    }
+
+    /**
+     * Returns the number of tasks that have been submitted but haven't
+     * started running yet.
+     * @return The number of tasks waiting for a thread.
+     */
+    public static int getQueuedTaskCount() {
+        long q = submittedTasks.get() - completedTasks.get() -
+                runningTasks.get();
+        return (int) Math.max(0, q);
+    }
+
+    /**
+     * Returns the number of tasks that are currently paused.
+     * @return The number of paused tasks.
+     */
+    public static int getPausedTaskCount() {
+        return pausedTasks.get();
+    }
+
+    /**
+     * Returns the number of computations currently running.
+     * @return The number of busy threads in the computation pool.
+     */
+    public static int getActiveComputationCount() {
+        return computations.getActiveCount();
+    }
+
+    /**
+     * Returns the number of computations waiting for a thread.
+     * @return The length of the computation queue.
+     */
+    public static int getComputationQueueDepth() {
+        return computations.getQueue().size();
+    }
+}
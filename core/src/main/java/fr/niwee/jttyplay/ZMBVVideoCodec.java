@@ -0,0 +1,574 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.niwee.jttyplay;
+
+import java.awt.Font;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+/**
+ * The video encoding method Zip Motion Blocks Video. (Also known as the
+ * DOSBox Capture Codec, after its original use.)
+ * <p>
+ * Frames are compressed straight into the buffer they're written from,
+ * and the buffers used to calculate non-keyframes are reused from frame
+ * to frame, so encoding into a reused buffer allocates very little.
+ * 
+ * @author ais523
+ */
+public class ZMBVVideoCodec extends AbstractVideoCodec {
+
+    Deflater deflater;
+    int largestFrameSize = 0;
+    int blockWidth = -1;
+    int blockHeight = -1;
+    /* The block size as of the last frame prepared, which can be ahead of
+       the last frame encoded; and the block sizes of keyframes that have
+       been prepared but not encoded. */
+    int preparedBlockWidth = -1;
+    int preparedBlockHeight = -1;
+    final Queue<int[]> keyframeBlockSizes = new ArrayDeque<>();
+    /* The motion estimator for the prepared block size. */
+    private MotionEstimator estimator = null;
+    /* Buffers for non-keyframe data that has been encoded, for the
+       preparation of later frames to reuse. */
+    private final Queue<byte[]> spareResiduals =
+            new ConcurrentLinkedQueue<>();
+    /* The motion vectors of a frame with no motion, for repeated frames. */
+    private byte[] noMotion = new byte[0];
+    /* The buffer that encodings are returned from, when they aren't
+       encoded into a buffer supplied by the container. */
+    private ByteBuffer encodeBuffer = ByteBuffer.allocate(1024);
+    
+    public ZMBVVideoCodec(int height, Font terminalFont, Object object,
+                          boolean allowBold) {
+        super(height, terminalFont, object, allowBold);
+        deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    }
+
+    @Override
+    public String getFourCC() {
+        return "ZMBV";
+    }
+
+    @Override
+    public int getBlockSize() {
+        return getRenderer().getCharHeight() * getRenderer().getCharWidth() * 4;
+    }
+
+    @Override
+    public int getColorDepth() {
+        return 32;
+    }
+
+    @Override
+    public boolean getVerticalFlip() {
+        return false;
+    }
+
+    /**
+     * Compresses using zlib and sync-flushes the given input.
+     * @param input The array containing the input to compress.
+     * @param length The number of bytes at the start of the array to
+     * compress.
+     * @param output The buffer to append the compressed data to.
+     * @return The buffer containing the compressed data: {@code output}, or
+     * a larger copy of it if it ran out of space.
+     */
+    private ByteBuffer deflate(byte[] input, int length, ByteBuffer output) {
+        deflater.setInput(input, 0, length);
+        /* If the output fills up, there may be more to come. */
+        do {
+            output = ensureRemaining(output, 1);
+            deflater.deflate(output, Deflater.SYNC_FLUSH);
+        } while (!output.hasRemaining());
+        return output;
+    }
+
+    /**
+     * Records the size of a frame that was just encoded into a buffer.
+     * @param output The buffer the frame was encoded into.
+     * @param start The position in the buffer at which the frame starts.
+     * @return {@code output}.
+     */
+    private ByteBuffer frameEncoded(ByteBuffer output, int start) {
+        if (output.position() - start > largestFrameSize)
+            largestFrameSize = output.position() - start;
+        return output;
+    }
+
+    /**
+     * Returns the encoding that was just made in encodeBuffer, as an array.
+     */
+    private byte[] encodeBufferContents() {
+        return Arrays.copyOf(encodeBuffer.array(), encodeBuffer.position());
+    }
+
+    /**
+     * Calculates the number of bytes of motion vectors in a non-keyframe.
+     * There are 2 bytes per block, and 2 bytes of padding if there are an
+     * odd number of blocks.
+     */
+    private static int motionVectorLength(int blocks) {
+        int len = blocks * 2;
+        if (len % 4 == 2)
+            len += 2;
+        return len;
+    }
+    
+    /**
+     * Prepares a frame for encoding. The block size can only change at
+     * keyframes (as it's in their header), and is chosen here, so that
+     * the non-keyframes that follow can be prepared using it.
+     */
+    @Override
+    public void prepareFrame(DecodedFrame frame, boolean keyframe) {
+        super.prepareFrame(frame, keyframe);
+        if (!keyframe) return;
+        int bW = getRenderer().getCharWidth();
+        if (super.getActualWidth() % bW == 0) preparedBlockWidth = bW;
+        int bH = getRenderer().getCharHeight();
+        if (super.getActualHeight() % bH == 0) preparedBlockHeight = bH;
+        keyframeBlockSizes.add(
+                new int[] {preparedBlockWidth, preparedBlockHeight});
+    }
+
+    @Override
+    public void finishEncode() {
+        super.finishEncode();
+        keyframeBlockSizes.clear();
+        spareResiduals.clear();
+    }
+
+    @Override
+    public byte[] encodeKeyframe(DecodedFrame frame) {
+        encodeBuffer.clear();
+        encodeBuffer = encodeKeyframe(frame, encodeBuffer);
+        return encodeBufferContents();
+    }
+
+    @Override
+    public ByteBuffer encodeKeyframe(DecodedFrame frame, ByteBuffer output) {
+        byte[] uncompressedData = takePreparedFrame(frame, true);
+        int[] blockSize = keyframeBlockSizes.remove();
+        blockWidth = blockSize[0];
+        blockHeight = blockSize[1];
+        deflater.reset();
+        int start = output.position();
+        /* Keyframe header: 01 00 01 01 08 blockwidth blockheight */
+        output = ensureRemaining(output, 7);
+        output.put((byte)0x1);
+        output.put((byte)0x0);
+        output.put((byte)0x1);
+        output.put((byte)0x1);
+        output.put((byte)0x8);
+        output.put((byte)blockWidth);
+        output.put((byte)blockHeight);
+        output = deflate(uncompressedData, uncompressedData.length, output);
+        return frameEncoded(output, start);
+    }
+
+    /**
+     * Encodes a frame that's a repeat of the previous one.
+     * 
+     * Due to the details of the ZMBV codec, there isn't actually a need to
+     * look at the previous data; we can just encode a frame of "no motion",
+     * that's a non-keyframe that's all 0s (and thus compresses very well).
+     * 
+     * @param frame The frame that was repeated. Only examined to check its
+     * size.
+     * @param prevEncoding The previous encoding of the frame; ignored.
+     * @return The encoding of a no-motion frame.
+     */
+    @Override
+    public byte[] encodeRepeatFrame(DecodedFrame frame, byte[] prevEncoding) {
+        encodeBuffer.clear();
+        encodeBuffer = encodeRepeatFrame(frame, null, encodeBuffer);
+        return encodeBufferContents();
+    }
+
+    @Override
+    public ByteBuffer encodeRepeatFrame(DecodedFrame frame,
+            ByteBuffer prevEncoding, ByteBuffer output) {
+        int len = motionVectorLength(getActualWidth() * getActualHeight() /
+                blockWidth / blockHeight);
+        if (noMotion.length != len)
+            noMotion = new byte[len];
+        int start = output.position();
+        output = ensureRemaining(output, 1).put((byte)0);
+        output = deflate(noMotion, len, output);
+        return frameEncoded(output, start);
+    }
+
+    /**
+     * Encodes a frame relative to a previous frame.
+     * 
+     * This is mostly done via encoding the XOR of this frame with the
+     * previous frame, which is calculated when the frame is prepared (see
+     * prepareNonKeyframe). We rely on the fact that frames are always
+     * prepared in order (it can skip or repeat frames, but not do them out
+     * of order), meaning that we know the block size, and the previous
+     * frame prepared is the previous frame encoded.
+     * 
+     * @param frame The frame to encode.
+     * @param prevFrame The frame to encode relative to. This is ignored;
+     * rather we use the most recent frame to be encoded.
+     * @return The encoded data.
+     */
+    @Override
+    public byte[] encodeNonKeyframe(DecodedFrame frame, DecodedFrame prevFrame) {
+        encodeBuffer.clear();
+        encodeBuffer = encodeNonKeyframe(frame, prevFrame, encodeBuffer);
+        return encodeBufferContents();
+    }
+
+    @Override
+    public ByteBuffer encodeNonKeyframe(DecodedFrame frame,
+            DecodedFrame prevFrame, ByteBuffer output) {
+        byte[] uncompressed = takePreparedFrame(frame, false);
+        /* The buffer has room for every block's residual; the motion
+           vectors say how many blocks actually have one. */
+        int blocks = getActualWidth() * getActualHeight() /
+                blockWidth / blockHeight;
+        int len = motionVectorLength(blocks);
+        for (int i = 0; i < blocks * 2; i += 2)
+            if ((uncompressed[i] & 1) != 0)
+                len += blockWidth * blockHeight * 4;
+        int start = output.position();
+        output = ensureRemaining(output, 1).put((byte)0);
+        output = deflate(uncompressed, len, output);
+        return frameEncoded(output, start);
+    }
+
+    /**
+     * Starts calculating the motion vectors and residual for a frame,
+     * relative to the previous frame, once both have been rendered.
+     */
+    @Override
+    protected CompletableFuture<byte[]> prepareNonKeyframe(
+            CompletableFuture<byte[]> pixels,
+            CompletableFuture<byte[]> prevPixels, TerminalDamage damage,
+            Executor executor) {
+        int w = getActualWidth();
+        int h = getActualHeight();
+        int charWidth = getRenderer().getCharWidth();
+        int charHeight = getRenderer().getCharHeight();
+        if (estimator == null || !estimator.matches(w, h, preparedBlockWidth,
+                preparedBlockHeight, charWidth, charHeight))
+            estimator = new MotionEstimator(w, h, preparedBlockWidth,
+                    preparedBlockHeight, charWidth, charHeight);
+        final MotionEstimator e = estimator;
+        return pixels.thenCombineAsync(prevPixels,
+                (data, prev) -> e.residualOf(data, prev, damage,
+                spareResidual(e.getBufferSize())), executor);
+    }
+
+    /**
+     * Returns a buffer for a non-keyframe's data, reusing the buffer of a
+     * frame that's been encoded if there is one.
+     */
+    private byte[] spareResidual(int size) {
+        byte[] spare = spareResiduals.poll();
+        return spare != null && spare.length == size ? spare : new byte[size];
+    }
+
+    @Override
+    protected void recyclePreparedData(byte[] data) {
+        spareResiduals.add(data);
+    }
+
+    /**
+     * Calculates the uncompressed encoding of non-keyframes: the motion
+     * vectors of each block, then the residual of the blocks that have one.
+     * <p>
+     * Each block's motion vector says where in the previous frame to copy
+     * the block from, before applying the residual. Blocks that aren't on
+     * a damaged line are the same as in the previous frame, so they're
+     * given a zero vector without looking at them. On a terminal, things
+     * move in whole characters: most often, the screen scrolls, moving
+     * everything up by a number of lines. So the candidates tried for a
+     * block that changed are the motion of the scroll recorded in the
+     * terminal's damage; the motion chosen for the blocks to its left and
+     * above; and every motion by a whole number of characters vertically
+     * or horizontally that ZMBV can represent. The candidate that leaves
+     * the fewest pixels different is used. The search never looks outside
+     * the previous frame, although the ZMBV format allows it.
+     * <p>
+     * An estimator is used for every frame with the same geometry. It
+     * doesn't change once it's been created, and doesn't use any of the
+     * codec's state, so it's safe to use on any thread.
+     */
+    private static final class MotionEstimator {
+        /* The range of a ZMBV motion vector component, in pixels. */
+        private static final int MIN_MOTION = -64;
+        private static final int MAX_MOTION = 63;
+
+        private final int w;
+        private final int h;
+        private final int blockWidth;
+        private final int blockHeight;
+        private final int charWidth;
+        private final int charHeight;
+        private final int blocksX;
+        private final int blocksY;
+        private final int motionVectorLength;
+        /* The whole-character motions to search, as (x, y) pairs. */
+        private final int[] search;
+
+        /**
+         * Creates a motion estimator for frames with a given geometry.
+         * @param w The width of the frames.
+         * @param h The height of the frames.
+         * @param blockWidth The width of a block.
+         * @param blockHeight The height of a block.
+         * @param charWidth The width of a character in the frame.
+         * @param charHeight The height of a character in the frame.
+         */
+        MotionEstimator(int w, int h, int blockWidth, int blockHeight,
+                int charWidth, int charHeight) {
+            this.w = w;
+            this.h = h;
+            this.blockWidth = blockWidth;
+            this.blockHeight = blockHeight;
+            this.charWidth = charWidth;
+            this.charHeight = charHeight;
+            blocksX = w / blockWidth;
+            blocksY = h / blockHeight;
+            motionVectorLength = motionVectorLength(blocksX * blocksY);
+            int verticalSteps = MAX_MOTION / charHeight;
+            int horizontalSteps = MAX_MOTION / charWidth;
+            search = new int[(verticalSteps + horizontalSteps) * 4];
+            int n = 0;
+            for (int i = 1; i <= verticalSteps; i++) {
+                search[n++] = 0;
+                search[n++] = i * charHeight;
+                search[n++] = 0;
+                search[n++] = -i * charHeight;
+            }
+            for (int i = 1; i <= horizontalSteps; i++) {
+                search[n++] = i * charWidth;
+                search[n++] = 0;
+                search[n++] = -i * charWidth;
+                search[n++] = 0;
+            }
+        }
+
+        /**
+         * Checks whether this estimator is for frames with a given
+         * geometry.
+         */
+        boolean matches(int w, int h, int blockWidth, int blockHeight,
+                int charWidth, int charHeight) {
+            return this.w == w && this.h == h &&
+                    this.blockWidth == blockWidth &&
+                    this.blockHeight == blockHeight &&
+                    this.charWidth == charWidth &&
+                    this.charHeight == charHeight;
+        }
+
+        /**
+         * Returns the size of a buffer that can hold the encoding of any
+         * frame: the motion vectors, and a residual for every block.
+         */
+        int getBufferSize() {
+            return motionVectorLength +
+                    blocksX * blocksY * blockWidth * blockHeight * 4;
+        }
+
+        /**
+         * Encodes a frame relative to the previous frame.
+         * @param uncompressedData The frame's pixels.
+         * @param prevUncompressedData The previous frame's pixels.
+         * @param damage The damage done to the terminal since the previous
+         * frame, or null if it isn't known.
+         * @param output The buffer to encode the frame into, of at least
+         * getBufferSize() bytes. Its previous contents don't matter.
+         * @return {@code output}, starting with the data to compress. The
+         * length of the data can be worked out from the motion vectors.
+         */
+        byte[] residualOf(byte[] uncompressedData,
+                byte[] prevUncompressedData, TerminalDamage damage,
+                byte[] output) {
+            int residualPos = motionVectorLength;
+            Arrays.fill(output, 0, motionVectorLength, (byte)0);
+            int motionPos = 0;
+            int scrollMotion = damage == null ? 0 :
+                    damage.getScrollLines() * charHeight;
+            for (int y = 0; y < blocksY; y++) {
+                if (!isDamaged(y, damage)) {
+                    motionPos += blocksX * 2;
+                    continue;
+                }
+                for (int x = 0; x < blocksX; x++) {
+                    int start = (y * blockHeight * w + x * blockWidth) * 4;
+                    int motionX = 0;
+                    int motionY = 0;
+                    int best = difference(uncompressedData,
+                            prevUncompressedData, start, 0, Integer.MAX_VALUE);
+                    /* Try the candidates in order, keeping the first that's
+                       strictly better than what we have. The motions chosen
+                       for the blocks to the left and above are read back
+                       from their motion vectors. */
+                    int candidates = 3 + search.length / 2;
+                    for (int i = 0; i < candidates && best > 0; i++) {
+                        int dx, dy;
+                        if (i == 0) {
+                            dx = 0;
+                            dy = scrollMotion;
+                        } else if (i == 1) {
+                            dx = x > 0 ? output[motionPos - 2] >> 1 : 0;
+                            dy = x > 0 ? output[motionPos - 1] >> 1 : 0;
+                        } else if (i == 2) {
+                            int above = motionPos - blocksX * 2;
+                            dx = y > 0 ? output[above] >> 1 : 0;
+                            dy = y > 0 ? output[above + 1] >> 1 : 0;
+                        } else {
+                            dx = search[(i - 3) * 2];
+                            dy = search[(i - 3) * 2 + 1];
+                        }
+                        if (!isUsable(x, y, dx, dy)) continue;
+                        int d = difference(uncompressedData,
+                                prevUncompressedData, start,
+                                (dx + dy * w) * 4, best);
+                        if (d < best) {
+                            best = d;
+                            motionX = dx;
+                            motionY = dy;
+                        }
+                    }
+                    int motion = (motionX + motionY * w) * 4;
+                    boolean hasResidual = best > 0;
+                    if (hasResidual) {
+                        for (int j = start; j < start + blockHeight * w * 4;
+                                j += w * 4) {
+                            for (int k = j; k < j + blockWidth * 4; k += 4) {
+                                output[residualPos++] = (byte)
+                                        (uncompressedData[k]
+                                        ^ prevUncompressedData[k + motion]);
+                                output[residualPos++] = (byte)
+                                        (uncompressedData[k + 1]
+                                        ^ prevUncompressedData[k + 1 + motion]);
+                                output[residualPos++] = (byte)
+                                        (uncompressedData[k + 2]
+                                        ^ prevUncompressedData[k + 2 + motion]);
+                                output[residualPos++] = 0;
+                            }
+                        }
+                    }
+                    output[motionPos++] = (byte) ((motionX << 1)
+                                    | (hasResidual ? 1 : 0));
+                    output[motionPos++] = (byte) (motionY << 1);
+                }
+            }
+            return output;
+        }
+
+        /**
+         * Works out whether the terminal says anything changed on the
+         * character rows covered by a row of blocks.
+         */
+        private boolean isDamaged(int y, TerminalDamage damage) {
+            if (damage == null || damage.isFull()) return true;
+            /* The terminal is centred vertically in the frame. */
+            int top = (h - charHeight * damage.getRows()) / 2;
+            int first = Math.floorDiv(y * blockHeight - top, charHeight);
+            int last = Math.floorDiv((y + 1) * blockHeight - 1 - top,
+                    charHeight);
+            first = Math.max(first, 0);
+            last = Math.min(last, damage.getRows() - 1);
+            for (int row = first; row <= last; row++) {
+                if (damage.isRowDamaged(row) || row == damage.getCursorRow() ||
+                        row == damage.getOldCursorRow())
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Checks that a motion can be represented, and only refers to
+         * pixels inside the previous frame.
+         */
+        private boolean isUsable(int x, int y, int dx, int dy) {
+            if (dx == 0 && dy == 0) return false; /* already tried */
+            if (dx < MIN_MOTION || dx > MAX_MOTION ||
+                    dy < MIN_MOTION || dy > MAX_MOTION)
+                return false;
+            int left = x * blockWidth + dx;
+            int top = y * blockHeight + dy;
+            return left >= 0 && top >= 0 &&
+                    left + blockWidth <= w && top + blockHeight <= h;
+        }
+
+        /**
+         * Counts the pixels in a block that differ from the pixels in the
+         * previous frame that a motion would copy them from.
+         * @param data The frame's pixels.
+         * @param prevData The previous frame's pixels.
+         * @param start The offset of the block's first pixel.
+         * @param motion The offset to add to get the previous frame's
+         * pixel.
+         * @param limit Stop counting at this many pixels.
+         * @return The number of different pixels, or limit if that's less.
+         */
+        private int difference(byte[] data, byte[] prevData, int start,
+                int motion, int limit) {
+            int different = 0;
+            for (int j = start; j < start + blockHeight * w * 4; j += w * 4) {
+                for (int k = j; k < j + blockWidth * 4; k += 4) {
+                    if (data[k] != prevData[k + motion] ||
+                            data[k + 1] != prevData[k + 1 + motion] ||
+                            data[k + 2] != prevData[k + 2 + motion]) {
+                        if (++different >= limit) return limit;
+                    }
+                }
+            }
+            return different;
+        }
+    }
+
+    @Override
+    public int getActualMaxFrameSize() {
+        return largestFrameSize;
+    }
+
+    @Override
+    public boolean newFramesAreKeyframes() {
+        return false;
+    }
+
+    @Override
+    public boolean repeatedFramesAreKeyframes() {
+        return false;
+    }
+
+    @Override
+    protected int[] getPixelOrder() {
+        int[] pixelOrder = {2, 1, 0, 3}; /* BGRA */
+        return pixelOrder;
+    }
+
+    @Override
+    protected ColorModel getColorModel() {
+        /* For whatever reason, Java seems to just ignore the pixel stride if
+         * it would involve padding. So instead, we add an alpha channel to the
+         * image and let it do the padding for us. */
+        int[] colorWidths = {8, 8, 8, 8}; /* 24-bit color + 8 bits of alpha */
+        return new ComponentColorModel(
+                ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                colorWidths, true, false, Transparency.OPAQUE,
+                DataBuffer.TYPE_BYTE);
+    }
+}
@@ -26,6 +26,9 @@
 
 package fr.niwee.jttyplay;
 
+import java.util.Arrays;
+import java.util.Objects;
+
 /**
  * Implementation of a VT terminal emulation plus ANSI compatible.
  * <P>
@@ -83,15 +86,89 @@ public class vt320 extends VDUBuffer implements Cloneable {
     // System.err.println("'"+s+"'");
 
     if (len > 0) {
-      for (int i = 0; i < len; i++) {
+      char[] chars = s.toCharArray();
+      int i = 0;
+      while (i < len) {
+        int run = printableRunLength(chars, i, len);
+        if (run > 0) {
+          putPrintableRun(chars, i, run);
+          i += run;
+          continue;
+        }
         // System.err.print(s.charAt(i)+"("+(int)s.charAt(i)+")");
-        putChar(s.charAt(i), false);
+        putChar(chars[i], false);
+        i++;
       }
       setCursorPosition(C, R);
       redraw();
     }
   }
 
+  /**
+   * Works out how many characters, starting at the given offset, can be
+   * written to the screen by putPrintableRun rather than going through the
+   * escape sequence state machine one character at a time. A character only
+   * qualifies if the slow path would do nothing but store it at the cursor
+   * and advance the cursor; the run also stops at the right margin, so that
+   * wrapping and auto-resizing are left to the slow path.
+   * @param chars The characters being written to the terminal.
+   * @param offset The index of the first character to consider.
+   * @param end One past the index of the last character to consider.
+   * @return The length of the run; 0 if the next character needs the slow
+   * path.
+   */
+  private int printableRunLength(char[] chars, int offset, int end) {
+    if (term_state != TSTATE_DATA || insertmode != 0 || onegl >= 0)
+      return 0;
+    int columns = getColumns();
+    if (C < 0 || C >= columns || R < 0 || R >= getRows())
+      return 0;
+    int limit = Math.min(end, offset + columns - C);
+    int i = offset;
+    while (i < limit && isPlainPrintable(chars[i]))
+      i++;
+    return i - offset;
+  }
+
+  /**
+   * Returns whether a character in TSTATE_DATA would be displayed as itself,
+   * with no control function, charset mapping or IBM translation applied.
+   * @param c The character to check.
+   * @return True if the character can be stored on the screen unchanged.
+   */
+  private boolean isPlainPrintable(char c) {
+    if (c < 0x20 || c == 0x7f)
+      return false;
+    if (c >= 0x80 && c < 0xa0)
+      return false; /* C1 controls and SS2/SS3/CSI */
+    if (useibmcharset && c >= 0x80)
+      return false;
+    if (usedcharsets) {
+      if (c < 0x80) {
+        if (gx[gl] != 'A' && gx[gl] != 'B')
+          return false;
+      } else if (c <= 0xff) {
+        if (gx[gr] != '<' && gx[gr] != 'A' && gx[gr] != 'B')
+          return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes a run of characters found by printableRunLength to the screen at
+   * the cursor, and moves the cursor past them. The run never crosses the
+   * right margin, so the cursor and wrap state only need updating once.
+   * @param chars The characters being written to the terminal.
+   * @param offset The index of the first character of the run.
+   * @param length The number of characters in the run.
+   */
+  private void putPrintableRun(char[] chars, int offset, int length) {
+    putChars(C, R, chars, offset, length, attributes);
+    C += length;
+    lastwaslf = 0;
+  }
+
   /** 
    * Sent the changed window size from the terminal to all listeners.
    * @param c The number of columns.
@@ -248,6 +325,57 @@ public class vt320 extends VDUBuffer implements Cloneable {
     return terminalID;
   }
 
+  /**
+   * Creates a copy of this terminal, which can be written to without
+   * affecting this terminal.
+   * @return The copy.
+   * @throws CloneNotSupportedException Never.
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    vt320 t = (vt320) super.clone();
+    t.gx = gx.clone();
+    t.Tabs = Tabs.clone();
+    t.DCEvars = DCEvars.clone();
+    if (Sgx != null) t.Sgx = Sgx.clone();
+    return t;
+  }
+
+  /**
+   * Compares the entire state of this terminal to that of another terminal:
+   * the screen, the cursor, and all modes and partially parsed escape
+   * sequences. If this returns true, then writing the same input to both
+   * terminals will leave them in the same state.
+   * @param t The terminal to compare to.
+   * @return True if the terminals are in the same state.
+   */
+  public boolean hasSameStateAs(vt320 t) {
+    return autoResize == t.autoResize &&
+        vetoAutoResize == t.vetoAutoResize &&
+        characterEncodingOverride == t.characterEncodingOverride &&
+        R == t.R && C == t.C && attributes == t.attributes &&
+        Sc == t.Sc && Sr == t.Sr && Stm == t.Stm && Sbm == t.Sbm &&
+        Sa == t.Sa && Sgr == t.Sgr && Sgl == t.Sgl &&
+        Arrays.equals(Sgx, t.Sgx) &&
+        insertmode == t.insertmode && statusmode == t.statusmode &&
+        vt52mode == t.vt52mode && keypadmode == t.keypadmode &&
+        output8bit == t.output8bit && normalcursor == t.normalcursor &&
+        moveoutsidemargins == t.moveoutsidemargins &&
+        wraparound == t.wraparound && sendcrlf == t.sendcrlf &&
+        capslock == t.capslock && numlock == t.numlock &&
+        mouserpt == t.mouserpt && mousebut == t.mousebut &&
+        useibmcharset == t.useibmcharset && lastwaslf == t.lastwaslf &&
+        usedcharsets == t.usedcharsets && Arrays.equals(gx, t.gx) &&
+        gl == t.gl && gr == t.gr && onegl == t.onegl &&
+        Objects.equals(osc, t.osc) && Objects.equals(dcs, t.dcs) &&
+        term_state == t.term_state && vms == t.vms &&
+        Arrays.equals(Tabs, t.Tabs) && Arrays.equals(DCEvars, t.DCEvars) &&
+        DCEvar == t.DCEvar &&
+        Objects.equals(terminalID, t.terminalID) &&
+        Objects.equals(answerBack, t.answerBack) &&
+        hasSameContentsAs(t);
+  }
+
   // ===================================================================
   // the actual terminal emulation code comes here:
   // ===================================================================
@@ -945,7 +1073,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
                       mapped = true;
                       break;
                     default:
-                      System.out.println("Unsupported GL mapping: " + gx[thisgl]);
+                      if (debugVT > 0)
+                        System.out.println("Unsupported GL mapping: " + gx[thisgl]);
                       break;
                   }
                 }
@@ -963,7 +1092,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
                       //mapped = true;
                       break;
                     default:
-                      System.out.println("Unsupported GR mapping: " + gx[gr]);
+                      if (debugVT > 0)
+                        System.out.println("Unsupported GR mapping: " + gx[gr]);
                       break;
                   }
                 }
@@ -1011,7 +1141,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
             case '8': case 'G':
                 characterEncodingOverride = EncodingOverride.UTF8; break;
             default:
-                System.out.println("ESC % " + c + "unhandled.");
+                if (debugVT > 0)
+                  System.out.println("ESC % " + c + "unhandled.");
         }
         break;
       case TSTATE_ESCSPACE:
@@ -1024,7 +1155,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
             output8bit = true;
             break;
           default:
-            System.out.println("ESC <space> " + c + " unhandled.");
+            if (debugVT > 0)
+              System.out.println("ESC <space> " + c + " unhandled.");
         }
         break;
       case TSTATE_ESC:
@@ -1224,7 +1356,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
             term_state = TSTATE_VT52Y;
             break;
           default:
-            System.out.println("ESC unknown letter: " + c + " (" + ((int) c) + ")");
+            if (debugVT > 0)
+              System.out.println("ESC unknown letter: " + c + " (" + ((int) c) + ")");
             break;
         }
         break;
@@ -1237,9 +1370,10 @@ public class vt320 extends VDUBuffer implements Cloneable {
         term_state = TSTATE_DATA;
         break;
       case TSTATE_SETG0:
-        if (c != '0' && c != 'A' && c != 'B' && c != '<')
-          System.out.println("ESC ( " + c + ": G0 char set?  (" + ((int) c) + ")");
-        else {
+        if (c != '0' && c != 'A' && c != 'B' && c != '<') {
+          if (debugVT > 0)
+            System.out.println("ESC ( " + c + ": G0 char set?  (" + ((int) c) + ")");
+        } else {
           if (debugVT > 2) System.out.println("ESC ( : G0 char set  (" + c + " " + ((int) c) + ")");
           gx[0] = c;
         }
@@ -1247,7 +1381,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
         break;
       case TSTATE_SETG1:
         if (c != '0' && c != 'A' && c != 'B' && c != '<') {
-          System.out.println("ESC ) " + c + " (" + ((int) c) + ") :G1 char set?");
+          if (debugVT > 0)
+            System.out.println("ESC ) " + c + " (" + ((int) c) + ") :G1 char set?");
         } else {
           if (debugVT > 2) System.out.println("ESC ) :G1 char set  (" + c + " " + ((int) c) + ")");
           gx[1] = c;
@@ -1255,18 +1390,20 @@ public class vt320 extends VDUBuffer implements Cloneable {
         term_state = TSTATE_DATA;
         break;
       case TSTATE_SETG2:
-        if (c != '0' && c != 'A' && c != 'B' && c != '<')
-          System.out.println("ESC*:G2 char set?  (" + ((int) c) + ")");
-        else {
+        if (c != '0' && c != 'A' && c != 'B' && c != '<') {
+          if (debugVT > 0)
+            System.out.println("ESC*:G2 char set?  (" + ((int) c) + ")");
+        } else {
           if (debugVT > 2) System.out.println("ESC*:G2 char set  (" + c + " " + ((int) c) + ")");
           gx[2] = c;
         }
         term_state = TSTATE_DATA;
         break;
       case TSTATE_SETG3:
-        if (c != '0' && c != 'A' && c != 'B' && c != '<')
-          System.out.println("ESC+:G3 char set?  (" + ((int) c) + ")");
-        else {
+        if (c != '0' && c != 'A' && c != 'B' && c != '<') {
+          if (debugVT > 0)
+            System.out.println("ESC+:G3 char set?  (" + ((int) c) + ")");
+        } else {
           if (debugVT > 2) System.out.println("ESC+:G3 char set  (" + c + " " + ((int) c) + ")");
           gx[3] = c;
         }
@@ -1280,7 +1417,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
                 putChar(i, j, 'E', (short)0);
             break;
           default:
-            System.out.println("ESC # " + c + " not supported.");
+            if (debugVT > 0)
+              System.out.println("ESC # " + c + " not supported.");
             break;
         }
         term_state = TSTATE_DATA;
@@ -1315,11 +1453,11 @@ public class vt320 extends VDUBuffer implements Cloneable {
             term_state = TSTATE_DCEQ;
             break;
           case 's': // XTERM_SAVE missing!
-            if (true || debugVT > 1)
+            if (debugVT > 1)
               System.out.println("ESC [ ? " + DCEvars[0] + " s unimplemented!");
             break;
           case 'r': // XTERM_RESTORE
-            if (true || debugVT > 1)
+            if (debugVT > 1)
               System.out.println("ESC [ ? " + DCEvars[0] + " r");
             /* DEC Mode reset */
             for (int i = 0; i <= DCEvar; i++) {
@@ -1347,7 +1485,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
                   mouserpt = DCEvars[i];
                   break;
                 default:
-                  System.out.println("ESC [ ? " + DCEvars[0] + " r, unimplemented!");
+                  if (debugVT > 0)
+                    System.out.println("ESC [ ? " + DCEvars[0] + " r, unimplemented!");
               }
             }
             break;
@@ -1400,7 +1539,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
                   /* 18 - DECPFF - Printer Form Feed Mode -> On */
                   /* 19 - DECPEX - Printer Extent Mode -> Screen */
                 default:
-                  System.out.println("ESC [ ? " + DCEvars[0] + " h, unsupported.");
+                  if (debugVT > 0)
+                    System.out.println("ESC [ ? " + DCEvars[0] + " h, unsupported.");
                   break;
               }
             }
@@ -1467,7 +1607,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
                   autoResize = false;
                   break;
                 default:
-                  System.out.println("ESC [ ? " + DCEvars[0] + " l, unsupported.");
+                  if (debugVT > 0)
+                    System.out.println("ESC [ ? " + DCEvars[0] + " l, unsupported.");
                   break;
               }
             }
@@ -1478,15 +1619,18 @@ public class vt320 extends VDUBuffer implements Cloneable {
             switch (DCEvars[0]) {
               case 15:
                 /* printer? no printer. */
-                System.out.println("ESC[5n");
+                if (debugVT > 0)
+                  System.out.println("ESC[5n");
                 break;
               default:
-                System.out.println("ESC [ ? " + DCEvars[0] + " n, unsupported.");
+                if (debugVT > 0)
+                  System.out.println("ESC [ ? " + DCEvars[0] + " n, unsupported.");
                 break;
             }
             break;
           default:
-            System.out.println("ESC [ ? " + DCEvars[0] + " " + c + ", unsupported.");
+            if (debugVT > 0)
+              System.out.println("ESC [ ? " + DCEvars[0] + " " + c + ", unsupported.");
             break;
         }
         break;
@@ -1497,7 +1641,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
             term_state = TSTATE_ESC;
             break;
           default:
-            System.out.println("Unknown character ESC[! character is " + (int) c);
+            if (debugVT > 0)
+              System.out.println("Unknown character ESC[! character is " + (int) c);
             break;
         }
         break;
@@ -1505,7 +1650,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
         term_state = TSTATE_DATA;
         switch (c) {
           case 'p':
-            System.out.println("Conformance level: " + DCEvars[0] + " (unsupported)," + DCEvars[1]);
+            if (debugVT > 0)
+              System.out.println("Conformance level: " + DCEvars[0] + " (unsupported)," + DCEvars[1]);
             if (DCEvars[0] == 61) {
               output8bit = false;
               break;
@@ -1517,7 +1663,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
             }
             break;
           default:
-            System.out.println("Unknown ESC [...  \"" + c);
+            if (debugVT > 0)
+              System.out.println("Unknown ESC [...  \"" + c);
             break;
         }
         break;
@@ -1547,7 +1694,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
 	  {
 	    int newcolor;
 
-            System.out.println("ESC [ = "+DCEvars[0]+" F");
+            if (debugVT > 0)
+              System.out.println("ESC [ = "+DCEvars[0]+" F");
 
             attributes &= ~COLOR_FG;
 	    newcolor =	((DCEvars[0] & 1) << 2)	|
@@ -1561,7 +1709,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
 	  {
 	    int newcolor;
 
-            System.out.println("ESC [ = "+DCEvars[0]+" G");
+            if (debugVT > 0)
+              System.out.println("ESC [ = "+DCEvars[0]+" G");
 
             attributes &= ~COLOR_BG;
 	    newcolor =	((DCEvars[0] & 1) << 2)	|
@@ -1572,10 +1721,12 @@ public class vt320 extends VDUBuffer implements Cloneable {
           }
 
           default:
-            System.out.print("Unknown ESC [ = ");
-	    for (int i=0;i<=DCEvar;i++)
-		System.out.print(DCEvars[i]+",");
-	    System.out.println("" + c);
+            if (debugVT > 0) {
+              System.out.print("Unknown ESC [ = ");
+              for (int i=0;i<=DCEvar;i++)
+                System.out.print(DCEvars[i]+",");
+              System.out.println("" + c);
+            }
             break;
         }
         break;
@@ -1583,7 +1734,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
         term_state = TSTATE_DATA;
         switch (c) {
           case '}':
-            System.out.println("Active Status Display now " + DCEvars[0]);
+            if (debugVT > 0)
+              System.out.println("Active Status Display now " + DCEvars[0]);
             statusmode = DCEvars[0];
             break;
             /* bad documentation?
@@ -1592,10 +1744,12 @@ public class vt320 extends VDUBuffer implements Cloneable {
                break;
             */
           case '~':
-            System.out.println("Status Line mode now " + DCEvars[0]);
+            if (debugVT > 0)
+              System.out.println("Status Line mode now " + DCEvars[0]);
             break;
           default:
-            System.out.println("UNKNOWN Status Display code " + c + ", with Pn=" + DCEvars[0]);
+            if (debugVT > 0)
+              System.out.println("UNKNOWN Status Display code " + c + ", with Pn=" + DCEvars[0]);
             break;
         }
         break;
@@ -1666,11 +1820,13 @@ public class vt320 extends VDUBuffer implements Cloneable {
                 insertmode = 1;
                 break;
               case 20:
-                System.out.println("Setting CRLF to TRUE");
+                if (debugVT > 0)
+                  System.out.println("Setting CRLF to TRUE");
                 sendcrlf = true;
                 break;
               default:
-                System.out.println("unsupported: ESC [ " + DCEvars[0] + " h");
+                if (debugVT > 0)
+                  System.out.println("unsupported: ESC [ " + DCEvars[0] + " h");
                 break;
             }
             if (debugVT > 1)
@@ -1697,7 +1853,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
                   System.out.println("CSI 4/5 i:  Disable Transparent Printing, not implemented.");
                 break;
               default:
-                System.out.println("ESC [ " + DCEvars[0] + " i, unimplemented!");
+                if (debugVT > 0)
+                  System.out.println("ESC [ " + DCEvars[0] + " i, unimplemented!");
             }
             break;
           case 'l':
@@ -1706,11 +1863,13 @@ public class vt320 extends VDUBuffer implements Cloneable {
                 insertmode = 0;
                 break;
               case 20:
-                System.out.println("Setting CRLF to FALSE");
+                if (debugVT > 0)
+                  System.out.println("Setting CRLF to FALSE");
                 sendcrlf = false;
                 break;
               default:
-                System.out.println("ESC [ " + DCEvars[0] + " l, unimplemented!");
+                if (debugVT > 0)
+                  System.out.println("ESC [ " + DCEvars[0] + " l, unimplemented!");
                 break;
             }
             break;
@@ -1957,7 +2116,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
             Sc = C;
             Sr = R;
             Sa = attributes;
-            System.out.println("ESC[s");
+            if (debugVT > 0)
+              System.out.println("ESC[s");
             break;
           case 't': /* some terminals respond to this by setting the screen size */
             if (DCEvars[0] == 8 ){
@@ -1968,7 +2128,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
               autoResize = false;
               if (debugAutoResize > 0) System.out.println("Vetoing autoresize (explicit screen size set detected)");
             } else {
-              System.out.println("Unhandled ESC [ t");
+              if (debugVT > 0)
+                System.out.println("Unhandled ESC [ t");
             }
             break;
           case 'u': /* DECRC - restore cursor */
@@ -2088,7 +2249,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
                   break;
 
                 default:
-                  System.out.println("ESC [ " + DCEvars[i] + " m unknown...");
+                  if (debugVT > 0)
+                    System.out.println("ESC [ " + DCEvars[i] + " m unknown...");
                   break;
               }
               if (debugVT > 3)
@@ -2098,7 +2260,8 @@ public class vt320 extends VDUBuffer implements Cloneable {
               System.out.print(" (attributes = " + attributes + ")m \n");
             break;
           default:
-            System.out.println("ESC [ unknown letter:" + c + " (" + ((int) c) + ")");
+            if (debugVT > 0)
+              System.out.println("ESC [ unknown letter:" + c + " (" + ((int) c) + ")");
             break;
         }
         break;
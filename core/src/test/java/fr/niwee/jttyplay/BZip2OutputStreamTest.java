@@ -0,0 +1,81 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that what BZip2OutputStream compresses, MicroBunzip decompresses
+ * back to the same bytes.
+ * @author ais523
+ */
+public class BZip2OutputStreamTest {
+
+    private static void roundTrip(String what, byte[] data, int level)
+            throws IOException, InterruptedException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (BZip2OutputStream out =
+                new BZip2OutputStream(compressed, level)) {
+            // Mix single-byte and array writes, as real callers do.
+            int split = data.length / 3;
+            for (int i = 0; i < split; i++) out.write(data[i]);
+            out.write(data, split, data.length - split);
+        }
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        int result = MicroBunzip.uncompressStream(
+                new ByteArrayInputStream(compressed.toByteArray()),
+                decompressed);
+        assertEquals(what + ": result", MicroBunzip.RETVAL_OK, result);
+        assertArrayEquals(what, data, decompressed.toByteArray());
+    }
+
+    @Test
+    public void emptyInput() throws Exception {
+        roundTrip("empty", new byte[0], 9);
+    }
+
+    @Test
+    public void generatedTtyrecs() throws Exception {
+        for (TtyrecGenerator.Profile p : TtyrecGenerator.Profile.values()) {
+            if (p == TtyrecGenerator.Profile.GIANT_FRAMES) continue;
+            ByteArrayOutputStream ttyrec = new ByteArrayOutputStream();
+            new TtyrecGenerator(p, GeneratedCorpus.SEED).generate(ttyrec,
+                    TtyrecGenerator.Format.TTYREC, 200000, Long.MAX_VALUE);
+            // Level 1 makes the larger inputs span several blocks.
+            roundTrip(p.toString(), ttyrec.toByteArray(), 1);
+        }
+    }
+
+    @Test
+    public void longRuns() throws Exception {
+        byte[] data = new byte[300000];
+        Random random = new Random(GeneratedCorpus.SEED);
+        int i = 0;
+        while (i < data.length) {
+            int run = Math.min(data.length - i,
+                    random.nextBoolean() ? random.nextInt(6) :
+                    random.nextInt(1000));
+            Arrays.fill(data, i, i + run, (byte) random.nextInt(4));
+            i += run;
+        }
+        roundTrip("runs", data, 1);
+        roundTrip("single byte", new byte[250000], 2);
+    }
+
+    @Test
+    public void randomBytes() throws Exception {
+        byte[] data = new byte[150000];
+        new Random(GeneratedCorpus.SEED).nextBytes(data);
+        roundTrip("random", data, 1);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.awt.Font;
+import java.awt.RenderingHints;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times loading, decoding and encoding every recording in a corpus (such as
+ * one written by TtyrecGenerator.writeCorpus). CorpusBenchmarkTest runs
+ * this on a small generated corpus; it can also be run from the command
+ * line on a larger one:
+ * <pre>
+ * java -cp ... fr.niwee.jttyplay.CorpusBenchmark directory...
+ * </pre>
+ * @author ais523
+ */
+public class CorpusBenchmark {
+
+    /** The timings for one recording, in nanoseconds. */
+    static final class Result {
+        final File file;
+        final int frames;
+        final long analyzeNanos;
+        final long decodeNanos;
+        final long encodeNanos;
+
+        Result(File file, int frames, long analyzeNanos, long decodeNanos,
+               long encodeNanos) {
+            this.file = file;
+            this.frames = frames;
+            this.analyzeNanos = analyzeNanos;
+            this.decodeNanos = decodeNanos;
+            this.encodeNanos = encodeNanos;
+        }
+
+        long totalNanos() {
+            return analyzeNanos + decodeNanos + encodeNanos;
+        }
+    }
+
+    private CorpusBenchmark() {
+    }
+
+    /**
+     * Loads a recording, runs a terminal through all of it, and encodes it
+     * as a ZMBV Matroska video in memory. (Matroska stores each frame once,
+     * however long it's shown, so long pauses don't dominate the timing.)
+     * @param file The recording.
+     * @return How long each step took.
+     * @throws InterruptedException If interrupted while loading.
+     * @throws IOException If the recording can't be loaded.
+     */
+    static Result run(File file) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        try (TtyrecLoader loader = new TtyrecLoader(
+                new InputStreamableFileWrapper(file, true), false)) {
+            if (!loader.awaitAnalysis(GeneratedCorpus.TIMEOUT_MINUTES,
+                    TimeUnit.MINUTES))
+                throw new IOException("Timed out loading " + file);
+            Ttyrec rec = loader.getTtyrec();
+            if (rec.getFrameCount() == 0)
+                throw new IOException("No frames in " + file);
+            long analyzed = System.nanoTime();
+            if (loader.decodeFinalState() == null)
+                throw new IOException("No final state for " + file);
+            long decoded = System.nanoTime();
+            MatroskaVideoContainer container = new MatroskaVideoContainer();
+            rec.encodeVideo(container, new ZMBVVideoCodec(120,
+                    new Font(Font.MONOSPACED, Font.PLAIN, 12),
+                    RenderingHints.VALUE_TEXT_ANTIALIAS_OFF, false),
+                    FrameTimeConvertor.logarithmic());
+            long encoded = System.nanoTime();
+            return new Result(file, rec.getFrameCount(), analyzed - start,
+                    decoded - analyzed, encoded - decoded);
+        }
+    }
+
+    /**
+     * Runs the benchmark on every file in some directories, in name order.
+     * @param directories The directories holding the corpus.
+     * @param report Where to write a line per file and a total.
+     * @return The total time taken, in nanoseconds.
+     * @throws InterruptedException If interrupted while loading.
+     * @throws IOException If a recording can't be loaded.
+     */
+    static long runCorpus(File[] directories, PrintStream report)
+            throws InterruptedException, IOException {
+        long total = 0;
+        long bytes = 0;
+        for (File directory : directories) {
+            File[] files = directory.listFiles(File::isFile);
+            if (files == null)
+                throw new IOException(directory + " is not a directory");
+            Arrays.sort(files);
+            for (File file : files) {
+                Result r = run(file);
+                total += r.totalNanos();
+                bytes += file.length();
+                report.println(String.format(Locale.ROOT,
+                        "%-24s %7d frames  analyze %6d ms  decode %6d ms  " +
+                        "encode %6d ms", file.getName(), r.frames,
+                        TimeUnit.NANOSECONDS.toMillis(r.analyzeNanos),
+                        TimeUnit.NANOSECONDS.toMillis(r.decodeNanos),
+                        TimeUnit.NANOSECONDS.toMillis(r.encodeNanos)));
+            }
+        }
+        report.println(String.format(Locale.ROOT,
+                "total %d ms for %d bytes",
+                TimeUnit.NANOSECONDS.toMillis(total), bytes));
+        return total;
+    }
+
+    /**
+     * Runs the benchmark from the command line.
+     * @param args The directories holding the corpus.
+     * @throws Exception If loading a recording fails.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: CorpusBenchmark directory...");
+            System.exit(2);
+        }
+        System.setProperty("java.awt.headless", "true");
+        File[] directories = new File[args.length];
+        for (int i = 0; i < args.length; i++)
+            directories[i] = new File(args[i]);
+        runCorpus(directories, System.out);
+        System.exit(0);
+    }
+}
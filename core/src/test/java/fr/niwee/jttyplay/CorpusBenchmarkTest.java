@@ -0,0 +1,59 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs CorpusBenchmark on a generated corpus with one file per profile and
+ * format, failing if anything can't be loaded or the whole run takes longer
+ * than a budget. The budget is deliberately generous, so that it only
+ * catches gross slowdowns; it can be changed with the
+ * {@code jttyplay.benchmark.budget} system property, in seconds.
+ * @author ais523
+ */
+public class CorpusBenchmarkTest {
+
+    private static final long DEFAULT_BUDGET_SECONDS = 180;
+
+    private File directory;
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        directory = GeneratedCorpus.createDirectory();
+        TtyrecGenerator.writeCorpus(directory, GeneratedCorpus.FILE_SIZE,
+                GeneratedCorpus.SEED);
+    }
+
+    @After
+    public void tearDown() {
+        GeneratedCorpus.deleteDirectory(directory);
+    }
+
+    @Test
+    public void corpusWithinBudget() throws Exception {
+        long budget = TimeUnit.SECONDS.toNanos(Long.getLong(
+                "jttyplay.benchmark.budget", DEFAULT_BUDGET_SECONDS));
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        long total = CorpusBenchmark.runCorpus(new File[] {directory},
+                new PrintStream(report, true, "UTF-8"));
+        assertTrue("over budget:\n" + report.toString("UTF-8"),
+                total <= budget);
+    }
+}
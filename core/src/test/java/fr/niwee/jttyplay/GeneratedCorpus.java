@@ -0,0 +1,92 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small, seeded recordings for the tests to work on. Everything is
+ * generated by TtyrecGenerator into a temporary directory, so the tests
+ * don't depend on any recordings being checked in.
+ * @author ais523
+ */
+final class GeneratedCorpus {
+
+    /** The seed every test corpus is generated from. */
+    static final long SEED = 20100101L;
+    /** The approximate size of each generated file, in bytes. */
+    static final long FILE_SIZE = 32768;
+    /** How long to wait for a test file to load before failing. */
+    static final long TIMEOUT_MINUTES = 2;
+
+    private GeneratedCorpus() {
+    }
+
+    /**
+     * Generates a recording into a directory.
+     * @param directory Where to create the file.
+     * @param profile The kind of session to imitate.
+     * @param format The format to write in.
+     * @param bytes The approximate uncompressed size of the file.
+     * @return The file written.
+     * @throws IOException If the file can't be written.
+     */
+    static File generate(File directory, TtyrecGenerator.Profile profile,
+            TtyrecGenerator.Format format, long bytes) throws IOException {
+        File file = new File(directory,
+                profile.name().toLowerCase(Locale.ROOT) +
+                format.getExtension());
+        new TtyrecGenerator(profile, SEED + profile.ordinal()).generate(
+                file, format, bytes, Long.MAX_VALUE);
+        return file;
+    }
+
+    /**
+     * Loads a file and waits for its analysis to finish.
+     * @param file The file to load.
+     * @param decode Whether the loader should decode every frame.
+     * @return The loader, which the caller must close.
+     * @throws InterruptedException If the wait is interrupted.
+     */
+    static TtyrecLoader load(File file, boolean decode)
+            throws InterruptedException {
+        TtyrecLoader loader = new TtyrecLoader(
+                new InputStreamableFileWrapper(file, true), decode);
+        if (!loader.awaitAnalysis(TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+            loader.close();
+            throw new AssertionError("Timed out loading " + file);
+        }
+        return loader;
+    }
+
+    /**
+     * Creates an empty temporary directory.
+     * @return The directory.
+     * @throws IOException If it can't be created.
+     */
+    static File createDirectory() throws IOException {
+        File directory = File.createTempFile("jettyplay-test", "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("Could not create " + directory);
+        return directory;
+    }
+
+    /**
+     * Deletes a temporary directory and everything in it.
+     * @param directory The directory to delete; may be null.
+     */
+    static void deleteDirectory(File directory) {
+        if (directory == null) return;
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File f : files)
+                if (f.isDirectory()) deleteDirectory(f); else f.delete();
+        directory.delete();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that decoding a recording in parallel segments gives the same
+ * terminal state for every frame as decoding it sequentially.
+ * @author ais523
+ */
+public class ParallelDecodingTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = GeneratedCorpus.createDirectory();
+    }
+
+    @After
+    public void tearDown() {
+        TtyrecDecoder.setParallelDecoding(false);
+        GeneratedCorpus.deleteDirectory(directory);
+    }
+
+    private static TtyrecLoader decode(File file, boolean parallel)
+            throws InterruptedException {
+        TtyrecDecoder.setParallelDecoding(parallel);
+        TtyrecLoader loader = GeneratedCorpus.load(file, true);
+        try {
+            assertTrue("Timed out decoding " + file, loader.awaitDecode(
+                    GeneratedCorpus.TIMEOUT_MINUTES, TimeUnit.MINUTES));
+        } catch (AssertionError | InterruptedException ex) {
+            loader.close();
+            throw ex;
+        } finally {
+            TtyrecDecoder.setParallelDecoding(false);
+        }
+        return loader;
+    }
+
+    private void checkProfile(TtyrecGenerator.Profile profile)
+            throws Exception {
+        File file = GeneratedCorpus.generate(directory, profile,
+                TtyrecGenerator.Format.TTYREC, 4 * GeneratedCorpus.FILE_SIZE);
+        try (TtyrecLoader sequential = decode(file, false);
+             TtyrecLoader parallel = decode(file, true)) {
+            Ttyrec s = sequential.getTtyrec();
+            Ttyrec p = parallel.getTtyrec();
+            assertEquals(profile.toString(), s.getFrameCount(),
+                    p.getFrameCount());
+            int keyframes = 0;
+            for (int i = 0; i < s.getFrameCount(); i++) {
+                if (s.getFrameAtIndex(i).isNaturalKeyframe()) keyframes++;
+                vt320 a = s.getFrameAtIndex(i).getTerminalState();
+                vt320 b = p.getFrameAtIndex(i).getTerminalState();
+                String what = profile + " frame " + (i + 1);
+                assertNotNull(what, a);
+                assertNotNull(what, b);
+                assertTrue(what, a.hasSameStateAs(b));
+            }
+            // Without screen resets, there's nothing to decode in parallel.
+            assertTrue(profile + " has no keyframes", keyframes > 1);
+        }
+    }
+
+    @Test
+    public void cursesDecodesTheSame() throws Exception {
+        checkProfile(TtyrecGenerator.Profile.CURSES);
+    }
+
+    @Test
+    public void mixedDecodesTheSame() throws Exception {
+        checkProfile(TtyrecGenerator.Profile.MIXED);
+    }
+}
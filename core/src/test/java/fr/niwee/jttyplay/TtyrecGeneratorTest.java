@@ -0,0 +1,94 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that every profile of TtyrecGenerator, in every format, loads back
+ * with the frames and encoding that were written.
+ * @author ais523
+ */
+public class TtyrecGeneratorTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = GeneratedCorpus.createDirectory();
+    }
+
+    @After
+    public void tearDown() {
+        GeneratedCorpus.deleteDirectory(directory);
+    }
+
+    @Test
+    public void everyProfileRoundTrips() throws Exception {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        boolean ok = TtyrecGenerator.checkProfiles(GeneratedCorpus.FILE_SIZE,
+                GeneratedCorpus.SEED, new PrintStream(report, true, "UTF-8"));
+        assertTrue(report.toString("UTF-8"), ok);
+    }
+
+    @Test
+    public void everyFormatRoundTrips() throws Exception {
+        for (TtyrecGenerator.Profile p : TtyrecGenerator.Profile.values()) {
+            for (TtyrecGenerator.Format f :
+                    TtyrecGenerator.Format.values()) {
+                File file = new File(directory, "check" + f.getExtension());
+                long written = new TtyrecGenerator(p, GeneratedCorpus.SEED).
+                        generate(file, f, GeneratedCorpus.FILE_SIZE,
+                                Long.MAX_VALUE);
+                String what = p + " as " + f;
+                try (TtyrecLoader loader = GeneratedCorpus.load(file, false)) {
+                    Ttyrec rec = loader.getTtyrec();
+                    // script(1) output has no frame boundaries to keep.
+                    if (f == TtyrecGenerator.Format.SCRIPT)
+                        assertTrue(what, rec.getFrameCount() > 0);
+                    else
+                        assertEquals(what, written, rec.getFrameCount());
+                    assertEquals(what, Ttyrec.Encoding.UTF8,
+                            rec.getActualEncoding());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sameSeedSameOutput() throws Exception {
+        for (TtyrecGenerator.Profile p : TtyrecGenerator.Profile.values()) {
+            ByteArrayOutputStream a = new ByteArrayOutputStream();
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            new TtyrecGenerator(p, GeneratedCorpus.SEED).generate(a,
+                    TtyrecGenerator.Format.TTYREC, 4096, Long.MAX_VALUE);
+            new TtyrecGenerator(p, GeneratedCorpus.SEED).generate(b,
+                    TtyrecGenerator.Format.TTYREC, 4096, Long.MAX_VALUE);
+            assertArrayEquals(p.toString(), a.toByteArray(),
+                    b.toByteArray());
+        }
+    }
+
+    @Test
+    public void scriptHeaderIsWritten() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TtyrecGenerator(TtyrecGenerator.Profile.SCROLL,
+                GeneratedCorpus.SEED).generate(out,
+                        TtyrecGenerator.Format.SCRIPT, 1024, Long.MAX_VALUE);
+        assertTrue(new String(out.toByteArray(), StandardCharsets.UTF_8).
+                startsWith("Script started on "));
+    }
+}
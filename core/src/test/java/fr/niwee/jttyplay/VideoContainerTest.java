@@ -0,0 +1,412 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package fr.niwee.jttyplay;
+
+import java.awt.Font;
+import java.awt.RenderingHints;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes a generated recording with each container, and parses the result
+ * to check that its structure is valid: that every chunk or element fits
+ * inside its parent, and that the indexes point at the frames.
+ * @author ais523
+ */
+public class VideoContainerTest {
+
+    /* The frame rate to encode at. */
+    private static final double FPS = 30;
+
+    private File directory;
+    private TtyrecLoader loader;
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        directory = GeneratedCorpus.createDirectory();
+        loader = GeneratedCorpus.load(GeneratedCorpus.generate(directory,
+                TtyrecGenerator.Profile.CURSES,
+                TtyrecGenerator.Format.TTYREC, GeneratedCorpus.FILE_SIZE),
+                false);
+    }
+
+    @After
+    public void tearDown() {
+        if (loader != null) loader.close();
+        GeneratedCorpus.deleteDirectory(directory);
+    }
+
+    private static VideoCodec[] codecs() {
+        Font font = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+        Object aa = RenderingHints.VALUE_TEXT_ANTIALIAS_OFF;
+        return new VideoCodec[] {
+            new ZMBVVideoCodec(120, font, aa, false),
+            new RawVideoCodec(120, font, aa, false)
+        };
+    }
+
+    private static byte[] output(VideoContainer container)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        container.outputEncode(out);
+        return out.toByteArray();
+    }
+
+    /* RIFF, as used by AVI */
+
+    /**
+     * A chunk of a RIFF file. Lists have a type and children; other chunks
+     * don't.
+     */
+    private static final class Chunk {
+        final String id;
+        final int offset; // of the chunk's header
+        final int length; // of its data, not counting the header or padding
+        String type;
+        List<Chunk> children;
+
+        Chunk(String id, int offset, int length) {
+            this.id = id;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        Chunk find(String id) {
+            for (Chunk c : children)
+                if (id.equals(c.type != null ? c.type : c.id)) return c;
+            return null;
+        }
+    }
+
+    private static String fourcc(ByteBuffer b, int offset) {
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) bytes[i] = b.get(offset + i);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Parses the chunks between two offsets, checking that they exactly
+     * fill the space.
+     */
+    private static List<Chunk> parseRiff(ByteBuffer b, int start, int end) {
+        List<Chunk> chunks = new ArrayList<>();
+        int p = start;
+        while (p < end) {
+            assertTrue("chunk header overflows at " + p, p + 8 <= end);
+            Chunk c = new Chunk(fourcc(b, p), p, b.getInt(p + 4));
+            int next = p + 8 + c.length + (c.length & 1);
+            assertTrue(c.id + " at " + p + " overflows its parent",
+                    c.length >= 0 && p + 8 + c.length <= end);
+            if (c.id.equals("RIFF") || c.id.equals("LIST")) {
+                c.type = fourcc(b, p + 8);
+                c.children = parseRiff(b, p + 12, p + 8 + c.length);
+            }
+            chunks.add(c);
+            p = Math.min(next, end);
+        }
+        assertEquals("chunks don't fill their parent", end, p);
+        return chunks;
+    }
+
+    private static int countFrames(Chunk movi) {
+        int frames = 0;
+        for (Chunk c : movi.children)
+            if (c.id.equals("00dc")) frames++;
+        return frames;
+    }
+
+    @Test
+    public void aviInMemory() throws Exception {
+        for (VideoCodec codec : codecs()) {
+            AVIVideoContainer container = new AVIVideoContainer();
+            loader.getTtyrec().encodeVideo(container, codec,
+                    FrameTimeConvertor.fixedSpeed(FPS));
+            ByteBuffer b = ByteBuffer.wrap(output(container)).
+                    order(ByteOrder.LITTLE_ENDIAN);
+            List<Chunk> top = parseRiff(b, 0, b.limit());
+            assertEquals(1, top.size());
+            Chunk riff = top.get(0);
+            assertEquals("AVI ", riff.type);
+            Chunk hdrl = riff.find("hdrl");
+            Chunk movi = riff.find("movi");
+            Chunk idx1 = riff.find("idx1");
+            assertNotNull(hdrl);
+            assertNotNull(movi);
+            assertNotNull(idx1);
+            int frames = countFrames(movi);
+            assertTrue(frames > 0);
+            Chunk avih = hdrl.find("avih");
+            assertEquals("avih frames", frames, b.getInt(avih.offset + 24));
+            Chunk strh = hdrl.find("strl").find("strh");
+            assertEquals("strh length", frames, b.getInt(strh.offset + 40));
+            checkIdx1(b, idx1, movi, frames);
+        }
+    }
+
+    /**
+     * Checks that every entry of an idx1 index points at a frame chunk of
+     * the right length. The offsets are from the "movi" fourcc, and the
+     * lengths include the chunk header.
+     */
+    private static void checkIdx1(ByteBuffer b, Chunk idx1, Chunk movi,
+                                  int frames) {
+        assertEquals("idx1 entries", frames * 16, idx1.length);
+        for (int i = 0; i < frames; i++) {
+            int entry = idx1.offset + 8 + 16 * i;
+            assertEquals("00dc", fourcc(b, entry));
+            int at = movi.offset + 8 + b.getInt(entry + 8);
+            assertEquals("idx1 entry " + i, "00dc", fourcc(b, at));
+            assertEquals("idx1 entry " + i,
+                    b.getInt(entry + 12), b.getInt(at + 4) + 8);
+        }
+    }
+
+    @Test
+    public void aviOpenDML() throws Exception {
+        for (VideoCodec codec : codecs()) {
+            AVIVideoContainer memory = new AVIVideoContainer();
+            loader.getTtyrec().encodeVideo(memory, codec,
+                    FrameTimeConvertor.fixedSpeed(FPS));
+            ByteBuffer m = ByteBuffer.wrap(output(memory)).
+                    order(ByteOrder.LITTLE_ENDIAN);
+            int frames = countFrames(
+                    parseRiff(m, 0, m.limit()).get(0).find("movi"));
+
+            File file = new File(directory, "opendml.avi");
+            byte[] contents;
+            // A small RIFF limit, so that the file needs several.
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                AVIVideoContainer container =
+                        new AVIVideoContainer(channel, 8192);
+                loader.getTtyrec().encodeVideo(container, codec,
+                        FrameTimeConvertor.fixedSpeed(FPS));
+                contents = Files.readAllBytes(file.toPath());
+                assertArrayEquals("outputEncode", contents,
+                        output(container));
+            }
+            ByteBuffer b = ByteBuffer.wrap(contents).
+                    order(ByteOrder.LITTLE_ENDIAN);
+            List<Chunk> top = parseRiff(b, 0, b.limit());
+            assertTrue("only " + top.size() + " RIFF lists", top.size() > 1);
+            for (int i = 0; i < top.size(); i++)
+                assertEquals(i == 0 ? "AVI " : "AVIX", top.get(i).type);
+
+            Chunk hdrl = top.get(0).find("hdrl");
+            Chunk dmlh = hdrl.find("odml").find("dmlh");
+            assertEquals("dmlh frames", frames, b.getInt(dmlh.offset + 8));
+            Chunk indx = hdrl.find("strl").find("indx");
+            assertEquals("super index entries", top.size(),
+                    b.getInt(indx.offset + 12));
+
+            int total = 0;
+            for (int i = 0; i < top.size(); i++) {
+                int entry = indx.offset + 32 + 16 * i;
+                int ix = (int) b.getLong(entry);
+                assertEquals("ix00", fourcc(b, ix));
+                assertEquals(b.getInt(entry + 8), b.getInt(ix + 4) + 8);
+                int count = b.getInt(ix + 12);
+                assertEquals(b.getInt(entry + 12), count);
+                Chunk movi = top.get(i).find("movi");
+                assertEquals("ix00 base", movi.offset,
+                        (int) b.getLong(ix + 20));
+                assertEquals(countFrames(movi), count);
+                for (int k = 0; k < count; k++) {
+                    int at = movi.offset + b.getInt(ix + 32 + 8 * k);
+                    assertEquals("00dc", fourcc(b, at - 8));
+                    assertEquals(b.getInt(ix + 36 + 8 * k) & 0x7fffffff,
+                            b.getInt(at - 4));
+                }
+                total += count;
+            }
+            assertEquals(frames, total);
+
+            Chunk first = top.get(0);
+            int firstFrames = countFrames(first.find("movi"));
+            assertEquals("avih frames", firstFrames,
+                    b.getInt(hdrl.find("avih").offset + 24));
+            checkIdx1(b, first.find("idx1"), first.find("movi"),
+                    firstFrames);
+        }
+    }
+
+    /* EBML, as used by Matroska */
+
+    private static final int SEGMENT = 0x18538067;
+    private static final int SEEK_ID = 0x53AB;
+    private static final int SEEK_POSITION = 0x53AC;
+    private static final int CLUSTER = 0x1F43B675;
+    private static final int TIMESTAMP = 0xE7;
+    private static final int SIMPLE_BLOCK = 0xA3;
+    private static final int CUE_CLUSTER_POSITION = 0xF1;
+    private static final int[] MASTER_ELEMENTS = {
+        0x1A45DFA3, SEGMENT, 0x114D9B74, 0x4DBB, 0x1549A966, 0x1654AE6B,
+        0xAE, 0xE0, CLUSTER, 0x1C53BB6B, 0xBB, 0xB7
+    };
+
+    /** What's found while parsing a Matroska file. */
+    private static final class Matroska {
+        final ByteBuffer b;
+        int segmentStart = -1;
+        long clusterTime;
+        final List<Long> blockTimes = new ArrayList<>();
+        final List<Boolean> blockKeys = new ArrayList<>();
+        final Map<Integer, Integer> elements = new HashMap<>();
+        final List<Integer> seekIds = new ArrayList<>();
+        final List<Long> seekPositions = new ArrayList<>();
+        final List<Long> cuePositions = new ArrayList<>();
+
+        Matroska(ByteBuffer b) {
+            this.b = b;
+        }
+
+        long uint(int offset, int length) {
+            long value = 0;
+            for (int i = 0; i < length; i++)
+                value = (value << 8) | (b.get(offset + i) & 0xff);
+            return value;
+        }
+
+        /* Reads a variable-length integer, advancing p[0] past it. */
+        long vint(int[] p, boolean mask) {
+            int first = b.get(p[0]) & 0xff;
+            int length = Integer.numberOfLeadingZeros(first) - 23;
+            assertTrue("bad vint at " + p[0], length >= 1 && length <= 8);
+            long value = uint(p[0], length);
+            if (mask) value &= -1L >>> (64 - 7 * length);
+            p[0] += length;
+            return value;
+        }
+
+        void parse(int start, int end) {
+            int[] p = {start};
+            while (p[0] < end) {
+                int elementStart = p[0];
+                int id = (int) vint(p, false);
+                long size = vint(p, true);
+                int data = p[0];
+                assertTrue("element " + Integer.toHexString(id) + " at " +
+                        elementStart + " overflows its parent",
+                        size >= 0 && data + size <= end);
+                int length = (int) size;
+                if (segmentStart >= 0)
+                    elements.put(elementStart - segmentStart, id);
+                switch (id) {
+                    case SEGMENT:
+                        segmentStart = data;
+                        break;
+                    case TIMESTAMP:
+                        clusterTime = uint(data, length);
+                        break;
+                    case SEEK_ID:
+                        seekIds.add((int) uint(data, length));
+                        break;
+                    case SEEK_POSITION:
+                        seekPositions.add(uint(data, length));
+                        break;
+                    case CUE_CLUSTER_POSITION:
+                        cuePositions.add(uint(data, length));
+                        break;
+                    case SIMPLE_BLOCK:
+                        assertEquals("track", 0x81, b.get(data) & 0xff);
+                        blockTimes.add(clusterTime + b.getShort(data + 1));
+                        blockKeys.add((b.get(data + 3) & 0x80) != 0);
+                        break;
+                    default:
+                        break;
+                }
+                for (int master : MASTER_ELEMENTS)
+                    if (id == master) parse(data, data + length);
+                p[0] = data + length;
+            }
+            assertEquals("elements don't fill their parent", end, p[0]);
+        }
+    }
+
+    @Test
+    public void matroska() throws Exception {
+        byte[] previous = null;
+        for (VideoCodec codec : codecs()) {
+            for (boolean toFile : new boolean[] {false, true}) {
+                File file = new File(directory, "check.mkv");
+                byte[] contents;
+                MatroskaVideoContainer container;
+                if (toFile) {
+                    try (FileChannel channel = FileChannel.open(
+                            file.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.READ,
+                            StandardOpenOption.WRITE)) {
+                        container = new MatroskaVideoContainer(channel);
+                        loader.getTtyrec().encodeVideo(container, codec,
+                                FrameTimeConvertor.fixedSpeed(FPS));
+                    }
+                    contents = Files.readAllBytes(file.toPath());
+                    assertArrayEquals("file differs from memory",
+                            previous, contents);
+                } else {
+                    container = new MatroskaVideoContainer();
+                    loader.getTtyrec().encodeVideo(container, codec,
+                            FrameTimeConvertor.fixedSpeed(FPS));
+                    contents = output(container);
+                    previous = contents;
+                }
+                checkMatroska(contents, container);
+            }
+        }
+    }
+
+    private static void checkMatroska(byte[] contents,
+                                      MatroskaVideoContainer container) {
+        Matroska m = new Matroska(ByteBuffer.wrap(contents));
+        m.parse(0, contents.length);
+        assertTrue("no segment", m.segmentStart >= 0);
+
+        int blocks = m.blockTimes.size();
+        assertTrue("no blocks", blocks > 0);
+        assertEquals(container.getFramesEncoded() -
+                container.getFramesUnchanged(), blocks);
+        assertTrue("first block isn't a keyframe", m.blockKeys.get(0));
+        for (int i = 1; i < blocks; i++)
+            assertTrue("block times go backwards at " + i,
+                    m.blockTimes.get(i) > m.blockTimes.get(i - 1));
+
+        assertEquals(m.seekIds.size(), m.seekPositions.size());
+        for (int i = 0; i < m.seekIds.size(); i++) {
+            long position = m.seekPositions.get(i);
+            assertEquals("seek entry " + i, m.seekIds.get(i),
+                    m.elements.get((int) position));
+        }
+        assertTrue("no cues", !m.cuePositions.isEmpty());
+        for (long position : m.cuePositions)
+            assertEquals("cue at " + position, (Integer) CLUSTER,
+                    m.elements.get((int) position));
+    }
+}
@@ -14,6 +14,7 @@ import java.awt.datatransfer.ClipboardOwner;
 import java.awt.datatransfer.StringSelection;
 import java.awt.datatransfer.Transferable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
@@ -35,6 +36,7 @@ import java.net.URL;
 import java.text.AttributedString;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.CancellationException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -66,6 +68,7 @@ import javax.swing.JSlider;
 import javax.swing.JSpinner;
 import javax.swing.JToggleButton;
 import javax.swing.JToolBar;
+import javax.swing.ProgressMonitor;
 import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
@@ -127,9 +130,8 @@ public class MainFrame extends JFrame
                     previousFrameIndex != getCurrentTtyrec().getFrameCount() - 1 &&
                     (double)speedSpinner.getValue() > 0) {
                     double curTime = timeSlider.getValue() / timeScaling;
-                    double nextFrameTime =
-                            getCurrentTtyrec().getFrameAtIndex(previousFrameIndex + 1).
-                            getRelativeTimestamp();
+                    double nextFrameTime = getCurrentTtyrec().
+                            getFrameRelativeTime(previousFrameIndex + 1);
                     double thisFrameTime =
                             getCurrentFrame().
                             getRelativeTimestamp();
@@ -299,6 +301,10 @@ public class MainFrame extends JFrame
         uiBuilder.addJSeparator(fileMenu);
         uiBuilder.addJMenuItem(fileMenu, 'v', "Save as Video...", null,
                 true, this::saveAsVideoMenuItemActionPerformed);
+        uiBuilder.addJMenuItem(fileMenu, 'a', "Save as asciicast...", null,
+                true, evt -> saveAsText(new AsciicastExporter()));
+        uiBuilder.addJMenuItem(fileMenu, 't', "Save as Text...", null,
+                true, evt -> saveAsText(new ScreenTextExporter()));
         uiBuilder.addJSeparator(fileMenu);
         uiBuilder.addJMenuItem(fileMenu, 'x', "Exit", "control X", false,
                 this::exitMenuItemActionPerformed);
@@ -785,8 +791,8 @@ public class MainFrame extends JFrame
         if (getCurrentTtyrec() != null) vdub = getCurrentFrame().getTerminalState();
         if (vdub == null) vdub = new vt320();
         StringBuilder sb = new StringBuilder();
-        for (char[] s: vdub.charArray) {
-            sb.append(s);
+        for (int i = 0; i < vdub.getBufferSize(); i++) {
+            sb.append(vdub.getCharRow(i));
             sb.append('\n');
         }
         setClipboardContents(new StringSelection(sb.toString()));
@@ -947,6 +953,66 @@ public class MainFrame extends JFrame
                     "Cannot Save as Video", JOptionPane.ERROR_MESSAGE);
     }
     
+    /**
+     * Exports the current ttyrec as text, to a file chosen by the user.
+     * The export runs in the background, with a progress monitor that can
+     * cancel it (the monitor only appears if the export takes a while). A
+     * file that's only partly written, because the export failed or was
+     * cancelled, is deleted.
+     * @param exporter The exporter to export with.
+     */
+    private void saveAsText(final TextExporter exporter) {
+        final Ttyrec ttyrec = currentSource.getTtyrec();
+        if (ttyrec == null || ttyrec.getFrameCount() == 0 ||
+            currentSource.backportDecodeProgress() < ttyrec.getFrameCount()) {
+            JOptionPane.showMessageDialog(fileMenu,
+                    "Please wait for the ttyrec to finish loading first.",
+                    "Cannot Save as Text", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        JFileChooser fileChooser = new JFileChooser(lastDirectory);
+        fileChooser.setSelectedFile(new File(lastDirectory,
+                "ttyrec." + exporter.getFileExtension()));
+        if (fileChooser.showSaveDialog(mainPanel) !=
+                JFileChooser.APPROVE_OPTION)
+            return;
+        final File f = fileChooser.getSelectedFile();
+        final ProgressMonitor monitor = new ProgressMonitor(mainPanel,
+                "Saving " + f.getName(), null, 0, ttyrec.getFrameCount());
+        final Timer progressTimer = new Timer(100, evt -> {
+            if (monitor.isCanceled()) exporter.cancelExport();
+            else monitor.setProgress(exporter.getFramesExported());
+        });
+        progressTimer.start();
+        new Thread(() -> {
+            boolean written = false; // has the file been changed?
+            boolean saved = false;
+            String error = null;
+            try (OutputStream os = new FileOutputStream(f)) {
+                written = true;
+                exporter.export(ttyrec, os);
+                saved = true;
+            } catch (CancellationException ex) {
+                // nothing to do
+            } catch (IOException ex) {
+                error = "Could not save file:" + ex.getLocalizedMessage();
+            } catch (RuntimeException ex) {
+                error = "Could not export ttyrec:" + ex;
+            } finally {
+                // don't leave a partly-written file behind
+                if (written && !saved) f.delete();
+            }
+            final String message = error;
+            SwingUtilities.invokeLater(() -> {
+                progressTimer.stop();
+                monitor.close();
+                if (message != null)
+                    JOptionPane.showMessageDialog(mainPanel, message,
+                            "Save as Text", JOptionPane.ERROR_MESSAGE);
+            });
+        }).start();
+    }
+
     private void setFontMenuItemActionPerformed(ActionEvent evt) {
         FontDialog fontBox = new FontDialog(this,this);
         fontBox.setVisible(true);
@@ -1022,13 +1088,15 @@ public class MainFrame extends JFrame
         if (getCurrentTtyrec() == null) return;
         if (frame < 0 || frame >= getCurrentTtyrec().getFrameCount()) return;
         TtyrecFrame f = getCurrentTtyrec().getFrameAtIndex(frame);
+        getCurrentTtyrec().setPlayheadFrame(frame);
         if (changeTimeSlider) {
             timeSlider.setValue((int)Math.ceil(
                     f.getRelativeTimestamp() * timeScaling));
             timeSliderStateChanged(null);
         }
         if (frame != previousFrameIndex) {
-            replayTerminal.setVDUBuffer(f.getTerminalState());
+            replayTerminal.setVDUBuffer(f.getTerminalState(),
+                    f.getDamageSince(replayTerminal.getVDUBuffer()));
             f.setDirty(false);
         }
         previousFrameIndex = frame;
@@ -1275,7 +1343,7 @@ public class MainFrame extends JFrame
 
     private void setSidebarPropertyMessage() {
         if (getCurrentTtyrec() != null) {
-            AttributedString[] as = new AttributedString[7];
+            AttributedString[] as = new AttributedString[9];
             as[0] = new AttributedString(playing ? "Playing" : "Paused");
             as[0].addAttribute(TextAttribute.WEIGHT,TextAttribute.WEIGHT_BOLD);
             double time = (double)timeSlider.getValue() / timeScaling;
@@ -1306,6 +1374,19 @@ public class MainFrame extends JFrame
                 as[6] = new AttributedString("URI: unknown");
             }
             as[6].addAttribute(TextAttribute.WEIGHT,TextAttribute.WEIGHT_BOLD,0,3);
+            long ttfp = getCurrentTtyrec().getTimeToFirstPixel();
+            as[7] = new AttributedString("Seek latency: " +
+                    (ttfp < 0 ? "n/a" : (ttfp / 1000000) + " ms"));
+            as[7].addAttribute(TextAttribute.WEIGHT,TextAttribute.WEIGHT_BOLD,0,12);
+            /* How busy the recording was in the minute leading up to now. */
+            long recentBytes = 0;
+            for (TtyrecFrame f : getCurrentTtyrec().
+                    getFramesBetweenRelativeTimes(time - 60, time))
+                recentBytes += f.getDataLength();
+            as[8] = new AttributedString("Last minute: " + getCurrentTtyrec().
+                    countFramesBetweenRelativeTimes(time - 60, time) +
+                    " frames, " + recentBytes + " bytes");
+            as[8].addAttribute(TextAttribute.WEIGHT,TextAttribute.WEIGHT_BOLD,0,12);
             setSidebarPaneContents(as);
         } else {
             setSidebarPaneContents(new AttributedString[]
@@ -1495,11 +1576,13 @@ public class MainFrame extends JFrame
                 System.err.println("-f 1200     Jump to frame 1200 upon loading (likewise for other frames)");
                 System.err.println("-s 4        Set speed to 4x realtime (likewise for other speeds)");
                 System.err.println("-l          Automatically fast-forward through periods of inactivity");
+                System.err.println("-p          Decode in parallel from frames that reset the screen");
                 System.err.println("--          Treat next arg as a filename even if it starts with -");
                 System.err.println("-h          Show this help, then exit");
                 System.err.println("-v          Show version and copyright information, then exit");
                 System.exit(0);
             }
+            if(a.equals("-p")) TtyrecDecoder.setParallelDecoding(true);
             if(a.equals("--")) ddflag = true;
         }
         // Set up the GUI.
@@ -1509,6 +1592,9 @@ public class MainFrame extends JFrame
                  IllegalAccessException | UnsupportedLookAndFeelException ex) {
             // if we can't set a system look and feel, just use the default...
         }
+        // Progress notifications update the GUI, so they go to the event
+        // thread.
+        ProgressEventBus.setDispatchExecutor(SwingUtilities::invokeLater);
         // Set up networking, if we're allowed to.
         try {
             URL.setURLStreamHandlerFactory(new StreamingURLStreamHandlerFactory());
@@ -1551,6 +1637,7 @@ public class MainFrame extends JFrame
                 me.updateSidebar();
                 continue;
             }
+            if(a.equals("-p") && !ddflag) continue;
             if(a.equals("-s") && !ddflag) {speedflag = true; continue;}
             if(a.equals("-f") && !ddflag) {frameflag = true; continue;}
             if(a.equals("-z") && !ddflag) {sizeflag = true; continue;}
@@ -15,6 +15,9 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.concurrent.CancellationException;
 import javax.swing.JDialog;
 import javax.swing.JFileChooser;
@@ -31,6 +34,7 @@ public class SaveAsVideoDialog extends JDialog implements ProgressListener {
     private final Ttyrec ttyrec;
 
     private VideoContainer encodingContainer;
+    private VideoCodec encodingCodec;
     
     /** Creates a new form to save a ttyrec as video
      * @param parent The MainFrame that created this dialog box.
@@ -83,7 +87,8 @@ public class SaveAsVideoDialog extends JDialog implements ProgressListener {
         gridBagConstraints.anchor = java.awt.GridBagConstraints.LINE_END;
         getContentPane().add(jLabel1, gridBagConstraints);
 
-        containerComboBox.setModel(new javax.swing.DefaultComboBoxModel<>(new String[] { "AVI" }));
+        containerComboBox.setModel(new javax.swing.DefaultComboBoxModel<>(new String[] { "AVI", "Matroska", "GIF", "APNG" }));
+        containerComboBox.addActionListener(this::containerComboBoxActionPerformed);
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.gridwidth = 3;
         gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
@@ -220,6 +225,17 @@ public class SaveAsVideoDialog extends JDialog implements ProgressListener {
         fixedSpeedSpinner.setEnabled(fixedSpeedButton.isSelected());
     }//GEN-LAST:event_fixedSpeedButtonStateChanged
 
+    private void containerComboBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_containerComboBoxActionPerformed
+        // Animated images have their own codec, and take frame delays
+        // straight from the ttyrec.
+        boolean video = containerComboBox.getSelectedIndex() <= 1;
+        codecComboBox.setEnabled(video);
+        linearSpeedButton.setEnabled(video);
+        logSpeedButton.setEnabled(video);
+        fixedSpeedButton.setEnabled(video);
+        fixedSpeedSpinner.setEnabled(video && fixedSpeedButton.isSelected());
+    }//GEN-LAST:event_containerComboBoxActionPerformed
+
     private void cancelButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cancelButtonActionPerformed
         if (encodingContainer != null) encodingContainer.cancelEncode();
         dispose();
@@ -237,6 +253,26 @@ public class SaveAsVideoDialog extends JDialog implements ProgressListener {
             sizeComboBox.requestFocusInWindow();
             return;
         }
+        // The file is chosen before encoding starts, so that an AVI or
+        // Matroska video can be written to it as it's encoded, and long
+        // videos don't have to fit in memory. Animated images are small
+        // enough to build in memory, and are written once they're done.
+        final int container = containerComboBox.getSelectedIndex();
+        JFileChooser jfc = new JFileChooser();
+        if (jfc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        final File file = jfc.getSelectedFile();
+        final FileChannel channel;
+        try {
+            channel = container > 1 ? null : FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this,
+                    "Could not save file:" + ex.getLocalizedMessage(),
+                    "Save as Video", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
         containerComboBox.setEnabled(false);
         codecComboBox.setEnabled(false);
         linearSpeedButton.setEnabled(false);
@@ -260,87 +296,70 @@ public class SaveAsVideoDialog extends JDialog implements ProgressListener {
             allowBoldCheckBox.isSelected())};
         final int fixedFramerate = (int)(double)(fixedSpeedSpinner.getModel()).getValue();
         
-        encodingContainer = new AVIVideoContainer();
+        if (container <= 1) {
+            encodingCodec = codecs[codecComboBox.getSelectedIndex()];
+            encodingContainer = container == 0
+                    ? new AVIVideoContainer(channel)
+                    : new MatroskaVideoContainer(channel);
+        } else {
+            encodingCodec = new PaletteVideoCodec(height,
+                    parent.getTerminalFont(),
+                    antialiasingCheckBox.isSelected()
+                    ? RenderingHints.VALUE_TEXT_ANTIALIAS_ON
+                    : RenderingHints.VALUE_TEXT_ANTIALIAS_OFF,
+                    allowBoldCheckBox.isSelected());
+            encodingContainer = container == 2 ? new GIFVideoContainer()
+                    : new APNGVideoContainer();
+        }
         encodingContainer.addProgressListener(this);
 
         final JDialog finalThis = this;
         
         Runnable videoEncodeThread = () -> {
+            boolean written = channel != null; // has the file been changed?
+            boolean saved = false;
             try {
-                ttyrec.encodeVideo(encodingContainer,
-                        codecs[codecComboBox.getSelectedIndex()],
+                ttyrec.encodeVideo(encodingContainer, encodingCodec,
                         linearSpeedButton.isSelected()
-                        ? new FrameTimeConvertor() {
-                    
-                    public double getFrameRate() {
-                        return 30.0;
-                    }
-                    
-                    public void resetConvertor() {
-                    }
-                    
-                    public int convertFrameTime(double frameTime) {
-                        return (int) (frameTime * 30);
-                    }
-                } : logSpeedButton.isSelected()
-                        ? new FrameTimeConvertor() {
-                    
-                    private double lastFrameTime = 0;
-                    private double adjustedLastFrameTime = 0;
-                    
-                    public double getFrameRate() {
-                        return 30.0;
-                    }
-                    
-                    public void resetConvertor() {
-                        lastFrameTime = 0;
-                        adjustedLastFrameTime = 0;
-                    }
-                    
-                    public int convertFrameTime(double frameTime) {
-                        if (frameTime - lastFrameTime > 1) {
-                            adjustedLastFrameTime +=
-                                    1 + Math.log(frameTime - lastFrameTime);
-                        } else {
-                            adjustedLastFrameTime += frameTime - lastFrameTime;
-                        }
-                        lastFrameTime = frameTime;
-                        return (int) (adjustedLastFrameTime * 30);
-                        
-                    }
-                } : new FrameTimeConvertor() {
-                    
-                    int frameNumber = 0;
-                    
-                    public double getFrameRate() {
-                        return fixedFramerate;
-                    }
-                    
-                    public void resetConvertor() {
-                        frameNumber = 0;
-                    }
-                    
-                    public int convertFrameTime(double frameTime) {
-                        return frameNumber++;
-                    }
-                });
-                JFileChooser jfc = new JFileChooser();
-                int rv = jfc.showSaveDialog(finalThis);
-                if (rv == JFileChooser.APPROVE_OPTION) {
-                    File f = jfc.getSelectedFile();
-                    try (OutputStream os = new FileOutputStream(f)) {
+                        ? FrameTimeConvertor.linear()
+                        : logSpeedButton.isSelected()
+                        ? FrameTimeConvertor.logarithmic()
+                        : FrameTimeConvertor.fixedSpeed(fixedFramerate));
+                if (channel != null) {
+                    channel.close();
+                } else {
+                    written = true;
+                    try (OutputStream os = new FileOutputStream(file)) {
                         encodingContainer.outputEncode(os);
-                    } catch(IOException ex) {
-                        JOptionPane.showMessageDialog(finalThis,
-                                "Could not save file:" + ex.getLocalizedMessage(),
-                                "Save as Video", JOptionPane.ERROR_MESSAGE);
                     }
                 }
+                saved = true;
                 finalThis.dispose();
             } catch (CancellationException e) {
                 // nothing to do
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(finalThis,
+                        "Could not save file:" + ex.getLocalizedMessage(),
+                        "Save as Video", JOptionPane.ERROR_MESSAGE);
+                finalThis.dispose();
+            } catch (UncheckedIOException ex) {
+                JOptionPane.showMessageDialog(finalThis,
+                        "Could not encode video:" +
+                        ex.getCause().getLocalizedMessage(),
+                        "Save as Video", JOptionPane.ERROR_MESSAGE);
+                finalThis.dispose();
             } finally {
                 encodingContainer = null; // make sure it doesn't leak
+                encodingCodec = null;
+                if (written && !saved) {
+                    // don't leave a partly-written video behind
+                    try {
+                        if (channel != null) channel.close();
+                    } catch (IOException ex) {
+                        // we're deleting it anyway
+                    }
+                    file.delete();
+                }
             }
         };
         new Thread(videoEncodeThread).start();
@@ -365,11 +384,39 @@ public class SaveAsVideoDialog extends JDialog implements ProgressListener {
     public void progressMade() {
         /* This might be called from a weird thread (in fact, probably will
          * be), so we need to use invokeLater to get back to the Swing thread. */
+        final VideoContainer container = encodingContainer;
+        final VideoCodec codec = encodingCodec;
+        if (container == null) return;
         Runnable runnable = () -> {
-            progressBar.setValue(encodingContainer.getFramesEncoded());
-            progressBar.setString(encodingContainer.getFramesEncoded() + " / " + progressBar.getMaximum());
+            progressBar.setValue(container.getFramesEncoded());
+            progressBar.setString(container.getFramesEncoded() + " / " +
+                    progressBar.getMaximum() + cacheStatistics(container, codec));
             progressBar.setStringPainted(true);
         };
         SwingUtilities.invokeLater(runnable);
     }
+
+    /**
+     * Describes how many frames were found not to need rendering, because
+     * they hadn't changed or were in the codec's cache.
+     * @return The description, to add to the progress bar, or an empty
+     * string if there's nothing to say.
+     */
+    private static String cacheStatistics(VideoContainer container,
+            VideoCodec codec) {
+        StringBuilder sb = new StringBuilder();
+        if (container instanceof AbstractVideoContainer) {
+            sb.append(" (").append(((AbstractVideoContainer) container).
+                    getFramesUnchanged()).append(" unchanged");
+        }
+        if (codec instanceof AbstractVideoCodec) {
+            FrameCache cache = ((AbstractVideoCodec) codec).getFrameCache();
+            sb.append(sb.length() == 0 ? " (" : ", ");
+            sb.append(String.format("cache: %d screens, %.1f MiB, %.0f%% hits",
+                    cache.getSize(), cache.getBytes() / 1048576.0,
+                    cache.getHitRatio() * 100));
+        }
+        if (sb.length() > 0) sb.append(")");
+        return sb.toString();
+    }
 }
@@ -32,6 +32,7 @@ import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Insets;
 import javax.swing.JComponent;
+import javax.swing.UIManager;
 
 /**
  * Video Display Unit emulation for Swing/AWT. This class implements all necessary
@@ -71,6 +72,7 @@ public class SwingTerminal extends JComponent {
         setBackground(Color.black);
 
         this.renderer = new VDURenderer(new vt320(), getGraphics());
+        renderer.setMarginColor(UIManager.getColor("Panel.background"));
     }
 
     public void setVDUBuffer(VDUBuffer buffer) {
@@ -79,6 +81,12 @@ public class SwingTerminal extends JComponent {
         repaint();
     }
 
+    public void setVDUBuffer(VDUBuffer buffer, TerminalDamage damage) {
+        renderer.setVDUBuffer(buffer, damage);
+        setBounds(getX(), getY(), getWidth(), getHeight());
+        repaint();
+    }
+
     public void setTextAntialiasingType(Object textAntialiasingType) {
         renderer.setTextAntialiasingType(textAntialiasingType);
         repaint();